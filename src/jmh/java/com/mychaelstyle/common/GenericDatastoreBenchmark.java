@@ -0,0 +1,69 @@
+package com.mychaelstyle.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.datastore.InMemory;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+
+/**
+ * InMemoryプロバイダに対するGenericDatastore.get, putの全体の処理時間.
+ *
+ * プロバイダ自体の処理時間はほぼ0のため、GenericDatastoreの
+ * キーの解決、書き込みの振り分け、メトリクスの記録などの負荷を測ります.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenericDatastoreBenchmark {
+
+    /** MeteredProviderで計測するか */
+    @Param({"false", "true"})
+    public boolean metered;
+
+    private GenericDatastore datastore;
+    private Key key;
+    private JSONObject record;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.datastore = new GenericDatastore().withProvider(new JSONObject()
+                .put(GenericDatastore.PARAM_PROVIDER, InMemory.class.getName()));
+        if(this.metered){
+            this.datastore.withMetrics(new MetricsRegistry());
+        }
+        this.key = new Key("users", "user_id", "user-000123");
+        this.record = new JSONObject().put("user_id", "user-000123")
+                .put("name", "benchmark user").put("age", 30).put("score", 0.75);
+        this.datastore.put(this.key, this.record);
+    }
+
+    @Benchmark
+    public JSONObject get() throws Exception {
+        return this.datastore.get(this.key);
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        this.datastore.put(this.key, this.record);
+    }
+}
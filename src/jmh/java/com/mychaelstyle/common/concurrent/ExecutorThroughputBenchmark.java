@@ -0,0 +1,161 @@
+package com.mychaelstyle.common.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.BaseProvider;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+
+/**
+ * プラットフォームスレッドのExecutorと仮想スレッドのExecutorで、
+ * ブロッキングするプロバイダに対するgetAsyncのスループットを比較するベンチマーク.
+ *
+ * 1回の呼び出しでrequests件のgetAsyncを同時に発行し、全件の完了までの時間を測ります.
+ * <pre>
+ * ./gradlew jmh -Pjmh.include=ExecutorThroughputBenchmark
+ * </pre>
+ * 仮想スレッドの計測にはJava 21以降が必要です. 対応していないJVMではvirtualの計測が失敗します.
+ *
+ * @author Masanori Nakashima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorThroughputBenchmark {
+
+    /** 非同期処理のExecutor */
+    @Param({"platform", "virtual"})
+    public String executor;
+
+    /** 1回の呼び出しで同時に発行するgetAsyncの件数 */
+    @Param({"1000"})
+    public int requests;
+
+    /** プロバイダがブロックするミリ秒 */
+    @Param({"20"})
+    public long latency;
+
+    /** プラットフォームスレッドのExecutorのスレッド数 */
+    @Param({"200"})
+    public int platformThreads;
+
+    private ExecutorService asyncExecutor;
+    private GenericDatastore datastore;
+
+    @Setup
+    public void setUp() throws Exception {
+        if("virtual".equals(this.executor)){
+            this.asyncExecutor = DatastoreExecutors.newVirtualThreadExecutor();
+        } else {
+            this.asyncExecutor = DatastoreExecutors.newBoundedExecutor("bench-platform",
+                    this.platformThreads, this.requests, DatastoreExecutors.Overflow.BLOCK);
+        }
+        this.datastore = new GenericDatastore().withProvider(new JSONObject()
+                .put(GenericDatastore.PARAM_PROVIDER, SleepingProvider.class.getName())
+                .put("latency", this.latency)).withAsyncExecutor(this.asyncExecutor);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.asyncExecutor.shutdown();
+        this.asyncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void getAsync() throws Exception {
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<CompletableFuture<JSONObject>>(this.requests);
+        for(int num=0; num<this.requests; num++){
+            futures.add(this.datastore.getAsync(new Key("bench", "key", num)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+    }
+
+    /**
+     * 設定した時間だけスレッドをブロックしてから空のレコードを返すプロバイダ
+     */
+    public static class SleepingProvider extends BaseProvider {
+        private long latency = 0;
+
+        @Override
+        public Provider connect(JSONObject config) throws ConfigurationException {
+            this.latency = config.getLong("latency");
+            return this;
+        }
+
+        private void block() throws OperationException {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                throw new OperationException(e);
+            }
+        }
+
+        @Override
+        public JSONObject get(Key key) throws OperationException {
+            this.block();
+            return new JSONObject();
+        }
+
+        @Override
+        public void delete(Key key) throws OperationException {
+            this.block();
+        }
+
+        @Override
+        public void put(Key key, JSONObject record) throws OperationException {
+            this.block();
+        }
+
+        @Override
+        public void update(Key key, JSONObject record) throws OperationException {
+            this.block();
+        }
+
+        @Override
+        public JSONObject batchGet(JSONArray conditions) throws OperationException {
+            this.block();
+            return new JSONObject();
+        }
+
+        @Override
+        public void batchWrite(JSONArray jsonArray) throws OperationException {
+            this.block();
+        }
+
+        @Override
+        public ResultSet scan(Key key, JSONObject conditions, List<String> fields) {
+            return null;
+        }
+
+        @Override
+        public ResultSet query(Key key, JSONObject conditions, List<String> fields) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.mychaelstyle.common.datastore;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.mychaelstyle.common.datastore.aws.AttributeValues;
+
+/**
+ * AwsDynamoDB.put, getのJSONObjectとAttributeValueの変換.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeValueBenchmark {
+
+    /** レコードのフィールド数 */
+    @Param({"8", "32"})
+    public int fields;
+
+    private JSONObject record;
+    private Map<String,AttributeValue> item;
+
+    @Setup
+    public void setUp() {
+        this.record = new JSONObject().put("key", "user-000123");
+        for(int num=1; num<this.fields; num++){
+            switch(num%3){
+            case 0:
+                this.record.put("count"+num, num*1000);
+                break;
+            case 1:
+                this.record.put("name"+num, "value of the field "+num);
+                break;
+            default:
+                this.record.put("ratio"+num, num/7.0);
+                break;
+            }
+        }
+        this.item = AttributeValues.toItem(this.record);
+    }
+
+    /**
+     * putするレコードのアイテムへの変換
+     * @return
+     */
+    @Benchmark
+    public Map<String,AttributeValue> putItem() {
+        return AwsDynamoDB.createPutItem(this.record);
+    }
+
+    /**
+     * batchWriteの要素のアイテムへの変換
+     * @return
+     */
+    @Benchmark
+    public Map<String,AttributeValue> toItem() {
+        return AttributeValues.toItem(this.record);
+    }
+
+    /**
+     * getしたアイテムのレコードへの変換
+     * @return
+     */
+    @Benchmark
+    public JSONObject toJSONObject() {
+        return AttributeValues.toJSONObject(this.item);
+    }
+}
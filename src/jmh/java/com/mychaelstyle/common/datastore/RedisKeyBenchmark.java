@@ -0,0 +1,43 @@
+package com.mychaelstyle.common.datastore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * Redis.getQueryKeyのキーの生成.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisKeyBenchmark {
+
+    private final Key key = new Key("users", "user_id", "user-000123");
+    private final Key subkey = new Key("messages", "user_id", 123, "sequence", 45678);
+
+    @Benchmark
+    public String queryKey() {
+        return Redis.getQueryKey(this.key);
+    }
+
+    @Benchmark
+    public String queryKeyWithSubkey() {
+        return Redis.getQueryKey(this.subkey);
+    }
+}
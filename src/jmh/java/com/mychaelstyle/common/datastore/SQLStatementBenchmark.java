@@ -0,0 +1,128 @@
+package com.mychaelstyle.common.datastore;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * SQLDatabase.insert, updateのSQL文の生成とパラメータの設定.
+ *
+ * 接続はPreparedStatementへの設定を受け取るだけの代理オブジェクトのため、
+ * RDBMSとの通信を含まないプロバイダ内の処理時間を測ります.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SQLStatementBenchmark {
+
+    /** レコードのフィールド数 */
+    @Param({"8", "32"})
+    public int fields;
+
+    private StubDatabase database;
+    private Key key;
+    private JSONObject record;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.database = new StubDatabase();
+        this.database.connect(new JSONObject()
+                .put(SQLDatabase.JSON_ITEM_DATABASE_HOST, "localhost")
+                .put(SQLDatabase.JSON_ITEM_DATABASE_PORT, "3306")
+                .put(SQLDatabase.JSON_ITEM_DATABASE_NAME, "benchmark")
+                .put(SQLDatabase.JSON_ITEM_DATABASE_USER, "benchmark")
+                .put(SQLDatabase.JSON_ITEM_DATABASE_PASSWORD, ""));
+        this.key = new Key("users", "user_id", "user-000123");
+        this.record = new JSONObject().put("user_id", "user-000123");
+        for(int num=1; num<this.fields; num++){
+            if(num%2==0){
+                this.record.put("count"+num, num*1000);
+            } else {
+                this.record.put("name"+num, "value of the field "+num);
+            }
+        }
+    }
+
+    @Benchmark
+    public void insert(Blackhole blackhole) throws Exception {
+        this.database.insert(this.key, this.record);
+        blackhole.consume(this.database.statements);
+    }
+
+    @Benchmark
+    public void update(Blackhole blackhole) throws Exception {
+        this.database.update(this.key, this.record);
+        blackhole.consume(this.database.statements);
+    }
+
+    /**
+     * 実行したSQL文とパラメータの数だけを数える接続を返すプロバイダ
+     */
+    public static class StubDatabase extends SQLDatabase {
+        long statements = 0;
+        private final Connection connection = (Connection) Proxy.newProxyInstance(
+                SQLStatementBenchmark.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch(method.getName()){
+                    case "prepareStatement":
+                        return this.statement(((String) args[0]).length());
+                    case "isClosed":
+                        return false;
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        private PreparedStatement statement(int length) {
+            this.statements += length;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    SQLStatementBenchmark.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                    (proxy, method, args) -> {
+                        switch(method.getName()){
+                        case "setInt":
+                        case "setDouble":
+                        case "setString":
+                            this.statements++;
+                            return null;
+                        case "execute":
+                            return false;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        public Connection getConnection() throws ConfigurationException {
+            return this.connection;
+        }
+    }
+}
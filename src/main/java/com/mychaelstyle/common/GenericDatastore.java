@@ -4,18 +4,47 @@
 package com.mychaelstyle.common;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mychaelstyle.common.cache.RecordCache;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.concurrent.MicroBatcher;
+import com.mychaelstyle.common.concurrent.SingleFlight;
+import com.mychaelstyle.common.metrics.MeteredProvider;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+import com.mychaelstyle.common.record.Record;
 
 /**
  * Generic Datastore
  * @author Masanori Nakashima
  */
-public class GenericDatastore {
+public class GenericDatastore implements AutoCloseable {
 
     /**
      * Constructor
@@ -27,9 +56,45 @@ public class GenericDatastore {
     /** JSON parameter name : provider class name */
     public static final String PARAM_PROVIDER = "provider";
 
+    /** まとめて読み込むbatchGetの待ち行列長 */
+    private static final int BATCH_QUEUE_SIZE = 256;
+
+    /** Logger by logback */
+    private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common");
+
+    /** withWriteFanOutで生成する書き込み用Executorの既定のスレッド数. プロバイダへの書き込みはI/O待ちが主のためプロセッサ数の2倍 */
+    private static final int DEFAULT_WRITE_THREADS = 2*Math.max(2, Runtime.getRuntime().availableProcessors());
+
     /** Data store providers list */
     private List<Provider> providers = new ArrayList<Provider>();
 
+    /** 書き込みを全プロバイダへ並列に送るExecutor. nullなら順番に書き込む */
+    private ExecutorService writeExecutor = null;
+
+    /** 並列書き込みで成功とみなす応答プロバイダ数. 0以下なら全プロバイダ */
+    private int writeQuorum = 0;
+
+    /** 非同期操作を実行するExecutor. nullなら共有Executor */
+    private Executor asyncExecutor = null;
+
+    /** プロバイダの前に置くレコードキャッシュ. nullならキャッシュしない */
+    private volatile RecordCache cache = null;
+
+    /** 同じキーへの同時の読み込みをまとめる. nullならまとめない */
+    private volatile SingleFlight<Key,JSONObject> readFlight = null;
+
+    /** 個別のgetをまとめてbatchGetで読み込む. nullならまとめない */
+    private volatile MicroBatcher<Key,JSONObject> readBatcher = null;
+
+    /** readBatcherのbatchGetを実行するExecutor */
+    private Executor batchExecutor = null;
+
+    /** このインスタンスが生成したExecutor. 使われなくなったときとcloseで停止する */
+    private final List<ExecutorService> ownedExecutors = new ArrayList<ExecutorService>();
+
+    /** プロバイダの呼び出しを記録する登録先. nullなら記録しない */
+    private MetricsRegistry metrics = null;
+
     private String tableName;
     private String keyName;
     private String keyValue;
@@ -89,7 +154,7 @@ public class GenericDatastore {
         Class<?> clazz = Class.forName(cname);
         Provider provider = (Provider) clazz.newInstance();
         provider.connect(config);
-        this.providers.add(provider);
+        this.providers.add(null==this.metrics ? provider : new MeteredProvider(provider, this.metrics));
         return this;
     }
 
@@ -97,6 +162,265 @@ public class GenericDatastore {
         return this.providers.get(0);
     }
 
+    /**
+     * プロバイダの呼び出しごとの所要時間と失敗をプロバイダ×操作×テーブルごとに記録します.
+     * 
+     * 設定済みのプロバイダと以降に追加するプロバイダを{@link MeteredProvider}で包みます.
+     * 記録した値は{@link com.mychaelstyle.common.metrics.PrometheusExporter}で出力できます.
+     * nullを設定すると記録をやめます.
+     * 
+     * @param registry 記録先. 通常は{@link MetricsRegistry#global()}
+     * @return
+     */
+    public GenericDatastore withMetrics(final MetricsRegistry registry){
+        this.metrics = registry;
+        for(int pos=0; pos<this.providers.size(); pos++){
+            Provider provider = this.providers.get(pos);
+            if(provider instanceof MeteredProvider){
+                provider = ((MeteredProvider) provider).getProvider();
+            }
+            this.providers.set(pos, null==registry ? provider : new MeteredProvider(provider, registry));
+        }
+        return this;
+    }
+
+    /**
+     * 書き込み(put, update, delete, batchWrite)を全プロバイダへ並列に送るExecutorを設定します.
+     * 
+     * 書き込みの待ち時間は各プロバイダの待ち時間の合計ではなく最大値になります.
+     * nullを設定すると従来通りプロバイダの登録順に書き込みます.
+     * Executorはこのインスタンスの書き込み専用としてください.
+     * 同じExecutorの中から書き込みを呼び出すと、空きスレッドがなくなった時点で処理が進まなくなります.
+     * 
+     * @param executor
+     * @return
+     */
+    public GenericDatastore withWriteExecutor(final ExecutorService executor){
+        this.writeExecutor = executor;
+        this.releaseUnused();
+        return this;
+    }
+
+    /**
+     * 非同期操作と並列書き込みを仮想スレッドで実行するよう設定します. Java 21以降で利用できます.
+     * 
+     * プロバイダはブロッキングI/Oを行うため、操作ごとに仮想スレッドを割り当てることで
+     * 大きなスレッドプールなしに多数の操作を同時に実行できます.
+     * 
+     * @return
+     * @throws ConfigurationException 仮想スレッドに対応していないJVMの場合
+     */
+    public GenericDatastore withVirtualThreads() throws ConfigurationException {
+        if(!DatastoreExecutors.isVirtualThreadSupported()){
+            throw new ConfigurationException("Virtual threads require Java 21 or later, running "
+                    +System.getProperty("java.version"));
+        }
+        // 仮想スレッドはタスクごとに生成されるため、非同期操作の中から同じExecutorで
+        // 並列書き込みを待ち合わせてもスレッド不足で止まることはない
+        ExecutorService executor = this.own(DatastoreExecutors.newVirtualThreadExecutor());
+        this.asyncExecutor = executor;
+        this.writeExecutor = executor;
+        this.releaseUnused();
+        return this;
+    }
+
+    /**
+     * プロセッサ数の2倍のスレッドと指定長のキューを持つ書き込み用Executorを生成して設定します.
+     * 
+     * @param queueSize
+     * @return
+     * @see #withWriteFanOut(int, int)
+     */
+    public GenericDatastore withWriteFanOut(final int queueSize){
+        return this.withWriteFanOut(DEFAULT_WRITE_THREADS, queueSize);
+    }
+
+    /**
+     * 指定数のスレッドと指定長のキューを持つ書き込み用Executorを生成して設定します.
+     * 
+     * Executorはこのインスタンスの全ての書き込みで共有します.
+     * 全プロバイダの応答を待つ書き込みでは1つ目のプロバイダを呼び出し元のスレッドで書き込むため、
+     * 同時に書き込むスレッド数×(プロバイダ数-1)を目安にスレッド数を決めてください.
+     * キューが溢れた場合は空きができるまで呼び出し元を待たせます.
+     * 以前にこのメソッドで生成したExecutorは停止します.
+     * 
+     * @param threads スレッド数
+     * @param queueSize キュー長
+     * @return
+     */
+    public GenericDatastore withWriteFanOut(final int threads, final int queueSize){
+        return this.withWriteExecutor(this.own(DatastoreExecutors.newBoundedExecutor("datastore-write",
+                threads, queueSize, DatastoreExecutors.Overflow.BLOCK)));
+    }
+
+    /**
+     * 並列書き込みで成功とみなす応答プロバイダ数を設定します.
+     * 
+     * 指定数のプロバイダが書き込みに成功した時点で呼び出し元に戻ります.
+     * 残りのプロバイダへの書き込みはバックグラウンドで継続し、失敗はログに出力します.
+     * 成功数が指定数に届かないことが確定した場合は、成功したプロバイダのみロールバックして例外を送出します.
+     * 0以下の場合は全プロバイダの成功を待ちます.
+     * 
+     * @param quorum
+     * @return
+     */
+    public GenericDatastore withWriteQuorum(final int quorum){
+        this.writeQuorum = quorum;
+        return this;
+    }
+
+    /**
+     * 非同期操作(getAsync, putAsync...)を実行するExecutorを設定します.
+     * 
+     * 設定しない場合は{@link DatastoreExecutors#shared()}を利用します.
+     * スレッド数とキュー長が有限のExecutorを設定してください.
+     * 
+     * @param executor
+     * @return
+     */
+    public GenericDatastore withAsyncExecutor(final Executor executor){
+        this.asyncExecutor = executor;
+        this.releaseUnused();
+        return this;
+    }
+
+    /**
+     * get(Key)の結果をキャッシュするレコードキャッシュを設定します.
+     * 
+     * このインスタンスからのput, update, delete, batchWriteで対象レコードをキャッシュから削除します.
+     * 他のプロセスやインスタンスからの書き込みは反映されないため、テーブルごとの有効期限を設定してください.
+     * nullを設定するとキャッシュを利用しません.
+     * 
+     * @param cache
+     * @return
+     */
+    public GenericDatastore withCache(final RecordCache cache){
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * 同じキーに対する同時のget(Key)を1回のプロバイダ呼び出しにまとめるか設定します.
+     * 
+     * 人気のキーのキャッシュが切れた直後などに、多数のスレッドが同時にプロバイダへ問い合わせるのを防ぎます.
+     * 実行中の読み込みに相乗りした呼び出し元は、その結果の複製を受け取ります.
+     * このインスタンスから書き込んだキーは、書き込み後に新しく読み込みます.
+     * 
+     * @param coalescing
+     * @return
+     */
+    public GenericDatastore withReadCoalescing(final boolean coalescing){
+        this.readFlight = coalescing ? new SingleFlight<Key,JSONObject>() : null;
+        return this;
+    }
+
+    /**
+     * 個別のget(Key)を短い時間だけ溜めて、1回のプロバイダのbatchGetで読み込むよう設定します.
+     * 
+     * 最初のgetから指定時間が経過するか、指定数のキーが溜まった時点でbatchGetを実行します.
+     * 1件ごとの待ち時間が最大で指定時間だけ増える代わりに、プロバイダへの往復回数が大きく減ります.
+     * batchGetは専用のExecutorで実行します. getの呼び出し元と同じExecutorで実行すると、
+     * 呼び出し元がスレッドを使い切ったときにbatchGetが実行されず処理が進まなくなるためです.
+     * 専用のExecutorが溢れた場合、そのバッチのgetはOperationExceptionで失敗します.
+     * 
+     * @param window 最大待ち時間
+     * @param unit windowの単位
+     * @param maxKeys 1回のbatchGetの最大キー数
+     * @return
+     */
+    public GenericDatastore withReadBatching(final long window, final TimeUnit unit, final int maxKeys){
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return this.withReadBatching(window, unit, maxKeys, this.own(DatastoreExecutors.newBoundedExecutor(
+                "datastore-batch", threads, BATCH_QUEUE_SIZE, DatastoreExecutors.Overflow.ABORT)));
+    }
+
+    /**
+     * batchGetを実行するExecutorを指定して、個別のget(Key)をまとめて読み込むよう設定します.
+     * ExecutorはgetやgetAsyncの呼び出し元が利用するExecutorと別にしてください.
+     * 溢れたときに呼び出し元のスレッドで実行するExecutorは、全インスタンスで共有する待ち時間のタイマーを止めるため使えません.
+     * 
+     * @param window 最大待ち時間
+     * @param unit windowの単位
+     * @param maxKeys 1回のbatchGetの最大キー数
+     * @param executor batchGetを実行するExecutor
+     * @return
+     */
+    public GenericDatastore withReadBatching(final long window, final TimeUnit unit, final int maxKeys,
+            final Executor executor){
+        this.readBatcher = new MicroBatcher<Key,JSONObject>(this::batchLoad, executor, window, unit, maxKeys);
+        this.batchExecutor = executor;
+        this.releaseUnused();
+        return this;
+    }
+
+    /**
+     * このインスタンスが生成したExecutorを停止します.
+     * 
+     * 対象はwithWriteFanOut, withReadBatching, withVirtualThreadsで生成したExecutorです.
+     * 実行中と待ち行列の処理は完了させます. withWriteExecutorなどで渡したExecutorは停止しません.
+     * 停止後の書き込みはプロバイダの登録順に実行し、getはまとめずに読み込みます.
+     */
+    @Override
+    public void close(){
+        synchronized(this.ownedExecutors){
+            if(this.ownedExecutors.contains(this.writeExecutor)){
+                this.writeExecutor = null;
+            }
+            if(this.ownedExecutors.contains(this.asyncExecutor)){
+                this.asyncExecutor = null;
+            }
+            if(this.ownedExecutors.contains(this.batchExecutor)){
+                this.readBatcher = null;
+                this.batchExecutor = null;
+            }
+        }
+        this.releaseUnused();
+    }
+
+    /**
+     * 生成したExecutorを記録する
+     * @param executor
+     * @return executor
+     */
+    private ExecutorService own(final ExecutorService executor){
+        synchronized(this.ownedExecutors){
+            this.ownedExecutors.add(executor);
+        }
+        return executor;
+    }
+
+    /**
+     * 生成したExecutorのうち、どの設定からも使われなくなったものを停止する
+     */
+    private void releaseUnused(){
+        synchronized(this.ownedExecutors){
+            Iterator<ExecutorService> iterator = this.ownedExecutors.iterator();
+            while(iterator.hasNext()){
+                ExecutorService executor = iterator.next();
+                if(executor!=this.writeExecutor && executor!=this.asyncExecutor && executor!=this.batchExecutor){
+                    executor.shutdown();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 個別のget(Key)をまとめて読み込む設定を解除します.
+     * @return
+     */
+    public GenericDatastore withoutReadBatching(){
+        this.readBatcher = null;
+        return this;
+    }
+
+    /**
+     * @return 設定されているレコードキャッシュ. なければnull
+     */
+    public RecordCache getCache(){
+        return this.cache;
+    }
+
     /**
      * 問い合わせるデータベーステーブル名を設定します.
      * 
@@ -165,6 +489,15 @@ public class GenericDatastore {
         this.subkeyValue = null;
     }
 
+    /**
+     * 現在の問い合わせ設定から不変の問い合わせキーを生成します.
+     * @return Key
+     */
+    private Key currentKey(){
+        return new Key(this.tableName, this.keyName, this.keyValue,
+                this.subkeyName, this.subkeyValue);
+    }
+
     /**
      * 実行時に設定されているテーブル名、主キー、副キーでレコードを取得.
      * @return JSONObject
@@ -187,8 +520,7 @@ public class GenericDatastore {
      */
     public JSONObject get(boolean reset) throws ConnectionException, ConfigurationException, OperationException {
         try {
-            return this.selectProvider().withTable(this.tableName).withKey(this.keyName, this.keyValue)
-                .withSubkey(this.subkeyName, this.subkeyValue).get();
+            return this.get(this.currentKey());
         } finally {
             if(reset){
                 this.reset();
@@ -196,17 +528,290 @@ public class GenericDatastore {
         }
     }
 
-    private JSONObject getCurrentRecord(final JSONObject record)
+    /**
+     * 問い合わせキーを指定してレコードを取得.
+     * インスタンスの状態を変更しないため、複数スレッドから同時に呼び出せます.
+     * @param key
+     * @return JSONObject
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public JSONObject get(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+        RecordCache cache = this.cache;
+        if(null!=cache && null!=key.getKeyValue()){
+            JSONObject record = cache.get(key);
+            if(null!=record){
+                return record;
+            }
+        }
+        SingleFlight<Key,JSONObject> flight = this.readFlight;
+        if(null==flight){
+            return this.load(key);
+        }
+        JSONObject record;
+        try {
+            record = flight.execute(key, () -> this.load(key));
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new OperationException("Interrupted while waiting for a concurrent read of "+key, e);
+        } catch(ExecutionException e){
+            throw rethrow(e.getCause());
+        }
+        // 結果は相乗りした呼び出し元と共有しているため、呼び出し元ごとに複製して返す
+        return null==record ? null : copy(record);
+    }
+
+    /**
+     * 問い合わせキーを指定してレコードを{@link Record}で取得.
+     * キャッシュ、同じキーの読み込みの相乗り、読み込みのまとめのいずれも設定されていなければ
+     * プロバイダのgetRecordを直接呼び出し、JSONObjectを作りません.
+     * @param key
+     * @return Record. なければnull
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public Record getRecord(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+        if(null==this.cache && null==this.readFlight && null==this.readBatcher){
+            return this.selectProvider().getRecord(key);
+        }
+        return Record.fromJSON(this.get(key));
+    }
+
+    /**
+     * 非同期処理の失敗原因をデータストアの例外として送出します.
+     * @param cause
+     * @return チェック例外でも非チェック例外でもない場合にラップした例外
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private static OperationException rethrow(final Throwable cause)
             throws ConnectionException, ConfigurationException, OperationException {
-        JSONObject cur = null;
-        if(null!=this.keyName && record.has(this.keyName)) {
-            String keyValue = record.getString(this.keyName);
-            this.withKey(this.keyName, keyValue);
-            if(null!=this.subkeyName && record.has(this.subkeyName)){
-                String subkey = record.getString(this.subkeyName);
-                this.withSubkey(this.subkeyName, subkey);
+        if(cause instanceof OperationException){
+            throw (OperationException) cause;
+        } else if(cause instanceof ConnectionException){
+            throw (ConnectionException) cause;
+        } else if(cause instanceof ConfigurationException){
+            throw (ConfigurationException) cause;
+        } else if(cause instanceof RuntimeException){
+            throw (RuntimeException) cause;
+        } else if(cause instanceof Error){
+            throw (Error) cause;
+        }
+        return new OperationException(cause);
+    }
+
+    /**
+     * プロバイダからレコードを読み込み、キャッシュが設定されていれば登録.
+     * @param key
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private JSONObject load(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+        RecordCache cache = this.cache;
+        if(null==cache || null==key.getKeyValue()){
+            return this.fetch(key);
+        }
+        // 読み込み中に書き込まれた場合は古いレコードをキャッシュしない
+        long stamp = cache.stamp();
+        JSONObject record = this.fetch(key);
+        if(null!=record){
+            cache.put(key, record, stamp);
+        }
+        return record;
+    }
+
+    /**
+     * プロバイダからレコードを読み込む. まとめて読み込む設定であればbatchGetの完了を待つ.
+     * @param key
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private JSONObject fetch(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+        MicroBatcher<Key,JSONObject> batcher = this.readBatcher;
+        if(null==batcher || !isBatchable(key)){
+            return this.selectProvider().get(key);
+        }
+        try {
+            JSONObject record = batcher.submit(key).get();
+            // 同じバッチ内の同じキーの呼び出し元と共有しているため複製する
+            return null==record ? null : copy(record);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new OperationException("Interrupted while waiting for a batched read of "+key, e);
+        } catch(ExecutionException e){
+            if(e.getCause() instanceof RejectedExecutionException){
+                throw new OperationException("Too many batched reads to run "+key, e.getCause());
+            }
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * batchGetの結果のレコードから問い合わせキーを復元できるキーか
+     * @param key
+     * @return
+     */
+    private static boolean isBatchable(final Key key){
+        return null!=key.getTableName() && null!=key.getKeyName() && null!=key.getKeyValue()
+                && (!key.hasSubkey() || null!=key.getSubkeyValue());
+    }
+
+    /**
+     * 問い合わせキーのリストをプロバイダのbatchGetで読み込み、結果のレコードをキーごとに振り分ける.
+     * @param keys
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private Map<Key,JSONObject> batchLoad(final List<Key> keys)
+            throws ConnectionException, ConfigurationException, OperationException {
+        JSONArray conditions = new JSONArray();
+        Map<String,Set<Key>> templates = new HashMap<String,Set<Key>>();
+        for(Key key : keys){
+            JSONObject data = new JSONObject().put(key.getKeyName(), key.getKeyValue());
+            JSONObject condition = new JSONObject().put(Provider.FIELD_TABLE, key.getTableName())
+                    .put(Provider.FIELD_KEY, key.getKeyName());
+            Key template = new Key(key.getTableName(), key.getKeyName(), null);
+            if(key.hasSubkey()){
+                data.put(key.getSubkeyName(), key.getSubkeyValue());
+                condition.put(Provider.FIELD_SUBKEY, key.getSubkeyName());
+                template = template.withSubkey(key.getSubkeyName(), null);
+            }
+            conditions.put(condition.put(Provider.FIELD_DATA, data));
+            Set<Key> tableTemplates = templates.get(key.getTableName());
+            if(null==tableTemplates){
+                tableTemplates = new HashSet<Key>();
+                templates.put(key.getTableName(), tableTemplates);
             }
-            cur = this.get(false);
+            tableTemplates.add(template);
+        }
+        JSONObject result = this.selectProvider().batchGet(conditions);
+        Set<Key> requested = new HashSet<Key>(keys);
+        Map<Key,JSONObject> records = new HashMap<Key,JSONObject>();
+        if(null==result){
+            return records;
+        }
+        for(Map.Entry<String,Set<Key>> entry : templates.entrySet()){
+            JSONArray rows = result.optJSONArray(entry.getKey());
+            if(null==rows){
+                continue;
+            }
+            for(int num=0; num<rows.length(); num++){
+                JSONObject row = rows.getJSONObject(num);
+                for(Key template : entry.getValue()){
+                    Key key = template.withKey(template.getKeyName(), row.opt(template.getKeyName()));
+                    if(template.hasSubkey()){
+                        key = key.withSubkey(template.getSubkeyName(), row.opt(template.getSubkeyName()));
+                    }
+                    if(requested.contains(key)){
+                        records.put(key, row);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 書き込んだキーのレコードをキャッシュから削除し、実行中の読み込みを以降の呼び出しと共有しないようにする.
+     * @param key
+     */
+    private void invalidate(final Key key){
+        RecordCache cache = this.cache;
+        if(null!=cache){
+            cache.invalidate(key);
+        }
+        SingleFlight<Key,JSONObject> flight = this.readFlight;
+        if(null!=flight){
+            flight.forget(key);
+        }
+    }
+
+    /**
+     * 一括書き込みしたレコードをキャッシュから削除し、実行中の読み込みを以降の呼び出しと共有しないようにする.
+     * 問い合わせ設定はリセットしないため、非同期の書き込みからも呼び出せます.
+     * @param jsonArray
+     */
+    private void invalidate(final JSONArray jsonArray){
+        RecordCache cache = this.cache;
+        if(null!=cache){
+            cache.invalidate(jsonArray);
+        }
+        SingleFlight<Key,JSONObject> flight = this.readFlight;
+        if(null!=flight){
+            flight.forgetAll();
+        }
+    }
+
+    /**
+     * レコードの浅い複製
+     * @param record
+     * @return
+     */
+    private static JSONObject copy(final JSONObject record){
+        String[] names = JSONObject.getNames(record);
+        return null==names ? new JSONObject() : new JSONObject(record, names);
+    }
+
+    /**
+     * レコードに主キー、副キーの値が含まれていればその値で問い合わせキーを置き換えます.
+     * @param key
+     * @param record
+     * @return Key
+     */
+    private Key resolveKey(final Key key, final JSONObject record){
+        return resolveKey(key, record::opt);
+    }
+
+    /**
+     * {@link Record}に主キー、副キーの値が含まれていればその値で問い合わせキーを置き換えます.
+     * @param key
+     * @param record
+     * @return Key
+     */
+    private Key resolveKey(final Key key, final Record record){
+        return resolveKey(key, record::get);
+    }
+
+    /**
+     * @param key
+     * @param values フィールド名から値. フィールドがなければnull
+     * @return 主キー、副キーの値を置き換えたKey
+     */
+    private static Key resolveKey(final Key key, final Function<String,Object> values){
+        Key resolved = key;
+        Object keyValue = null==key.getKeyName() ? null : values.apply(key.getKeyName());
+        if(null!=keyValue) {
+            resolved = resolved.withKey(key.getKeyName(), keyValue);
+            Object subkeyValue = null==key.getSubkeyName() ? null : values.apply(key.getSubkeyName());
+            if(null!=subkeyValue){
+                resolved = resolved.withSubkey(key.getSubkeyName(), subkeyValue);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * ロールバック用に書き込み前のレコードを取得. 主キー値が決まらない場合はnull.
+     * @param key
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private JSONObject getCurrentRecord(final Key key)
+            throws ConnectionException, ConfigurationException, OperationException {
+        JSONObject cur = null;
+        if(null!=key.getKeyName() && null!=key.getKeyValue()) {
+            cur = this.selectProvider().get(key);
         }
         return cur;
     }
@@ -221,31 +826,79 @@ public class GenericDatastore {
      */
     public void put(final JSONObject record)
             throws ConnectionException, ConfigurationException, OperationException {
-        JSONObject cur = this.getCurrentRecord(record);
-        int pos = 0;
         try {
-            for(Provider provider : this.providers){
-                provider.withTable(this.tableName).withKey(this.keyName, this.keyValue)
-                .withSubkey(this.subkeyName, this.subkeyValue).put(record);
-                pos++;
-            }
-        } catch(OperationException | ConnectionException | ConfigurationException e){
-            e.printStackTrace();
-            if(null!=cur){
-                int c=0;
-                for(Provider provider : this.providers){
-                    if(pos==c){
-                        break;
-                    }
-                    provider.put(cur);
-                }
-            }
-            throw e;
+            this.put(this.currentKey(), record);
         } finally {
             this.reset();
         }
     }
 
+    /**
+     * 問い合わせキーを指定してレコードを登録.
+     * インスタンスの状態を変更しないため、複数スレッドから同時に呼び出せます.
+     * 
+     * @param key
+     * @param record
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public void put(final Key key, final JSONObject record)
+            throws ConnectionException, ConfigurationException, OperationException {
+        final Key target = this.resolveKey(key, record);
+        final JSONObject cur = this.getCurrentRecord(target);
+        try {
+            this.write(new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.put(target, record);
+                }
+            }, null==cur ? null : new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.put(target, cur);
+                }
+            }, () -> this.invalidate(target));
+        } finally {
+            this.invalidate(target);
+        }
+    }
+
+    /**
+     * 問い合わせキーを指定して{@link Record}のレコードを登録.
+     * 各プロバイダのputRecordで書き込み、失敗時の巻き戻しはputと同じです.
+     *
+     * @param key
+     * @param record
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public void putRecord(final Key key, final Record record)
+            throws ConnectionException, ConfigurationException, OperationException {
+        final Key target = this.resolveKey(key, record);
+        final JSONObject cur = this.getCurrentRecord(target);
+        try {
+            this.write(new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.putRecord(target, record);
+                }
+            }, null==cur ? null : new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.put(target, cur);
+                }
+            }, () -> this.invalidate(target));
+        } finally {
+            this.invalidate(target);
+        }
+    }
+
     /**
      * 実行時に設定されているテーブル名、主キー、副キーに対してレコードを更新.
      * 渡されたrecord JSONObjectに含まれていないキーに対しては更新も削除もおこないません。
@@ -256,99 +909,404 @@ public class GenericDatastore {
      */
     public void update(final JSONObject record)
             throws ConnectionException, ConfigurationException, OperationException {
-        JSONObject cur = this.getCurrentRecord(record);
-        int pos = 0;
+        try {
+            this.update(this.currentKey(), record);
+        } finally {
+            this.reset();
+        }
+    }
+
+    /**
+     * 問い合わせキーを指定してレコードを更新.
+     * 渡されたrecord JSONObjectに含まれていないキーに対しては更新も削除もおこないません。
+     * @param key
+     * @param record
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public void update(final Key key, final JSONObject record)
+            throws ConnectionException, ConfigurationException, OperationException {
+        final Key target = this.resolveKey(key, record);
+        JSONObject cur = this.getCurrentRecord(target);
+        final JSONObject rollback = new JSONObject();
+        if(null!=cur){
+            @SuppressWarnings("unchecked")
+            Set<String> keys = record.keySet();
+            for(String k:keys){
+                if(cur.has(k)){
+                    rollback.put(k, cur.get(k));
+                }
+            }
+        }
+        try {
+            this.write(new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.update(target, record);
+                }
+            }, null==cur ? null : new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.update(target, rollback);
+                }
+            }, () -> this.invalidate(target));
+        } finally {
+            this.invalidate(target);
+        }
+    }
+
+    /**
+     * 実行時に設定されているテーブル名、主キー、副キーで特定できるレコードを削除.
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public void delete() throws ConnectionException, ConfigurationException, OperationException {
+        try {
+            this.delete(this.currentKey());
+        } finally {
+            this.reset();
+        }
+    }
+
+    /**
+     * 問い合わせキーで特定できるレコードを削除.
+     * @param key
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public void delete(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+        final JSONObject cur = this.selectProvider().get(key);
+        try {
+            this.write(new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.delete(key);
+                }
+            }, null==cur ? null : new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.put(key, cur);
+                }
+            }, () -> this.invalidate(key));
+        } finally {
+            this.invalidate(key);
+        }
+    }
+
+    /**
+     * 全プロバイダに書き込みを実行します.
+     * 
+     * 書き込み用Executorが設定されていれば全プロバイダへ並列に、なければ登録順に書き込みます.
+     * 書き込みに失敗した場合は、成功したプロバイダに対してのみrollbackを実行して例外を送出します.
+     * 
+     * @param operation 書き込み操作
+     * @param rollback 失敗時に成功したプロバイダに対して実行する操作. nullならロールバックしない
+     * @param settled 全プロバイダの書き込みが終わった後に実行する操作. quorumに達して先に戻った場合は、
+     *     残りのプロバイダの書き込みが終わるまでに読んでキャッシュしたレコードを無効化するために使います. nullなら何もしない
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private void write(final ProviderOperation operation, final ProviderOperation rollback,
+            final Runnable settled)
+            throws ConnectionException, ConfigurationException, OperationException {
+        ExecutorService executor = this.writeExecutor;
+        if(null==executor || this.providers.size()<2){
+            this.writeSequential(operation, rollback);
+        } else {
+            this.writeParallel(executor, operation, rollback, settled);
+        }
+    }
+
+    private void writeSequential(final ProviderOperation operation, final ProviderOperation rollback)
+            throws ConnectionException, ConfigurationException, OperationException {
+        List<Provider> succeeded = new ArrayList<Provider>();
         try {
             for(Provider provider : this.providers){
-                provider.withTable(this.tableName).withKey(this.keyName, this.keyValue)
-                .withSubkey(this.subkeyName, this.subkeyValue).update(record);
-                pos++;
+                operation.execute(provider);
+                succeeded.add(provider);
             }
         } catch(OperationException | ConnectionException | ConfigurationException e){
-            e.printStackTrace();
-            if(null!=cur){
-                @SuppressWarnings("unchecked")
-                Set<String> keys = record.keySet();
-                JSONObject rollback = new JSONObject();
-                for(String key:keys){
-                    if(cur.has(key)){
-                        rollback.put(key, cur.get(key));
+            logger.error("Fail to write : "+e.getMessage(), e);
+            rollback(succeeded, rollback, e);
+            throw e;
+        }
+    }
+
+    private void writeParallel(final ExecutorService executor,
+            final ProviderOperation operation, final ProviderOperation rollback, final Runnable settled)
+            throws ConnectionException, ConfigurationException, OperationException {
+        int total = this.providers.size();
+        int quorum = (this.writeQuorum<=0 || this.writeQuorum>total) ? total : this.writeQuorum;
+        BlockingQueue<Future<Provider>> done = new LinkedBlockingQueue<Future<Provider>>();
+        ExecutorCompletionService<Provider> service = new ExecutorCompletionService<Provider>(executor, done);
+        // quorum未満のプロバイダは戻った後も書き込み中のため、最後のタスクが終わったときにsettledを実行する
+        final Runnable last = quorum<total ? settled : null;
+        final AtomicInteger remaining = new AtomicInteger(total);
+        // 全プロバイダの応答を待つなら、1つ目のプロバイダは呼び出し元のスレッドで書き込みExecutorのスレッドを節約する
+        boolean inline = quorum==total;
+        for(int pos=inline ? 1 : 0; pos<total; pos++){
+            service.submit(new ProviderTask(this.providers.get(pos), operation, remaining, last));
+        }
+        if(inline){
+            FutureTask<Provider> own = new FutureTask<Provider>(
+                    new ProviderTask(this.providers.get(0), operation, remaining, last));
+            own.run();
+            done.add(own);
+        }
+        List<Provider> succeeded = new ArrayList<Provider>();
+        Exception failure = null;
+        int completed = 0;
+        int failed = 0;
+        try {
+            // quorumに届かないことが確定しても、ロールバック対象を確定させるため全ての応答を待つ
+            while(completed<total){
+                Future<Provider> future = service.take();
+                completed++;
+                try {
+                    succeeded.add(future.get());
+                    if(succeeded.size()>=quorum){
+                        return;
                     }
-                }
-                int c=0;
-                for(Provider provider : this.providers){
-                    if(pos==c){
-                        break;
+                } catch(ExecutionException e){
+                    failed++;
+                    Throwable cause = e.getCause();
+                    if(null==failure){
+                        failure = (cause instanceof Exception) ? (Exception) cause : new OperationException(cause);
+                    } else {
+                        failure.addSuppressed(cause);
                     }
-                    provider.update(cur);
                 }
             }
-            throw e;
-        } finally {
-            this.reset();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new OperationException("Interrupted while waiting for providers to write", e);
+        }
+        logger.error("Only "+succeeded.size()+" of "+total+" providers acknowledged the write, "
+                +failed+" failed, quorum="+quorum);
+        rollback(succeeded, rollback, failure);
+        if(failure instanceof OperationException){
+            throw (OperationException) failure;
+        } else if(failure instanceof ConnectionException){
+            throw (ConnectionException) failure;
+        } else if(failure instanceof ConfigurationException){
+            throw (ConfigurationException) failure;
+        }
+        throw new OperationException(failure);
+    }
+
+    /**
+     * 書き込みに成功したプロバイダに対してロールバックを実行します.
+     * ロールバックの失敗は元の例外に抑制された例外として追加します.
+     * @param succeeded
+     * @param rollback
+     * @param cause
+     */
+    private static void rollback(final List<Provider> succeeded, final ProviderOperation rollback,
+            final Exception cause){
+        if(null==rollback){
+            return;
+        }
+        for(Provider provider : succeeded){
+            try {
+                rollback.execute(provider);
+            } catch(OperationException | ConnectionException | ConfigurationException e){
+                logger.error("Fail to rollback : "+e.getMessage(), e);
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * プロバイダに対する書き込み操作
+     */
+    private interface ProviderOperation {
+        void execute(Provider provider)
+                throws ConnectionException, ConfigurationException, OperationException;
+    }
+
+    /**
+     * Executorでプロバイダへの書き込み操作を実行し、成功したプロバイダを返すタスク.
+     * quorum到達後に完了したタスクの失敗は呼び出し元に届かないため、失敗はここでログに出力する.
+     * 同じ書き込みの最後に終わったタスクがsettledを実行する.
+     */
+    private static class ProviderTask implements Callable<Provider> {
+        private final Provider provider;
+        private final ProviderOperation operation;
+        private final AtomicInteger remaining;
+        private final Runnable settled;
+        ProviderTask(Provider provider, ProviderOperation operation, AtomicInteger remaining, Runnable settled){
+            this.provider = provider;
+            this.operation = operation;
+            this.remaining = remaining;
+            this.settled = settled;
+        }
+        @Override
+        public Provider call() throws Exception {
+            try {
+                this.operation.execute(this.provider);
+            } catch(OperationException | ConnectionException | ConfigurationException | RuntimeException e){
+                logger.error("Fail to write to "+this.provider.getClass().getName()+" : "+e.getMessage(), e);
+                throw e;
+            } finally {
+                if(0==this.remaining.decrementAndGet() && null!=this.settled){
+                    this.settled.run();
+                }
+            }
+            return this.provider;
+        }
+    }
+
+    /**
+     * 非同期でレコードを登録します.
+     * 
+     * 主キー、副キーの値はrecordから取得します. 完了時にcallback.callback()、
+     * 失敗時にcallback.handleException()を呼び出します.
+     * 
+     * @param tableName
+     * @param record
+     * @param keyName
+     * @param subKeyName
+     * @param callback
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     * @deprecated {@link #putAsync(Key, JSONObject)}を利用してください
+     */
+    @Deprecated
+    public void asyncPut(final String tableName, final JSONObject record,
+            final String keyName, final String subKeyName, final Callback callback)
+            throws ConnectionException, ConfigurationException, OperationException {
+        Key key = new Key(tableName, keyName, record.opt(keyName),
+                subKeyName, null==subKeyName ? null : record.opt(subKeyName));
+        this.putAsync(key, record).whenComplete((result, e) -> {
+            if(null==e){
+                callback.callback();
+            } else {
+                callback.handleException(unwrap(e));
+            }
+        });
+    }
+
+    /**
+     * 非同期でレコードを取得します.
+     * @param key
+     * @return 取得したレコード. レコードがなければnullで完了します
+     */
+    public CompletableFuture<JSONObject> getAsync(final Key key) {
+        return this.async(() -> this.get(key));
+    }
+
+    /**
+     * 非同期でレコードを登録します.
+     * @param key
+     * @param record
+     * @return
+     */
+    public CompletableFuture<Void> putAsync(final Key key, final JSONObject record) {
+        return this.async(() -> {
+            this.put(key, record);
+            return null;
+        });
+    }
+
+    /**
+     * 非同期でレコードを更新します.
+     * @param key
+     * @param record
+     * @return
+     */
+    public CompletableFuture<Void> updateAsync(final Key key, final JSONObject record) {
+        return this.async(() -> {
+            this.update(key, record);
+            return null;
+        });
+    }
+
+    /**
+     * 非同期でレコードを削除します.
+     * @param key
+     * @return
+     */
+    public CompletableFuture<Void> deleteAsync(final Key key) {
+        return this.async(() -> {
+            this.delete(key);
+            return null;
+        });
+    }
+
+    /**
+     * 非同期で複数のレコードを一度に取得します. 条件のフォーマットは{@link #batchGet(JSONArray)}と同じです.
+     * @param conditions
+     * @return
+     */
+    public CompletableFuture<JSONObject> batchGetAsync(final JSONArray conditions) {
+        return this.async(() -> this.selectProvider().batchGet(batchGetConditions(conditions)));
+    }
+
+    /**
+     * 非同期で一括書き込みをおこないます. フォーマットは{@link #batchWrite(JSONArray)}と同じです.
+     * @param jsonArray
+     * @return
+     */
+    public CompletableFuture<Void> batchWriteAsync(final JSONArray jsonArray) {
+        return this.async(() -> {
+            try {
+                this.write(provider -> provider.batchWrite(jsonArray), null, () -> this.invalidate(jsonArray));
+            } finally {
+                this.invalidate(jsonArray);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 非同期操作用Executorで操作を実行します.
+     * Executorが受け付けなかった場合は例外で完了したCompletableFutureを返します.
+     * @param call
+     * @return
+     */
+    private <T> CompletableFuture<T> async(final DatastoreCall<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        Executor executor = null==this.asyncExecutor ? DatastoreExecutors.shared() : this.asyncExecutor;
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch(Throwable e){
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch(RejectedExecutionException e){
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
     /**
-     * 実行時に設定されているテーブル名、主キー、副キーで特定できるレコードを削除.
-     * @throws ConnectionException
-     * @throws ConfigurationException
-     * @throws OperationException
+     * CompletableFutureの合成で包まれた例外から元の例外を取り出す
+     * @param e
+     * @return
      */
-    public void delete() throws ConnectionException, ConfigurationException, OperationException {
-        JSONObject cur = this.get(false);
-        int pos = 0;
-        try {
-            for(Provider provider : this.providers){
-                provider.withTable(this.tableName)
-                    .withKey(this.keyName, this.keyValue)
-                    .withSubkey(this.subkeyName, this.subkeyValue).delete();
-                pos++;
-            }
-        } catch(OperationException | ConnectionException | ConfigurationException e){
-            e.printStackTrace();
-            if(null!=cur){
-                int c=0;
-                for(Provider provider : this.providers){
-                    if(pos==c){
-                        break;
-                    }
-                    provider.withTable(this.tableName).withKey(this.keyName, this.keyValue)
-                        .withSubkey(this.subkeyName, this.subkeyValue).put(cur);
-                }
-            }
-            throw e;
-        } finally {
-            this.reset();
+    private static Throwable unwrap(Throwable e){
+        if(e instanceof CompletionException && null!=e.getCause()){
+            return e.getCause();
         }
+        return e;
     }
 
     /**
-     * 非同期でレコードを登録します.
-     * 
-     * @param tableName
-     * @param record
-     * @param keyName
-     * @param subKeyName
-     * @param callback
-     * @throws ConnectionException
-     * @throws ConfigurationException
-     * @throws OperationException
+     * 非同期で実行するデータストア操作
      */
-    public void asyncPut(final String tableName, final JSONObject record,
-            final String keyName, final String subKeyName, final Callback callback)
-            throws ConnectionException, ConfigurationException, OperationException {
-        new Thread(new Runnable(){
-            @Override
-            public void run(){
-                try {
-                    withTable(tableName).withKey(keyName,keyValue).withSubkey(subkeyName, subkeyValue)
-                    .put(record);
-                } catch(Throwable e){
-                    callback.handleException(e);
-                }
-            }
-        }).start();
+    private interface DatastoreCall<T> {
+        T call() throws ConnectionException, ConfigurationException, OperationException;
     }
 
     /**
@@ -376,19 +1334,28 @@ public class GenericDatastore {
     public JSONObject batchGet(JSONArray conditions)
             throws ConnectionException, ConfigurationException, OperationException {
         try {
-            JSONArray realConditions = new JSONArray();
-            for(int num=0; num<conditions.length(); num++){
-                JSONObject obj = conditions.getJSONObject(num);
-                JSONObject cond = new JSONObject(obj.toString());
-                cond.put("table", cond.getString("table"));
-                realConditions.put(cond);
-            }
-            return this.selectProvider().batchGet(realConditions);
+            return this.selectProvider().batchGet(batchGetConditions(conditions));
         } finally {
             this.reset();
         }
     }
 
+    /**
+     * batchGetの条件をプロバイダに渡す形に変換します. 呼び出し元の条件は変更しません.
+     * @param conditions
+     * @return
+     */
+    private static JSONArray batchGetConditions(JSONArray conditions) {
+        JSONArray realConditions = new JSONArray();
+        for(int num=0; num<conditions.length(); num++){
+            JSONObject obj = conditions.getJSONObject(num);
+            JSONObject cond = new JSONObject(obj.toString());
+            cond.put("table", cond.getString("table"));
+            realConditions.put(cond);
+        }
+        return realConditions;
+    }
+
     /**
      * 一括でデータの書き込みをおこないます.
      * このメソッドは複数プロバイダに対してデータの一貫性を保証しません。
@@ -412,20 +1379,18 @@ public class GenericDatastore {
      * @throws ConfigurationException
      * @throws OperationException
      */
-    public void batchWrite(JSONArray jsonArray)
+    public void batchWrite(final JSONArray jsonArray)
             throws ConnectionException, ConfigurationException, OperationException {
         try {
-            JSONArray realConditions = new JSONArray();
-            for(int num=0; num<jsonArray.length(); num++){
-                JSONObject obj = jsonArray.getJSONObject(num);
-                JSONObject cond = new JSONObject(obj.toString());
-                cond.put("table", cond.getString("table"));
-                realConditions.put(cond);
-            }
-            for(Provider provider : this.providers){
-                provider.batchWrite(jsonArray);
-            }
+            this.write(new ProviderOperation(){
+                @Override
+                public void execute(Provider provider)
+                        throws ConnectionException, ConfigurationException, OperationException {
+                    provider.batchWrite(jsonArray);
+                }
+            }, null, () -> this.invalidate(jsonArray));
         } finally {
+            this.invalidate(jsonArray);
             this.reset();
         }
     }
@@ -455,12 +1420,27 @@ public class GenericDatastore {
     public ResultSet scan(JSONObject conditions,List<String> fields)
             throws ConnectionException, ConfigurationException, OperationException {
         try {
-            return this.selectProvider().withTable(this.tableName).scan(conditions, fields);
+            return this.scan(this.currentKey(), conditions, fields);
         } finally {
             this.reset();
         }
     }
 
+    /**
+     * 問い合わせキーのテーブルをフルスキャンして問い合わせ結果セットを取得
+     * @param key
+     * @param conditions
+     * @param fields
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public ResultSet scan(final Key key, JSONObject conditions,List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        return this.selectProvider().scan(key, conditions, fields);
+    }
+
     /**
      * データを指定条件で問い合わせて結果セットを取得
      * 
@@ -486,15 +1466,206 @@ public class GenericDatastore {
     public ResultSet query(JSONObject conditions,List<String> fields)
             throws ConnectionException, ConfigurationException, OperationException {
         try {
-            return this.selectProvider().withTable(this.tableName)
-                .query(conditions, fields);
+            return this.query(this.currentKey(), conditions, fields);
         } finally {
             this.reset();
         }
     }
 
+    /**
+     * 問い合わせキーのテーブルに対して指定条件で問い合わせて結果セットを取得
+     * @param key
+     * @param conditions
+     * @param fields
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public ResultSet query(final Key key, JSONObject conditions,List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        return this.selectProvider().query(key, conditions, fields);
+    }
+
+    /**
+     * テーブル名、主キー、副キーからなる不変の問い合わせキー.
+     * 
+     * インスタンスは変更されないため、複数スレッドで共有できます.
+     * with〜メソッドは値を置き換えた新しいインスタンスを返します.
+     * 
+     * @author Masanori Nakashima
+     */
+    public static final class Key {
+        /** テーブル名 */
+        private final String tableName;
+        /** 主キーフィールド名 */
+        private final String keyName;
+        /** 主キー値 */
+        private final Object keyValue;
+        /** 副キーフィールド名 */
+        private final String subkeyName;
+        /** 副キー値 */
+        private final Object subkeyValue;
+
+        /**
+         * テーブル名のみを指定した問い合わせキー. scan, queryで利用します.
+         * @param tableName
+         */
+        public Key(final String tableName){
+            this(tableName, null, null, null, null);
+        }
+
+        /**
+         * 主キーのみのテーブルに対する問い合わせキー.
+         * @param tableName
+         * @param keyName
+         * @param keyValue
+         */
+        public Key(final String tableName, final String keyName, final Object keyValue){
+            this(tableName, keyName, keyValue, null, null);
+        }
+
+        /**
+         * 主キー、副キーを持つテーブルに対する問い合わせキー.
+         * @param tableName
+         * @param keyName
+         * @param keyValue
+         * @param subkeyName
+         * @param subkeyValue
+         */
+        public Key(final String tableName, final String keyName, final Object keyValue,
+                final String subkeyName, final Object subkeyValue){
+            this.tableName = tableName;
+            this.keyName = keyName;
+            this.keyValue = keyValue;
+            this.subkeyName = subkeyName;
+            this.subkeyValue = subkeyValue;
+        }
+
+        /**
+         * テーブル名を置き換えた問い合わせキーを取得
+         * @param table
+         * @return
+         */
+        public Key withTable(final String table){
+            return new Key(table, this.keyName, this.keyValue, this.subkeyName, this.subkeyValue);
+        }
+
+        /**
+         * 主キーを置き換えた問い合わせキーを取得
+         * @param key
+         * @param value
+         * @return
+         */
+        public Key withKey(final String key, final Object value){
+            return new Key(this.tableName, key, value, this.subkeyName, this.subkeyValue);
+        }
+
+        /**
+         * 副キーを置き換えた問い合わせキーを取得
+         * @param key
+         * @param value
+         * @return
+         */
+        public Key withSubkey(final String key, final Object value){
+            return new Key(this.tableName, this.keyName, this.keyValue, key, value);
+        }
+
+        /**
+         * @return テーブル名
+         */
+        public String getTableName() {
+            return this.tableName;
+        }
+
+        /**
+         * @return 主キーフィールド名
+         */
+        public String getKeyName() {
+            return this.keyName;
+        }
+
+        /**
+         * @return 主キー値
+         */
+        public Object getKeyValue() {
+            return this.keyValue;
+        }
+
+        /**
+         * @return 副キーフィールド名
+         */
+        public String getSubkeyName() {
+            return this.subkeyName;
+        }
+
+        /**
+         * @return 副キー値
+         */
+        public Object getSubkeyValue() {
+            return this.subkeyValue;
+        }
+
+        /**
+         * 副キーフィールド名が設定されているか
+         * @return boolean
+         */
+        public boolean hasSubkey() {
+            return null!=this.subkeyName && this.subkeyName.length()>0;
+        }
+
+        /**
+         * 値の比較は文字列表現でおこないます. 主キー値 1 と "1" は同じキーです.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if(this==obj){
+                return true;
+            }
+            if(!(obj instanceof Key)){
+                return false;
+            }
+            Key other = (Key) obj;
+            return equalsValue(this.tableName, other.tableName)
+                    && equalsValue(this.keyName, other.keyName)
+                    && equalsValue(this.keyValue, other.keyValue)
+                    && equalsValue(this.subkeyName, other.subkeyName)
+                    && equalsValue(this.subkeyValue, other.subkeyValue);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = hashValue(this.tableName);
+            h = 31*h + hashValue(this.keyName);
+            h = 31*h + hashValue(this.keyValue);
+            h = 31*h + hashValue(this.subkeyName);
+            h = 31*h + hashValue(this.subkeyValue);
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append(this.tableName)
+                    .append("[").append(this.keyName).append("=").append(this.keyValue)
+                    .append(",").append(this.subkeyName).append("=").append(this.subkeyValue)
+                    .append("]").toString();
+        }
+
+        private static boolean equalsValue(Object a, Object b){
+            if(null==a || null==b){
+                return a==b;
+            }
+            return a.toString().equals(b.toString());
+        }
+
+        private static int hashValue(Object value){
+            return null==value ? 0 : value.toString().hashCode();
+        }
+    }
+
     /**
      * asyncPutで利用するコールバックインターフェース.
+     * 新しいコードでは{@link GenericDatastore#putAsync(Key, JSONObject)}が返すCompletableFutureを利用してください.
      * 
      * @author Masanori Nakashima
      */
@@ -659,6 +1830,70 @@ public class GenericDatastore {
          * @throws OperationException
          */
         public void update(final JSONObject record) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーを指定してレコードを一意に取得する.
+         * 実装はプロバイダの状態を変更してはならない.
+         * @param key
+         * @return JSONObject
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public JSONObject get(final Key key) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーを指定してレコードを一意に削除する.
+         * 実装はプロバイダの状態を変更してはならない.
+         * @param key
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public void delete(final Key key) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーを指定してレコードを登録する.
+         * 実装はプロバイダの状態を変更してはならない.
+         * @param key
+         * @param record JSONObject
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public void put(final Key key, final JSONObject record) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーを指定してレコードを更新する.
+         * 引数オブジェクト存在しないフィールドは更新も削除もおこなわない.
+         * 実装はプロバイダの状態を変更してはならない.
+         * @param key
+         * @param record JSONObject
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public void update(final Key key, final JSONObject record) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーを指定してレコードを{@link Record}で取得する.
+         * 既定はgetの結果を変換します. JSONObjectを経由せずに読めるプロバイダは上書きしてください.
+         * @param key
+         * @return Record. なければnull
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public default Record getRecord(final Key key) throws ConnectionException, ConfigurationException, OperationException {
+            return Record.fromJSON(this.get(key));
+        }
+        /**
+         * 問い合わせキーを指定して{@link Record}のレコードを登録する.
+         * 既定はJSONObjectに変換してputします. JSONObjectを経由せずに書けるプロバイダは上書きしてください.
+         * @param key
+         * @param record
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public default void putRecord(final Key key, final Record record) throws ConnectionException, ConfigurationException, OperationException {
+            this.put(key, record.toJSON());
+        }
         /**
          * JSONArray形式で条件を指定して複数の条件に基づく複数のレコードを一度に取得する.
          * 
@@ -751,10 +1986,37 @@ public class GenericDatastore {
          * @throws OperationException
          */
         public ResultSet query(JSONObject conditions,List<String> fields) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーのテーブルに対してスキャンを実行してResultSetの実装クラスインスタンスを取得.
+         * @param key テーブル名、主キー名、副キー名を持つ問い合わせキー
+         * @param conditions 取得する条件
+         * @param fields 取得するフィールド名リスト
+         * @return
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public ResultSet scan(final Key key, JSONObject conditions,List<String> fields) throws ConnectionException, ConfigurationException, OperationException;
+        /**
+         * 問い合わせキーのテーブルに対してクエリーを実行しResultSetの実装クラスインスタンスを取得.
+         * @param key テーブル名、主キー名、副キー名を持つ問い合わせキー
+         * @param conditions
+         * @param fields
+         * @return
+         * @throws ConnectionException
+         * @throws ConfigurationException
+         * @throws OperationException
+         */
+        public ResultSet query(final Key key, JSONObject conditions,List<String> fields) throws ConnectionException, ConfigurationException, OperationException;
     }
 
     /**
      * データストアプロバイダの基底抽象クラス
+     * 
+     * withTable, withKey, withSubkeyで設定した状態を使う操作は、
+     * 問い合わせキーを受け取る操作への薄いラッパーです.
+     * 状態を持つため、複数スレッドで共有する場合は問い合わせキーを受け取る操作を利用してください.
+     * 
      * @author Masanori Nakashima
      */
     public static abstract class BaseProvider implements Provider {
@@ -795,6 +2057,69 @@ public class GenericDatastore {
             return this;
         }
 
+        /**
+         * 現在設定されているテーブル名、主キー、副キーから問い合わせキーを生成
+         * @return Key
+         */
+        protected Key currentKey() {
+            return new Key(this.tableName, this.keyName, this.keyValue,
+                    this.subkeyName, this.subkeyValue);
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#get()
+         */
+        @Override
+        public JSONObject get() throws ConnectionException, ConfigurationException,
+                OperationException {
+            return this.get(this.currentKey());
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#delete()
+         */
+        @Override
+        public void delete() throws ConnectionException, ConfigurationException,
+                OperationException {
+            this.delete(this.currentKey());
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#put(org.json.JSONObject)
+         */
+        @Override
+        public void put(JSONObject record) throws ConnectionException,
+                ConfigurationException, OperationException {
+            this.put(this.currentKey(), record);
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#update(org.json.JSONObject)
+         */
+        @Override
+        public void update(JSONObject record) throws ConnectionException,
+                ConfigurationException, OperationException {
+            this.update(this.currentKey(), record);
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(org.json.JSONObject, java.util.List)
+         */
+        @Override
+        public ResultSet scan(JSONObject conditions, List<String> fields)
+                throws ConnectionException, ConfigurationException, OperationException {
+            return this.scan(this.currentKey(), conditions, fields);
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.Provider#query(org.json.JSONObject, java.util.List)
+         */
+        @Override
+        public ResultSet query(JSONObject conditions, List<String> fields)
+                throws ConnectionException, ConfigurationException, OperationException {
+            return this.query(this.currentKey(), conditions, fields);
+        }
+
     }
 
     /**
@@ -812,6 +2137,13 @@ public class GenericDatastore {
          * @return
          */
         public boolean hasNext() throws ConfigurationException, ConnectionException, OperationException;
+        /**
+         * 次の結果レコードを{@link Record}で取得. 既定はnextの結果を変換します.
+         * @return 次のレコード. なければnull
+         */
+        public default Record nextRecord() throws ConfigurationException, ConnectionException, OperationException {
+            return Record.fromJSON(this.next());
+        }
     }
 
 
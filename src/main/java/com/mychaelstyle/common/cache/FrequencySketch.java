@@ -0,0 +1,84 @@
+/**
+ * 
+ */
+package com.mychaelstyle.common.cache;
+
+/**
+ * キーごとのアクセス頻度を推定するCount-Min Sketch.
+ * 
+ * 4行のカウンタ表を持ち、各キーの頻度は4つのカウンタの最小値で推定します.
+ * カウンタは15で飽和し、加算回数が標本数に達すると全カウンタを半分にして古い頻度を忘れます.
+ * スレッドセーフではないため、呼び出し側で排他してください.
+ * 
+ * @author Masanori Nakashima
+ */
+final class FrequencySketch {
+
+    /** カウンタの上限 */
+    private static final int MAX_COUNT = 15;
+    /** 行ごとのハッシュ種 */
+    private static final int[] SEEDS = {0x97cb3127, 0xb2c7b2c1, 0x5bd1e995, 0xc2b2ae35};
+
+    /** カウンタ表. 行ごとにwidth個のカウンタを持つ */
+    private final byte[] table;
+    /** 1行のカウンタ数 (2のべき乗) */
+    private final int width;
+    /** 全カウンタを半分にするまでの加算回数 */
+    private final int sampleSize;
+    /** 前回半分にしてからの加算回数 */
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries キャッシュに保持する最大エントリ数
+     */
+    FrequencySketch(final long expectedEntries) {
+        int size = (int) Math.min(1 << 24, Math.max(64, expectedEntries));
+        this.width = Integer.highestOneBit(size-1) << 1;
+        this.table = new byte[this.width*SEEDS.length];
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L*size);
+    }
+
+    /**
+     * 頻度を1加算します.
+     * @param hash
+     */
+    void increment(final int hash) {
+        boolean added = false;
+        for(int row=0; row<SEEDS.length; row++){
+            int index = this.indexOf(hash, row);
+            if(this.table[index]<MAX_COUNT){
+                this.table[index]++;
+                added = true;
+            }
+        }
+        if(added && ++this.additions>=this.sampleSize){
+            this.reset();
+        }
+    }
+
+    /**
+     * 推定頻度を取得します.
+     * @param hash
+     * @return 0〜15
+     */
+    int frequency(final int hash) {
+        int frequency = MAX_COUNT;
+        for(int row=0; row<SEEDS.length; row++){
+            frequency = Math.min(frequency, this.table[this.indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(final int hash, final int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row*this.width + (h & (this.width-1));
+    }
+
+    private void reset() {
+        for(int num=0; num<this.table.length; num++){
+            this.table[num] = (byte) (this.table[num] >>> 1);
+        }
+        this.additions = this.additions >>> 1;
+    }
+}
@@ -0,0 +1,627 @@
+/**
+ *
+ */
+package com.mychaelstyle.common.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * GenericDatastoreのプロバイダの前に置くプロセス内のレコードキャッシュ.
+ *
+ * エントリ数と重み(レコードの推定バイト数)の両方で上限を設定できます.
+ * 追い出しはW-TinyLFU方式で、新しいエントリは小さなLRUの窓に入り、窓から溢れたエントリは
+ * 追い出し候補よりアクセス頻度が高い場合にだけ本領域(試用域と保護域のセグメント化LRU)に入れます.
+ * 一度だけ読まれたキーの大量アクセスで、よく読まれるキーが追い出されるのを防ぎます.<br>
+ * <br>
+ * テーブルごとに有効期限を設定できます.
+ * 読み込みはロックを取らず、アクセス順の更新はロックが空いている場合だけおこないます.<br>
+ * <br>
+ * configのフォーマット<br>
+ * <pre>
+ * {
+ *     "max_size" : 最大エントリ数,
+ *     "max_weight" : 最大重み(推定バイト数),
+ *     "ttl" : 有効期限ミリ秒 (0なら無期限),
+ *     "tables" : {
+ *         "テーブル名" : { "ttl" : 有効期限ミリ秒 },
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Masanori Nakashima
+ */
+public class RecordCache {
+
+    /** 設定項目 : 最大エントリ数 */
+    public static final String CONFIG_MAX_SIZE = "max_size";
+    /** 設定項目 : 最大重み */
+    public static final String CONFIG_MAX_WEIGHT = "max_weight";
+    /** 設定項目 : 有効期限ミリ秒 */
+    public static final String CONFIG_TTL = "ttl";
+    /** 設定項目 : テーブルごとの設定 */
+    public static final String CONFIG_TABLES = "tables";
+
+    /** デフォルト最大エントリ数 */
+    public static final long DEFAULT_MAX_SIZE = 10000;
+    /** デフォルト最大重み 64MB */
+    public static final long DEFAULT_MAX_WEIGHT = 64L*1024*1024;
+
+    /** 窓の割合(%) */
+    private static final int WINDOW_PERCENT = 1;
+    /** 本領域のうち保護域の割合(%) */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /** エントリ */
+    private final Map<Key,Node> data = new ConcurrentHashMap<Key,Node>();
+    /** 追い出し方針の状態を守るロック */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** アクセス頻度 */
+    private final FrequencySketch sketch;
+
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+
+    private final long maxSize;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+    private final long windowMaxSize;
+    private final long mainMaxSize;
+    private final long protectedMaxSize;
+
+    private long windowWeight = 0;
+    private long probationWeight = 0;
+    private long protectedWeight = 0;
+    private long count = 0;
+
+    /** デフォルト有効期限ナノ秒. 0なら無期限 */
+    private volatile long defaultTtlNanos = 0;
+    /** テーブルごとの有効期限ナノ秒 */
+    private final Map<String,Long> tableTtlNanos = new ConcurrentHashMap<String,Long>();
+
+    /** 無効化のたびに進むカウンタ. 読み込み中に書き込まれた古いレコードを登録しないために使う */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param maxSize 最大エントリ数
+     * @param maxWeight 最大重み(推定バイト数)
+     */
+    public RecordCache(final long maxSize, final long maxWeight) {
+        if(maxSize<=0 || maxWeight<=0){
+            throw new IllegalArgumentException("max_size and max_weight must be positive");
+        }
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight*WINDOW_PERCENT/100);
+        this.mainMax = Math.max(1, maxWeight-this.windowMax);
+        this.protectedMax = this.mainMax*PROTECTED_PERCENT/100;
+        this.windowMaxSize = Math.max(1, maxSize*WINDOW_PERCENT/100);
+        this.mainMaxSize = Math.max(1, maxSize-this.windowMaxSize);
+        this.protectedMaxSize = this.mainMaxSize*PROTECTED_PERCENT/100;
+        this.sketch = new FrequencySketch(maxSize);
+    }
+
+    /**
+     * 設定JSONからキャッシュを生成します.
+     * @param config
+     */
+    public RecordCache(final JSONObject config) {
+        this(config.optLong(CONFIG_MAX_SIZE, DEFAULT_MAX_SIZE),
+                config.optLong(CONFIG_MAX_WEIGHT, DEFAULT_MAX_WEIGHT));
+        this.withTtl(config.optLong(CONFIG_TTL, 0));
+        JSONObject tables = config.optJSONObject(CONFIG_TABLES);
+        if(null!=tables){
+            @SuppressWarnings("unchecked")
+            Set<String> names = tables.keySet();
+            for(String table : names){
+                JSONObject tableConfig = tables.getJSONObject(table);
+                if(tableConfig.has(CONFIG_TTL)){
+                    this.withTtl(table, tableConfig.getLong(CONFIG_TTL));
+                }
+            }
+        }
+    }
+
+    /**
+     * 全テーブルのデフォルト有効期限を設定します.
+     * @param millis 0なら無期限
+     * @return
+     */
+    public RecordCache withTtl(final long millis) {
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * テーブルの有効期限を設定します.
+     * @param table
+     * @param millis 0なら無期限
+     * @return
+     */
+    public RecordCache withTtl(final String table, final long millis) {
+        this.tableTtlNanos.put(table, TimeUnit.MILLISECONDS.toNanos(millis));
+        return this;
+    }
+
+    /**
+     * キャッシュからレコードを取得します.
+     * @param key
+     * @return レコードの複製. キャッシュになければnull
+     */
+    public JSONObject get(final Key key) {
+        Node node = this.data.get(key);
+        if(null==node){
+            this.misses.incrementAndGet();
+            return null;
+        }
+        if(node.isExpired(System.nanoTime())){
+            this.lock.lock();
+            try {
+                if(this.data.get(key)==node){
+                    this.remove(node);
+                    this.expirations.incrementAndGet();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        // アクセス順の更新は取りこぼしても良いので、競合している場合は待たない
+        if(this.lock.tryLock()){
+            try {
+                if(this.data.get(key)==node){
+                    this.onAccess(node);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        return copy(node.value);
+    }
+
+    /**
+     * 無効化の状態を取得します. プロバイダから読み込む前に取得し、
+     * {@link #put(Key, JSONObject, long)}に渡してください.
+     * @return
+     */
+    public long stamp() {
+        return this.invalidations.get();
+    }
+
+    /**
+     * レコードをキャッシュに登録します.
+     * @param key
+     * @param record
+     */
+    public void put(final Key key, final JSONObject record) {
+        this.put(key, record, -1);
+    }
+
+    /**
+     * stampを取得してから無効化がおこなわれていなければ、レコードをキャッシュに登録します.
+     * 読み込み中に同じインスタンスから書き込まれた場合に、古いレコードを登録するのを防ぎます.
+     * @param key
+     * @param record
+     * @param stamp {@link #stamp()}の値. 負の値なら常に登録する
+     * @return 登録した場合true
+     */
+    public boolean put(final Key key, final JSONObject record, final long stamp) {
+        if(null==record){
+            return false;
+        }
+        long weight = weigh(key, record);
+        if(weight>this.maxWeight){
+            return false;
+        }
+        Node node = new Node(key, copy(record), weight, this.expiresAt(key));
+        this.lock.lock();
+        try {
+            if(stamp>=0 && stamp!=this.invalidations.get()){
+                return false;
+            }
+            Node old = this.data.put(key, node);
+            if(null!=old){
+                this.unlink(old);
+            }
+            this.sketch.increment(spread(key.hashCode()));
+            this.window.addFirst(node, WINDOW);
+            this.windowWeight += weight;
+            this.count++;
+            this.evict();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * キーのレコードをキャッシュから削除します.
+     * @param key
+     */
+    public void invalidate(final Key key) {
+        this.lock.lock();
+        try {
+            this.invalidations.incrementAndGet();
+            Node node = this.data.get(key);
+            if(null!=node){
+                this.remove(node);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * テーブルの全レコードをキャッシュから削除します.
+     * @param table
+     */
+    public void invalidateTable(final String table) {
+        this.lock.lock();
+        try {
+            this.invalidations.incrementAndGet();
+            Iterator<Node> iterator = this.data.values().iterator();
+            while(iterator.hasNext()){
+                Node node = iterator.next();
+                if(null!=table && table.equals(node.key.getTableName())){
+                    this.remove(node);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 全レコードをキャッシュから削除します.
+     */
+    public void invalidateAll() {
+        this.lock.lock();
+        try {
+            this.invalidations.incrementAndGet();
+            for(Node node : this.data.values()){
+                this.remove(node);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * batchWrite形式の書き込み要素に対応するレコードをキャッシュから削除します.
+     * キーを特定できない要素はテーブル全体を削除します.
+     * @param jsonArray
+     */
+    public void invalidate(final JSONArray jsonArray) {
+        for(int num=0; num<jsonArray.length(); num++){
+            JSONObject element = jsonArray.getJSONObject(num);
+            String table = element.optString("table", null);
+            String keyName = element.optString("key", null);
+            String subkeyName = element.optString("subkey", null);
+            JSONObject data = element.optJSONObject("data");
+            if(null==data || null==keyName || !data.has(keyName)){
+                this.invalidateTable(table);
+                continue;
+            }
+            Object subkeyValue = (null!=subkeyName && data.has(subkeyName)) ? data.get(subkeyName) : null;
+            this.invalidate(new Key(table, keyName, data.get(keyName), subkeyName, subkeyValue));
+        }
+    }
+
+    /** @return ヒット数 */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /** @return ミス数 */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /** @return 容量超過による追い出し数 */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /** @return 有効期限切れによる削除数 */
+    public long getExpirationCount() {
+        return this.expirations.get();
+    }
+
+    /** @return エントリ数 */
+    public long size() {
+        return this.data.size();
+    }
+
+    /** @return 現在の重みの合計 */
+    public long weight() {
+        this.lock.lock();
+        try {
+            return this.windowWeight+this.probationWeight+this.protectedWeight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 統計情報をJSONで取得します.
+     * @return
+     */
+    public JSONObject stats() {
+        long hit = this.getHitCount();
+        long miss = this.getMissCount();
+        long total = hit+miss;
+        return new JSONObject().put("hits", hit).put("misses", miss)
+                .put("hit_rate", total==0 ? 0.0 : (double) hit/total)
+                .put("evictions", this.getEvictionCount())
+                .put("expirations", this.getExpirationCount())
+                .put("size", this.size()).put("weight", this.weight())
+                .put("max_size", this.maxSize).put("max_weight", this.maxWeight);
+    }
+
+    private long expiresAt(final Key key) {
+        Long ttl = this.tableTtlNanos.get(key.getTableName());
+        long nanos = null==ttl ? this.defaultTtlNanos : ttl;
+        return nanos<=0 ? 0 : System.nanoTime()+nanos;
+    }
+
+    /**
+     * アクセスされたエントリの頻度とアクセス順を更新. ロックを取得して呼び出すこと.
+     * @param node
+     */
+    private void onAccess(final Node node) {
+        this.sketch.increment(spread(node.key.hashCode()));
+        if(node.queue==WINDOW){
+            this.window.moveToFront(node);
+        } else if(node.queue==PROBATION){
+            // 試用域で再度アクセスされたエントリは保護域に昇格する
+            this.probation.remove(node);
+            this.probationWeight -= node.weight;
+            this.protectedQueue.addFirst(node, PROTECTED);
+            this.protectedWeight += node.weight;
+            while((this.protectedWeight>this.protectedMax || this.protectedQueue.size>this.protectedMaxSize)
+                    && null!=this.protectedQueue.tail){
+                Node demoted = this.protectedQueue.removeLast();
+                this.protectedWeight -= demoted.weight;
+                this.probation.addFirst(demoted, PROBATION);
+                this.probationWeight += demoted.weight;
+            }
+        } else {
+            this.protectedQueue.moveToFront(node);
+        }
+    }
+
+    /**
+     * 窓から溢れたエントリを本領域に入れるか判定し、容量を超えた分を追い出す. ロックを取得して呼び出すこと.
+     */
+    private void evict() {
+        while((this.windowWeight>this.windowMax || this.window.size>this.windowMaxSize)
+                && null!=this.window.tail){
+            Node candidate = this.window.removeLast();
+            this.windowWeight -= candidate.weight;
+            this.admit(candidate);
+        }
+        while((this.count>this.maxSize
+                || this.windowWeight+this.probationWeight+this.protectedWeight>this.maxWeight)){
+            Node victim = this.probation.tail;
+            if(null==victim){
+                victim = this.protectedQueue.tail;
+            }
+            if(null==victim){
+                victim = this.window.tail;
+            }
+            if(null==victim){
+                break;
+            }
+            this.evictNode(victim);
+        }
+    }
+
+    /**
+     * 窓から溢れたエントリを、試用域の末尾(次の追い出し対象)より頻度が高い場合だけ本領域に入れる.
+     * @param candidate
+     */
+    private void admit(final Node candidate) {
+        while(this.probationWeight+this.protectedWeight+candidate.weight>this.mainMax
+                || this.probation.size+this.protectedQueue.size>=this.mainMaxSize){
+            Node victim = null!=this.probation.tail ? this.probation.tail : this.protectedQueue.tail;
+            if(null==victim){
+                break;
+            }
+            int candidateFrequency = this.sketch.frequency(spread(candidate.key.hashCode()));
+            int victimFrequency = this.sketch.frequency(spread(victim.key.hashCode()));
+            if(candidateFrequency<=victimFrequency){
+                candidate.queue = -1;
+                this.data.remove(candidate.key, candidate);
+                this.count--;
+                this.evictions.incrementAndGet();
+                return;
+            }
+            this.evictNode(victim);
+        }
+        this.probation.addFirst(candidate, PROBATION);
+        this.probationWeight += candidate.weight;
+    }
+
+    private void evictNode(final Node node) {
+        this.remove(node);
+        this.evictions.incrementAndGet();
+    }
+
+    /**
+     * エントリを削除. ロックを取得して呼び出すこと.
+     * @param node
+     */
+    private void remove(final Node node) {
+        this.data.remove(node.key, node);
+        this.unlink(node);
+    }
+
+    private void unlink(final Node node) {
+        switch(node.queue){
+        case WINDOW:
+            this.window.remove(node);
+            this.windowWeight -= node.weight;
+            break;
+        case PROBATION:
+            this.probation.remove(node);
+            this.probationWeight -= node.weight;
+            break;
+        case PROTECTED:
+            this.protectedQueue.remove(node);
+            this.protectedWeight -= node.weight;
+            break;
+        default:
+            return;
+        }
+        node.queue = -1;
+        this.count--;
+    }
+
+    /**
+     * レコードの推定バイト数
+     * @param key
+     * @param record
+     * @return
+     */
+    static long weigh(final Key key, final JSONObject record) {
+        long weight = 64+key.toString().length()*2;
+        @SuppressWarnings("unchecked")
+        Set<String> names = record.keySet();
+        for(String name : names){
+            Object value = record.opt(name);
+            weight += 32+name.length()*2;
+            if(value instanceof String){
+                weight += ((String) value).length()*2;
+            } else if(value instanceof Number || value instanceof Boolean){
+                weight += 16;
+            } else if(null!=value){
+                weight += value.toString().length()*2;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * レコードの浅い複製. キャッシュ内のレコードを呼び出し元が変更できないようにする.
+     * @param record
+     * @return
+     */
+    static JSONObject copy(final JSONObject record) {
+        JSONObject copied = new JSONObject();
+        @SuppressWarnings("unchecked")
+        Set<String> names = record.keySet();
+        for(String name : names){
+            copied.put(name, record.get(name));
+        }
+        return copied;
+    }
+
+    private static int spread(final int hash) {
+        int h = hash * 0x85ebca6b;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * キャッシュエントリ
+     */
+    private static final class Node {
+        final Key key;
+        final JSONObject value;
+        final long weight;
+        final long expiresAt;
+        int queue = -1;
+        Node prev;
+        Node next;
+
+        Node(Key key, JSONObject value, long weight, long expiresAt){
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now){
+            return 0!=this.expiresAt && now-this.expiresAt>0;
+        }
+    }
+
+    /**
+     * アクセス順の双方向リスト. 先頭が最近、末尾が最も古い.
+     */
+    private static final class AccessQueue {
+        Node head;
+        Node tail;
+        int size;
+
+        void addFirst(Node node, int queue){
+            node.queue = queue;
+            node.prev = null;
+            node.next = this.head;
+            if(null!=this.head){
+                this.head.prev = node;
+            }
+            this.head = node;
+            if(null==this.tail){
+                this.tail = node;
+            }
+            this.size++;
+        }
+
+        void remove(Node node){
+            if(null!=node.prev){
+                node.prev.next = node.next;
+            } else {
+                this.head = node.next;
+            }
+            if(null!=node.next){
+                node.next.prev = node.prev;
+            } else {
+                this.tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            this.size--;
+        }
+
+        Node removeLast(){
+            Node node = this.tail;
+            if(null!=node){
+                this.remove(node);
+            }
+            return node;
+        }
+
+        void moveToFront(Node node){
+            if(this.head!=node){
+                int queue = node.queue;
+                this.remove(node);
+                this.addFirst(node, queue);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * 
+ */
+package com.mychaelstyle.common.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GenericDatastoreの非同期処理で利用するExecutorのファクトリ.
+ * 
+ * 生成するExecutorはスレッド数とキュー長が有限で、キューが溢れたときの動作(バックプレッシャー)を
+ * {@link Overflow}で選択できます. 呼び出しごとにスレッドを生成することはありません.<br>
+ * Java 21以降では{@link #newVirtualThreadExecutor()}で仮想スレッドのExecutorも生成できます.
+ * 
+ * @author Masanori Nakashima
+ */
+public final class DatastoreExecutors {
+
+    /** 共有Executorのキュー長 */
+    public static final int SHARED_QUEUE_SIZE = 1024;
+
+    /**
+     * キューが溢れたときの動作
+     */
+    public enum Overflow {
+        /** 呼び出し元スレッドで実行する. 呼び出し元の処理速度が自然に抑えられる */
+        CALLER_RUNS,
+        /** キューに空きができるまで呼び出し元スレッドを待たせる */
+        BLOCK,
+        /** RejectedExecutionExceptionを送出する */
+        ABORT
+    }
+
+    /** 共有Executor */
+    private static ExecutorService shared = null;
+
+    private DatastoreExecutors() {
+    }
+
+    /**
+     * 有限のスレッド数とキュー長を持つExecutorを生成します.
+     * スレッドはデーモンスレッドで、一定時間使われなければ終了します.
+     * 
+     * @param name スレッド名の接頭辞
+     * @param threads スレッド数
+     * @param queueSize キュー長
+     * @param overflow キューが溢れたときの動作
+     * @return
+     */
+    public static ThreadPoolExecutor newBoundedExecutor(final String name, final int threads,
+            final int queueSize, final Overflow overflow) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new DaemonThreadFactory(name), rejectionHandler(overflow));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * プロセス内で共有する非同期処理用Executorを取得します.
+     * スレッド数はCPU数の4倍、キュー長は{@link #SHARED_QUEUE_SIZE}、溢れた場合は呼び出し元スレッドで実行します.
+     * @return
+     */
+    public static synchronized ExecutorService shared() {
+        if(null==shared){
+            int threads = Runtime.getRuntime().availableProcessors()*4;
+            shared = newBoundedExecutor("datastore-async", threads, SHARED_QUEUE_SIZE,
+                    Overflow.CALLER_RUNS);
+        }
+        return shared;
+    }
+
+    /**
+     * 実行中のJVMが仮想スレッド(Java 21以降)に対応しているか確認します.
+     * @return
+     */
+    public static boolean isVirtualThreadSupported() {
+        return null!=virtualThreadFactoryMethod();
+    }
+
+    /**
+     * タスクごとに仮想スレッドを生成するExecutorを生成します. Java 21以降で利用できます.
+     * 
+     * JDBC, Jedis, AWS SDKのようなブロッキングI/Oを行うプロバイダの操作を、
+     * 大きなプラットフォームスレッドプールなしに数万件同時に実行できます.
+     * 
+     * @return
+     * @throws UnsupportedOperationException 仮想スレッドに対応していないJVMの場合
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        Method method = virtualThreadFactoryMethod();
+        if(null==method){
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running "
+                    +System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) method.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Fail to create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * 同時実行数を制限した仮想スレッドExecutorを生成します.
+     * 
+     * 同時実行数を超えたタスクは仮想スレッド上で空きを待つため、投入元はブロックされません.
+     * プロバイダの接続プール数に合わせて制限すると、接続待ちでタイムアウトするのを防げます.
+     * 
+     * @param maxConcurrency 同時に実行するタスク数の上限
+     * @return
+     * @throws UnsupportedOperationException 仮想スレッドに対応していないJVMの場合
+     */
+    public static ExecutorService newVirtualThreadExecutor(final int maxConcurrency) {
+        return new LimitedExecutorService(newVirtualThreadExecutor(), maxConcurrency);
+    }
+
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static RejectedExecutionHandler rejectionHandler(final Overflow overflow) {
+        switch(overflow){
+        case BLOCK:
+            return new BlockPolicy();
+        case ABORT:
+            return new ThreadPoolExecutor.AbortPolicy();
+        case CALLER_RUNS:
+        default:
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+    }
+
+    /**
+     * キューに空きができるまで投入元を待たせるRejectedExecutionHandler
+     */
+    private static class BlockPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(executor.isShutdown()){
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    /**
+     * 実行中のタスク数をSemaphoreで制限するExecutorService.
+     * 許可はタスクを実行するスレッドで取得します.
+     */
+    private static class LimitedExecutorService extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+        LimitedExecutorService(ExecutorService delegate, int maxConcurrency){
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+        @Override
+        public void execute(final Runnable command) {
+            this.delegate.execute(() -> {
+                try {
+                    this.permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    this.permits.release();
+                }
+            });
+        }
+        @Override
+        public void shutdown() {
+            this.delegate.shutdown();
+        }
+        @Override
+        public List<Runnable> shutdownNow() {
+            return this.delegate.shutdownNow();
+        }
+        @Override
+        public boolean isShutdown() {
+            return this.delegate.isShutdown();
+        }
+        @Override
+        public boolean isTerminated() {
+            return this.delegate.isTerminated();
+        }
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return this.delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * 名前付きデーモンスレッドを生成するThreadFactory
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+        DaemonThreadFactory(String name){
+            this.name = name;
+        }
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, this.name+"-"+this.counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package com.mychaelstyle.common.concurrent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 個別のキーの読み込みを短い時間だけ溜めて、1回の一括読み込みにまとめるディスパッチャ.
+ *
+ * 最初のキーが届いてから指定時間が経過するか、指定数のキーが溜まった時点で一括読み込みを実行し、
+ * 結果を呼び出し元ごとのCompletableFutureに振り分けます.
+ * 同じ一括読み込みの中で重複したキーは1つにまとめます.
+ * 一括読み込みは指定されたExecutorで実行するため、待ち時間の計測は遅れません.
+ * Executorが一括読み込みを受け付けない場合、そのバッチの呼び出し元はRejectedExecutionExceptionで失敗します.
+ *
+ * @author Masanori Nakashima
+ * @param <K> キーの型. equalsとhashCodeを実装していること
+ * @param <V> 結果の型
+ */
+public final class MicroBatcher<K,V> {
+
+    /**
+     * 一括読み込み
+     * @param <K>
+     * @param <V>
+     */
+    public interface BatchLoader<K,V> {
+        /**
+         * キーをまとめて読み込みます.
+         * @param keys 重複のないキーのリスト
+         * @return キーと結果のマップ. 含まれないキーの結果はnull
+         * @throws Exception
+         */
+        Map<K,V> load(List<K> keys) throws Exception;
+    }
+
+    /** 締め切り時刻を計るスケジューラ. 一括読み込みは実行しないので全インスタンスで共有する */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "datastore-batch-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final BatchLoader<K,V> loader;
+    private final Executor executor;
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    /** 溜めている途中のバッチ. thisで同期する */
+    private Batch current = null;
+
+    /**
+     * @param loader 一括読み込み
+     * @param executor 一括読み込みを実行するExecutor. 溢れたときは呼び出し元で実行せずに拒否すること.
+     *                 待ち時間が経過したバッチは共有のタイマースレッドから渡すため、タイマースレッドで実行すると全てのバッチが遅れる
+     * @param window 最初のキーが届いてから一括読み込みを実行するまでの最大待ち時間
+     * @param unit windowの単位
+     * @param maxBatchSize 1回の一括読み込みの最大キー数. 溜まった時点で待ち時間を待たずに実行する
+     */
+    public MicroBatcher(final BatchLoader<K,V> loader, final Executor executor,
+            final long window, final TimeUnit unit, final int maxBatchSize) {
+        if(maxBatchSize<1){
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.loader = loader;
+        this.executor = executor;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * キーの読み込みを予約します.
+     * @param key
+     * @return 一括読み込みの完了時に結果で完了するCompletableFuture
+     */
+    public CompletableFuture<V> submit(final K key) {
+        Batch full = null;
+        CompletableFuture<V> future;
+        synchronized(this){
+            Batch batch = this.current;
+            if(null==batch){
+                batch = new Batch();
+                this.current = batch;
+                final Batch scheduled = batch;
+                batch.timeout = timer.schedule(() -> this.flush(scheduled),
+                        this.windowNanos, TimeUnit.NANOSECONDS);
+            }
+            future = batch.futures.get(key);
+            if(null==future){
+                future = new CompletableFuture<V>();
+                batch.futures.put(key, future);
+            }
+            if(batch.futures.size()>=this.maxBatchSize){
+                this.current = null;
+                batch.timeout.cancel(false);
+                full = batch;
+            }
+        }
+        if(null!=full){
+            this.dispatch(full);
+        }
+        return future;
+    }
+
+    /**
+     * 待ち時間が経過したバッチを実行
+     * @param batch
+     */
+    private void flush(final Batch batch) {
+        synchronized(this){
+            if(this.current!=batch){
+                // 既にキー数の上限で実行済み
+                return;
+            }
+            this.current = null;
+        }
+        this.dispatch(batch);
+    }
+
+    private void dispatch(final Batch batch) {
+        try {
+            this.executor.execute(() -> this.run(batch));
+        } catch(RejectedExecutionException e){
+            batch.fail(e);
+        }
+    }
+
+    private void run(final Batch batch) {
+        Map<K,V> results;
+        try {
+            results = this.loader.load(new ArrayList<K>(batch.futures.keySet()));
+        } catch(Throwable e){
+            batch.fail(e);
+            return;
+        }
+        for(Map.Entry<K,CompletableFuture<V>> entry : batch.futures.entrySet()){
+            entry.getValue().complete(null==results ? null : results.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * 溜めている途中のキーと呼び出し元
+     */
+    private final class Batch {
+        final Map<K,CompletableFuture<V>> futures = new LinkedHashMap<K,CompletableFuture<V>>();
+        ScheduledFuture<?> timeout;
+
+        void fail(Throwable e){
+            for(CompletableFuture<V> future : this.futures.values()){
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package com.mychaelstyle.common.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 同じキーに対する同時の呼び出しを1回にまとめるユーティリティ.
+ *
+ * 最初の呼び出し元(リーダー)だけが処理を実行し、実行中に同じキーで呼び出したスレッドは
+ * その完了を待って同じ結果(または同じ例外)を受け取ります.
+ * 結果は保持しないため、完了後の呼び出しは再び処理を実行します.
+ *
+ * @author Masanori Nakashima
+ * @param <K> キーの型. equalsとhashCodeを実装していること
+ * @param <V> 結果の型
+ */
+public final class SingleFlight<K,V> {
+
+    /**
+     * まとめて実行する処理
+     * @param <V>
+     */
+    public interface Call<V> {
+        V call() throws Exception;
+    }
+
+    /** 実行中の呼び出し */
+    private final ConcurrentMap<K,CompletableFuture<V>> calls = new ConcurrentHashMap<K,CompletableFuture<V>>();
+
+    /**
+     * キーに対する処理を実行します. 同じキーの処理が実行中であれば、その結果を待って返します.
+     *
+     * @param key
+     * @param call
+     * @return 処理結果. 実行中の処理の結果は他の呼び出し元と共有されます
+     * @throws ExecutionException 処理が例外を送出した場合. 原因はgetCause()で取得できます
+     * @throws InterruptedException 実行中の処理を待っている間に割り込まれた場合
+     */
+    public V execute(final K key, final Call<V> call) throws ExecutionException, InterruptedException {
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> running = this.calls.putIfAbsent(key, future);
+        if(null!=running){
+            return running.get();
+        }
+        try {
+            V value = call.call();
+            future.complete(value);
+            return value;
+        } catch(Throwable e){
+            future.completeExceptionally(e);
+            throw new ExecutionException(e);
+        } finally {
+            this.calls.remove(key, future);
+        }
+    }
+
+    /**
+     * 実行中の処理を以降の呼び出しと共有しないようにします.
+     * 処理中に値が書き換えられた場合に呼び出し、古い結果を新しい呼び出し元に返さないようにします.
+     * 既に待っている呼び出し元には実行中の処理の結果が返ります.
+     *
+     * @param key
+     */
+    public void forget(final K key) {
+        this.calls.remove(key);
+    }
+
+    /**
+     * 全ての実行中の処理を以降の呼び出しと共有しないようにします.
+     */
+    public void forgetAll() {
+        this.calls.clear();
+    }
+
+    /**
+     * @return 実行中の処理数
+     */
+    public int inFlight() {
+        return this.calls.size();
+    }
+}
@@ -0,0 +1,114 @@
+package com.mychaelstyle.common.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一定の速度で補充されるトークンバケット.
+ *
+ * 操作の前に予想される量を{@link #acquire(double)}で取得し、実際の量が分かったら
+ * {@link #adjust(double)}で差分を精算します. 残高は負になってもよく(後払い)、
+ * 負の間に取得しようとした呼び出し元は残高が0に戻るまで待ちます.
+ * 1回の操作がバケットの容量より大きくても、待ち時間で速度が保たれます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class TokenBucket {
+
+    private double ratePerSecond;
+    private double capacity;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param ratePerSecond 1秒あたりに補充する量. 0以下なら制限しない
+     * @param capacity ためられる最大量. 最初は満杯
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(0, capacity);
+        this.tokens = this.capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * 補充速度と容量を変更します. 残高は新しい容量までに切り詰めます.
+     * 制限していなかったバケットは満杯から始めます.
+     * @param ratePerSecond 0以下なら制限しない
+     * @param capacity
+     */
+    public synchronized void setRate(double ratePerSecond, double capacity) {
+        this.refill(System.nanoTime());
+        boolean unlimited = this.ratePerSecond<=0;
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(0, capacity);
+        this.tokens = unlimited ? this.capacity : Math.min(this.tokens, this.capacity);
+    }
+
+    /**
+     * @return 1秒あたりの補充量
+     */
+    public synchronized double getRate() {
+        return this.ratePerSecond;
+    }
+
+    /**
+     * @return 現在の残高. 後払いの分があれば負
+     */
+    public synchronized double available() {
+        this.refill(System.nanoTime());
+        return this.tokens;
+    }
+
+    /**
+     * 指定の量を取得します. 残高が負なら0に戻るまで待ってから取得します.
+     * @param amount
+     * @throws InterruptedException
+     */
+    public void acquire(double amount) throws InterruptedException {
+        long waitNanos = this.reserve(amount);
+        if(waitNanos>0){
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * 指定の量を予約し、取得できるまでの待ち時間を返します.
+     * @param amount
+     * @return 待つべきナノ秒. 待たずに取得できれば0
+     */
+    public synchronized long reserve(double amount) {
+        if(this.ratePerSecond<=0){
+            return 0;
+        }
+        long now = System.nanoTime();
+        this.refill(now);
+        long waitNanos = 0;
+        if(this.tokens<0){
+            waitNanos = (long) (-this.tokens/this.ratePerSecond*TimeUnit.SECONDS.toNanos(1));
+        }
+        this.tokens -= amount;
+        return waitNanos;
+    }
+
+    /**
+     * 予約した量と実際の量の差分を精算します.
+     * @param delta 実際の量から予約した量を引いたもの. 予約が多すぎた場合は負
+     */
+    public synchronized void adjust(double delta) {
+        if(this.ratePerSecond<=0){
+            return;
+        }
+        this.refill(System.nanoTime());
+        this.tokens = Math.min(this.capacity, this.tokens-delta);
+    }
+
+    private void refill(long now) {
+        long elapsed = now-this.refilledAt;
+        this.refilledAt = now;
+        if(elapsed>0 && this.ratePerSecond>0){
+            this.tokens = Math.min(this.capacity,
+                    this.tokens+this.ratePerSecond*elapsed/TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
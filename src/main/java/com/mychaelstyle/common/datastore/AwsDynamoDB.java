@@ -3,6 +3,11 @@ package com.mychaelstyle.common.datastore;
 import com.mychaelstyle.common.GenericDatastore;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -10,17 +15,31 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.*;
 import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
 import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
 import com.mychaelstyle.common.GenericDatastore.OperationException;
 import com.mychaelstyle.common.GenericDatastore.Provider;
 import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.datastore.aws.AttributeValues;
+import com.mychaelstyle.common.datastore.aws.AwsErrorClassifier;
+import com.mychaelstyle.common.datastore.aws.BatchReader;
+import com.mychaelstyle.common.datastore.aws.BatchWriter;
+import com.mychaelstyle.common.datastore.aws.CapacityLimiter;
+import com.mychaelstyle.common.datastore.aws.ParallelScan;
 import com.mychaelstyle.common.datastore.aws.QResultSet;
 import com.mychaelstyle.common.datastore.aws.SResultSet;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+import com.mychaelstyle.common.record.Record;
+import com.mychaelstyle.common.retry.RetryPolicy;
 
 /**
  * Amazon DynamoDB Wrapper 
@@ -43,8 +62,6 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     public static final Integer TYPE_NUMBER = 1;
     /** データタイプ バイナリ */
     public static final Integer TYPE_BINARY = 2;
-    /** retry max count */
-    public static final int RETRY_MAX = 10;
     /** scan limit default : 20 */
     public static final int SCAN_LIMIT_DEFAULT = 25;
 
@@ -54,6 +71,22 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     public static final String CONFIG_ACCESS_KEY = "access_key";
     /** JSON設定項目 シークレットキー */
     public static final String CONFIG_SECRET_KEY = "secret_key";
+    /** JSON設定項目 batchGet, batchWriteで並列に送信するリクエスト数 */
+    public static final String CONFIG_BATCH_CONCURRENCY = "batch_concurrency";
+    /** batchGet, batchWriteで並列に送信するリクエスト数のデフォルト */
+    public static final int BATCH_CONCURRENCY_DEFAULT = 4;
+    /** JSON設定項目 scanの並列数(TotalSegments). 1なら順にスキャンする */
+    public static final String CONFIG_SCAN_SEGMENTS = "scan_segments";
+    /** JSON設定項目 scanで一度の問い合わせで取得する上限レコード数 */
+    public static final String CONFIG_SCAN_LIMIT = "scan_limit";
+    /** JSON設定項目 scan, queryで先読みする最大ページ数. 0なら先読みしない */
+    public static final String CONFIG_PREFETCH_PAGES = "prefetch_pages";
+    /** JSON設定項目 scan, queryで先読みしたページの最大バイト数 */
+    public static final String CONFIG_PREFETCH_MAX_BYTES = "prefetch_max_bytes";
+    /** JSON設定項目 プロビジョンドスループットのうち使う割合. 未設定または0なら送信速度を制限しない */
+    public static final String CONFIG_CAPACITY_UTILIZATION = "capacity_utilization";
+    /** JSON設定項目 プロビジョンドスループットを再取得する間隔ミリ秒 */
+    public static final String CONFIG_CAPACITY_REFRESH_MILLIS = "capacity_refresh_millis";
 
     /** Logger by logback */
     private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common.datastore");
@@ -62,13 +95,38 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      * 設定JSON
      */
     private JSONObject config = null;
+    /**
+     * batchWriteの分割送信
+     */
+    private BatchWriter batchWriter = null;
+    /**
+     * batchGetの分割送信
+     */
+    private BatchReader batchReader = null;
+    /**
+     * テーブルごとの送信速度の制限. 無効ならnull
+     */
+    private CapacityLimiter capacityLimiter = null;
     //
     // member fields
     //
     /**
      * dynamodb client v2
      */
-    private static AmazonDynamoDBClient client;
+    private static volatile AmazonDynamoDBClient client;
+    /**
+     * lock to create the client once
+     */
+    private static final Lock clientLock = new ReentrantLock();
+    /**
+     * 利用率と再取得間隔ごとのテーブルの送信速度の制限
+     */
+    private static final ConcurrentMap<String,CapacityLimiter> capacityLimiters = new ConcurrentHashMap<String,CapacityLimiter>();
+    /**
+     * staticなget, put, update, deleteの再試行
+     */
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(AwsErrorClassifier.INSTANCE)
+            .withMetrics(MetricsRegistry.global(), AwsDynamoDB.class.getSimpleName());
 
     /* (non-Javadoc)
      * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
@@ -76,49 +134,89 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     @Override
     public Provider connect(JSONObject config) throws ConfigurationException {
         this.config = config;
-        AwsDynamoDB.getClient(config);
+        AmazonDynamoDBClient client = AwsDynamoDB.getClient(config);
+        int concurrency = config.optInt(CONFIG_BATCH_CONCURRENCY, BATCH_CONCURRENCY_DEFAULT);
+        ExecutorService executor = DatastoreExecutors.newBoundedExecutor("dynamodb-batch",
+                concurrency, concurrency*4, DatastoreExecutors.Overflow.CALLER_RUNS);
+        RetryPolicy retryPolicy = newRetryPolicy(config);
+        this.capacityLimiter = getCapacityLimiter(config);
+        this.batchWriter = new BatchWriter(client, executor).withRetryPolicy(retryPolicy)
+                .withCapacityLimiter(this.capacityLimiter);
+        this.batchReader = new BatchReader(client, executor).withRetryPolicy(retryPolicy)
+                .withCapacityLimiter(this.capacityLimiter);
         return this;
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#get()
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public JSONObject get() throws ConnectionException, ConfigurationException,
+    public JSONObject get(Key key) throws ConnectionException, ConfigurationException,
             OperationException {
-        return AwsDynamoDB.get(this.keyName, this.keyValue, this.subkeyName,
-                this.subkeyValue, this.tableName);
+        return AttributeValues.toJSONObject(AwsDynamoDB.getItem(key.getKeyName(), key.getKeyValue(),
+                key.getSubkeyName(), key.getSubkeyValue(), key.getTableName(), this.capacityLimiter));
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete()
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public void delete() throws ConnectionException, ConfigurationException,
+    public void delete(Key key) throws ConnectionException, ConfigurationException,
             OperationException {
-        AwsDynamoDB.delete(this.keyName, this.keyValue, this.subkeyName, this.subkeyValue, this.tableName);
+        AwsDynamoDB.deleteItem(key.getKeyName(), key.getKeyValue(), key.getSubkeyName(),
+                key.getSubkeyValue(), key.getTableName(), this.capacityLimiter);
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(org.json.JSONObject)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(Key key, JSONObject record) throws ConnectionException,
+            ConfigurationException, OperationException {
+        AwsDynamoDB.putItem(createPutItem(record), key.getTableName(), record, this.capacityLimiter);
+    }
+
+    /**
+     * アイテムをJSONObjectを経由せずにRecordに変換します.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#getRecord(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public void put(JSONObject record) throws ConnectionException,
+    public Record getRecord(Key key) throws ConnectionException, ConfigurationException,
+            OperationException {
+        return AttributeValues.toRecord(AwsDynamoDB.getItem(key.getKeyName(), key.getKeyValue(),
+                key.getSubkeyName(), key.getSubkeyValue(), key.getTableName(), this.capacityLimiter));
+    }
+
+    /**
+     * Recordの値の型のままアイテムに変換して書き込みます. 数値はN、真偽値はBOOL、バイト列はBの属性です.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#putRecord(com.mychaelstyle.common.GenericDatastore.Key, com.mychaelstyle.common.record.Record)
+     */
+    @Override
+    public void putRecord(Key key, Record record) throws ConnectionException,
             ConfigurationException, OperationException {
-        AwsDynamoDB.put(record, this.tableName);
+        AwsDynamoDB.putItem(AttributeValues.toItem(record), key.getTableName(), record, this.capacityLimiter);
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(org.json.JSONObject)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
      */
     @Override
-    public void update(JSONObject record) throws ConnectionException,
+    public void update(Key key, JSONObject record) throws ConnectionException,
             ConfigurationException, OperationException {
-        record.put(this.keyName, this.keyValue);
-        if(null!=this.subkeyName && this.subkeyName.length()>0){
-            record.put(this.subkeyName, this.subkeyValue);
+        // 呼び出し元のレコードは複数プロバイダで共有されるため変更しない
+        JSONObject item = new JSONObject();
+        @SuppressWarnings("unchecked")
+        Set<String> names = record.keySet();
+        for(String name : names){
+            item.put(name, record.get(name));
+        }
+        item.put(key.getKeyName(), key.getKeyValue());
+        if(key.hasSubkey()){
+            item.put(key.getSubkeyName(), key.getSubkeyValue());
         }
-        AwsDynamoDB.update(record, this.tableName, this.keyName, this.subkeyName);
+        AwsDynamoDB.updateItem(item, key.getTableName(), key.getKeyName(), key.getSubkeyName(), this.capacityLimiter);
     }
 
     /* (non-Javadoc)
@@ -128,11 +226,10 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     public JSONObject batchGet(JSONArray conditions)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        try {
-            return AwsDynamoDB.batchGetItems(conditions);
-        } catch(Exception e){
-            throw new OperationException(e);
+        if(null==this.batchReader){
+            throw new ConfigurationException("No dynamo db client created.");
         }
+        return toJSONObject(this.batchReader.read(createRequestKeys(conditions)));
     }
 
     /* (non-Javadoc)
@@ -141,31 +238,36 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     @Override
     public void batchWrite(JSONArray jsonArray) throws ConnectionException,
             ConfigurationException, OperationException {
-        try {
-            AwsDynamoDB.batchWriteItems(jsonArray);
-        } catch (Exception e) {
-            throw new OperationException(e);
+        if(null==this.batchWriter){
+            throw new ConfigurationException("No dynamo db client created.");
         }
+        this.batchWriter.write(createRequestItems(jsonArray));
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(org.json.JSONObject, java.util.List, int)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
-    public ResultSet scan(JSONObject conditions, List<String> fields)
+    public ResultSet scan(Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        return AwsDynamoDB.scan(this.config, this.tableName, conditions, fields);
+        int limit = this.config.optInt(CONFIG_SCAN_LIMIT, SCAN_LIMIT_DEFAULT);
+        int segments = this.config.optInt(CONFIG_SCAN_SEGMENTS, 1);
+        if(segments>1){
+            return AwsDynamoDB.parallelScan(this.config, key.getTableName(), conditions, fields,
+                    limit, segments);
+        }
+        return AwsDynamoDB.scan(this.config, key.getTableName(), conditions, fields, limit);
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(org.json.JSONObject, java.util.List, int)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
-    public ResultSet query(JSONObject conditions, List<String> fields)
+    public ResultSet query(Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        return AwsDynamoDB.query(this.config, this.tableName, conditions, fields);
+        return AwsDynamoDB.query(this.config, key.getTableName(), conditions, fields);
     }
 
     /**
@@ -187,15 +289,85 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      */
     public static AmazonDynamoDBClient getClient(JSONObject config) throws ConfigurationException {
         if(null == client){
-            AWSCredentials credentials = getCredentials(config);
-            client = new AmazonDynamoDBClient(credentials);
-            String endpoint = config.getString(CONFIG_ENDPOINT);
-            if(null==endpoint) throw new ConfigurationException(CONFIG_ENDPOINT);
-            client.setEndpoint(endpoint);
+            // クライアントの生成では通信しないため、ロックの中で生成しても仮想スレッドを長く固定しない
+            clientLock.lock();
+            try {
+                if(null == client){
+                    AWSCredentials credentials = getCredentials(config);
+                    // 再試行はRetryPolicyでおこなうため、SDKの再試行(DynamoDBの既定は10回)を止めて重ねない
+                    ClientConfiguration clientConfig = new ClientConfiguration().withRetryPolicy(
+                            PredefinedRetryPolicies.getDynamoDBDefaultRetryPolicyWithCustomMaxRetries(0));
+                    AmazonDynamoDBClient created = new AmazonDynamoDBClient(credentials, clientConfig);
+                    String endpoint = config.getString(CONFIG_ENDPOINT);
+                    if(null==endpoint) throw new ConfigurationException(CONFIG_ENDPOINT);
+                    created.setEndpoint(endpoint);
+                    client = created;
+                }
+            } finally {
+                clientLock.unlock();
+            }
         }
         return client;
     }
 
+    /**
+     * 設定のretry_で始まる項目を読み込んだ再試行の設定を生成. 再試行回数は{@link MetricsRegistry#global()}に記録する
+     * @param config
+     * @return
+     */
+    public static RetryPolicy newRetryPolicy(JSONObject config) {
+        return new RetryPolicy(AwsErrorClassifier.INSTANCE).configure(config)
+                .withMetrics(MetricsRegistry.global(), AwsDynamoDB.class.getSimpleName());
+    }
+
+    /**
+     * 設定のcapacity_utilizationとcapacity_refresh_millisに合わせたテーブルごとの送信速度の制限を取得.
+     * 利用率と再取得間隔が同じ設定は同じ制限を共有します.
+     * 制限はDescribeTableでスループットを取得するため、dynamodb:DescribeTableの権限が必要です.
+     * @param config
+     * @return capacity_utilizationが未設定または0ならnull
+     * @throws ConfigurationException
+     */
+    public static CapacityLimiter getCapacityLimiter(JSONObject config) throws ConfigurationException {
+        double utilization = config.optDouble(CONFIG_CAPACITY_UTILIZATION, 0);
+        if(!(utilization>0)){
+            return null;
+        }
+        long refreshMillis = config.optLong(CONFIG_CAPACITY_REFRESH_MILLIS, CapacityLimiter.DEFAULT_REFRESH_MILLIS);
+        AmazonDynamoDBClient client = getClient(config);
+        return capacityLimiters.computeIfAbsent(utilization+"/"+refreshMillis,
+                k -> new CapacityLimiter(client, utilization).withRefresh(refreshMillis));
+    }
+
+    /**
+     * 1アイテムの操作の前に消費量を取得する. 制限が無効なら何もしない
+     * @param limiter 制限. nullなら無効
+     * @param kind
+     * @param tableName
+     * @return 取得した量
+     */
+    private static double acquireCapacity(CapacityLimiter limiter, CapacityLimiter.Kind kind, String tableName) {
+        if(null==limiter){
+            return 0;
+        }
+        return limiter.acquire(kind, tableName, kind==CapacityLimiter.Kind.READ
+                ? CapacityLimiter.MIN_READ_UNITS : CapacityLimiter.MIN_WRITE_UNITS);
+    }
+
+    /**
+     * 1アイテムの操作の応答で消費量を精算する. 制限が無効なら何もしない
+     * @param limiter 制限. nullなら無効
+     * @param kind
+     * @param reserved
+     * @param consumed
+     */
+    private static void settleCapacity(CapacityLimiter limiter, CapacityLimiter.Kind kind, double reserved,
+            ConsumedCapacity consumed) {
+        if(null!=limiter){
+            limiter.settle(kind, reserved, consumed);
+        }
+    }
+
     /**
      * create aws credentials
      * TODO : 後でまとめる
@@ -253,43 +425,57 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     }
 
     /**
-     * batch write
+     * batchWrite形式のJSONArrayからテーブルごとの書き込み要求を生成.
+     * 分割したリクエストは並列に送信されるため、同じキーへの要求は最後のものだけを残す.
      * @param jsonArray
-     * @throws Exception 
+     * @return
      */
-    public static void batchWriteItems(JSONArray jsonArray) throws Exception{
-        Map<String,List<WriteRequest>> itemsMap = new HashMap<String,List<WriteRequest>>();
+    private static Map<String,List<WriteRequest>> createRequestItems(JSONArray jsonArray){
+        Map<String,Map<String,WriteRequest>> requests = new LinkedHashMap<String,Map<String,WriteRequest>>();
         for(int num=0; num<jsonArray.length(); num++){
             JSONObject json = jsonArray.getJSONObject(num);
             String table  = json.getString(FIELD_TABLE);
-            WriteRequest item = AwsDynamoDB.createWriteRequest(json);
-            List<WriteRequest> trRequests = new ArrayList<WriteRequest>();
-            if(itemsMap.containsKey(table)){
-                trRequests = itemsMap.get(table);
-            }
-            trRequests.add(item);
-            itemsMap.put(table, trRequests);
-        }
-        BatchWriteItemRequest request = new BatchWriteItemRequest();
-        request.setRequestItems(itemsMap);
-        int counter = 1;
-        while(true){
-            try {
-                getClient().batchWriteItem(request);
-                break;
-            }catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to batch write : ").append(e.getMessage()).append("\n");
-                    buf.append(jsonArray.toString()).append("\n");
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
-                    throw new Exception(e);
+            JSONObject data = json.getJSONObject(FIELD_DATA);
+            String keyName = json.optString(FIELD_KEY, null);
+            String subkeyName = json.optString(FIELD_SUBKEY, null);
+            String identity = "#"+num;
+            if(null!=keyName && data.has(keyName)){
+                identity = String.valueOf(data.get(keyName));
+                if(null!=subkeyName && data.has(subkeyName)){
+                    identity = identity+"\u0000"+String.valueOf(data.get(subkeyName));
                 }
-                sleepRandom(counter);
             }
-            counter++;
+            Map<String,WriteRequest> tableRequests = requests.get(table);
+            if(null==tableRequests){
+                tableRequests = new LinkedHashMap<String,WriteRequest>();
+                requests.put(table, tableRequests);
+            }
+            tableRequests.remove(identity);
+            tableRequests.put(identity, AwsDynamoDB.createWriteRequest(json));
+        }
+        Map<String,List<WriteRequest>> itemsMap = new LinkedHashMap<String,List<WriteRequest>>();
+        for(Map.Entry<String,Map<String,WriteRequest>> entry : requests.entrySet()){
+            itemsMap.put(entry.getKey(), new ArrayList<WriteRequest>(entry.getValue().values()));
         }
+        return itemsMap;
+    }
+
+    /**
+     * batch write.
+     * 25件ずつのリクエストに分割して並列に送信し、未処理の要求はバックオフして再送します.
+     * @param jsonArray
+     * @throws Exception 
+     */
+    public static void batchWriteItems(JSONArray jsonArray) throws Exception{
+        new BatchWriter(getClient(), BatchExecutorHolder.EXECUTOR).write(createRequestItems(jsonArray));
+    }
+
+    /**
+     * staticなbatchGetItems, batchWriteItemsで利用するExecutor. 初めて使われたときに生成する.
+     */
+    private static class BatchExecutorHolder {
+        static final ExecutorService EXECUTOR = DatastoreExecutors.newBoundedExecutor("dynamodb-batch",
+                BATCH_CONCURRENCY_DEFAULT, BATCH_CONCURRENCY_DEFAULT*4, DatastoreExecutors.Overflow.CALLER_RUNS);
     }
 
     /**
@@ -313,6 +499,20 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      */
     public static void update(JSONObject json, String tableName,
             String keyName, String rangeName) throws ConfigurationException {
+        AwsDynamoDB.updateItem(json, tableName, keyName, rangeName, null);
+    }
+
+    /**
+     * アイテムを更新する
+     * @param json
+     * @param tableName
+     * @param keyName
+     * @param rangeName
+     * @param limiter 送信速度の制限. nullなら制限しない
+     * @throws ConfigurationException
+     */
+    private static void updateItem(JSONObject json, String tableName,
+            String keyName, String rangeName, CapacityLimiter limiter) throws ConfigurationException {
         Map<String, AttributeValue> itemKeyMap = new HashMap<String, AttributeValue>();
         Map<String, AttributeValueUpdate> itemMap = new HashMap<String, AttributeValueUpdate>();
         @SuppressWarnings("unchecked")
@@ -347,27 +547,24 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
         }
         UpdateItemRequest itemRequest = new UpdateItemRequest().withTableName(tableName)
                 .withKey(itemKeyMap)
-                .withAttributeUpdates(itemMap);
-        int counter = 1;
-        while(true){
-            try {
-                getClient().updateItem(itemRequest);
-                break;
-            }catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to update :").append(e.getMessage()).append("\n");
-                    buf.append("Table name=").append(tableName).append(" keyName=").append(keyName)
-                    .append((null!=rangeName) ? " rangeName="+rangeName : "");
-                    buf.append("\n");
-                    buf.append(json.toString()).append("\n");
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
-                    throw e;
-                }
-                sleepRandom(counter);
-            }
-            counter++;
+                .withAttributeUpdates(itemMap)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
+        try {
+            RETRY_POLICY.execute("update", () -> {
+                double reserved = acquireCapacity(limiter, CapacityLimiter.Kind.WRITE, tableName);
+                UpdateItemResult result = getClient().updateItem(itemRequest);
+                settleCapacity(limiter, CapacityLimiter.Kind.WRITE, reserved, result.getConsumedCapacity());
+                return result;
+            });
+        } catch(AmazonClientException e){
+            StringBuffer buf = new StringBuffer();
+            buf.append("Fail to update :").append(e.getMessage()).append("\n");
+            buf.append("Table name=").append(tableName).append(" keyName=").append(keyName)
+            .append((null!=rangeName) ? " rangeName="+rangeName : "");
+            buf.append("\n");
+            buf.append(json.toString()).append("\n");
+            logger.error(buf.toString(), e);
+            throw e;
         }
     }
 
@@ -377,6 +574,44 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      * @param tableName String DynamoDB Table Name
      */
     public static void put(JSONObject json, String tableName) throws ConfigurationException {
+        putItem(createPutItem(json), tableName, json, null);
+    }
+
+    /**
+     * アイテムを書き込む
+     * @param itemMap
+     * @param tableName
+     * @param source 失敗時にログに出力する書き込み元のレコード
+     * @param limiter 送信速度の制限. nullなら制限しない
+     * @throws ConfigurationException
+     */
+    private static void putItem(Map<String, AttributeValue> itemMap, String tableName, Object source,
+            CapacityLimiter limiter) throws ConfigurationException {
+        PutItemRequest itemRequest = new PutItemRequest().withTableName(tableName).withItem(itemMap)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
+        try {
+            RETRY_POLICY.execute("put", () -> {
+                double reserved = acquireCapacity(limiter, CapacityLimiter.Kind.WRITE, tableName);
+                PutItemResult result = getClient().putItem(itemRequest);
+                settleCapacity(limiter, CapacityLimiter.Kind.WRITE, reserved, result.getConsumedCapacity());
+                return result;
+            });
+        } catch(AmazonClientException e){
+            StringBuffer buf = new StringBuffer();
+            buf.append("Fail to put request : ").append(e.getMessage()).append("\n");
+            buf.append("Table name=").append(tableName).append("\n");
+            buf.append(source.toString()).append("\n");
+            logger.error(buf.toString(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * putするレコードをアイテムに変換. Integerは数値、それ以外は文字列の属性にする
+     * @param json
+     * @return
+     */
+    static Map<String, AttributeValue> createPutItem(JSONObject json){
         Map<String, AttributeValue> itemMap = new HashMap<String, AttributeValue>();
         @SuppressWarnings("unchecked")
         Iterator<String> iterator = json.keys();
@@ -394,94 +629,59 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
                 }
             }
         }
-        PutItemRequest itemRequest = new PutItemRequest().withTableName(tableName).withItem(itemMap);
-        int counter = 1;
-        while(true){
-            try {
-                getClient().putItem(itemRequest);
-                break;
-            }catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to put request : ").append(e.getMessage()).append("\n");
-                    buf.append("Table name=").append(tableName).append("\n");
-                    buf.append(json.toString()).append("\n");
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
-                    throw e;
-                }
-                sleepRandom(counter);
-            }
-            counter++;
-        }
+        return itemMap;
     }
 
     /**
-     * batch get items
+     * batchGet形式のJSONArrayからテーブルごとのキーを生成
      * @param conditions
      * @return
-     * @throws Exception
      */
-    @SuppressWarnings("unchecked")
-    public static JSONObject batchGetItems(JSONArray conditions) throws Exception {
-        BatchGetItemRequest request = new BatchGetItemRequest();
-        Map<String,KeysAndAttributes> keysMap = new HashMap<String,KeysAndAttributes>();
+    private static Map<String,List<Map<String,AttributeValue>>> createRequestKeys(JSONArray conditions){
+        Map<String,List<Map<String,AttributeValue>>> keysMap = new LinkedHashMap<String,List<Map<String,AttributeValue>>>();
         for(int num=0; num<conditions.length(); num++){
             JSONObject condition = conditions.getJSONObject(num);
-            Map<String,AttributeValue> map = new HashMap<String,AttributeValue>();
             String table = condition.getString(FIELD_TABLE);
-            JSONObject cond = condition.getJSONObject(FIELD_DATA);
-            Set<String> fields = cond.keySet();
-            for(Object field : fields){
-                String fname = (String) field;
-                Object value = cond.get(fname);
-                if(value instanceof Integer){
-                    map.put(fname, new AttributeValue().withN(value.toString()));
-                } else {
-                    map.put(fname, new AttributeValue().withS(value.toString()));
-                }
-            }
-            if(keysMap.containsKey(table)){
-                keysMap.get(table).withKeys(map);
-            } else {
-                KeysAndAttributes keys = new KeysAndAttributes().withKeys(map);
+            List<Map<String,AttributeValue>> keys = keysMap.get(table);
+            if(null==keys){
+                keys = new ArrayList<Map<String,AttributeValue>>();
                 keysMap.put(table, keys);
             }
+            keys.add(AttributeValues.toItem(condition.getJSONObject(FIELD_DATA)));
         }
-        for(String table : keysMap.keySet()){
-            request.addRequestItemsEntry(table, keysMap.get(table));
-        }
-        int counter = 0;
-        while(true){
-            try {
-                BatchGetItemResult result = getClient().batchGetItem(request);
-                Map<String,List<Map<String,AttributeValue>>> resMap = result.getResponses();
-                JSONObject retJson = new JSONObject();
-                for(String table : resMap.keySet()){
-                    List<Map<String,AttributeValue>> rows = resMap.get(table);
-                    JSONArray jsonRows = new JSONArray();
-                    for(Map<String,AttributeValue> row : rows){
-                        JSONObject obj = new JSONObject();
-                        for(String field : row.keySet()){
-                            obj.put(field, row.get(field).getS());
-                        }
-                        jsonRows.put(obj);
-                    }
-                    retJson.put(table, jsonRows);
-                }
-                return retJson;
-            } catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to batchGet ").append(e.getMessage()).append("\n");
-                    buf.append(conditions.toString()).append("\n");
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
+        return keysMap;
+    }
+
+    /**
+     * テーブルごとのアイテムをbatchGetの結果形式のJSONObjectに変換
+     * @param items
+     * @return
+     */
+    private static JSONObject toJSONObject(Map<String,List<Map<String,AttributeValue>>> items){
+        JSONObject retJson = new JSONObject();
+        for(Map.Entry<String,List<Map<String,AttributeValue>>> entry : items.entrySet()){
+            JSONArray jsonRows = new JSONArray();
+            for(Map<String,AttributeValue> row : entry.getValue()){
+                JSONObject obj = AttributeValues.toJSONObject(row);
+                if(null!=obj){
+                    jsonRows.put(obj);
                 }
-                sleepRandom(counter);
             }
-            counter++;
+            retJson.put(entry.getKey(), jsonRows);
         }
+        return retJson;
+    }
+
+    /**
+     * batch get items.
+     * 重複を除いたキーを100件ずつのリクエストに分割して並列に読み込み、未処理のキーはバックオフして再送します.
+     * @param conditions
+     * @return
+     * @throws Exception
+     */
+    public static JSONObject batchGetItems(JSONArray conditions) throws Exception {
+        return toJSONObject(new BatchReader(getClient(), BatchExecutorHolder.EXECUTOR)
+                .read(createRequestKeys(conditions)));
     }
 
     /**
@@ -497,6 +697,23 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      */
     public static JSONObject get(String keyName, Object keyValue,
             String rangeName, Object rangeValue, String tableName)
+    throws ConfigurationException {
+        return AttributeValues.toJSONObject(getItem(keyName, keyValue, rangeName, rangeValue, tableName, null));
+    }
+
+    /**
+     * キーを指定してアイテムを取得. テーブル名を変換しません.
+     * @param keyName キーフィールド名
+     * @param keyValue キー値
+     * @param rangeName レンジキーフィールド名
+     * @param rangeValue レンジキー値
+     * @param tableName 対象テーブル名
+     * @param limiter 送信速度の制限. nullなら制限しない
+     * @return アイテム. なければnull
+     * @throws ConfigurationException
+     */
+    private static Map<String,AttributeValue> getItem(String keyName, Object keyValue,
+            String rangeName, Object rangeValue, String tableName, CapacityLimiter limiter)
     throws ConfigurationException {
         String tTable = tableName;
         Map<String,AttributeValue> keyMap = new HashMap<String,AttributeValue>();
@@ -517,54 +734,31 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
             keyMap.put(rangeName,rangeValueAttr);
         }
         // request
-        GetItemRequest getItemRequest = new GetItemRequest().withTableName(tTable).withKey(keyMap);
+        GetItemRequest getItemRequest = new GetItemRequest().withTableName(tTable).withKey(keyMap)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
         GetItemResult result = null;
-        int counter = 1;
-        while(true){
-            try {
-                result = getClient().getItem(getItemRequest);
-                break;
-            }catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to get : ").append(e.getMessage()).append("\n");
-                    buf.append("Table name=").append(tableName);
-                    buf.append(" KeyName=").append(keyName)
-                    .append(" Value=").append(keyValue.toString());
-                    if(null!=rangeName){
-                        buf.append("RangeName=").append(rangeName)
-                        .append(" Value=").append((null!=rangeValue? rangeValue.toString() : ""));
-                    }
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
-                    throw e;
-                }
-                sleepRandom(counter);
+        try {
+            result = RETRY_POLICY.execute("get", () -> {
+                double reserved = acquireCapacity(limiter, CapacityLimiter.Kind.READ, tTable);
+                GetItemResult item = getClient().getItem(getItemRequest);
+                settleCapacity(limiter, CapacityLimiter.Kind.READ, reserved, item.getConsumedCapacity());
+                return item;
+            });
+        } catch(AmazonClientException e){
+            StringBuffer buf = new StringBuffer();
+            buf.append("Fail to get : ").append(e.getMessage()).append("\n");
+            buf.append("Table name=").append(tableName);
+            buf.append(" KeyName=").append(keyName)
+            .append(" Value=").append(keyValue.toString());
+            if(null!=rangeName){
+                buf.append("RangeName=").append(rangeName)
+                .append(" Value=").append((null!=rangeValue? rangeValue.toString() : ""));
             }
-            counter++;
+            logger.error(buf.toString(), e);
+            throw e;
         }
 
-        // create json
-        JSONObject jsonObject = new JSONObject();
-        Map<String,AttributeValue> resultMap = result.getItem();
-        if(null==resultMap || resultMap.isEmpty()){
-            return null;
-        } else {
-            for (Map.Entry<String, AttributeValue> item : resultMap.entrySet()) {
-                String key = item.getKey();
-                AttributeValue val = item.getValue();
-                String value = val.getS();
-                if(null!=value){
-                    jsonObject.put(key, value);
-                } else {
-                    value = val.getN();
-                    if(null!=value){
-                        jsonObject.put(key, value);
-                    }
-                }
-            }
-            return jsonObject;
-        }
+        return result.getItem();
     }
 
     /**
@@ -591,6 +785,22 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      */
     public static void delete(String keyName, Object keyValue,
             String rangeName, Object rangeValue, String tableName)
+    throws ConfigurationException {
+        AwsDynamoDB.deleteItem(keyName, keyValue, rangeName, rangeValue, tableName, null);
+    }
+
+    /**
+     * キーを指定してアイテムを削除
+     * @param keyName キーフィールド名
+     * @param keyValue キー値
+     * @param rangeName レンジキーフィールド名
+     * @param rangeValue レンジキー値
+     * @param tableName 対象テーブル名
+     * @param limiter 送信速度の制限. nullなら制限しない
+     * @throws ConfigurationException
+     */
+    private static void deleteItem(String keyName, Object keyValue,
+            String rangeName, Object rangeValue, String tableName, CapacityLimiter limiter)
     throws ConfigurationException {
         Map<String,AttributeValue> cond = new HashMap<String,AttributeValue>();
         AttributeValue keyAttr = new AttributeValue();
@@ -609,30 +819,26 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
             }
             cond.put(rangeName, rangeAttr);
         }
-        DeleteItemRequest deleteItemRequest = new DeleteItemRequest(tableName,cond);
-        getClient().deleteItem(deleteItemRequest);
-        int counter = 1;
-        while(true){
-            try {
-                getClient().deleteItem(deleteItemRequest);
-                break;
-            }catch(Throwable e){
-                if(counter>RETRY_MAX){
-                    StringBuffer buf = new StringBuffer();
-                    buf.append("Fail to delete : ").append(e.getMessage()).append("\n");
-                    buf.append("Table name=").append(tableName);
-                    buf.append(" KeyName=").append(keyName).append(" Value=").append(keyValue.toString());
-                    if(null!=rangeName){
-                        buf.append("RangeName=").append(rangeName)
-                        .append(" Value=").append(null!=rangeValue? rangeValue.toString() : "");
-                    }
-                    buf.append(e.getStackTrace().toString());
-                    logger.error(buf.toString());
-                    throw e;
-                }
-                sleepRandom(counter);
+        DeleteItemRequest deleteItemRequest = new DeleteItemRequest(tableName,cond)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
+        try {
+            RETRY_POLICY.execute("delete", () -> {
+                double reserved = acquireCapacity(limiter, CapacityLimiter.Kind.WRITE, tableName);
+                DeleteItemResult result = getClient().deleteItem(deleteItemRequest);
+                settleCapacity(limiter, CapacityLimiter.Kind.WRITE, reserved, result.getConsumedCapacity());
+                return result;
+            });
+        } catch(AmazonClientException e){
+            StringBuffer buf = new StringBuffer();
+            buf.append("Fail to delete : ").append(e.getMessage()).append("\n");
+            buf.append("Table name=").append(tableName);
+            buf.append(" KeyName=").append(keyName).append(" Value=").append(keyValue.toString());
+            if(null!=rangeName){
+                buf.append("RangeName=").append(rangeName)
+                .append(" Value=").append(null!=rangeValue? rangeValue.toString() : "");
             }
-            counter++;
+            logger.error(buf.toString(), e);
+            throw e;
         }
     }
 
@@ -659,6 +865,62 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
      */
     public static ResultSet scan(JSONObject config, String table,
             JSONObject conditions,List<String> fields, int limit) throws ConfigurationException{
+        return new SResultSet(config, createScanRequest(table, conditions, fields, limit));
+    }
+
+    /**
+     * 指定のテーブルをtotalSegmentsに分割して並列にscanし、結果をまとめたResultSetを返す.
+     * 結果の順序はセグメント間で不定. 最後まで読まない場合はcloseを呼び出すこと.
+     * @param config
+     * @param table 対象テーブル
+     * @param conditions 条件JSON
+     * @param fields 取得フィールドリスト
+     * @param limit 一度の問い合わせで取得する上限レコード数
+     * @param totalSegments 分割数
+     * @return
+     * @throws ConfigurationException
+     */
+    public static ParallelScan.Results parallelScan(JSONObject config, String table,
+            JSONObject conditions, List<String> fields, int limit, int totalSegments)
+            throws ConfigurationException {
+        return new ParallelScan(getClient(config), createScanRequest(table, conditions, fields, limit),
+                totalSegments).withRetryPolicy(newRetryPolicy(config))
+                .withCapacityLimiter(getCapacityLimiter(config))
+                .resultSet();
+    }
+
+    /**
+     * 指定のテーブルをtotalSegmentsに分割して並列にscanし、レコードをセグメントごとにconsumerへ渡す.
+     * consumerは複数スレッドから同時に呼び出される. 全セグメントのscanが終わるまで戻らない.
+     * @param config
+     * @param table 対象テーブル
+     * @param conditions 条件JSON
+     * @param fields 取得フィールドリスト
+     * @param limit 一度の問い合わせで取得する上限レコード数
+     * @param totalSegments 分割数
+     * @param consumer
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    public static void parallelScan(JSONObject config, String table, JSONObject conditions,
+            List<String> fields, int limit, int totalSegments, ParallelScan.SegmentConsumer consumer)
+            throws ConfigurationException, OperationException {
+        new ParallelScan(getClient(config), createScanRequest(table, conditions, fields, limit),
+                totalSegments).withRetryPolicy(newRetryPolicy(config))
+                .withCapacityLimiter(getCapacityLimiter(config))
+                .forEachSegment(consumer);
+    }
+
+    /**
+     * scanの問い合わせを生成
+     * @param table
+     * @param conditions
+     * @param fields
+     * @param limit
+     * @return
+     */
+    private static ScanRequest createScanRequest(String table,
+            JSONObject conditions, List<String> fields, int limit) {
         Map<String,Condition> awsConditions = new HashMap<String,Condition>();
         if(null!=conditions){
             @SuppressWarnings("unchecked")
@@ -675,7 +937,7 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
            .withScanFilter(awsConditions)
            .withAttributesToGet(fields)
            .withLimit(limit);
-        return new SResultSet(config, scanRequest);
+        return scanRequest;
     }
 
     /**
@@ -861,17 +1123,4 @@ public class AwsDynamoDB extends GenericDatastore.BaseProvider implements Generi
     public static ResultSet query(JSONObject config, String table, JSONObject conditions,List<String> fields) throws ConfigurationException{
         return AwsDynamoDB.query(config, table,conditions,fields,AwsDynamoDB.SCAN_LIMIT_DEFAULT);
     }
-
-    /**
-     * sleep random mili seconds, 500 to 1500.
-     * @param number
-     */
-    public static void sleepRandom(long number){
-        long sleepmillis = (new Random().nextLong() % 1000)+500;
-        try {
-            Thread.sleep(number*sleepmillis);
-        } catch (InterruptedException e) {
-            logger.warn(e.getMessage());
-        }
-    }
 }
@@ -0,0 +1,473 @@
+package com.mychaelstyle.common.datastore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Filter;
+import com.mychaelstyle.common.datastore.local.LocalProvider;
+import com.mychaelstyle.common.datastore.local.Values;
+import com.mychaelstyle.common.datastore.rocksdb.CompositeKey;
+import com.mychaelstyle.common.datastore.rocksdb.RocksResultSet;
+
+/**
+ * GenericDatastoreが利用するデータストアプロバイダのRocksDB実装です.
+ *
+ * RocksDBをJNIでプロセス内に組み込み、レコードをJSON文字列のUTF-8で書き込みます.
+ * キーは{@link CompositeKey}でテーブル、主キー値、副キー値の順に並ぶバイト列にするため、
+ * scanはテーブル、queryは主キー値の接頭辞の範囲だけを読み、副キーの条件は範囲の開始、終了キーにします.<br>
+ * batchWriteはWriteBatchで1回の書き込みに、batchGetはmultiGetで1回の読み込みにまとめます.
+ * updateは同じキーへの書き込みをロックで順に実行して読み込みと書き込みの間に他の書き込みが入らないようにします.
+ * batchWriteはこのロックを取りません.<br>
+ * <br>
+ * configのフォーマット<br>
+ * <pre>
+ * {
+ *     "path" : "データベースのディレクトリ",
+ *     "block_cache_bytes" : 134217728,
+ *     "block_size" : 16384,
+ *     "bloom_bits_per_key" : 10,
+ *     "write_buffer_bytes" : 67108864,
+ *     "max_write_buffers" : 3,
+ *     "max_background_jobs" : 4,
+ *     "compaction_style" : "level/universal/fifo",
+ *     "level0_compaction_trigger" : 4,
+ *     "target_file_size_base" : 67108864,
+ *     "max_bytes_for_level_base" : 268435456,
+ *     "compression" : "lz4/snappy/zstd/none",
+ *     "sync" : false,
+ *     "disable_wal" : false,
+ *     "scan_page_size" : 1000
+ * }
+ * </pre>
+ * pathの他は省略できます. 同じpathのプロバイダは最初に接続したプロバイダの設定で開いたデータベースを共有します.
+ *
+ * @author Masanori Nakashima
+ */
+public class EmbeddedRocksDB extends LocalProvider {
+
+    public static final String CONFIG_PATH = "path";
+    public static final String CONFIG_BLOCK_CACHE_BYTES = "block_cache_bytes";
+    public static final String CONFIG_BLOCK_SIZE = "block_size";
+    public static final String CONFIG_BLOOM_BITS_PER_KEY = "bloom_bits_per_key";
+    public static final String CONFIG_WRITE_BUFFER_BYTES = "write_buffer_bytes";
+    public static final String CONFIG_MAX_WRITE_BUFFERS = "max_write_buffers";
+    public static final String CONFIG_MAX_BACKGROUND_JOBS = "max_background_jobs";
+    public static final String CONFIG_COMPACTION_STYLE = "compaction_style";
+    public static final String CONFIG_LEVEL0_COMPACTION_TRIGGER = "level0_compaction_trigger";
+    public static final String CONFIG_TARGET_FILE_SIZE_BASE = "target_file_size_base";
+    public static final String CONFIG_MAX_BYTES_FOR_LEVEL_BASE = "max_bytes_for_level_base";
+    public static final String CONFIG_COMPRESSION = "compression";
+    public static final String CONFIG_SYNC = "sync";
+    public static final String CONFIG_DISABLE_WAL = "disable_wal";
+    public static final String CONFIG_SCAN_PAGE_SIZE = "scan_page_size";
+
+    public static final long DEFAULT_BLOCK_CACHE_BYTES = 128L*1024*1024;
+    public static final long DEFAULT_BLOCK_SIZE = 16*1024;
+    public static final double DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+
+    /** updateの排他に使うロックの数 */
+    private static final int LOCK_STRIPES = 64;
+
+    /** ディレクトリごとに開いたデータベース */
+    private static final ConcurrentMap<Path,Database> databases = new ConcurrentHashMap<Path,Database>();
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    private Database database = null;
+
+    /**
+     * constructor
+     */
+    public EmbeddedRocksDB() {
+        super();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
+     */
+    @Override
+    public Provider connect(final JSONObject config) throws ConfigurationException {
+        if(null==config || !config.has(CONFIG_PATH)){
+            throw new ConfigurationException(CONFIG_PATH+" is required");
+        }
+        Path path = Paths.get(config.getString(CONFIG_PATH)).toAbsolutePath().normalize();
+        try {
+            this.database = databases.computeIfAbsent(path, directory -> {
+                try {
+                    return new Database(directory, config);
+                } catch(IOException | RocksDBException e){
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch(IllegalArgumentException e){
+            throw new ConfigurationException(e);
+        } catch(IllegalStateException e){
+            throw new ConfigurationException(e.getCause());
+        }
+        return this;
+    }
+
+    /**
+     * ディレクトリのデータベースを閉じます.
+     * @param path ディレクトリ
+     */
+    public static void close(final String path) {
+        Database database = databases.remove(Paths.get(path).toAbsolutePath().normalize());
+        if(null!=database){
+            database.close();
+        }
+    }
+
+    /**
+     * @return 統計の取得などに使うRocksDB
+     */
+    public RocksDB getDatabase() {
+        return this.database.db;
+    }
+
+    private static JSONObject decode(final byte[] value) {
+        return new JSONObject(new String(value, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] encode(final JSONObject record) {
+        return record.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(final Key key) throws OperationException {
+        try {
+            byte[] value = this.database.db.get(CompositeKey.encode(key));
+            return null==value ? null : decode(value);
+        } catch(RocksDBException e){
+            throw new OperationException(e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public void delete(final Key key) throws OperationException {
+        byte[] bytes = CompositeKey.encode(key);
+        synchronized(this.database.lock(bytes)){
+            try {
+                this.database.db.delete(this.database.writeOptions, bytes);
+            } catch(RocksDBException e){
+                throw new OperationException(e);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(final Key key, final JSONObject record) throws OperationException {
+        byte[] bytes = CompositeKey.encode(key);
+        byte[] value = encode(withKeyFields(key, Values.copy(record)));
+        synchronized(this.database.lock(bytes)){
+            try {
+                this.database.db.put(this.database.writeOptions, bytes, value);
+            } catch(RocksDBException e){
+                throw new OperationException(e);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void update(final Key key, final JSONObject record) throws OperationException {
+        byte[] bytes = CompositeKey.encode(key);
+        synchronized(this.database.lock(bytes)){
+            try {
+                byte[] current = this.database.db.get(bytes);
+                JSONObject updated = null==current ? new JSONObject() : decode(current);
+                for(Object name : record.keySet()){
+                    updated.put((String) name, record.get((String) name));
+                }
+                this.database.db.put(this.database.writeOptions, bytes, encode(withKeyFields(key, updated)));
+            } catch(RocksDBException e){
+                throw new OperationException(e);
+            }
+        }
+    }
+
+    /**
+     * multiGetで全ての要素を1回で読み込みます.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchGet(org.json.JSONArray)
+     */
+    @Override
+    public JSONObject batchGet(final JSONArray conditions)
+            throws ConnectionException, ConfigurationException, OperationException {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for(int num=0; num<conditions.length(); num++){
+            keys.add(CompositeKey.encode(toKey(conditions.getJSONObject(num))));
+        }
+        List<byte[]> values;
+        try {
+            values = this.database.db.multiGetAsList(keys);
+        } catch(RocksDBException e){
+            throw new OperationException(e);
+        }
+        JSONObject result = new JSONObject();
+        for(int num=0; num<values.size(); num++){
+            if(null==values.get(num)){
+                continue;
+            }
+            String table = conditions.getJSONObject(num).getString(FIELD_TABLE);
+            JSONArray rows = result.optJSONArray(table);
+            if(null==rows){
+                rows = new JSONArray();
+                result.put(table, rows);
+            }
+            rows.put(decode(values.get(num)));
+        }
+        return result;
+    }
+
+    /**
+     * WriteBatchで全ての要素を1回で書き込みます. 全て書き込まれるか、全て書き込まれないかのどちらかです.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchWrite(org.json.JSONArray)
+     */
+    @Override
+    public void batchWrite(final JSONArray jsonArray)
+            throws ConnectionException, ConfigurationException, OperationException {
+        try(WriteBatch batch = new WriteBatch()){
+            for(int num=0; num<jsonArray.length(); num++){
+                JSONObject element = jsonArray.getJSONObject(num);
+                Key key = toKey(element);
+                if(ACTION_DELETE.equals(element.optString(FIELD_ACTION))){
+                    batch.delete(CompositeKey.encode(key));
+                } else {
+                    batch.put(CompositeKey.encode(key),
+                            encode(withKeyFields(key, Values.copy(element.getJSONObject(FIELD_DATA)))));
+                }
+            }
+            this.database.db.write(this.database.writeOptions, batch);
+        } catch(RocksDBException e){
+            throw new OperationException(e);
+        }
+    }
+
+    /**
+     * テーブルのキーの範囲を読み、条件を満たすレコードを返します.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(final Key key, final JSONObject conditions, final List<String> fields) {
+        byte[] table = CompositeKey.table(key.getTableName());
+        return new RocksResultSet(this.database.db, table, CompositeKey.successor(table),
+                new Filter(conditions), fields, this.database.scanPageSize, false);
+    }
+
+    /**
+     * 主キーの=条件があればその主キー値のキーの範囲を読み、副キーの条件で範囲を狭めます.
+     * 主キー名、副キー名は問い合わせキーで指定します. 主キーの=条件がなければscanと同じです.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(final Key key, final JSONObject conditions, final List<String> fields)
+            throws OperationException {
+        Filter filter = new Filter(conditions);
+        Filter.Condition keyCondition = null==key.getKeyName() ? null : filter.get(key.getKeyName());
+        if(null==keyCondition || !keyCondition.isEquality()){
+            return this.scan(key, conditions, fields);
+        }
+        byte[] row = CompositeKey.row(key.getTableName(), keyCondition.getValue());
+        byte[][] range = {row, CompositeKey.successor(row)};
+        Filter.Condition subkeyCondition = key.hasSubkey() ? filter.get(key.getSubkeyName()) : null;
+        if(null!=subkeyCondition){
+            this.narrow(range, row, subkeyCondition);
+        }
+        // 範囲は条件を満たすレコードを含めば良く、副キーの条件もフィルタで判定する
+        return new RocksResultSet(this.database.db, range[0], range[1], filter, fields,
+                this.database.scanPageSize, true);
+    }
+
+    /**
+     * 副キーの条件に対応するキーの範囲にrangeを狭める.
+     * 条件値は行の最初の副キーの型に合わせ、型が合わなければ狭めません.
+     */
+    private void narrow(final byte[][] range, final byte[] row, final Filter.Condition condition)
+            throws OperationException {
+        Object sample = null;
+        try(RocksIterator iterator = this.database.db.newIterator()){
+            iterator.seek(row);
+            for(; iterator.isValid() && null==sample; iterator.next()){
+                byte[] key = iterator.key();
+                if(CompositeKey.compare(key, range[1])>=0){
+                    break;
+                }
+                sample = CompositeKey.decodeSubkey(key, row.length);
+            }
+            iterator.status();
+        } catch(RocksDBException e){
+            throw new OperationException(e);
+        }
+        if(null==sample){
+            return;
+        }
+        byte[] value = CompositeKey.concat(row, CompositeKey.subkey(Values.coerce(condition.getValue(), sample)));
+        byte[] type = CompositeKey.subkey(sample);
+        if(value[row.length]!=type[0]){
+            return;
+        }
+        String operator = condition.getOperator();
+        if(Filter.OPERATOR_LT.equals(operator)){
+            range[1] = value;
+        } else if(Filter.OPERATOR_LE.equals(operator)){
+            range[1] = CompositeKey.successor(value);
+        } else if(Filter.OPERATOR_GT.equals(operator) || Filter.OPERATOR_GE.equals(operator)){
+            range[0] = value;
+        } else if(Filter.OPERATOR_BEGIN_WITH.equalsIgnoreCase(operator) || condition.isEquality()){
+            // 文字列の副キーは終端がないため、接頭辞で始まる範囲になる
+            range[0] = value;
+            range[1] = CompositeKey.successor(value);
+        }
+    }
+
+    /**
+     * ディレクトリごとに開いたRocksDBとネイティブのリソース
+     */
+    private static final class Database {
+        final RocksDB db;
+        final Options options;
+        final LRUCache cache;
+        final BloomFilter bloomFilter;
+        final WriteOptions writeOptions;
+        final int scanPageSize;
+        final Object[] locks = new Object[LOCK_STRIPES];
+
+        Database(Path path, JSONObject config) throws IOException, RocksDBException {
+            // 設定の誤りはネイティブのリソースを確保する前に判定する
+            CompactionStyle compactionStyle = compactionStyle(config.optString(CONFIG_COMPACTION_STYLE, "level"));
+            CompressionType compression = compression(config.optString(CONFIG_COMPRESSION, "lz4"));
+            Files.createDirectories(path);
+            this.cache = new LRUCache(config.optLong(CONFIG_BLOCK_CACHE_BYTES, DEFAULT_BLOCK_CACHE_BYTES));
+            this.bloomFilter = new BloomFilter(config.optDouble(CONFIG_BLOOM_BITS_PER_KEY, DEFAULT_BLOOM_BITS_PER_KEY), false);
+            BlockBasedTableConfig table = new BlockBasedTableConfig()
+                    .setBlockCache(this.cache)
+                    .setBlockSize(config.optLong(CONFIG_BLOCK_SIZE, DEFAULT_BLOCK_SIZE))
+                    .setFilterPolicy(this.bloomFilter)
+                    .setCacheIndexAndFilterBlocks(true)
+                    .setPinL0FilterAndIndexBlocksInCache(true);
+            this.options = new Options().setCreateIfMissing(true).setTableFormatConfig(table)
+                    .setCompactionStyle(compactionStyle).setCompressionType(compression);
+            if(config.has(CONFIG_WRITE_BUFFER_BYTES)){
+                this.options.setWriteBufferSize(config.getLong(CONFIG_WRITE_BUFFER_BYTES));
+            }
+            if(config.has(CONFIG_MAX_WRITE_BUFFERS)){
+                this.options.setMaxWriteBufferNumber(config.getInt(CONFIG_MAX_WRITE_BUFFERS));
+            }
+            if(config.has(CONFIG_MAX_BACKGROUND_JOBS)){
+                this.options.setMaxBackgroundJobs(config.getInt(CONFIG_MAX_BACKGROUND_JOBS));
+            }
+            if(config.has(CONFIG_LEVEL0_COMPACTION_TRIGGER)){
+                this.options.setLevel0FileNumCompactionTrigger(config.getInt(CONFIG_LEVEL0_COMPACTION_TRIGGER));
+            }
+            if(config.has(CONFIG_TARGET_FILE_SIZE_BASE)){
+                this.options.setTargetFileSizeBase(config.getLong(CONFIG_TARGET_FILE_SIZE_BASE));
+            }
+            if(config.has(CONFIG_MAX_BYTES_FOR_LEVEL_BASE)){
+                this.options.setMaxBytesForLevelBase(config.getLong(CONFIG_MAX_BYTES_FOR_LEVEL_BASE));
+            }
+            this.writeOptions = new WriteOptions().setSync(config.optBoolean(CONFIG_SYNC, false))
+                    .setDisableWAL(config.optBoolean(CONFIG_DISABLE_WAL, false));
+            this.scanPageSize = config.optInt(CONFIG_SCAN_PAGE_SIZE, DEFAULT_SCAN_PAGE_SIZE);
+            for(int num=0; num<LOCK_STRIPES; num++){
+                this.locks[num] = new Object();
+            }
+            try {
+                this.db = RocksDB.open(this.options, path.toString());
+            } catch(RocksDBException e){
+                this.closeOptions();
+                throw e;
+            }
+        }
+
+        private static CompactionStyle compactionStyle(String name) {
+            switch(name.toLowerCase()){
+            case "level":
+                return CompactionStyle.LEVEL;
+            case "universal":
+                return CompactionStyle.UNIVERSAL;
+            case "fifo":
+                return CompactionStyle.FIFO;
+            default:
+                throw new IllegalArgumentException(CONFIG_COMPACTION_STYLE+" must be level, universal or fifo : "+name);
+            }
+        }
+
+        private static CompressionType compression(String name) {
+            switch(name.toLowerCase()){
+            case "lz4":
+                return CompressionType.LZ4_COMPRESSION;
+            case "snappy":
+                return CompressionType.SNAPPY_COMPRESSION;
+            case "zstd":
+                return CompressionType.ZSTD_COMPRESSION;
+            case "none":
+                return CompressionType.NO_COMPRESSION;
+            default:
+                throw new IllegalArgumentException(CONFIG_COMPRESSION+" must be lz4, snappy, zstd or none : "+name);
+            }
+        }
+
+        Object lock(byte[] key) {
+            int hash = Arrays.hashCode(key);
+            return this.locks[(hash^(hash>>>16))&(LOCK_STRIPES-1)];
+        }
+
+        void close() {
+            this.db.close();
+            this.closeOptions();
+        }
+
+        private void closeOptions() {
+            this.writeOptions.close();
+            this.options.close();
+            this.bloomFilter.close();
+            this.cache.close();
+        }
+    }
+}
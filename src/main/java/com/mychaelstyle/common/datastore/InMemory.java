@@ -0,0 +1,291 @@
+package com.mychaelstyle.common.datastore;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Filter;
+import com.mychaelstyle.common.datastore.local.LocalProvider;
+import com.mychaelstyle.common.datastore.local.LocalResultSet;
+import com.mychaelstyle.common.datastore.local.Values;
+
+/**
+ * GenericDatastoreが利用するデータストアプロバイダのプロセス内メモリ実装です.
+ *
+ * テーブルごとに主キー値から副キー値の順序付きMapへのMapを持ち、
+ * 副キーに対する範囲のqueryをMapの部分ビューとして実行します.<br>
+ * 読み込みはロックを取らず、書き込みは主キー値ごとに順に実行してレコード単位で置き換えます.
+ * 保持するレコードと返すレコードは複製するため、呼び出し元が変更しても影響しません.<br>
+ * <br>
+ * 主キー値はKeyと同じく文字列として同一性を判定します.
+ * 副キー値は数値同士なら数値として、それ以外は文字列として並べます.<br>
+ * <br>
+ * configのフォーマット<br>
+ * <pre>
+ * {
+ *     "store" : "共有するストア名(省略時はプロバイダごとに別のストア)"
+ * }
+ * </pre>
+ * 同じストア名のプロバイダは同じレコードを共有します.
+ *
+ * @author Masanori Nakashima
+ */
+public class InMemory extends LocalProvider {
+
+    /** 設定項目 : 共有するストア名 */
+    public static final String CONFIG_STORE = "store";
+
+    /** 副キーのないレコードの副キー値 */
+    private static final Object NO_SUBKEY = new Object();
+
+    /** 副キーの順序. 副キーのないレコードを先頭にする */
+    private static final Comparator<Object> SUBKEY_ORDER = (a, b) -> {
+        if(a==NO_SUBKEY || b==NO_SUBKEY){
+            return a==b ? 0 : (a==NO_SUBKEY ? -1 : 1);
+        }
+        return Values.compare(a, b);
+    };
+
+    /** ストア名ごとの共有ストア */
+    private static final ConcurrentMap<String,ConcurrentMap<String,Table>> stores =
+            new ConcurrentHashMap<String,ConcurrentMap<String,Table>>();
+
+    /** テーブル名からテーブル */
+    private ConcurrentMap<String,Table> tables = new ConcurrentHashMap<String,Table>();
+
+    /**
+     * constructor
+     */
+    public InMemory() {
+        super();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
+     */
+    @Override
+    public Provider connect(final JSONObject config) throws ConfigurationException {
+        String store = null==config ? null : config.optString(CONFIG_STORE, null);
+        if(null!=store){
+            ConcurrentMap<String,Table> created = new ConcurrentHashMap<String,Table>();
+            ConcurrentMap<String,Table> shared = stores.putIfAbsent(store, created);
+            this.tables = null==shared ? created : shared;
+        }
+        return this;
+    }
+
+    /**
+     * 共有ストアのレコードを全て削除します.
+     * @param store ストア名
+     */
+    public static void drop(final String store) {
+        ConcurrentMap<String,Table> tables = stores.get(store);
+        if(null!=tables){
+            tables.clear();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(final Key key) {
+        Table table = this.tables.get(key.getTableName());
+        if(null==table){
+            return null;
+        }
+        NavigableMap<Object,JSONObject> row = table.rows.get(String.valueOf(key.getKeyValue()));
+        if(null==row){
+            return null;
+        }
+        JSONObject record = row.get(subkeyOf(key));
+        return null==record ? null : Values.copy(record);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public void delete(final Key key) {
+        Table table = this.tables.get(key.getTableName());
+        if(null==table){
+            return;
+        }
+        table.rows.computeIfPresent(String.valueOf(key.getKeyValue()), (keyValue, row) -> {
+            row.remove(subkeyOf(key));
+            return row.isEmpty() ? null : row;
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(final Key key, final JSONObject record) {
+        final JSONObject stored = withKeyFields(key, Values.copy(record));
+        this.write(key, row -> row.put(subkeyOf(key), stored));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void update(final Key key, final JSONObject record) {
+        final JSONObject changes = Values.copy(record);
+        this.write(key, row -> row.compute(subkeyOf(key), (subkey, current) -> {
+            // 読み込み中のレコードは変更せず、置き換える
+            JSONObject updated = null==current ? new JSONObject() : Values.copy(current);
+            for(Object name : changes.keySet()){
+                updated.put((String) name, changes.get((String) name));
+            }
+            return withKeyFields(key, updated);
+        }));
+    }
+
+    /**
+     * 主キー値の行に書き込む. 同じ主キー値への書き込みと削除は順に実行します.
+     * @param key
+     * @param writer
+     */
+    private void write(final Key key, final RowWriter writer) {
+        this.table(key).rows.compute(String.valueOf(key.getKeyValue()), (keyValue, row) -> {
+            ConcurrentNavigableMap<Object,JSONObject> target = null==row
+                    ? new ConcurrentSkipListMap<Object,JSONObject>(SUBKEY_ORDER) : row;
+            writer.write(target);
+            return target;
+        });
+    }
+
+    /**
+     * 行への書き込み
+     */
+    private interface RowWriter {
+        void write(ConcurrentNavigableMap<Object,JSONObject> row);
+    }
+
+    /**
+     * テーブルを取得. なければ作成し、最初の書き込みのキー名をテーブルのキー名とする.
+     * @param key
+     * @return
+     */
+    private Table table(final Key key) {
+        return this.tables.computeIfAbsent(key.getTableName(),
+                name -> new Table(key.getKeyName(), key.getSubkeyName()));
+    }
+
+    private static Object subkeyOf(final Key key) {
+        return key.hasSubkey() && null!=key.getSubkeyValue() ? key.getSubkeyValue() : NO_SUBKEY;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(final Key key, final JSONObject conditions, final List<String> fields) {
+        Table table = this.tables.get(key.getTableName());
+        if(null==table){
+            return new LocalResultSet(Collections.<JSONObject>emptyIterator(), Filter.NONE, fields);
+        }
+        Iterator<JSONObject> records = table.rows.values().stream()
+                .flatMap(row -> row.values().stream()).iterator();
+        return new LocalResultSet(records, new Filter(conditions), fields);
+    }
+
+    /**
+     * 主キーの=条件で行を選び、副キーの条件を副キーの範囲として読みます.
+     * 主キーの=条件がなければscanと同じく全てのレコードに条件を適用します.
+     * 主キー名、副キー名は問い合わせキーで指定するか、テーブルに最初に書き込んだキーの名前です.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(final Key key, final JSONObject conditions, final List<String> fields) {
+        Table table = this.tables.get(key.getTableName());
+        if(null==table){
+            return new LocalResultSet(Collections.<JSONObject>emptyIterator(), Filter.NONE, fields);
+        }
+        Filter filter = new Filter(conditions);
+        String keyName = null==key.getKeyName() ? table.keyName : key.getKeyName();
+        Filter.Condition keyCondition = null==keyName ? null : filter.get(keyName);
+        if(null==keyCondition || !keyCondition.isEquality()){
+            return this.scan(key, conditions, fields);
+        }
+        ConcurrentNavigableMap<Object,JSONObject> row =
+                table.rows.get(String.valueOf(keyCondition.getValue()));
+        if(null==row){
+            return new LocalResultSet(Collections.<JSONObject>emptyIterator(), Filter.NONE, fields);
+        }
+        String subkeyName = null==key.getSubkeyName() ? table.subkeyName : key.getSubkeyName();
+        Filter.Condition subkeyCondition = null==subkeyName ? null : filter.get(subkeyName);
+        // 副キーの条件はフィルタにも残すため、範囲は条件を満たすレコードを含めば良い
+        return new LocalResultSet(range(row, subkeyCondition).values().iterator(), filter, fields);
+    }
+
+    /**
+     * 副キーの条件に対応する行の部分ビュー
+     * @param row
+     * @param condition
+     * @return
+     */
+    private static NavigableMap<Object,JSONObject> range(final ConcurrentNavigableMap<Object,JSONObject> row,
+            final Filter.Condition condition) {
+        if(null==condition){
+            return row;
+        }
+        Object sample = null;
+        for(Object subkey : row.keySet()){
+            if(subkey!=NO_SUBKEY){
+                sample = subkey;
+                break;
+            }
+        }
+        Object value = Values.coerce(condition.getValue(), sample);
+        String operator = condition.getOperator();
+        if(Filter.OPERATOR_LT.equals(operator)){
+            return row.headMap(value, false);
+        } else if(Filter.OPERATOR_LE.equals(operator)){
+            return row.headMap(value, true);
+        } else if(Filter.OPERATOR_GT.equals(operator)){
+            return row.tailMap(value, false);
+        } else if(Filter.OPERATOR_GE.equals(operator)){
+            return row.tailMap(value, true);
+        } else if(Filter.OPERATOR_BEGIN_WITH.equalsIgnoreCase(operator)){
+            String prefix = value.toString();
+            char last = prefix.isEmpty() ? Character.MAX_VALUE : prefix.charAt(prefix.length()-1);
+            if(last==Character.MAX_VALUE){
+                return row.tailMap(prefix, true);
+            }
+            // 接頭辞の最後の文字を1つ進めた文字列までが接頭辞で始まる範囲
+            String next = prefix.substring(0, prefix.length()-1)+(char)(last+1);
+            return row.subMap(prefix, true, next, false);
+        }
+        return row.subMap(value, true, value, true);
+    }
+
+    /**
+     * テーブル. 主キー値の文字列から副キー値の順序付きMap
+     */
+    private static class Table {
+        final String keyName;
+        final String subkeyName;
+        final ConcurrentMap<String,ConcurrentNavigableMap<Object,JSONObject>> rows =
+                new ConcurrentHashMap<String,ConcurrentNavigableMap<Object,JSONObject>>();
+
+        Table(String keyName, String subkeyName) {
+            this.keyName = keyName;
+            this.subkeyName = subkeyName;
+        }
+    }
+}
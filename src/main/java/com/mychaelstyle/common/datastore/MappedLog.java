@@ -0,0 +1,228 @@
+package com.mychaelstyle.common.datastore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Filter;
+import com.mychaelstyle.common.datastore.local.LocalProvider;
+import com.mychaelstyle.common.datastore.local.LocalResultSet;
+import com.mychaelstyle.common.datastore.local.LogStore;
+import com.mychaelstyle.common.datastore.local.Values;
+import com.mychaelstyle.common.record.RecordCodec;
+import com.mychaelstyle.common.record.RecordCodecs;
+
+/**
+ * GenericDatastoreが利用するデータストアプロバイダのローカルディスク実装です.
+ *
+ * レコードをテーブルごとに設定した形式で追記型のセグメントファイルに書き込み、メモリマップで読みます.
+ * 索引はメモリ上にあるため、読み込みはディスクへの往復なしに終わり、書き込みはファイルへの順次書き込みになります.
+ * 再起動するとセグメントを読み直して前回の内容を復元するため、
+ * 上位のデータストアに届かない間のフォールバックやエッジのキャッシュ層として使えます.<br>
+ * <br>
+ * キーは「テーブル名\0主キー値\0副キー値」の文字列順に並べるため、主キーの=条件があるqueryは
+ * その主キー値のレコードだけを読みます. 副キーは文字列として並ぶため、副キーの範囲も含め条件はフィルタで判定します.<br>
+ * <br>
+ * configのフォーマット<br>
+ * <pre>
+ * {
+ *     "path" : "セグメントを置くディレクトリ",
+ *     "segment_bytes" : 67108864,
+ *     "sync" : false,
+ *     "compaction_threshold" : 0.5,
+ *     "compaction_interval_ms" : 60000,
+ *     "codec" : "json",
+ *     "compression" : "none"
+ * }
+ * </pre>
+ * 値の形式と圧縮の設定は{@link RecordCodecs}を参照してください. 既定はJSONです.
+ * segment_bytesは1レコードの最大長です. syncがtrueなら書き込みごとにディスクへ同期します.
+ * 同じpathのプロバイダは同じストアを共有します. 1つのpathは1つのプロセスだけが開けます.
+ *
+ * @author Masanori Nakashima
+ */
+public class MappedLog extends LocalProvider {
+
+    /** 設定項目 : セグメントを置くディレクトリ */
+    public static final String CONFIG_PATH = "path";
+    /** 設定項目 : 1セグメントのバイト数 */
+    public static final String CONFIG_SEGMENT_BYTES = "segment_bytes";
+    /** 設定項目 : 書き込みごとにディスクへ同期するか */
+    public static final String CONFIG_SYNC = "sync";
+    /** 設定項目 : 詰め直すセグメントの古くなったエントリの割合 */
+    public static final String CONFIG_COMPACTION_THRESHOLD = "compaction_threshold";
+    /** 設定項目 : コンパクションの間隔ミリ秒. 0なら自動では実行しない */
+    public static final String CONFIG_COMPACTION_INTERVAL = "compaction_interval_ms";
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64*1024*1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_INTERVAL = 60*1000L;
+
+    /** ディレクトリごとに開いたストア */
+    private static final ConcurrentMap<Path,LogStore> stores = new ConcurrentHashMap<Path,LogStore>();
+
+    private LogStore store = null;
+    /** テーブルごとの値の形式 */
+    private RecordCodecs codecs = RecordCodecs.configure(null);
+
+    /**
+     * constructor
+     */
+    public MappedLog() {
+        super();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
+     */
+    @Override
+    public Provider connect(final JSONObject config) throws ConfigurationException {
+        if(null==config || !config.has(CONFIG_PATH)){
+            throw new ConfigurationException(CONFIG_PATH+" is required");
+        }
+        Path path = Paths.get(config.getString(CONFIG_PATH)).toAbsolutePath().normalize();
+        try {
+            this.codecs = RecordCodecs.configure(config);
+            this.store = stores.computeIfAbsent(path, directory -> {
+                try {
+                    return new LogStore(directory,
+                            config.optInt(CONFIG_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES),
+                            config.optBoolean(CONFIG_SYNC, false),
+                            config.optDouble(CONFIG_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_THRESHOLD),
+                            config.optLong(CONFIG_COMPACTION_INTERVAL, DEFAULT_COMPACTION_INTERVAL));
+                } catch(IOException e){
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch(IllegalArgumentException e){
+            throw new ConfigurationException(e);
+        } catch(IllegalStateException e){
+            throw new ConfigurationException(e.getCause());
+        }
+        return this;
+    }
+
+    /**
+     * ディレクトリのストアを閉じます. 次にconnectしたときはセグメントを読み直して開きます.
+     * @param path ディレクトリ
+     * @throws IOException
+     */
+    public static void close(final String path) throws IOException {
+        LogStore store = stores.remove(Paths.get(path).toAbsolutePath().normalize());
+        if(null!=store){
+            store.close();
+        }
+    }
+
+    /**
+     * @return レコードを保持するストア
+     */
+    public LogStore getStore() {
+        return this.store;
+    }
+
+    private RecordCodec codec(final Key key) {
+        return this.codecs.forTable(key.getTableName());
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(final Key key) {
+        byte[] value = this.store.get(storageKey(key));
+        return null==value ? null : this.codec(key).decodeJSON(value);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public void delete(final Key key) throws OperationException {
+        this.store.remove(storageKey(key));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(final Key key, final JSONObject record) throws OperationException {
+        this.store.put(storageKey(key), this.codec(key).encodeJSON(withKeyFields(key, Values.copy(record))));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void update(final Key key, final JSONObject record) throws OperationException {
+        RecordCodec codec = this.codec(key);
+        this.store.compute(storageKey(key), current -> {
+            JSONObject updated = null==current ? new JSONObject() : codec.decodeJSON(current);
+            for(Object name : record.keySet()){
+                updated.put((String) name, record.get((String) name));
+            }
+            return codec.encodeJSON(withKeyFields(key, updated));
+        });
+    }
+
+    /**
+     * テーブルのレコードをキーの順に読み、条件を満たすレコードを返します.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(final Key key, final JSONObject conditions, final List<String> fields) {
+        return this.read(this.codec(key), tablePrefix(key.getTableName()), new Filter(conditions), fields);
+    }
+
+    /**
+     * 主キーの=条件があればその主キー値のレコードだけを読みます.
+     * 主キー名は問い合わせキーで指定します. なければscanと同じく全てのレコードに条件を適用します.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(final Key key, final JSONObject conditions, final List<String> fields) {
+        Filter filter = new Filter(conditions);
+        Filter.Condition keyCondition = null==key.getKeyName() ? null : filter.get(key.getKeyName());
+        if(null==keyCondition || !keyCondition.isEquality()){
+            return this.read(this.codec(key), tablePrefix(key.getTableName()), filter, fields);
+        }
+        // 主キー値で始まる別の主キー値のレコードは主キーの条件で除く
+        return this.read(this.codec(key), tablePrefix(key.getTableName())+keyCondition.getValue(), filter, fields);
+    }
+
+    private ResultSet read(final RecordCodec codec, final String prefix, final Filter filter,
+            final List<String> fields) {
+        final Iterator<String> keys = this.store.keys(prefix).iterator();
+        Iterator<JSONObject> records = new Iterator<JSONObject>(){
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public JSONObject next() {
+                if(!this.hasNext()){
+                    throw new NoSuchElementException();
+                }
+                // 走査の間に削除されたレコードはnullとして読み飛ばす
+                byte[] value = MappedLog.this.store.get(keys.next());
+                return null==value ? null : codec.decodeJSON(value);
+            }
+        };
+        return new LocalResultSet(records, filter, fields);
+    }
+}
@@ -6,19 +6,10 @@ package com.mychaelstyle.common.datastore;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import com.mychaelstyle.common.GenericDatastore;
 import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
-import com.mychaelstyle.common.GenericDatastore.ConnectionException;
-import com.mychaelstyle.common.GenericDatastore.OperationException;
-import com.mychaelstyle.common.GenericDatastore.Provider;
-import com.mychaelstyle.common.GenericDatastore.ResultSet;
 
 /**
  * MySQLに結果を出力する
@@ -29,7 +20,7 @@ public class MySQL extends SQLDatabase {
     /**
      * コネクションマップ
      */
-    private static Map<String,Connection> connMap = new HashMap<String,Connection>();
+    private static Map<String,Connection> connMap = new ConcurrentHashMap<String,Connection>();
 
     /**
      * MySQL Provider
@@ -40,7 +31,7 @@ public class MySQL extends SQLDatabase {
     @Override
     public Connection getConnection() throws ConfigurationException {
         try {
-            return getConnection(this.host, this.port, this.database, this.user, this.password);
+            return createConnection(this.host, this.port, this.database, this.user, this.password);
         } catch (ClassNotFoundException | SQLException e) {
             e.printStackTrace();
             throw new ConfigurationException(e);
@@ -48,7 +39,11 @@ public class MySQL extends SQLDatabase {
     }
 
     /**
-     * get database connection
+     * get database connection shared by the same host, port, database and user.
+     * 
+     * 共有される接続は複数スレッドから同時に利用できません.
+     * プロバイダは接続プールを利用するため、このメソッドを使いません.
+     * 
      * @param host
      * @param databaseName
      * @param user
@@ -60,20 +55,38 @@ public class MySQL extends SQLDatabase {
     public static Connection getConnection(String host, String port, String databaseName,
             String user, String pw) throws ClassNotFoundException, SQLException {
         String key = host+"-"+port+"-"+databaseName+"-"+user;
-        synchronized(connMap){
-            if(connMap.containsKey(key)){
-                return connMap.get(key);
-            }
+        Connection conn = connMap.get(key);
+        if(null!=conn){
+            return conn;
+        }
+        // 接続はロックの外で開く. 同時に開いた場合は先に登録された接続を使う
+        conn = createConnection(host, port, databaseName, user, pw);
+        Connection registered = connMap.putIfAbsent(key, conn);
+        if(null!=registered){
+            conn.close();
+            return registered;
         }
+        return conn;
+    }
+
+    /**
+     * open a new database connection
+     * @param host
+     * @param port
+     * @param databaseName
+     * @param user
+     * @param pw
+     * @return
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public static Connection createConnection(String host, String port, String databaseName,
+            String user, String pw) throws ClassNotFoundException, SQLException {
         String driverName   = "org.gjt.mm.mysql.Driver";
         String url = "jdbc:mysql://" + host+":"+ port +"/" + databaseName
                 + "?useUnicode=true";
         Class.forName(driverName);
-        Connection conn = DriverManager.getConnection(url, user, pw);
-        synchronized(connMap){
-            connMap.put(key, conn);
-        }
-        return conn;
+        return DriverManager.getConnection(url, user, pw);
     }
 
 }
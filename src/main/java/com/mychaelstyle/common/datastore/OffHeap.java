@@ -0,0 +1,233 @@
+package com.mychaelstyle.common.datastore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Filter;
+import com.mychaelstyle.common.datastore.local.LocalProvider;
+import com.mychaelstyle.common.datastore.local.LocalResultSet;
+import com.mychaelstyle.common.datastore.local.OffHeapMap;
+import com.mychaelstyle.common.datastore.local.Values;
+
+/**
+ * GenericDatastoreが利用するデータストアプロバイダのヒープ外メモリ実装です.
+ *
+ * レコードをJSON文字列のUTF-8でダイレクトバッファのセグメントに格納し、
+ * 「テーブル名\0主キー値\0副キー値」をキーとするオープンアドレス法の索引で引きます.
+ * 数千万件の小さなレコードを持ってもヒープ上のオブジェクトが増えないため、
+ * 大きな参照用データをプロセス内に置いてもGCの停止時間が伸びません.<br>
+ * <br>
+ * 容量を使い切った場合、上書きや削除で空いた領域を詰め直し、それでも足りなければ
+ * evictionがfifoなら古いレコードから捨て、noneなら書き込みをOperationExceptionで拒否します.<br>
+ * ハッシュで引くため、queryはscanと同じく全レコードに条件を適用します.<br>
+ * <br>
+ * configのフォーマット<br>
+ * <pre>
+ * {
+ *     "store" : "共有するストア名(省略時はプロバイダごとに別のストア)",
+ *     "capacity_bytes" : 268435456,
+ *     "segment_bytes" : 1048576,
+ *     "partitions" : 16,
+ *     "eviction" : "fifo/none"
+ * }
+ * </pre>
+ * segment_bytesは1レコードの最大長です. パーティションごとに2セグメント以上を使います.
+ * ダイレクトバッファの合計は-XX:MaxDirectMemorySize(既定は-Xmxと同じ)で制限されるため、
+ * capacity_bytesに合わせてJVMの起動オプションを指定してください.
+ *
+ * @author Masanori Nakashima
+ */
+public class OffHeap extends LocalProvider {
+
+    /** 設定項目 : 共有するストア名 */
+    public static final String CONFIG_STORE = "store";
+    /** 設定項目 : セグメントの合計バイト数の上限 */
+    public static final String CONFIG_CAPACITY_BYTES = "capacity_bytes";
+    /** 設定項目 : 1セグメントのバイト数 */
+    public static final String CONFIG_SEGMENT_BYTES = "segment_bytes";
+    /** 設定項目 : パーティション数 */
+    public static final String CONFIG_PARTITIONS = "partitions";
+    /** 設定項目 : 容量を使い切ったときの動作 */
+    public static final String CONFIG_EVICTION = "eviction";
+
+    /** 容量を使い切ったら古いレコードから捨てる */
+    public static final String EVICTION_FIFO = "fifo";
+    /** 容量を使い切ったら書き込みを拒否する */
+    public static final String EVICTION_NONE = "none";
+
+    public static final long DEFAULT_CAPACITY_BYTES = 256L*1024*1024;
+    public static final int DEFAULT_SEGMENT_BYTES = 1024*1024;
+    public static final int DEFAULT_PARTITIONS = 16;
+    /** scanで1回の読み込みロックの間に複製するレコード数 */
+    static final int SCAN_CHUNK_VALUES = 256;
+
+    /** ストア名ごとの共有ストア */
+    private static final ConcurrentMap<String,OffHeapMap> stores = new ConcurrentHashMap<String,OffHeapMap>();
+
+    private OffHeapMap map = null;
+
+    /**
+     * constructor
+     */
+    public OffHeap() {
+        super();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
+     */
+    @Override
+    public Provider connect(final JSONObject config) throws ConfigurationException {
+        JSONObject conf = null==config ? new JSONObject() : config;
+        String eviction = conf.optString(CONFIG_EVICTION, EVICTION_FIFO);
+        if(!EVICTION_FIFO.equals(eviction) && !EVICTION_NONE.equals(eviction)){
+            throw new ConfigurationException(CONFIG_EVICTION+" must be "+EVICTION_FIFO+" or "+EVICTION_NONE);
+        }
+        OffHeapMap created;
+        try {
+            created = new OffHeapMap(conf.optLong(CONFIG_CAPACITY_BYTES, DEFAULT_CAPACITY_BYTES),
+                    conf.optInt(CONFIG_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES),
+                    conf.optInt(CONFIG_PARTITIONS, DEFAULT_PARTITIONS), EVICTION_FIFO.equals(eviction));
+        } catch(IllegalArgumentException e){
+            throw new ConfigurationException(e);
+        }
+        String store = conf.optString(CONFIG_STORE, null);
+        if(null==store){
+            this.map = created;
+        } else {
+            // 最初に接続したプロバイダの設定で作成する
+            OffHeapMap shared = stores.putIfAbsent(store, created);
+            this.map = null==shared ? created : shared;
+        }
+        return this;
+    }
+
+    /**
+     * 共有ストアのレコードを全て削除し、ストアを破棄します.
+     * @param store ストア名
+     */
+    public static void drop(final String store) {
+        OffHeapMap map = stores.remove(store);
+        if(null!=map){
+            map.clear();
+        }
+    }
+
+    /**
+     * @return レコードを保持するMap
+     */
+    public OffHeapMap getMap() {
+        return this.map;
+    }
+
+    /**
+     * 問い合わせキーを格納するキーのバイト列に変換
+     * @param key
+     * @return
+     */
+    static byte[] encode(final Key key) {
+        return storageKey(key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject decode(final byte[] value) {
+        return new JSONObject(new String(value, StandardCharsets.UTF_8));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(final Key key) {
+        byte[] value = this.map.get(encode(key));
+        return null==value ? null : decode(value);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public void delete(final Key key) {
+        this.map.remove(encode(key));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(final Key key, final JSONObject record) throws OperationException {
+        JSONObject stored = withKeyFields(key, Values.copy(record));
+        this.map.put(encode(key), stored.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void update(final Key key, final JSONObject record) throws OperationException {
+        this.map.compute(encode(key), current -> {
+            JSONObject updated = null==current ? new JSONObject() : decode(current);
+            for(Object name : record.keySet()){
+                updated.put((String) name, record.get((String) name));
+            }
+            return withKeyFields(key, updated).toString().getBytes(StandardCharsets.UTF_8);
+        });
+    }
+
+    /**
+     * パーティションごとにSCAN_CHUNK_VALUES件ずつ読み込み、条件を満たすレコードを返します.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(final Key key, final JSONObject conditions, final List<String> fields) {
+        final byte[] prefix = tablePrefix(key.getTableName()).getBytes(StandardCharsets.UTF_8);
+        Iterator<JSONObject> records = new Iterator<JSONObject>(){
+            private int partition = 0;
+            private int cursor = 0;
+            private Iterator<byte[]> current = Collections.<byte[]>emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!this.current.hasNext() && this.partition<OffHeap.this.map.getPartitions()){
+                    List<byte[]> values = new ArrayList<byte[]>();
+                    this.cursor = OffHeap.this.map.values(this.partition, prefix, this.cursor, SCAN_CHUNK_VALUES, values);
+                    if(this.cursor==0){
+                        this.partition++;
+                    }
+                    this.current = values.iterator();
+                }
+                return this.current.hasNext();
+            }
+
+            @Override
+            public JSONObject next() {
+                if(!this.hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return decode(this.current.next());
+            }
+        };
+        return new LocalResultSet(records, new Filter(conditions), fields);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(final Key key, final JSONObject conditions, final List<String> fields) {
+        return this.scan(key, conditions, fields);
+    }
+}
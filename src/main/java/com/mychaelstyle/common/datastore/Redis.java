@@ -3,34 +3,63 @@
  */
 package com.mychaelstyle.common.datastore;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
 import com.mychaelstyle.common.GenericDatastore;
 import com.mychaelstyle.common.GenericDatastore.BaseProvider;
 import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
 import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
 import com.mychaelstyle.common.GenericDatastore.OperationException;
 import com.mychaelstyle.common.GenericDatastore.Provider;
 import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Values;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+import com.mychaelstyle.common.record.Record;
+import com.mychaelstyle.common.record.RecordCodec;
+import com.mychaelstyle.common.record.RecordCodecs;
+import com.mychaelstyle.common.retry.ErrorClassifier;
+import com.mychaelstyle.common.retry.ErrorClassifiers;
+import com.mychaelstyle.common.retry.RetryPolicy;
 
 /**
  * GenericDatastoreが利用するデータストアプロバイダのRedis実装です.
  * 
- * 内部的に「テーブル名::主キー値::副キー値」のように「::」で連結した文字列をキーとしてRedisに登録します。<br>
- * このため値に::が含まれるような設計のテーブルは作成できませんので注意してください。<br>
+ * 内部的に「テーブル名-主キー値-副キー値」のように「-」で連結した文字列をキーとしてRedisに登録します。<br>
+ * このため値に-が含まれるような設計のテーブルは作成できませんので注意してください。<br>
  * <br>
- * scanとqueryは同じ実装です.<br>
+ * scanとqueryは同じ実装です. キーのパターンに一致するキーをSCANのカーソルでscan_countずつ読み、
+ * その値をパイプラインのMGETで読みます. KEYSと違いRedisを止めず、全てのキーをメモリに読みません.<br>
  * 
  * <br>
  * configのフォーマット<br>
@@ -39,9 +68,24 @@ import com.mychaelstyle.common.GenericDatastore.ResultSet;
  *     "host" : "host name",
  *     "port" : "port number",
  *     "slaves" : [
- *     ]
+ *     ],
+ *     "storage" : "string",
+ *     "batch_size" : 500,
+ *     "scan_count" : 1000,
+ *     "codec" : "json",
+ *     "compression" : "none",
+ *     "tables" : {
+ *         "テーブル名" : { "storage" : "hash" },
+ *         ...
+ *     }
  * }
  * </pre>
+ * storageがstringならレコードを1つの値として、hashならレコードのフィールドをハッシュのフィールドとして保存します.
+ * ハッシュのフィールドの値はJSONの値の文字列です. updateは変更するフィールドだけをHMSETで書くため、
+ * 読み込みなしの1往復で終わり、別のフィールドを同時に更新しても失われません.<br>
+ * 値の形式と圧縮は文字列で保存する場合に使い、テーブルごとに設定できます. 設定は{@link RecordCodecs}を参照してください.
+ * 保存方法や形式を変えても以前の保存方法、形式の値を読めます.<br>
+ * batchGetとbatchWriteはbatch_sizeの要素ごとにパイプラインで送り、文字列の値はMGETでまとめて読みます.
  * 
  * @author Masanori Nakashima
  */
@@ -53,21 +97,74 @@ public class Redis extends BaseProvider {
     public static final String CONFIG_PORT = "port";
     /** 設定項目 : スレーブ */
     public static final String CONFIG_SLAVES = "slaves";
-    /** キー連結文字列 */
+    /** 設定項目 : レコードの保存方法. テーブルごとの設定にも書けます */
+    public static final String CONFIG_STORAGE = "storage";
+    /** 保存方法 : レコードを1つの文字列の値として保存 */
+    public static final String STORAGE_STRING = "string";
+    /** 保存方法 : レコードのフィールドをハッシュのフィールドとして保存 */
+    public static final String STORAGE_HASH = "hash";
+    /** 設定項目 : batchGet、batchWriteで1回のパイプラインに送る要素の数 */
+    public static final String CONFIG_BATCH_SIZE = "batch_size";
+    /** デフォルトのパイプラインの要素の数 */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /** 設定項目 : scan、queryでSCANの1回に調べるキーの数(COUNT) */
+    public static final String CONFIG_SCAN_COUNT = "scan_count";
+    /** デフォルトのSCANのCOUNT */
+    public static final int DEFAULT_SCAN_COUNT = 1000;
+    /**
+     * キー連結文字列
+     * @deprecated Redisのキーは{@link #QUERY_KEY_DELIMITER}で連結します
+     */
+    @Deprecated
     public static final String KEY_DELIMITER = "::";
+    /** Redisのキーの連結文字列 */
+    public static final String QUERY_KEY_DELIMITER = "-";
+    /** 再試行してよいエラー. 接続の切断やタイムアウト、プールから借りられない場合 */
+    public static final ErrorClassifier CONNECTION_ERRORS = ErrorClassifiers.anyOf(
+            error -> ErrorClassifiers.hasCause(error, JedisConnectionException.class),
+            ErrorClassifiers.NETWORK);
 
     /**
      * Jedisインスタンスプール
      */
-    private static Map<String,JedisPool> poolMap = new HashMap<String,JedisPool>();
+    private static ConcurrentMap<String,JedisPool> poolMap = new ConcurrentHashMap<String,JedisPool>();
 
     /**
      * configuration JSON object
      */
     private JSONObject config = null;
 
-    /** Jedisクライアントインスタンス */
-    private Jedis jedis = null;
+    /**
+     * Jedisインスタンスプール. 操作ごとにインスタンスを借りて返却します.
+     * Jedisインスタンスはスレッドセーフではないため、プロバイダが保持しません.
+     */
+    private JedisPool pool = null;
+
+    /**
+     * テーブルごとの値の形式
+     */
+    private RecordCodecs codecs = RecordCodecs.configure(null);
+
+    /**
+     * ハッシュで保存するか. テーブルごとの設定がなければdefaultHashを使う
+     */
+    private Map<String,Boolean> tableHash = new HashMap<String,Boolean>();
+    private boolean defaultHash = false;
+
+    /**
+     * 1回のパイプラインに送る要素の数
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * SCANのCOUNT
+     */
+    private int scanCount = DEFAULT_SCAN_COUNT;
+
+    /**
+     * 接続エラーの再試行
+     */
+    private RetryPolicy retryPolicy = new RetryPolicy(CONNECTION_ERRORS);
 
     /**
      * constructor
@@ -82,25 +179,55 @@ public class Redis extends BaseProvider {
     @Override
     public Provider connect(final JSONObject config) throws ConfigurationException {
         this.config = config;
+        try {
+            this.codecs = RecordCodecs.configure(config);
+            this.defaultHash = isHash(config.optString(CONFIG_STORAGE, STORAGE_STRING));
+            JSONObject tables = config.optJSONObject(RecordCodecs.CONFIG_TABLES);
+            if(null!=tables){
+                @SuppressWarnings("unchecked")
+                Set<String> names = tables.keySet();
+                for(String table : names){
+                    JSONObject tableConfig = tables.getJSONObject(table);
+                    if(tableConfig.has(CONFIG_STORAGE)){
+                        this.tableHash.put(table, isHash(tableConfig.getString(CONFIG_STORAGE)));
+                    }
+                }
+            }
+        } catch(IllegalArgumentException e){
+            throw new ConfigurationException(e);
+        }
+        this.batchSize = Math.max(1, config.optInt(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.scanCount = Math.max(1, config.optInt(CONFIG_SCAN_COUNT, DEFAULT_SCAN_COUNT));
+        this.retryPolicy = new RetryPolicy(CONNECTION_ERRORS).configure(config)
+                .withMetrics(MetricsRegistry.global(), this.getClass().getSimpleName());
         String host = this.config.getString(CONFIG_HOST);
         int port = this.config.getInt(CONFIG_PORT);
         String name = this.getPoolKey();
-        synchronized(poolMap){
-            if(!poolMap.containsKey(name)){
-                JedisPool pool = new JedisPool(new JedisPoolConfig(), host, port);
-                poolMap.put(name, pool);
+        JedisPool pool = poolMap.get(name);
+        if(null==pool){
+            // プールの生成では接続しないため、同時に生成した場合は先に登録されたプールを使う
+            JedisPool created = new JedisPool(new JedisPoolConfig(), host, port);
+            pool = poolMap.putIfAbsent(name, created);
+            if(null==pool){
+                pool = created;
+            } else {
+                created.destroy();
             }
         }
+        this.pool = pool;
 
-        JedisPool pool = poolMap.get(name);
-        this.jedis = pool.getResource();
         if(config.has(CONFIG_SLAVES)){
-            JSONArray slavesArray = config.getJSONArray(CONFIG_SLAVES);
-            for(int num=0; num<slavesArray.length(); num++){
-                JSONObject slave = slavesArray.getJSONObject(num);
-                String shost = slave.getString(CONFIG_HOST);
-                int sport = slave.getInt(CONFIG_PORT);
-                this.jedis.slaveof(shost, sport);
+            Jedis jedis = this.pool.getResource();
+            try {
+                JSONArray slavesArray = config.getJSONArray(CONFIG_SLAVES);
+                for(int num=0; num<slavesArray.length(); num++){
+                    JSONObject slave = slavesArray.getJSONObject(num);
+                    String shost = slave.getString(CONFIG_HOST);
+                    int sport = slave.getInt(CONFIG_PORT);
+                    jedis.slaveof(shost, sport);
+                }
+            } finally {
+                this.pool.returnResource(jedis);
             }
         }
         return this;
@@ -112,72 +239,421 @@ public class Redis extends BaseProvider {
         return host+":"+port;
     }
 
-    private String getQueryKey(){
-        return new StringBuffer().append(this.tableName).append("-")
-                .append(this.keyValue).append("-").append(this.subkeyValue).toString();
+    /**
+     * 問い合わせキーからRedisのキーを生成. テーブル名-主キー値-副キー値
+     * @param key
+     * @return
+     */
+    static String getQueryKey(final Key key){
+        return new StringBuffer().append(key.getTableName()).append(QUERY_KEY_DELIMITER)
+                .append(key.getKeyValue()).append(QUERY_KEY_DELIMITER).append(key.getSubkeyValue()).toString();
+    }
+
+    /**
+     * @param key
+     * @return Redisのキーのバイト列. Jedisの文字列のキーと同じUTF-8
+     */
+    private static byte[] getQueryKeyBytes(final Key key){
+        return getQueryKey(key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 値をテーブルの形式で読みます.
+     * @param codec
+     * @param value
+     * @return
+     * @throws OperationException 読めない形式の場合
+     */
+    private static JSONObject decode(final RecordCodec codec, final byte[] value) throws OperationException {
+        try {
+            return codec.decodeJSON(value);
+        } catch(IllegalArgumentException e){
+            throw new OperationException(e);
+        }
+    }
+
+    private static boolean isHash(final String storage){
+        if(STORAGE_HASH.equalsIgnoreCase(storage)){
+            return true;
+        } else if(STORAGE_STRING.equalsIgnoreCase(storage)){
+            return false;
+        }
+        throw new IllegalArgumentException(CONFIG_STORAGE+" must be string or hash : "+storage);
+    }
+
+    /**
+     * @param table
+     * @return テーブルのレコードをハッシュで保存するか
+     */
+    private boolean isHashTable(final String table){
+        Boolean hash = this.tableHash.get(table);
+        return null==hash ? this.defaultHash : hash;
+    }
+
+    /**
+     * @param e
+     * @return キーの型が操作と合わないエラーか. 保存方法を切り替える前の値を操作した場合
+     */
+    private static boolean isWrongType(final JedisDataException e){
+        // パイプラインの応答のエラーは別のJedisDataExceptionに包まれる
+        for(Throwable error=e; null!=error; error=error.getCause()){
+            if(null!=error.getMessage() && error.getMessage().startsWith("WRONGTYPE")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param record
+     * @return フィールドの値をJSONの値の文字列にしたハッシュ
+     */
+    private static Map<String,String> toHash(final JSONObject record){
+        Map<String,String> hash = new LinkedHashMap<String,String>();
+        @SuppressWarnings("unchecked")
+        Set<String> names = record.keySet();
+        for(String name : names){
+            hash.put(name, JSONObject.valueToString(record.get(name)));
+        }
+        return hash;
+    }
+
+    /**
+     * @param hash
+     * @return ハッシュのフィールドの値を読んだレコード. 空ならnull
+     */
+    private static JSONObject fromHash(final Map<String,String> hash){
+        if(hash.isEmpty()){
+            return null;
+        }
+        JSONObject record = new JSONObject();
+        for(Map.Entry<String,String> entry : hash.entrySet()){
+            // JSONでない値は文字列として読む
+            Object value;
+            try {
+                value = new JSONTokener(entry.getValue()).nextValue();
+            } catch(JSONException e){
+                value = entry.getValue();
+            }
+            record.put(entry.getKey(), value);
+        }
+        return record;
+    }
+
+    /**
+     * @param jedis
+     * @param name Redisのキー
+     * @param fields 読むフィールド. nullなら全てのフィールド
+     * @return ハッシュのフィールド. 値のないフィールドは含まない
+     */
+    private static Map<String,String> readHash(final Jedis jedis, final String name, final List<String> fields){
+        if(null==fields || fields.isEmpty()){
+            return jedis.hgetAll(name);
+        }
+        return fromResponse(jedis.hmget(name, fields.toArray(new String[fields.size()])), fields);
+    }
+
+    /**
+     * テーブルの保存方法で値を読みます. 保存方法を切り替える前の値はもう一方の方法で読みます.
+     * @param name Redisのキー
+     * @param table
+     * @param fields 読むフィールド. nullなら全てのフィールド
+     * @return ハッシュならMap、文字列ならbyte[]、なければnull
+     * @throws ConnectionException
+     */
+    private Object fetch(final String name, final String table, final List<String> fields)
+            throws ConnectionException {
+        final boolean hash = this.isHashTable(table);
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return this.execute("get", jedis -> {
+            try {
+                return hash ? readHash(jedis, name, fields) : jedis.get(bytes);
+            } catch(JedisDataException e){
+                if(!isWrongType(e)){
+                    throw e;
+                }
+                return hash ? jedis.get(bytes) : readHash(jedis, name, fields);
+            }
+        });
+    }
+
+    /**
+     * fetchで読んだ値をレコードにします.
+     * @param value
+     * @param table
+     * @param fields 読むフィールド. nullなら全てのフィールド
+     * @return
+     * @throws OperationException 読めない形式の場合
+     */
+    private JSONObject toJSON(final Object value, final String table, final List<String> fields)
+            throws OperationException {
+        if(value instanceof Map){
+            @SuppressWarnings("unchecked")
+            Map<String,String> hash = (Map<String,String>) value;
+            return fromHash(hash);
+        }
+        byte[] bytes = (byte[]) value;
+        if(null==bytes || bytes.length==0){
+            return null;
+        }
+        JSONObject record = decode(this.codecs.forTable(table), bytes);
+        return null==fields || fields.isEmpty() ? record : Values.project(record, fields);
+    }
+
+    /**
+     * プールからJedisインスタンスを取得
+     * @return
+     * @throws ConnectionException
+     */
+    private Jedis borrow() throws ConnectionException {
+        if(null==this.pool){
+            throw new ConnectionException("Redis provider is not connected yet!");
+        }
+        try {
+            return this.pool.getResource();
+        } catch(JedisException e){
+            throw new ConnectionException(e);
+        }
+    }
+
+    /**
+     * Jedisインスタンスをプールへ返却. 通信エラーが発生したインスタンスは破棄します.
+     * @param jedis
+     * @param broken
+     */
+    private void release(final Jedis jedis, final boolean broken){
+        if(broken){
+            this.pool.returnBrokenResource(jedis);
+        } else {
+            this.pool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * 借りたJedisインスタンスで実行する操作
+     * @param <T>
+     */
+    private interface RedisCall<T> {
+        T call(Jedis jedis);
+    }
+
+    /**
+     * プールからJedisインスタンスを借りて操作を実行し、接続エラーなら別のインスタンスで再試行します.
+     * 再試行するため、操作は冪等なものに限ります.
+     * @param operation ログ出力用の操作名
+     * @param call
+     * @return 操作の結果
+     * @throws ConnectionException 再試行をやめたときの最後の接続エラー
+     */
+    private <T> T execute(final String operation, final RedisCall<T> call) throws ConnectionException {
+        return this.retryPolicy.execute(operation, () -> {
+            Jedis jedis = this.borrow();
+            boolean broken = false;
+            try {
+                return call.call(jedis);
+            } catch(JedisConnectionException e){
+                broken = true;
+                throw new ConnectionException(e);
+            } finally {
+                this.release(jedis, broken);
+            }
+        });
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#get()
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(final Key key) throws ConnectionException, ConfigurationException,
+            OperationException {
+        return this.get(key, null);
+    }
+
+    /**
+     * 指定したフィールドだけを読みます. ハッシュで保存したレコードはHMGETで指定したフィールドだけを転送します.
+     * @param key
+     * @param fields 読むフィールド. nullなら全てのフィールド
+     * @return レコード. なければnull
+     * @throws ConnectionException
+     * @throws OperationException
+     */
+    public JSONObject get(final Key key, final List<String> fields) throws ConnectionException,
+            OperationException {
+        return this.toJSON(this.fetch(getQueryKey(key), key.getTableName(), fields), key.getTableName(), fields);
+    }
+
+    /**
+     * バイナリ形式の値はJSONObjectを作らずにRecordに読みます.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#getRecord(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public JSONObject get() throws ConnectionException, ConfigurationException,
+    public Record getRecord(final Key key) throws ConnectionException, ConfigurationException,
             OperationException {
-        String value = this.jedis.get(this.getQueryKey());
-        if(null!=value && value.length()>0){
-            return new JSONObject(value);
+        Object fetched = this.fetch(getQueryKey(key), key.getTableName(), null);
+        if(fetched instanceof Map){
+            return Record.fromJSON(this.toJSON(fetched, key.getTableName(), null));
+        }
+        byte[] value = (byte[]) fetched;
+        if(null==value || value.length==0){
+            return null;
+        }
+        try {
+            return this.codecs.forTable(key.getTableName()).decode(value);
+        } catch(IllegalArgumentException e){
+            throw new OperationException(e);
         }
-        return null;
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete()
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public void delete() throws ConnectionException, ConfigurationException,
+    public void delete(final Key key) throws ConnectionException, ConfigurationException,
             OperationException {
-        this.jedis.del(this.getQueryKey());
-
+        this.execute("delete", jedis -> jedis.del(getQueryKey(key)));
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(org.json.JSONObject)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
      */
     @Override
-    public void put(JSONObject record) throws ConnectionException,
+    public void put(final Key key, final JSONObject record) throws ConnectionException,
             ConfigurationException, OperationException {
-        if(!record.has(this.keyName)){
-            record.put(this.keyName, this.keyValue);
+        JSONObject value = withKeyFields(key, record);
+        if(this.isHashTable(key.getTableName())){
+            // 以前のフィールドを残さないよう削除と書き込みを1つのトランザクションで実行する
+            final String name = getQueryKey(key);
+            final Map<String,String> hash = toHash(value);
+            this.execute("put", jedis -> {
+                Transaction transaction = jedis.multi();
+                transaction.del(name);
+                transaction.hmset(name, hash);
+                return transaction.exec();
+            });
+            return;
         }
-        if(null!=this.subkeyName && !record.has(this.subkeyName)){
-            record.put(this.subkeyName, this.subkeyValue);
+        byte[] bytes = this.codecs.forTable(key.getTableName()).encodeJSON(value);
+        this.execute("put", jedis -> jedis.set(getQueryKeyBytes(key), bytes));
+    }
+
+    /**
+     * @param key
+     * @param record
+     * @return キーのフィールドを加えたレコードのコピー
+     */
+    private static JSONObject withKeyFields(final Key key, final JSONObject record){
+        // 呼び出し元のレコードは複数プロバイダで共有されるため変更しない
+        JSONObject value = new JSONObject();
+        @SuppressWarnings("unchecked")
+        Set<String> names = record.keySet();
+        for(String name : names){
+            value.put(name, record.get(name));
+        }
+        if(!value.has(key.getKeyName())){
+            value.put(key.getKeyName(), key.getKeyValue());
         }
-        this.jedis.set(this.getQueryKey(), record.toString());
+        if(null!=key.getSubkeyName() && !value.has(key.getSubkeyName())){
+            value.put(key.getSubkeyName(), key.getSubkeyValue());
+        }
+        return value;
+    }
+
+    /**
+     * @param key
+     * @param record
+     * @return キーのフィールドを加えたレコードのコピー. 加えるフィールドがなければrecordそのもの
+     */
+    private static Record withKeyFields(final Key key, final Record record){
+        boolean addKey = null!=key.getKeyName() && !record.has(key.getKeyName());
+        boolean addSubkey = null!=key.getSubkeyName() && null!=key.getSubkeyValue()
+                && !record.has(key.getSubkeyName());
+        if(!addKey && !addSubkey){
+            return record;
+        }
+        Record value = record.copy();
+        if(addKey){
+            value.set(key.getKeyName(), key.getKeyValue());
+        }
+        if(addSubkey){
+            value.set(key.getSubkeyName(), key.getSubkeyValue());
+        }
+        return value;
+    }
+
+    /**
+     * JSONObjectを作らずにRecordをテーブルの形式で書き込みます.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#putRecord(com.mychaelstyle.common.GenericDatastore.Key, com.mychaelstyle.common.record.Record)
+     */
+    @Override
+    public void putRecord(final Key key, final Record record) throws ConnectionException,
+            ConfigurationException, OperationException {
+        if(this.isHashTable(key.getTableName())){
+            this.put(key, record.toJSON());
+            return;
+        }
+        byte[] bytes = this.codecs.forTable(key.getTableName()).encode(withKeyFields(key, record));
+        this.execute("put", jedis -> jedis.set(getQueryKeyBytes(key), bytes));
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(org.json.JSONObject)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
      */
     @Override
-    public void update(JSONObject record) throws ConnectionException,
+    public void update(final Key key, final JSONObject record) throws ConnectionException,
             ConfigurationException, OperationException {
-        JSONObject org = this.get();
+        if(this.isHashTable(key.getTableName())){
+            final String name = getQueryKey(key);
+            final Map<String,String> hash = toHash(record);
+            if(null!=key.getKeyName() && !hash.containsKey(key.getKeyName())){
+                hash.put(key.getKeyName(), JSONObject.valueToString(key.getKeyValue()));
+            }
+            if(null!=key.getSubkeyName() && null!=key.getSubkeyValue() && !hash.containsKey(key.getSubkeyName())){
+                hash.put(key.getSubkeyName(), JSONObject.valueToString(key.getSubkeyValue()));
+            }
+            if(hash.isEmpty()){
+                return;
+            }
+            boolean written = this.execute("update", jedis -> {
+                try {
+                    jedis.hmset(name, hash);
+                    return true;
+                } catch(JedisDataException e){
+                    if(!isWrongType(e)){
+                        throw e;
+                    }
+                    return false;
+                }
+            });
+            if(written){
+                return;
+            }
+            // 文字列で保存した値は読んでハッシュに書き直す
+        }
+        JSONObject org = this.get(key);
+        if(null==org){
+            org = new JSONObject();
+        }
         @SuppressWarnings("unchecked")
         Set<String> keys = record.keySet();
-        for(String key: keys){
-            org.put(key, record.get(key));
+        for(String name: keys){
+            org.put(name, record.get(name));
         }
-        this.put(org);
+        this.put(key, org);
     }
 
-    /* (non-Javadoc)
+    /**
+     * batch_sizeの要素ごとに1回のパイプラインで読みます.
+     * 文字列で保存するテーブルのキーはMGETでまとめて、ハッシュで保存するテーブルのキーはHGETALLで読みます.
+     *
      * @see com.mychaelstyle.common.GenericDatastore.Provider#batchGet(org.json.JSONArray)
      */
     @Override
     public JSONObject batchGet(JSONArray conditions)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        JSONObject result = new JSONObject();
+        List<Key> keys = new ArrayList<Key>(conditions.length());
         for(int num=0; num<conditions.length(); num++){
             JSONObject condition = conditions.getJSONObject(num);
             String table = condition.getString(FIELD_TABLE);
@@ -187,31 +663,138 @@ public class Redis extends BaseProvider {
                 subkeyName = condition.getString(FIELD_SUBKEY);
             }
             JSONObject cond = condition.getJSONObject(FIELD_DATA);
-            String keyVal = cond.getString(keyName);
-            String subkeyVal = null;
+            // キーの値は数値のこともあるため、文字列に限らずそのまま使う
+            Object keyVal = cond.get(keyName);
+            Object subkeyVal = null;
             if(null!=subkeyName && cond.has(subkeyName)){
-                subkeyVal = cond.getString(subkeyName);
+                subkeyVal = cond.get(subkeyName);
+            }
+            keys.add(new Key(table, keyName, keyVal, subkeyName, subkeyVal));
+        }
+        JSONObject result = new JSONObject();
+        for(int start=0; start<keys.size(); start+=this.batchSize){
+            List<Key> chunk = keys.subList(start, Math.min(keys.size(), start+this.batchSize));
+            List<String> names = new ArrayList<String>(chunk.size());
+            List<String> tables = new ArrayList<String>(chunk.size());
+            for(Key key : chunk){
+                names.add(getQueryKey(key));
+                tables.add(key.getTableName());
             }
-            JSONObject row = this.withTable(table).withKey(keyName, keyVal)
-                    .withSubkey(subkeyName, subkeyVal).get();
-            if(null!=row){
-                JSONArray records = new JSONArray();
-                if(result.has(table)){
-                    records = result.getJSONArray(table);
+            List<Object> values = this.fetchAll("batchGet", names, tables, null);
+            for(int num=0; num<chunk.size(); num++){
+                String table = tables.get(num);
+                JSONObject row = this.toJSON(values.get(num), table, null);
+                if(null!=row){
+                    JSONArray records = result.optJSONArray(table);
+                    if(null==records){
+                        records = new JSONArray();
+                        result.put(table, records);
+                    }
+                    records.put(row);
                 }
-                records.put(row);
-                result.put(table, records);
             }
         }
         return result;
     }
 
-    /* (non-Javadoc)
+    /**
+     * キーの値を1回のパイプラインで読みます.
+     * MGETは文字列でない値をnullとして返すため、ハッシュから文字列に切り替えたテーブルの以前の値は読みません.
+     * @param operation ログ出力用の操作名
+     * @param names Redisのキー
+     * @param tables キーのテーブル名
+     * @param fields 読むフィールド. nullなら全てのフィールド
+     * @return キーの順の値. ハッシュならMap、文字列ならbyte[]、なければnull
+     * @throws ConnectionException
+     * @throws OperationException
+     */
+    private List<Object> fetchAll(final String operation, final List<String> names, final List<String> tables,
+            final List<String> fields) throws ConnectionException, OperationException {
+        final List<Integer> strings = new ArrayList<Integer>();
+        final List<Integer> hashes = new ArrayList<Integer>();
+        for(int num=0; num<names.size(); num++){
+            if(this.isHashTable(tables.get(num))){
+                hashes.add(num);
+            } else {
+                strings.add(num);
+            }
+        }
+        final byte[][] stringNames = new byte[strings.size()][];
+        for(int num=0; num<stringNames.length; num++){
+            stringNames[num] = names.get(strings.get(num)).getBytes(StandardCharsets.UTF_8);
+        }
+        final String[] fieldNames = null==fields || fields.isEmpty() ? null : fields.toArray(new String[fields.size()]);
+        try {
+            return this.execute(operation, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                Response<List<byte[]>> stringValues = stringNames.length==0 ? null : pipeline.mget(stringNames);
+                List<Response<?>> hashValues = new ArrayList<Response<?>>();
+                for(Integer index : hashes){
+                    String name = names.get(index);
+                    hashValues.add(null==fieldNames ? pipeline.hgetAll(name) : pipeline.hmget(name, fieldNames));
+                }
+                pipeline.sync();
+                List<Object> values = new ArrayList<Object>(names.size());
+                for(int num=0; num<names.size(); num++){
+                    values.add(null);
+                }
+                if(null!=stringValues){
+                    List<byte[]> fetched = stringValues.get();
+                    for(int num=0; num<strings.size(); num++){
+                        values.set(strings.get(num), fetched.get(num));
+                    }
+                }
+                for(int num=0; num<hashes.size(); num++){
+                    int index = hashes.get(num);
+                    try {
+                        values.set(index, fromResponse(hashValues.get(num).get(), fields));
+                    } catch(JedisDataException e){
+                        if(!isWrongType(e)){
+                            throw e;
+                        }
+                        // 文字列で保存した以前の値
+                        values.set(index, jedis.get(names.get(index).getBytes(StandardCharsets.UTF_8)));
+                    }
+                }
+                return values;
+            });
+        } catch(JedisDataException e){
+            throw new OperationException(e);
+        }
+    }
+
+    /**
+     * HGETALLまたはHMGETの応答をハッシュにします.
+     * @param response
+     * @param fields HMGETで読んだフィールド
+     * @return 値のあるフィールドのハッシュ
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String,String> fromResponse(final Object response, final List<String> fields){
+        if(response instanceof Map){
+            return (Map<String,String>) response;
+        }
+        List<String> values = (List<String>) response;
+        Map<String,String> hash = new LinkedHashMap<String,String>();
+        for(int num=0; num<fields.size(); num++){
+            if(null!=values.get(num)){
+                hash.put(fields.get(num), values.get(num));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * batch_sizeの要素ごとに1回のパイプラインで書き込みます.
+     * ハッシュで保存するテーブルのputは要素ごとにMULTIで削除と書き込みをまとめます.
+     *
      * @see com.mychaelstyle.common.GenericDatastore.Provider#batchWrite(org.json.JSONArray)
      */
     @Override
     public void batchWrite(JSONArray jsonArray) throws ConnectionException,
             ConfigurationException, OperationException {
+        List<Key> keys = new ArrayList<Key>(jsonArray.length());
+        List<Object> values = new ArrayList<Object>(jsonArray.length());
         for(int num=0; num<jsonArray.length(); num++){
             JSONObject condition = jsonArray.getJSONObject(num);
             String table = condition.getString(FIELD_TABLE);
@@ -222,107 +805,297 @@ public class Redis extends BaseProvider {
             }
             String action = condition.getString(FIELD_ACTION);
             JSONObject data = condition.getJSONObject(FIELD_DATA);
-            String keyVal = data.getString(keyName);
-            String subkeyVal = null;
+            Object keyVal = data.get(keyName);
+            Object subkeyVal = null;
             if(null!=subkeyName && subkeyName.length()>0){
-                subkeyVal = data.getString(subkeyName);
+                subkeyVal = data.get(subkeyName);
             }
+            Key key = new Key(table, keyName, keyVal, subkeyName, subkeyVal);
             if(ACTION_DELETE.equalsIgnoreCase(action)){
                 // delete
-                this.withTable(table).withKey(keyName, keyVal)
-                .withSubkey(subkeyName, subkeyVal).delete();
+                keys.add(key);
+                values.add(null);
             } else if(ACTION_PUT.equalsIgnoreCase(action)){
-                // put
-                this.withTable(table).withKey(keyName, keyVal)
-                .withSubkey(subkeyName, subkeyVal).put(data);
+                // put. 再試行で変換し直さないよう先に変換する
+                JSONObject value = withKeyFields(key, data);
+                keys.add(key);
+                values.add(this.isHashTable(table) ? toHash(value)
+                        : this.codecs.forTable(table).encodeJSON(value));
             }
         }
+        for(int start=0; start<keys.size(); start+=this.batchSize){
+            int end = Math.min(keys.size(), start+this.batchSize);
+            this.writeAll(keys.subList(start, end), values.subList(start, end));
+        }
     }
 
     /**
-     * スキャンやクエリーの条件に応じたRedisのキー問い合わせ文字列を生成.
-     * TODO : 現状一度に全てのキーを取得する実装。
-     * 結果が膨大になる場合の対策が必要。ワイルドカードの前の文字を指定して結果を分割できるようにするなど。
+     * 1回のパイプラインで書き込みます.
+     * @param keys
+     * @param values 値. 文字列ならbyte[]、ハッシュならMap、削除ならnull
+     * @throws ConnectionException
+     * @throws OperationException
+     */
+    private void writeAll(final List<Key> keys, final List<Object> values) throws ConnectionException,
+            OperationException {
+        try {
+            this.execute("batchWrite", jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<?>> responses = new ArrayList<Response<?>>(keys.size());
+                for(int num=0; num<keys.size(); num++){
+                    Object value = values.get(num);
+                    String name = getQueryKey(keys.get(num));
+                    if(null==value){
+                        responses.add(pipeline.del(name));
+                    } else if(value instanceof Map){
+                        @SuppressWarnings("unchecked")
+                        Map<String,String> hash = (Map<String,String>) value;
+                        pipeline.multi();
+                        pipeline.del(name);
+                        pipeline.hmset(name, hash);
+                        responses.add(pipeline.exec());
+                    } else {
+                        responses.add(pipeline.set(name.getBytes(StandardCharsets.UTF_8), (byte[]) value));
+                    }
+                }
+                pipeline.sync();
+                // エラーの応答は例外になる
+                for(Response<?> response : responses){
+                    response.get();
+                }
+                return null;
+            });
+        } catch(JedisDataException e){
+            throw new OperationException(e);
+        }
+    }
+
+    /**
+     * スキャンやクエリーの条件の主キー、副キーの値を問い合わせキーに設定します.
+     * @param key
      * @param conditions
+     * @return 条件のないキーの値はnull
+     */
+    static Key createScanKey(Key key, JSONObject conditions){
+        String keyVal = conditionValue(conditions, key.getKeyName());
+        String subkeyVal = null==keyVal ? null : conditionValue(conditions, key.getSubkeyName());
+        return new Key(key.getTableName(), key.getKeyName(), keyVal, key.getSubkeyName(), subkeyVal);
+    }
+
+    /**
+     * 問い合わせキーに応じたRedisのキー問い合わせ文字列を生成.
+     * 主キーの値だけがあれば「テーブル名-主キー値-*」、副キーの値もあれば一致するキーだけのパターンにします.
+     * テーブル名、キーの値に含まれるパターンの文字はエスケープします.
+     * @param key {@link #createScanKey(Key, JSONObject)}で条件の値を設定したキー
      * @return
      */
-    private String createScanKeyString(JSONObject conditions){
-        StringBuffer buf = new StringBuffer(this.tableName).append(KEY_DELIMITER);
-        if(null!=conditions){
-            if(conditions.has(this.keyName)){
-                JSONObject cond = conditions.getJSONObject(this.keyName);
-                String keyVal = cond.getString(GenericDatastore.Provider.FIELD_VALUE);
-                buf.append(keyVal);
-            } else {
-                buf.append("*");
-            }
-            String subkeyVal = null;
-            if(null!=this.subkeyName && this.subkeyName.length()>0){
-                JSONObject cond = conditions.getJSONObject(this.subkeyName);
-                subkeyVal = cond.getString(GenericDatastore.Provider.FIELD_VALUE);
-            }
-            if(null!=subkeyVal){
-                buf.append(KEY_DELIMITER).append(subkeyVal);
+    static String createScanKeyString(Key key){
+        if(null==key.getTableName()){
+            // テーブルを指定しなければ全てのキー
+            return "*";
+        }
+        StringBuffer buf = new StringBuffer(escapePattern(key.getTableName())).append(QUERY_KEY_DELIMITER);
+        if(null==key.getKeyValue()){
+            return buf.append("*").toString();
+        }
+        buf.append(escapePattern(key.getKeyValue().toString())).append(QUERY_KEY_DELIMITER);
+        if(null==key.getSubkeyValue()){
+            return buf.append("*").toString();
+        }
+        return buf.append(escapePattern(key.getSubkeyValue().toString())).toString();
+    }
+
+    /**
+     * @param conditions
+     * @param name
+     * @return 条件の値. 条件がなければnull
+     */
+    private static String conditionValue(JSONObject conditions, String name){
+        if(null==conditions || null==name || !conditions.has(name)){
+            return null;
+        }
+        return conditions.getJSONObject(name).getString(GenericDatastore.Provider.FIELD_VALUE);
+    }
+
+    /**
+     * @param value
+     * @return SCANのMATCHのパターンの文字(*?[]\)をエスケープした文字列
+     */
+    static String escapePattern(String value){
+        StringBuffer buf = new StringBuffer(value.length()+8);
+        for(int index=0; index<value.length(); index++){
+            char c = value.charAt(index);
+            if(c=='*' || c=='?' || c=='[' || c==']' || c=='\\'){
+                buf.append('\\');
             }
+            buf.append(c);
         }
-        buf.append("*");
         return buf.toString();
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(org.json.JSONObject, java.util.List, int)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
-    public ResultSet scan(JSONObject conditions, List<String> fields)
+    public ResultSet scan(Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        String str = this.createScanKeyString(conditions);
-        return new RedisResultSet(this.jedis,str);
+        Key scanKey = createScanKey(key, conditions);
+        return new RedisResultSet(this,createScanKeyString(scanKey),scanKey,fields);
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(org.json.JSONObject, java.util.List, int)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
-    public ResultSet query(JSONObject conditions, List<String> fields)
+    public ResultSet query(Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        String str = this.createScanKeyString(conditions);
-        return new RedisResultSet(this.jedis,str);
+        Key scanKey = createScanKey(key, conditions);
+        return new RedisResultSet(this,createScanKeyString(scanKey),scanKey,fields);
     }
 
     /**
      * Redisスキャン、クエリに対するGenericDatastore.ResultSetの実装.
+     *
+     * SCANのカーソルでキーを読み、1回のSCANで返ったキーの値をパイプラインのMGET(ハッシュならHGETALL)でまとめて読みます.
+     * 保持するのは読んだ1回分のキーと値だけです.
+     * SCANと同じく、読み込みの間に追加、削除されたキーは返ることも返らないこともあり、同じキーが2回返ることもあります.
+     * SCANからMGETまでの間に削除されたキーは返しません.
      * 
      * @author Masanori Nakashima
      */
     public static class RedisResultSet implements GenericDatastore.ResultSet {
-        /** Jedis instance */
-        private Jedis jedis = null;
-        /** keys iterator */
-        private Iterator<String> keysIterator = null;
+        /** provider */
+        private Redis redis = null;
+        /** SCANの条件 */
+        private ScanParams params = null;
+        /** 次のSCANのカーソル. 最後まで読んだらnull */
+        private String cursor = ScanParams.SCAN_POINTER_START;
+        /** テーブル名 */
+        private String table = null;
+        /** 主キー名 */
+        private String keyName = null;
+        /** 副キー名 */
+        private String subkeyName = null;
+        /** 主キーの値の条件. 条件がなければnull */
+        private String keyValue = null;
+        /** 副キーの値の条件. 条件がなければnull */
+        private String subkeyValue = null;
+        /** 読むフィールド */
+        private List<String> fields = null;
+        /** Redisから読むフィールド. 読むフィールドにキーのフィールドを加える */
+        private List<String> readFields = null;
+        /** 読んだレコード */
+        private Deque<JSONObject> page = new ArrayDeque<JSONObject>();
+        /**
+         * Constructor
+         * @param redis
+         * @param scanPrefix キーのパターン
+         * @param table
+         * @param fields 読むフィールド. nullなら全てのフィールド
+         */
+        protected RedisResultSet(Redis redis, String scanPrefix, String table, List<String> fields){
+            this(redis, scanPrefix, new Key(table, null, null), fields);
+        }
+
         /**
          * Constructor
-         * @param jedis
-         * @param scanPrefix
+         * @param redis
+         * @param scanPrefix キーのパターン
+         * @param key テーブル名、キー名と条件の値. キー名があれば、レコードのキーの値がRedisのキーや条件と一致しないレコードを返さない
+         * @param fields 読むフィールド. nullなら全てのフィールド
          */
-        protected RedisResultSet(Jedis jedis, String scanPrefix){
-            this.jedis = jedis;
-            Set<String> keys = jedis.keys(scanPrefix);
-            this.keysIterator = keys.iterator();
+        protected RedisResultSet(Redis redis, String scanPrefix, Key key, List<String> fields){
+            this.redis = redis;
+            this.table = key.getTableName();
+            this.keyName = key.getKeyName();
+            this.subkeyName = key.getSubkeyName();
+            this.keyValue = null==key.getKeyValue() ? null : key.getKeyValue().toString();
+            this.subkeyValue = null==key.getSubkeyValue() ? null : key.getSubkeyValue().toString();
+            this.fields = fields;
+            this.readFields = fields;
+            if(null!=fields && !fields.isEmpty()){
+                this.readFields = new ArrayList<String>(fields);
+                for(String name : Arrays.asList(this.keyName, this.subkeyName)){
+                    if(null!=name && !this.readFields.contains(name)){
+                        this.readFields.add(name);
+                    }
+                }
+            }
+            this.params = new ScanParams();
+            this.params.match(scanPrefix);
+            this.params.count(redis.scanCount);
         }
 
         @Override
-        public JSONObject next() {
-            String key = this.keysIterator.next();
-            String val = this.jedis.get(key);
-            return new JSONObject(val);
+        public JSONObject next() throws ConnectionException, OperationException {
+            if(!this.hasNext()){
+                return null;
+            }
+            return this.page.poll();
         }
 
         @Override
-        public boolean hasNext() {
-            return this.keysIterator.hasNext();
+        public boolean hasNext() throws ConnectionException, OperationException {
+            while(this.page.isEmpty() && null!=this.cursor){
+                this.fetch();
+            }
+            return !this.page.isEmpty();
+        }
+
+        /**
+         * 1回のSCANで返ったキーの値を読みます. 一致するキーがなければ何も読みません.
+         * @throws ConnectionException
+         * @throws OperationException
+         */
+        private void fetch() throws ConnectionException, OperationException {
+            final String current = this.cursor;
+            ScanResult<String> result = this.redis.execute("scan", jedis -> jedis.scan(current, this.params));
+            String next = result.getStringCursor();
+            this.cursor = ScanParams.SCAN_POINTER_START.equals(next) ? null : next;
+            List<String> keys = result.getResult();
+            if(keys.isEmpty()){
+                return;
+            }
+            List<Object> values = this.redis.fetchAll("scan", keys,
+                    Collections.nCopies(keys.size(), this.table), this.readFields);
+            for(int num=0; num<keys.size(); num++){
+                JSONObject record = this.redis.toJSON(values.get(num), this.table, this.readFields);
+                if(null!=record && this.belongs(keys.get(num), record)){
+                    this.page.add(this.readFields==this.fields ? record : Values.project(record, this.fields));
+                }
+            }
+        }
+
+        /**
+         * テーブル名に連結文字列を含むテーブル(users-archiveとusersなど)や、キーの値に連結文字列を含むレコードは
+         * パターンだけでは区別できないため、レコードのキーの値をRedisのキーと条件の値に比べます.
+         * @param name Redisのキー
+         * @param record
+         * @return 条件に一致するこのテーブルのレコードならtrue. レコードにキーのフィールドがなければ比べずにtrue
+         */
+        private boolean belongs(String name, JSONObject record){
+            if(null==this.table || null==this.keyName || !record.has(this.keyName)){
+                return true;
+            }
+            String recordKey = String.valueOf(record.get(this.keyName));
+            if(null!=this.keyValue && !this.keyValue.equals(recordKey)){
+                return false;
+            }
+            String prefix = new StringBuffer(this.table).append(QUERY_KEY_DELIMITER)
+                    .append(recordKey).append(QUERY_KEY_DELIMITER).toString();
+            if(!name.startsWith(prefix)){
+                return false;
+            }
+            if(null!=this.subkeyName && record.has(this.subkeyName)){
+                String recordSubkey = String.valueOf(record.get(this.subkeyName));
+                if(null!=this.subkeyValue && !this.subkeyValue.equals(recordSubkey)){
+                    return false;
+                }
+                return name.equals(prefix+recordSubkey);
+            }
+            return true;
         }
-        
     }
 }
@@ -9,9 +9,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -19,8 +27,15 @@ import org.json.JSONObject;
 import com.mychaelstyle.common.GenericDatastore;
 import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
 import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
 import com.mychaelstyle.common.GenericDatastore.OperationException;
 import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+import com.mychaelstyle.common.record.FieldDictionary;
+import com.mychaelstyle.common.record.Record;
+import com.mychaelstyle.common.retry.ErrorClassifier;
+import com.mychaelstyle.common.retry.ErrorClassifiers;
+import com.mychaelstyle.common.retry.RetryPolicy;
 
 /**
  * Generic Abstract SQL RDBMS Provider
@@ -42,8 +57,37 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
     public static final String JSON_ITEM_DATABASE_NAME = "database_name";
     public static final String JSON_ITEM_DATABASE_USER = "database_user";
     public static final String JSON_ITEM_DATABASE_PASSWORD = "database_password";
+    public static final String JSON_ITEM_DATABASE_POOL_SIZE = "database_pool_size";
+
+    /** 接続プールのデフォルト最大接続数 */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    /** batchGetで1回のSELECTに含める最大キー数 */
+    public static final int BATCH_GET_MAX_KEYS = 500;
+
+    /** MySQLのロック待ちタイムアウトのエラーコード */
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+
+    /**
+     * 再試行してよいSQLのエラー. 一時的なエラー、接続エラー(SQLState 08)、
+     * デッドロックやシリアライズ失敗(SQLState 40)、ロック待ちのタイムアウト、通信エラーを再試行します.
+     */
+    public static final ErrorClassifier TRANSIENT_ERRORS = ErrorClassifiers.anyOf(
+            error -> ErrorClassifiers.hasCause(error, SQLTransientException.class, SQLRecoverableException.class),
+            error -> {
+                SQLException sqlError = ErrorClassifiers.findCause(error, SQLException.class);
+                return null!=sqlError && (isConnectionError(sqlError)
+                        || (null!=sqlError.getSQLState() && sqlError.getSQLState().startsWith("40"))
+                        || sqlError.getErrorCode()==ER_LOCK_WAIT_TIMEOUT);
+            },
+            ErrorClassifiers.NETWORK);
 
     protected JSONObject config = null;
+    /**
+     * @deprecated 接続は操作ごとに接続プールから貸し出すため、この値は設定されません.
+     * {@link #borrowConnection()}と{@link #releaseConnection(Connection)}を利用してください
+     */
+    @Deprecated
     protected Connection connection = null;
     protected String host = "localhost";
     protected String database = "";
@@ -51,6 +95,19 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
     protected String password = "";
     protected String port = "";
 
+    /**
+     * 返却された接続. JDBC接続は同時に複数スレッドから利用できないため、操作ごとに貸し出す.
+     */
+    private BlockingQueue<Connection> idleConnections = null;
+    /**
+     * 貸出可能な接続数. 上限に達した場合は返却を待つ.
+     */
+    private Semaphore connectionPermits = null;
+    /**
+     * 冪等な操作の再試行. insertは重複するおそれがあるため再試行しない.
+     */
+    private RetryPolicy retryPolicy = new RetryPolicy(TRANSIENT_ERRORS);
+
     /**
      * Constructor
      */
@@ -70,297 +127,449 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
         this.database = config.getString(JSON_ITEM_DATABASE_NAME);
         this.user = config.getString(JSON_ITEM_DATABASE_USER);
         this.password = config.getString(JSON_ITEM_DATABASE_PASSWORD);
-        this.connection = this.getConnection();
+        int poolSize = config.optInt(JSON_ITEM_DATABASE_POOL_SIZE, DEFAULT_POOL_SIZE);
+        this.idleConnections = new LinkedBlockingQueue<Connection>(poolSize);
+        this.connectionPermits = new Semaphore(poolSize);
+        this.retryPolicy = new RetryPolicy(TRANSIENT_ERRORS).configure(config)
+                .withMetrics(MetricsRegistry.global(), this.getClass().getSimpleName());
+        // 設定を確認するため最初の接続を開いておく
+        this.idleConnections.offer(this.getConnection());
         return this;
     }
 
     /**
-     * RDBMS接続を取得
+     * RDBMSへの新しい接続を開く.
+     * プロバイダ内部では接続プールから{@link #borrowConnection()}で取得します.
      * @return
      * @throws ConfigurationException
      */
     public abstract Connection getConnection() throws ConfigurationException;
 
-    /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#get()
+    /**
+     * 接続プールから接続を借りる. 全て貸出中なら返却を待つ.
+     * 利用後は必ず{@link #releaseConnection(Connection)}で返却してください.
+     * @return
+     * @throws ConnectionException
+     * @throws ConfigurationException
      */
-    @Override
-    public JSONObject get() throws ConnectionException, ConfigurationException,
-            OperationException {
-        if(null==this.keyName || 0==this.keyName.length()){
-            throw new OperationException("Primary key field name is not set yet!");
-        } else if(null==this.keyValue){
-            throw new OperationException("Primary key field value is not set yet!");
+    protected Connection borrowConnection() throws ConnectionException, ConfigurationException {
+        if(null==this.connectionPermits){
+            throw new ConnectionException("SQL provider is not connected yet!");
         }
-        StringBuffer whereClauses = new StringBuffer()
-        .append("`").append(this.keyName).append("`=?");
-        if(null!=this.subkeyName && 0<this.subkeyName.length() && null!=this.subkeyValue){
-            whereClauses.append(" AND `").append(this.subkeyName).append("`=?");
+        try {
+            this.connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException(e);
         }
-        String sql = "SELECT * FROM `"+this.tableName+"` WHERE "+whereClauses.toString();
-
-        PreparedStatement stmt = null;
-        ResultSet resultSet = null;
+        boolean borrowed = false;
         try {
-            stmt = this.connection.prepareStatement(sql);
-            int counter = 1;
-            if(this.keyValue instanceof Integer){
-                stmt.setInt(counter, (Integer)this.keyValue);
-            } else if(this.keyValue instanceof Double){
-                stmt.setDouble(counter, (Double)this.keyValue);
-            } else {
-                stmt.setString(counter, this.keyValue.toString());
+            Connection conn = this.idleConnections.poll();
+            if(null==conn || conn.isClosed()){
+                conn = this.getConnection();
             }
-            counter++;
-            if(null!=subkeyName){
-                if(this.subkeyValue instanceof Integer){
-                    stmt.setInt(counter, (Integer)this.subkeyValue);
-                } else if(this.subkeyValue instanceof Double){
-                    stmt.setDouble(counter, (Double)this.subkeyValue);
-                } else {
-                    stmt.setString(counter, this.subkeyValue.toString());
-                }
-            }
-            resultSet = stmt.executeQuery();
-            ResultSetMetaData rsmd = resultSet.getMetaData();
-            List<String> fieldNames = new ArrayList<String>();
-            for (int num = 1; num <= rsmd.getColumnCount(); num++) {
-                fieldNames.add(rsmd.getColumnName(num));
+            borrowed = true;
+            return conn;
+        } catch (SQLException e) {
+            throw new ConnectionException(e);
+        } finally {
+            if(!borrowed){
+                this.connectionPermits.release();
             }
-            JSONObject retData = new JSONObject();
-            if(resultSet.next()){
-                for(String fieldName:fieldNames){
-                    Object val = resultSet.getObject(fieldName);
-                    if(null==val){
-                        retData.put(fieldName, "");
-                    } else if(val instanceof Integer){
-                        retData.put(fieldName, (Integer)val);
-                    } else if(val instanceof Double){
-                        retData.put(fieldName, (Double)val);
-                    } else if(val instanceof Float){
-                        retData.put(fieldName, (Float)val);
-                    } else if(val instanceof java.sql.Date){
-                        retData.put(fieldName, (Date)val);
-                    } else {
-                        retData.put(fieldName, val.toString());
-                    }
-                }
-                return retData;
-            } else {
-                return null;
+        }
+    }
+
+    /**
+     * 借りた接続を接続プールに返却する. 閉じられた接続は破棄する.
+     * @param conn
+     */
+    protected void releaseConnection(Connection conn) {
+        try {
+            if(null!=conn && !conn.isClosed()){
+                this.idleConnections.offer(conn);
             }
         } catch (SQLException e) {
-            throw new OperationException(e);
+            // 状態を確認できない接続は破棄する
         } finally {
-            this.keyName = null;
-            this.keyValue = null;
-            this.subkeyName = null;
-            this.subkeyValue = null;
-            this.tableName = null;
+            this.connectionPermits.release();
+        }
+    }
+
+    /**
+     * 借りた接続で実行するSQLの操作
+     * @param <T>
+     */
+    protected interface SQLCall<T> {
+        T call(Connection conn) throws SQLException;
+    }
+
+    /**
+     * 接続プールから接続を借りて操作を実行し、一時的なエラーなら別の接続で再試行します.
+     * 再試行するため、操作は冪等なものに限ります.
+     * @param operation ログ出力用の操作名
+     * @param call
+     * @return 操作の結果
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException 再試行しないエラー、または再試行をやめたときの最後のエラー
+     */
+    protected <T> T execute(String operation, SQLCall<T> call)
+            throws ConnectionException, ConfigurationException, OperationException {
+        RetryPolicy.Attempts attempts = this.retryPolicy.start(operation);
+        while(true){
+            Connection conn = this.borrowConnection();
+            SQLException error;
             try {
-                if(null!=resultSet){
-                    resultSet.close();
-                }
-                if(null!=stmt){
-                    stmt.close();
-                }
+                return call.call(conn);
             } catch (SQLException e) {
-                throw new OperationException(e);
+                if(isConnectionError(e)){
+                    // 切れた接続はプールに戻さない
+                    closeQuietly(conn);
+                }
+                error = e;
+            } finally {
+                this.releaseConnection(conn);
+            }
+            // 待つ間に他の操作が使えるよう、接続を返却してから待つ
+            if(!attempts.backoff(error)){
+                throw new OperationException(error);
             }
         }
+    }
 
+    /**
+     * 接続エラーか判定
+     * @param e
+     * @return
+     */
+    private static boolean isConnectionError(SQLException e) {
+        return (null!=e.getSQLState() && e.getSQLState().startsWith("08"))
+                || e instanceof SQLRecoverableException;
     }
 
-    /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete()
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // 既に切れている
+        }
+    }
+
+    /**
+     * PreparedStatementにパラメータ値を設定
+     * @param stmt
+     * @param index
+     * @param value
+     * @throws SQLException
      */
-    @Override
-    public void delete() throws ConnectionException, ConfigurationException,
-            OperationException {
-        if(null==this.keyName || 0==this.keyName.length()){
+    protected static void setParameter(PreparedStatement stmt, int index, Object value)
+            throws SQLException {
+        if(value instanceof Integer){
+            stmt.setInt(index, (Integer)value);
+        } else if(value instanceof Double){
+            stmt.setDouble(index, (Double)value);
+        } else {
+            stmt.setString(index, null==value ? null : value.toString());
+        }
+    }
+
+    /**
+     * 問い合わせキーから「主キー=? AND 副キー=?」のWHERE句を生成
+     * @param key
+     * @return
+     * @throws OperationException
+     */
+    private static String createWhereClauses(Key key) throws OperationException {
+        if(null==key.getKeyName() || 0==key.getKeyName().length()){
             throw new OperationException("Primary key field name is not set yet!");
-        } else if(null==this.keyValue){
+        } else if(null==key.getKeyValue()){
             throw new OperationException("Primary key field value is not set yet!");
         }
         StringBuffer whereClauses = new StringBuffer()
-        .append("`").append(this.keyName).append("`=?");
-        if(null!=this.subkeyName && 0<this.subkeyName.length() && null!=this.subkeyValue){
-            whereClauses.append(" AND `").append(this.subkeyName).append("`=?");
+        .append("`").append(key.getKeyName()).append("`=?");
+        if(key.hasSubkey() && null!=key.getSubkeyValue()){
+            whereClauses.append(" AND `").append(key.getSubkeyName()).append("`=?");
+        }
+        return whereClauses.toString();
+    }
+
+    /**
+     * WHERE句のパラメータに問い合わせキーの値を設定
+     * @param stmt
+     * @param index 主キー値を設定するパラメータ位置
+     * @param key
+     * @throws SQLException
+     */
+    private static void setKeyParameters(PreparedStatement stmt, int index, Key key)
+            throws SQLException {
+        setParameter(stmt, index, key.getKeyValue());
+        if(key.hasSubkey() && null!=key.getSubkeyValue()){
+            setParameter(stmt, index+1, key.getSubkeyValue());
         }
-        String sql = "DELETE FROM `"+this.tableName+"` WHERE "+whereClauses.toString();
+    }
 
-        PreparedStatement stmt = null;
-        try {
-            stmt = this.connection.prepareStatement(sql);
-            int counter = 1;
-            if(this.keyValue instanceof Integer){
-                stmt.setInt(counter, (Integer)this.keyValue);
-            } else if(this.keyValue instanceof Double){
-                stmt.setDouble(counter, (Double)this.keyValue);
+    /**
+     * 結果セットのカラム名リスト
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
+    private static List<String> getFieldNames(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData rsmd = resultSet.getMetaData();
+        List<String> fieldNames = new ArrayList<String>();
+        for (int num = 1; num <= rsmd.getColumnCount(); num++) {
+            fieldNames.add(rsmd.getColumnName(num));
+        }
+        return fieldNames;
+    }
+
+    /**
+     * 結果セットの現在行をJSONObjectに変換
+     * @param resultSet
+     * @param fieldNames
+     * @return
+     * @throws SQLException
+     */
+    private static JSONObject toJSONObject(ResultSet resultSet, List<String> fieldNames)
+            throws SQLException {
+        JSONObject retData = new JSONObject();
+        for(String fieldName:fieldNames){
+            Object val = resultSet.getObject(fieldName);
+            if(null==val){
+                retData.put(fieldName, "");
+            } else if(val instanceof Integer){
+                retData.put(fieldName, (Integer)val);
+            } else if(val instanceof Double){
+                retData.put(fieldName, (Double)val);
+            } else if(val instanceof Float){
+                retData.put(fieldName, (Float)val);
+            } else if(val instanceof java.sql.Date){
+                retData.put(fieldName, (Date)val);
             } else {
-                stmt.setString(counter, this.keyValue.toString());
+                retData.put(fieldName, val.toString());
             }
-            counter++;
-            if(null!=subkeyName){
-                if(this.subkeyValue instanceof Integer){
-                    stmt.setInt(counter, (Integer)this.subkeyValue);
-                } else if(this.subkeyValue instanceof Double){
-                    stmt.setDouble(counter, (Double)this.subkeyValue);
+        }
+        return retData;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(Key key) throws ConnectionException, ConfigurationException,
+            OperationException {
+        String sql = "SELECT * FROM `"+key.getTableName()+"` WHERE "+createWhereClauses(key);
+
+        return this.execute("get", conn -> {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            ResultSet resultSet = null;
+            try {
+                setKeyParameters(stmt, 1, key);
+                resultSet = stmt.executeQuery();
+                List<String> fieldNames = getFieldNames(resultSet);
+                if(resultSet.next()){
+                    return toJSONObject(resultSet, fieldNames);
                 } else {
-                    stmt.setString(counter, this.subkeyValue.toString());
+                    return null;
+                }
+            } finally {
+                if(null!=resultSet){
+                    resultSet.close();
                 }
+                stmt.close();
             }
-            stmt.execute();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new OperationException(e);
-        } finally {
-            this.keyName = null;
-            this.keyValue = null;
-            this.subkeyName = null;
-            this.subkeyValue = null;
-            this.tableName = null;
+        });
+    }
+
+    /**
+     * 列の型に合わせた値をJSONObjectを経由せずにRecordに設定します.
+     * getと異なり整数、小数、真偽値、バイナリの列は文字列にしません. NULLはgetと同じく空文字列です.
+     *
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#getRecord(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public Record getRecord(Key key) throws ConnectionException, ConfigurationException,
+            OperationException {
+        String sql = "SELECT * FROM `"+key.getTableName()+"` WHERE "+createWhereClauses(key);
+
+        return this.execute("get", conn -> {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            ResultSet resultSet = null;
             try {
-                if(null!=stmt){
-                    stmt.close();
+                setKeyParameters(stmt, 1, key);
+                resultSet = stmt.executeQuery();
+                if(resultSet.next()){
+                    return toRecord(resultSet);
+                } else {
+                    return null;
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                throw new OperationException(e);
+            } finally {
+                if(null!=resultSet){
+                    resultSet.close();
+                }
+                stmt.close();
             }
+        });
+    }
+
+    /**
+     * 結果セットの現在行をRecordに変換
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
+    private static Record toRecord(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData rsmd = resultSet.getMetaData();
+        int columns = rsmd.getColumnCount();
+        Record record = new Record(FieldDictionary.SHARED, columns);
+        for(int num=1; num<=columns; num++){
+            String name = rsmd.getColumnName(num);
+            switch(rsmd.getColumnType(num)){
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                long integer = resultSet.getLong(num);
+                if(!resultSet.wasNull()){
+                    record.setLong(name, integer);
+                    continue;
+                }
+                break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                double decimal = resultSet.getDouble(num);
+                if(!resultSet.wasNull()){
+                    record.setDouble(name, decimal);
+                    continue;
+                }
+                break;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                boolean bool = resultSet.getBoolean(num);
+                if(!resultSet.wasNull()){
+                    record.setBoolean(name, bool);
+                    continue;
+                }
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                byte[] bytes = resultSet.getBytes(num);
+                if(null!=bytes){
+                    record.setBytes(name, bytes);
+                    continue;
+                }
+                break;
+            default:
+                String value = resultSet.getString(num);
+                if(null!=value){
+                    record.setString(name, value);
+                    continue;
+                }
+                break;
+            }
+            record.setString(name, "");
         }
+        return record;
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(org.json.JSONObject)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
      */
     @Override
-    public void put(JSONObject record) throws ConnectionException,
+    public void delete(Key key) throws ConnectionException, ConfigurationException,
+            OperationException {
+        String sql = "DELETE FROM `"+key.getTableName()+"` WHERE "+createWhereClauses(key);
+
+        this.execute("delete", conn -> {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                setKeyParameters(stmt, 1, key);
+                stmt.execute();
+                return null;
+            } finally {
+                stmt.close();
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(Key key, JSONObject record) throws ConnectionException,
             ConfigurationException, OperationException {
-        JSONObject row = this.withTable(this.tableName)
-        .withKey(this.keyName, this.keyValue)
-        .withSubkey(this.subkeyName, this.subkeyValue).get();
+        JSONObject row = this.get(key);
         if(null==row){
-            this.insert(record);
+            this.insert(key, record);
         } else {
-            this.update(record);
+            this.update(key, record);
         }
-        this.keyName = null;
-        this.keyValue = null;
-        this.subkeyName = null;
-        this.subkeyValue = null;
-        this.tableName = null;
     }
 
-    /**
-     * update
-     * @param data
-     * @throws ConnectionException
-     * @throws ConfigurationException
-     * @throws OperationException
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
      */
-    public void update(JSONObject data)
+    @Override
+    public void update(Key key, JSONObject data)
             throws ConnectionException, ConfigurationException, OperationException {
         StringBuffer updatesStr = new StringBuffer();
         @SuppressWarnings("unchecked")
         Set<String> keys = (Set<String>) data.keySet();
         List<String> fields = new ArrayList<String>();
-        for(String key:keys){
-            if(key.equalsIgnoreCase(this.keyName)
-                    || (null!=this.subkeyName && key.equalsIgnoreCase(this.subkeyName))){
+        for(String name:keys){
+            if(name.equalsIgnoreCase(key.getKeyName())
+                    || (key.hasSubkey() && name.equalsIgnoreCase(key.getSubkeyName()))){
                 continue;
             }
             if(updatesStr.length()>0){
                 updatesStr.append(",");
             }
-            updatesStr.append("`").append(key).append("`=?");
-            fields.add(key);
+            updatesStr.append("`").append(name).append("`=?");
+            fields.add(name);
         }
-        StringBuffer whereClauses = new StringBuffer();
-        whereClauses.append("`").append(this.keyName).append("`=?");
-        if(null!=this.subkeyName){
-            whereClauses.append(" AND ");
-            whereClauses.append("`").append(this.subkeyName).append("`=?");
+        if(fields.isEmpty()){
+            return;
         }
-        String sql = "UPDATE "+this.tableName+" SET "+updatesStr.toString()
-                +" WHERE "+whereClauses.toString();
-        Connection conn = this.getConnection();
-        PreparedStatement stmt = null;
-        try {
-            stmt = conn.prepareStatement(sql);
-            int counter = 1;
-            for(String key:fields){
-                if(key.equalsIgnoreCase(this.keyName)
-                        || (null!=subkeyName && key.equalsIgnoreCase(this.subkeyName))){
-                    continue;
-                }
-                Object obj = data.get(key);
-                if(obj instanceof Integer){
-                    stmt.setInt(counter, (Integer) obj);
-                } else if(obj instanceof Double){
-                    stmt.setDouble(counter, (Double) obj);
-                } else {
-                    stmt.setString(counter, (String) obj);
-                }
-                counter++;
-            }
-            Object obj = data.get(this.keyName);
-            if(obj instanceof Integer){
-                stmt.setInt(counter, (Integer)obj);
-            } else if(obj instanceof Double){
-                stmt.setDouble(counter, (Double)obj);
-            } else {
-                stmt.setString(counter, obj.toString());
-            }
-            counter++;
-            if(null!=this.subkeyName){
-                obj = data.get(this.subkeyName);
-                if(obj instanceof Integer){
-                    stmt.setInt(counter, (Integer)obj);
-                } else if(obj instanceof Double){
-                    stmt.setDouble(counter, (Double)obj);
-                } else {
-                    stmt.setString(counter, obj.toString());
-                }
-            }
-            stmt.execute();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new OperationException(e);
-        } finally {
+        String sql = "UPDATE `"+key.getTableName()+"` SET "+updatesStr.toString()
+                +" WHERE "+createWhereClauses(key);
+        this.execute("update", conn -> {
+            PreparedStatement stmt = conn.prepareStatement(sql);
             try {
-                if(null!=stmt){
-                    stmt.close();
+                int counter = 1;
+                for(String name:fields){
+                    setParameter(stmt, counter, data.get(name));
+                    counter++;
                 }
-            } catch (SQLException e) {
-                throw new OperationException(e);
+                setKeyParameters(stmt, counter, key);
+                stmt.execute();
+                return null;
+            } finally {
+                stmt.close();
             }
-        }
+        });
     }
 
     /**
      * insert
+     * @param key
      * @param data
      * @throws ConnectionException
      * @throws ConfigurationException
      * @throws OperationException
      */
-    protected void insert(JSONObject data) throws ConnectionException, ConfigurationException, OperationException {
+    protected void insert(Key key, JSONObject data) throws ConnectionException, ConfigurationException, OperationException {
         List<String> fields = new ArrayList<String>();
         List<Object> values = new ArrayList<Object>();
         @SuppressWarnings("unchecked")
         Set<String> keys = (Set<String>) data.keySet();
-        for(String key:keys){
-            fields.add(key);
-            Object obj = data.get(key);
-            if(null==obj){
-                values.add("");
-            } if(obj instanceof Integer){
-                Integer val = (Integer) obj;
-                values.add(val);
-            } else if(obj instanceof Double){
-                Double val = (Double) obj;
-                values.add(val);
+        for(String name:keys){
+            fields.add(name);
+            Object obj = data.get(name);
+            if(obj instanceof Integer || obj instanceof Double){
+                values.add(obj);
             } else {
                 values.add(obj.toString());
             }
@@ -377,33 +586,30 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
             fieldsStr.append("`").append(name).append("`");
             valueStr.append("?");
         }
-        String sql = "INSERT INTO `"+this.tableName+"` ("+fieldsStr+") VALUES ("+valueStr+")";
-        Connection conn = this.getConnection();
+        String sql = "INSERT INTO `"+key.getTableName()+"` ("+fieldsStr+") VALUES ("+valueStr+")";
+        Connection conn = this.borrowConnection();
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(sql);
             int counter = 1;
             for(Object obj:values){
-                if(obj instanceof Integer){
-                    stmt.setInt(counter, (Integer) obj);
-                } else if(obj instanceof Double){
-                    stmt.setDouble(counter, (Double) obj);
-                } else {
-                    stmt.setString(counter, (String) obj);
-                }
+                setParameter(stmt, counter, obj);
                 counter++;
             }
+            stmt.execute();
         } catch (SQLException e) {
             e.printStackTrace();
             throw new OperationException(e);
         } finally {
             try {
                 if(null!=stmt){
-                    stmt.execute();
+                    stmt.close();
                 }
             } catch (SQLException e) {
                 e.printStackTrace();
                 throw new OperationException(e);
+            } finally {
+                this.releaseConnection(conn);
             }
         }
     }
@@ -415,8 +621,100 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
     public JSONObject batchGet(JSONArray conditions)
             throws ConnectionException, ConfigurationException,
             OperationException {
-        // TODO Auto-generated method stub
-        return null;
+        // テーブル、主キー名、副キー名が同じ条件ごとに1回のSELECTで読み込む
+        Map<Key,List<Key>> groups = new LinkedHashMap<Key,List<Key>>();
+        for(int num=0; num<conditions.length(); num++){
+            JSONObject condition = conditions.getJSONObject(num);
+            String table = condition.getString(FIELD_TABLE);
+            String keyName = condition.getString(FIELD_KEY);
+            String subkeyName = condition.optString(FIELD_SUBKEY, null);
+            JSONObject data = condition.getJSONObject(FIELD_DATA);
+            Object subkeyValue = null;
+            if(null!=subkeyName && data.has(subkeyName)){
+                subkeyValue = data.get(subkeyName);
+            } else {
+                subkeyName = null;
+            }
+            Key group = new Key(table, keyName, null, subkeyName, null);
+            List<Key> keys = groups.get(group);
+            if(null==keys){
+                keys = new ArrayList<Key>();
+                groups.put(group, keys);
+            }
+            keys.add(new Key(table, keyName, data.get(keyName), subkeyName, subkeyValue));
+        }
+        JSONObject result = new JSONObject();
+        for(Map.Entry<Key,List<Key>> entry : groups.entrySet()){
+            List<Key> keys = entry.getValue();
+            for(int from=0; from<keys.size(); from+=BATCH_GET_MAX_KEYS){
+                List<Key> chunk = keys.subList(from, Math.min(keys.size(), from+BATCH_GET_MAX_KEYS));
+                this.selectKeys(entry.getKey(), chunk, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 主キー名、副キー名が同じ複数のキーのレコードを1回のSELECTで読み込み、テーブル名の配列に追加する.
+     * @param group 主キー名、副キー名
+     * @param keys
+     * @param result
+     * @throws ConnectionException
+     * @throws ConfigurationException
+     * @throws OperationException
+     */
+    private void selectKeys(Key group, List<Key> keys, JSONObject result)
+            throws ConnectionException, ConfigurationException, OperationException {
+        StringBuffer whereClauses = new StringBuffer();
+        if(group.hasSubkey()){
+            for(int num=0; num<keys.size(); num++){
+                if(num>0){
+                    whereClauses.append(" OR ");
+                }
+                whereClauses.append("(`").append(group.getKeyName()).append("`=? AND `")
+                .append(group.getSubkeyName()).append("`=?)");
+            }
+        } else {
+            whereClauses.append("`").append(group.getKeyName()).append("` IN (");
+            for(int num=0; num<keys.size(); num++){
+                whereClauses.append(num>0 ? ",?" : "?");
+            }
+            whereClauses.append(")");
+        }
+        String sql = "SELECT * FROM `"+group.getTableName()+"` WHERE "+whereClauses;
+
+        // 再試行で重複しないよう、全て読み込んでから結果に追加する
+        JSONArray rows = this.execute("batch get", conn -> {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            ResultSet resultSet = null;
+            try {
+                int counter = 1;
+                for(Key key : keys){
+                    setKeyParameters(stmt, counter, key);
+                    counter += key.hasSubkey() ? 2 : 1;
+                }
+                resultSet = stmt.executeQuery();
+                List<String> fieldNames = getFieldNames(resultSet);
+                JSONArray selected = new JSONArray();
+                while(resultSet.next()){
+                    selected.put(toJSONObject(resultSet, fieldNames));
+                }
+                return selected;
+            } finally {
+                if(null!=resultSet){
+                    resultSet.close();
+                }
+                stmt.close();
+            }
+        });
+        JSONArray records = result.optJSONArray(group.getTableName());
+        if(null==records){
+            records = new JSONArray();
+            result.put(group.getTableName(), records);
+        }
+        for(int num=0; num<rows.length(); num++){
+            records.put(rows.get(num));
+        }
     }
 
     /* (non-Javadoc)
@@ -430,11 +728,11 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(org.json.JSONObject, java.util.List)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
     public com.mychaelstyle.common.GenericDatastore.ResultSet scan(
-            JSONObject conditions, List<String> fields)
+            Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
         // TODO Auto-generated method stub
@@ -442,11 +740,11 @@ public abstract class SQLDatabase extends GenericDatastore.BaseProvider implemen
     }
 
     /* (non-Javadoc)
-     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(org.json.JSONObject, java.util.List)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
      */
     @Override
     public com.mychaelstyle.common.GenericDatastore.ResultSet query(
-            JSONObject conditions, List<String> fields)
+            Key key, JSONObject conditions, List<String> fields)
             throws ConnectionException, ConfigurationException,
             OperationException {
         // TODO Auto-generated method stub
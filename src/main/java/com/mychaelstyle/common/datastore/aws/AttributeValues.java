@@ -0,0 +1,295 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.mychaelstyle.common.record.Record;
+
+/**
+ * DynamoDBのAttributeValueとJSONの値の変換.
+ *
+ * 文字列(S)、数値(N)、真偽値(BOOL)、NULL、マップ(M)、リスト(L)、集合(SS, NS, BS)、バイナリ(B)の
+ * 全ての型を変換します. 数値は整数ならIntegerかLong(範囲外はBigInteger)、小数ならDoubleになります.
+ * バイナリはBase64文字列になります.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public final class AttributeValues {
+
+    private AttributeValues() {
+    }
+
+    /**
+     * アイテムをJSONObjectに変換します.
+     * @param item
+     * @return アイテムがnullまたは空ならnull
+     */
+    public static JSONObject toJSONObject(Map<String,AttributeValue> item) {
+        if(null==item || item.isEmpty()){
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        for(Map.Entry<String,AttributeValue> entry : item.entrySet()){
+            Object value = toValue(entry.getValue());
+            if(null!=value){
+                json.put(entry.getKey(), value);
+            }
+        }
+        return json;
+    }
+
+    /**
+     * AttributeValueをJSONの値に変換します.
+     * @param value
+     * @return 値が設定されていなければnull
+     */
+    public static Object toValue(AttributeValue value) {
+        if(null==value){
+            return null;
+        } else if(null!=value.getS()){
+            return value.getS();
+        } else if(null!=value.getN()){
+            return toNumber(value.getN());
+        } else if(null!=value.getBOOL()){
+            return value.getBOOL();
+        } else if(null!=value.getNULL() && value.getNULL()){
+            return JSONObject.NULL;
+        } else if(null!=value.getM()){
+            JSONObject json = new JSONObject();
+            for(Map.Entry<String,AttributeValue> entry : value.getM().entrySet()){
+                Object element = toValue(entry.getValue());
+                if(null!=element){
+                    json.put(entry.getKey(), element);
+                }
+            }
+            return json;
+        } else if(null!=value.getL()){
+            JSONArray array = new JSONArray();
+            for(AttributeValue element : value.getL()){
+                array.put(toValue(element));
+            }
+            return array;
+        } else if(null!=value.getSS()){
+            return new JSONArray(value.getSS());
+        } else if(null!=value.getNS()){
+            JSONArray array = new JSONArray();
+            for(String number : value.getNS()){
+                array.put(toNumber(number));
+            }
+            return array;
+        } else if(null!=value.getB()){
+            return encode(value.getB());
+        } else if(null!=value.getBS()){
+            JSONArray array = new JSONArray();
+            for(ByteBuffer buffer : value.getBS()){
+                array.put(encode(buffer));
+            }
+            return array;
+        }
+        return null;
+    }
+
+    /**
+     * JSONObjectをアイテムに変換します.
+     * @param json
+     * @return
+     */
+    public static Map<String,AttributeValue> toItem(JSONObject json) {
+        Map<String,AttributeValue> item = new HashMap<String,AttributeValue>();
+        @SuppressWarnings("unchecked")
+        Set<String> names = json.keySet();
+        for(String name : names){
+            item.put(name, toAttributeValue(json.get(name)));
+        }
+        return item;
+    }
+
+    /**
+     * JSONの値をAttributeValueに変換します.
+     * @param value
+     * @return
+     */
+    public static AttributeValue toAttributeValue(Object value) {
+        if(null==value || JSONObject.NULL.equals(value)){
+            return new AttributeValue().withNULL(true);
+        } else if(value instanceof String){
+            return new AttributeValue().withS((String) value);
+        } else if(value instanceof Boolean){
+            return new AttributeValue().withBOOL((Boolean) value);
+        } else if(value instanceof Number){
+            return new AttributeValue().withN(value.toString());
+        } else if(value instanceof JSONObject){
+            return new AttributeValue().withM(toItem((JSONObject) value));
+        } else if(value instanceof JSONArray){
+            JSONArray array = (JSONArray) value;
+            List<AttributeValue> list = new ArrayList<AttributeValue>();
+            for(int num=0; num<array.length(); num++){
+                list.add(toAttributeValue(array.get(num)));
+            }
+            return new AttributeValue().withL(list);
+        } else if(value instanceof byte[]){
+            return new AttributeValue().withB(ByteBuffer.wrap((byte[]) value));
+        }
+        return new AttributeValue().withS(value.toString());
+    }
+
+    /**
+     * アイテムをRecordに変換します. 数値は整数ならlong、小数ならdouble、バイナリはバイト列のまま持ちます.
+     * マップ、リスト、集合はtoValueと同じ値にします.
+     * @param item
+     * @return アイテムがnullまたは空ならnull
+     */
+    public static Record toRecord(Map<String,AttributeValue> item) {
+        if(null==item || item.isEmpty()){
+            return null;
+        }
+        Record record = new Record();
+        for(Map.Entry<String,AttributeValue> entry : item.entrySet()){
+            String name = entry.getKey();
+            AttributeValue value = entry.getValue();
+            if(null==value){
+                continue;
+            } else if(null!=value.getS()){
+                record.setString(name, value.getS());
+            } else if(null!=value.getN()){
+                record.set(name, toNumber(value.getN()));
+            } else if(null!=value.getBOOL()){
+                record.setBoolean(name, value.getBOOL());
+            } else if(null!=value.getB()){
+                ByteBuffer buffer = value.getB().duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                record.setBytes(name, bytes);
+            } else {
+                Object converted = toValue(value);
+                if(null!=converted){
+                    record.set(name, converted);
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Recordをアイテムに変換します. 値の型で属性の型を選ぶため、値を判定しません.
+     * @param record
+     * @return
+     */
+    public static Map<String,AttributeValue> toItem(Record record) {
+        Map<String,AttributeValue> item = new HashMap<String,AttributeValue>(record.size()*4/3+1);
+        for(int index=0; index<record.size(); index++){
+            AttributeValue value;
+            switch(record.typeAt(index)){
+            case Record.TYPE_NULL:
+                value = new AttributeValue().withNULL(true);
+                break;
+            case Record.TYPE_LONG:
+                value = new AttributeValue().withN(Long.toString(record.longAt(index)));
+                break;
+            case Record.TYPE_DOUBLE:
+                value = new AttributeValue().withN(Double.toString(record.doubleAt(index)));
+                break;
+            case Record.TYPE_BOOLEAN:
+                value = new AttributeValue().withBOOL(record.booleanAt(index));
+                break;
+            case Record.TYPE_STRING:
+                value = new AttributeValue().withS((String) record.objectAt(index));
+                break;
+            case Record.TYPE_BYTES:
+                value = new AttributeValue().withB(ByteBuffer.wrap((byte[]) record.objectAt(index)));
+                break;
+            default:
+                value = toAttributeValue(record.objectAt(index));
+                break;
+            }
+            item.put(record.name(index), value);
+        }
+        return item;
+    }
+
+    /**
+     * アイテムのおおよそのサイズを、DynamoDBと同じく属性名と値の長さの合計で求めます.
+     * @param item
+     * @return バイト数の概算
+     */
+    public static long size(Map<String,AttributeValue> item) {
+        long size = 0;
+        for(Map.Entry<String,AttributeValue> entry : item.entrySet()){
+            size += entry.getKey().length() + size(entry.getValue());
+        }
+        return size;
+    }
+
+    private static long size(AttributeValue value) {
+        if(null==value){
+            return 0;
+        } else if(null!=value.getS()){
+            return value.getS().length();
+        } else if(null!=value.getN()){
+            return value.getN().length();
+        } else if(null!=value.getB()){
+            return value.getB().remaining();
+        } else if(null!=value.getM()){
+            return 3 + size(value.getM());
+        } else if(null!=value.getL()){
+            long size = 3;
+            for(AttributeValue element : value.getL()){
+                size += 1 + size(element);
+            }
+            return size;
+        }
+        long size = 1;
+        if(null!=value.getSS()){
+            for(String element : value.getSS()){
+                size += element.length();
+            }
+        } else if(null!=value.getNS()){
+            for(String element : value.getNS()){
+                size += element.length();
+            }
+        } else if(null!=value.getBS()){
+            for(ByteBuffer element : value.getBS()){
+                size += element.remaining();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 数値文字列を整数ならIntegerかLongかBigInteger、小数ならDoubleに変換
+     * @param number
+     * @return
+     */
+    static Number toNumber(String number) {
+        BigDecimal decimal = new BigDecimal(number);
+        if(decimal.signum()==0 || decimal.scale()<=0 || decimal.stripTrailingZeros().scale()<=0){
+            BigInteger integer = decimal.toBigIntegerExact();
+            if(integer.bitLength()<32){
+                return integer.intValue();
+            } else if(integer.bitLength()<64){
+                return integer.longValue();
+            }
+            return integer;
+        }
+        return decimal.doubleValue();
+    }
+
+    private static String encode(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,47 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.model.InternalServerErrorException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.mychaelstyle.common.retry.ErrorClassifier;
+import com.mychaelstyle.common.retry.ErrorClassifiers;
+
+/**
+ * DynamoDBの再試行してよいエラーの判定.
+ *
+ * スループット超過とスロットリング、5xxのサーバーエラー、SDKが再試行可能とした通信エラーを再試行します.
+ * 検証エラーなど4xxのエラーは再試行しません.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public final class AwsErrorClassifier implements ErrorClassifier {
+
+    /** 共有インスタンス */
+    public static final AwsErrorClassifier INSTANCE = new AwsErrorClassifier();
+
+    private AwsErrorClassifier() {
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.retry.ErrorClassifier#isRetryable(java.lang.Throwable)
+     */
+    @Override
+    public boolean isRetryable(Throwable error) {
+        AmazonClientException client = ErrorClassifiers.findCause(error, AmazonClientException.class);
+        if(null==client){
+            return ErrorClassifiers.NETWORK.isRetryable(error);
+        }
+        if(client instanceof ProvisionedThroughputExceededException
+                || client instanceof InternalServerErrorException){
+            return true;
+        }
+        if(client instanceof AmazonServiceException){
+            AmazonServiceException service = (AmazonServiceException) client;
+            return RetryUtils.isThrottlingException(service) || service.getStatusCode()>=500;
+        }
+        return client.isRetryable() || ErrorClassifiers.NETWORK.isRetryable(client);
+    }
+}
@@ -0,0 +1,228 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.retry.RetryPolicy;
+
+/**
+ * DynamoDB BatchGetItemの分割送信.
+ *
+ * 重複を除いたキーを1リクエストの上限である100件ずつに分割してExecutorで並列に読み込み、
+ * 応答のUnprocessedKeysだけを{@link RetryPolicy}の指数バックオフで待ってから再送します.
+ * {@link CapacityLimiter}を設定すると、テーブルのRCUを超えないように送信を待ちます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class BatchReader {
+
+    /** BatchGetItem 1リクエストの最大キー数 */
+    public static final int MAX_KEYS_PER_REQUEST = 100;
+
+    private final AmazonDynamoDB client;
+    private final Executor executor;
+    private RetryPolicy retryPolicy = new RetryPolicy(AwsErrorClassifier.INSTANCE);
+    private CapacityLimiter capacityLimiter = null;
+
+    /**
+     * @param client DynamoDBクライアント
+     * @param executor 分割したリクエストを送信するExecutor. スレッド数とキュー長が有限のものを指定してください
+     */
+    public BatchReader(AmazonDynamoDB client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * 再試行の設定を差し替えます.
+     * 設定は複製して持つため、{@link #withMaxAttempts(int)}などで変更しても渡したRetryPolicyは変わりません.
+     * @param retryPolicy
+     * @return
+     */
+    public BatchReader withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy.copy();
+        return this;
+    }
+
+    /**
+     * 1リクエストあたりの最大試行回数を設定します.
+     * @param maxAttempts
+     * @return
+     */
+    public BatchReader withMaxAttempts(int maxAttempts) {
+        this.retryPolicy.withMaxAttempts(maxAttempts);
+        return this;
+    }
+
+    /**
+     * 再送前の待ち時間を設定します. n回目の再送は0から min(max, base*2^n) ミリ秒の間でランダムに待ちます.
+     * @param baseMillis
+     * @param maxMillis
+     * @return
+     */
+    public BatchReader withBackoff(long baseMillis, long maxMillis) {
+        this.retryPolicy.withBackoff(baseMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * 送信速度の制限を設定します. nullなら制限しません.
+     * @param capacityLimiter
+     * @return
+     */
+    public BatchReader withCapacityLimiter(CapacityLimiter capacityLimiter) {
+        this.capacityLimiter = capacityLimiter;
+        return this;
+    }
+
+    /**
+     * テーブルごとのキーのアイテムを全て読み込みます.
+     *
+     * @param keys テーブル名とキーのリスト. 重複したキーは1回だけ読み込みます
+     * @return テーブル名と読み込んだアイテムのリスト. 存在しないキーのアイテムは含みません
+     * @throws OperationException 再送しても読み込めないキーが残った場合
+     */
+    public Map<String,List<Map<String,AttributeValue>>> read(Map<String,List<Map<String,AttributeValue>>> keys)
+            throws OperationException {
+        Map<String,List<Map<String,AttributeValue>>> items = new LinkedHashMap<String,List<Map<String,AttributeValue>>>();
+        List<Map<String,KeysAndAttributes>> chunks = split(keys);
+        if(chunks.isEmpty()){
+            return items;
+        }
+        List<Callable<Map<String,List<Map<String,AttributeValue>>>>> calls
+            = new ArrayList<Callable<Map<String,List<Map<String,AttributeValue>>>>>();
+        for(final Map<String,KeysAndAttributes> chunk : chunks){
+            calls.add(() -> this.readChunk(chunk));
+        }
+        for(Map<String,List<Map<String,AttributeValue>>> result : BatchSupport.runAll(this.executor, calls, "batch get")){
+            merge(items, result);
+        }
+        return items;
+    }
+
+    /**
+     * 重複を除いたキーを100件ずつのリクエストに分割
+     * @param keys
+     * @return
+     */
+    static List<Map<String,KeysAndAttributes>> split(Map<String,List<Map<String,AttributeValue>>> keys) {
+        List<Map<String,KeysAndAttributes>> chunks = new ArrayList<Map<String,KeysAndAttributes>>();
+        Map<String,KeysAndAttributes> chunk = new LinkedHashMap<String,KeysAndAttributes>();
+        int count = 0;
+        for(Map.Entry<String,List<Map<String,AttributeValue>>> entry : keys.entrySet()){
+            Set<Map<String,AttributeValue>> unique = new LinkedHashSet<Map<String,AttributeValue>>(entry.getValue());
+            for(Map<String,AttributeValue> key : unique){
+                if(count==MAX_KEYS_PER_REQUEST){
+                    chunks.add(chunk);
+                    chunk = new LinkedHashMap<String,KeysAndAttributes>();
+                    count = 0;
+                }
+                KeysAndAttributes tableKeys = chunk.get(entry.getKey());
+                if(null==tableKeys){
+                    tableKeys = new KeysAndAttributes().withKeys(new ArrayList<Map<String,AttributeValue>>());
+                    chunk.put(entry.getKey(), tableKeys);
+                }
+                tableKeys.getKeys().add(key);
+                count++;
+            }
+        }
+        if(count>0){
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * 100件以下のキーを、未処理のキーがなくなるまで再送して読み込む
+     * @param chunk
+     * @return
+     * @throws OperationException
+     */
+    private Map<String,List<Map<String,AttributeValue>>> readChunk(Map<String,KeysAndAttributes> chunk)
+            throws OperationException {
+        Map<String,List<Map<String,AttributeValue>>> items = new LinkedHashMap<String,List<Map<String,AttributeValue>>>();
+        Map<String,KeysAndAttributes> pending = chunk;
+        RetryPolicy.Attempts attempts = this.retryPolicy.start("batch get");
+        while(true){
+            AmazonClientException error = null;
+            try {
+                BatchGetItemRequest request = new BatchGetItemRequest().withRequestItems(pending);
+                BatchGetItemResult result = null;
+                if(null==this.capacityLimiter){
+                    result = this.client.batchGetItem(request);
+                } else {
+                    Map<String,Double> reserved = this.capacityLimiter.acquire(CapacityLimiter.Kind.READ, units(pending));
+                    try {
+                        result = this.client.batchGetItem(request.withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES));
+                    } finally {
+                        if(null==result){
+                            this.capacityLimiter.release(CapacityLimiter.Kind.READ, reserved);
+                        } else {
+                            this.capacityLimiter.settle(CapacityLimiter.Kind.READ, reserved, result.getConsumedCapacity());
+                        }
+                    }
+                }
+                merge(items, result.getResponses());
+                Map<String,KeysAndAttributes> unprocessed = result.getUnprocessedKeys();
+                if(null==unprocessed || unprocessed.isEmpty()){
+                    return items;
+                }
+                pending = new LinkedHashMap<String,KeysAndAttributes>(unprocessed);
+            } catch(AmazonClientException e){
+                error = e;
+            }
+            // 入力の誤りなど再送しても成功しないエラーは、1回目で再送をやめる
+            if(!attempts.backoff(error)){
+                int remaining = 0;
+                for(KeysAndAttributes tableKeys : pending.values()){
+                    remaining += tableKeys.getKeys().size();
+                }
+                throw new OperationException(remaining+" keys remain unprocessed after "
+                        +attempts.attempt()+" attempts", error);
+            }
+        }
+    }
+
+    /**
+     * テーブルごとの最小の消費RCU
+     * @param pending
+     * @return
+     */
+    private static Map<String,Double> units(Map<String,KeysAndAttributes> pending) {
+        Map<String,Double> units = new LinkedHashMap<String,Double>();
+        for(Map.Entry<String,KeysAndAttributes> entry : pending.entrySet()){
+            units.put(entry.getKey(), entry.getValue().getKeys().size()*CapacityLimiter.MIN_READ_UNITS);
+        }
+        return units;
+    }
+
+    private static void merge(Map<String,List<Map<String,AttributeValue>>> items,
+            Map<String,List<Map<String,AttributeValue>>> responses) {
+        if(null==responses){
+            return;
+        }
+        for(Map.Entry<String,List<Map<String,AttributeValue>>> entry : responses.entrySet()){
+            List<Map<String,AttributeValue>> rows = items.get(entry.getKey());
+            if(null==rows){
+                rows = new ArrayList<Map<String,AttributeValue>>();
+                items.put(entry.getKey(), rows);
+            }
+            rows.addAll(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+/**
+ * BatchWriterとBatchReaderで共通の、分割したリクエストの並列実行.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+final class BatchSupport {
+
+    /** Logger by logback */
+    private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common.datastore");
+
+    private BatchSupport() {
+    }
+
+    /**
+     * 分割したリクエストをExecutorで並列に実行し、全ての完了を待って結果を返します.
+     * リクエストが1つなら呼び出し元スレッドで実行します.
+     *
+     * @param executor
+     * @param calls
+     * @param operation ログ出力用の操作名
+     * @return callsと同じ順序の結果
+     * @throws OperationException 失敗したリクエストがあった場合. 他のリクエストの完了を待ってから送出する
+     */
+    static <T> List<T> runAll(Executor executor, List<Callable<T>> calls, String operation)
+            throws OperationException {
+        List<T> results = new ArrayList<T>();
+        if(calls.size()==1){
+            try {
+                results.add(calls.get(0).call());
+                return results;
+            } catch(OperationException e){
+                throw e;
+            } catch(Exception e){
+                throw new OperationException(e);
+            }
+        }
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>();
+        for(Callable<T> call : calls){
+            FutureTask<T> task = new FutureTask<T>(call);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch(RejectedExecutionException e){
+                task.run();
+            }
+        }
+        OperationException failure = null;
+        int failed = 0;
+        boolean interrupted = false;
+        for(FutureTask<T> task : tasks){
+            try {
+                while(true){
+                    try {
+                        results.add(task.get());
+                        break;
+                    } catch(InterruptedException e){
+                        interrupted = true;
+                    }
+                }
+            } catch(ExecutionException e){
+                failed++;
+                if(null==failure){
+                    failure = (e.getCause() instanceof OperationException)
+                            ? (OperationException) e.getCause() : new OperationException(e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        if(null!=failure){
+            logger.error("Fail to "+operation+" "+failed+" of "+calls.size()+" requests");
+            throw failure;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,206 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.retry.RetryPolicy;
+
+/**
+ * DynamoDB BatchWriteItemの分割送信.
+ *
+ * 書き込み要求を1リクエストの上限である25件ずつに分割し、Executorで並列に送信します.
+ * 応答のUnprocessedItems(スループット超過などで処理されなかった要求)だけを
+ * {@link RetryPolicy}の指数バックオフで待ってから再送します.
+ * {@link CapacityLimiter}を設定すると、テーブルのWCUを超えないように送信を待ちます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class BatchWriter {
+
+    /** BatchWriteItem 1リクエストの最大要求数 */
+    public static final int MAX_ITEMS_PER_REQUEST = 25;
+
+    private final AmazonDynamoDB client;
+    private final Executor executor;
+    private RetryPolicy retryPolicy = new RetryPolicy(AwsErrorClassifier.INSTANCE);
+    private CapacityLimiter capacityLimiter = null;
+
+    /**
+     * @param client DynamoDBクライアント
+     * @param executor 分割したリクエストを送信するExecutor. スレッド数とキュー長が有限のものを指定してください
+     */
+    public BatchWriter(AmazonDynamoDB client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * 再試行の設定を差し替えます.
+     * 設定は複製して持つため、{@link #withMaxAttempts(int)}などで変更しても渡したRetryPolicyは変わりません.
+     * @param retryPolicy
+     * @return
+     */
+    public BatchWriter withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy.copy();
+        return this;
+    }
+
+    /**
+     * 1リクエストあたりの最大試行回数を設定します.
+     * @param maxAttempts
+     * @return
+     */
+    public BatchWriter withMaxAttempts(int maxAttempts) {
+        this.retryPolicy.withMaxAttempts(maxAttempts);
+        return this;
+    }
+
+    /**
+     * 再送前の待ち時間を設定します. n回目の再送は0から min(max, base*2^n) ミリ秒の間でランダムに待ちます.
+     * @param baseMillis
+     * @param maxMillis
+     * @return
+     */
+    public BatchWriter withBackoff(long baseMillis, long maxMillis) {
+        this.retryPolicy.withBackoff(baseMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * 送信速度の制限を設定します. nullなら制限しません.
+     * @param capacityLimiter
+     * @return
+     */
+    public BatchWriter withCapacityLimiter(CapacityLimiter capacityLimiter) {
+        this.capacityLimiter = capacityLimiter;
+        return this;
+    }
+
+    /**
+     * テーブルごとの書き込み要求を全て書き込みます.
+     *
+     * 分割したリクエストは並列に送信するため、同じアイテムへの複数の要求の順序は保証しません.
+     * 呼び出し元で同じキーの要求を1つにまとめてください.
+     *
+     * @param requestItems テーブル名と書き込み要求のリスト
+     * @throws OperationException 再送しても書き込めない要求が残った場合
+     */
+    public void write(Map<String,List<WriteRequest>> requestItems) throws OperationException {
+        List<Map<String,List<WriteRequest>>> chunks = split(requestItems);
+        if(chunks.isEmpty()){
+            return;
+        }
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for(final Map<String,List<WriteRequest>> chunk : chunks){
+            calls.add(() -> {
+                this.writeChunk(chunk);
+                return null;
+            });
+        }
+        BatchSupport.runAll(this.executor, calls, "batch write");
+    }
+
+    /**
+     * 書き込み要求を25件ずつのリクエストに分割
+     * @param requestItems
+     * @return
+     */
+    static List<Map<String,List<WriteRequest>>> split(Map<String,List<WriteRequest>> requestItems) {
+        List<Map<String,List<WriteRequest>>> chunks = new ArrayList<Map<String,List<WriteRequest>>>();
+        Map<String,List<WriteRequest>> chunk = new LinkedHashMap<String,List<WriteRequest>>();
+        int count = 0;
+        for(Map.Entry<String,List<WriteRequest>> entry : requestItems.entrySet()){
+            for(WriteRequest request : entry.getValue()){
+                if(count==MAX_ITEMS_PER_REQUEST){
+                    chunks.add(chunk);
+                    chunk = new LinkedHashMap<String,List<WriteRequest>>();
+                    count = 0;
+                }
+                List<WriteRequest> requests = chunk.get(entry.getKey());
+                if(null==requests){
+                    requests = new ArrayList<WriteRequest>();
+                    chunk.put(entry.getKey(), requests);
+                }
+                requests.add(request);
+                count++;
+            }
+        }
+        if(count>0){
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * 25件以下のリクエストを、未処理の要求がなくなるまで再送して書き込む
+     * @param chunk
+     * @throws OperationException
+     */
+    private void writeChunk(Map<String,List<WriteRequest>> chunk) throws OperationException {
+        Map<String,List<WriteRequest>> pending = chunk;
+        RetryPolicy.Attempts attempts = this.retryPolicy.start("batch write");
+        while(true){
+            AmazonClientException error = null;
+            try {
+                BatchWriteItemRequest request = new BatchWriteItemRequest().withRequestItems(pending);
+                BatchWriteItemResult result = null;
+                if(null==this.capacityLimiter){
+                    result = this.client.batchWriteItem(request);
+                } else {
+                    Map<String,Double> reserved = this.capacityLimiter.acquire(CapacityLimiter.Kind.WRITE, units(pending));
+                    try {
+                        result = this.client.batchWriteItem(request.withReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES));
+                    } finally {
+                        if(null==result){
+                            this.capacityLimiter.release(CapacityLimiter.Kind.WRITE, reserved);
+                        } else {
+                            this.capacityLimiter.settle(CapacityLimiter.Kind.WRITE, reserved, result.getConsumedCapacity());
+                        }
+                    }
+                }
+                Map<String,List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+                if(null==unprocessed || unprocessed.isEmpty()){
+                    return;
+                }
+                pending = new HashMap<String,List<WriteRequest>>(unprocessed);
+            } catch(AmazonClientException e){
+                error = e;
+            }
+            // 入力の誤りなど再送しても成功しないエラーは、1回目で再送をやめる
+            if(!attempts.backoff(error)){
+                int remaining = 0;
+                for(List<WriteRequest> requests : pending.values()){
+                    remaining += requests.size();
+                }
+                throw new OperationException(remaining+" write requests remain unprocessed after "
+                        +attempts.attempt()+" attempts", error);
+            }
+        }
+    }
+
+    /**
+     * テーブルごとの最小の消費WCU
+     * @param pending
+     * @return
+     */
+    private static Map<String,Double> units(Map<String,List<WriteRequest>> pending) {
+        Map<String,Double> units = new LinkedHashMap<String,Double>();
+        for(Map.Entry<String,List<WriteRequest>> entry : pending.entrySet()){
+            units.put(entry.getKey(), entry.getValue().size()*CapacityLimiter.MIN_WRITE_UNITS);
+        }
+        return units;
+    }
+}
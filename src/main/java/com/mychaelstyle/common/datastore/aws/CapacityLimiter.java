@@ -0,0 +1,304 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.concurrent.TokenBucket;
+
+/**
+ * DynamoDBのテーブルごとのプロビジョンドスループットに合わせた送信速度の制限.
+ *
+ * テーブルごとに読み込み(RCU)と書き込み(WCU)のトークンバケットを持ち、
+ * DescribeTableで取得したスループットのutilization倍の速度で補充します.
+ * 操作の前に最小の消費量を取得し、応答のConsumedCapacityで実際の消費量との差分を精算するため、
+ * 大きなアイテムやscanのページで多く消費すると、次の操作が消費分を補充するまで待ちます.
+ * スループットを取得できないテーブルやオンデマンドのテーブルは制限しません.<br>
+ * DescribeTableはテーブルごとに最初の1回だけ操作を待たせて呼び、以降の再取得は別のスレッドで実行します.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class CapacityLimiter {
+
+    /** 読み込みか書き込みか */
+    public enum Kind {
+        /** 読み込み. RCU */
+        READ,
+        /** 書き込み. WCU */
+        WRITE
+    }
+
+    /** デフォルトのスループットに対する利用率 */
+    public static final double DEFAULT_UTILIZATION = 0.9;
+    /** デフォルトのスループットの再取得間隔ミリ秒 */
+    public static final long DEFAULT_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /** 1アイテムの読み込みの最小消費量. 結果整合性のある読み込みの4KBまで */
+    public static final double MIN_READ_UNITS = 0.5;
+    /** 1アイテムの書き込みの最小消費量. 1KBまで */
+    public static final double MIN_WRITE_UNITS = 1.0;
+
+    /** Logger by logback */
+    private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common.datastore");
+
+    private final AmazonDynamoDB client;
+    private final double utilization;
+    private long refreshMillis = DEFAULT_REFRESH_MILLIS;
+    private Executor refreshExecutor = null;
+    private final ConcurrentMap<String,TableCapacity> tables = new ConcurrentHashMap<String,TableCapacity>();
+
+    /**
+     * @param client DescribeTableに使うクライアント
+     * @param utilization プロビジョンドスループットのうち使う割合. 1.0なら上限まで
+     */
+    public CapacityLimiter(AmazonDynamoDB client, double utilization) {
+        if(utilization<=0){
+            throw new IllegalArgumentException("utilization must be positive");
+        }
+        this.client = client;
+        this.utilization = utilization;
+    }
+
+    /**
+     * スループットを再取得する間隔を設定します. 変更されたスループットはこの間隔で反映されます.
+     * @param refreshMillis
+     * @return
+     */
+    public CapacityLimiter withRefresh(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+        return this;
+    }
+
+    /**
+     * スループットの再取得を実行するExecutorを設定します. 設定しなければ{@link DatastoreExecutors#shared()}
+     * @param executor
+     * @return
+     */
+    public CapacityLimiter withRefreshExecutor(Executor executor) {
+        this.refreshExecutor = executor;
+        return this;
+    }
+
+    /**
+     * 操作の前に消費量を取得します. 前の操作の消費分が補充されていなければ待ちます.
+     * 待っている間に割り込まれた場合は、割り込み状態を戻して待たずに返ります.
+     *
+     * @param kind
+     * @param table
+     * @param units 予想される消費量
+     * @return 取得した量. 応答を受け取ったら{@link #settle(Kind, double, ConsumedCapacity)}に渡してください
+     */
+    public double acquire(Kind kind, String table, double units) {
+        try {
+            this.bucket(kind, table).acquire(units);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return units;
+    }
+
+    /**
+     * 複数テーブルへのbatch操作の前に、テーブルごとの消費量を取得します.
+     * @param kind
+     * @param unitsPerTable テーブル名と予想される消費量
+     * @return テーブル名と取得した量
+     */
+    public Map<String,Double> acquire(Kind kind, Map<String,Double> unitsPerTable) {
+        Map<String,Double> reserved = new LinkedHashMap<String,Double>();
+        for(Map.Entry<String,Double> entry : unitsPerTable.entrySet()){
+            reserved.put(entry.getKey(), this.acquire(kind, entry.getKey(), entry.getValue()));
+        }
+        return reserved;
+    }
+
+    /**
+     * 取得した量と応答の実際の消費量の差分を精算します.
+     * @param kind
+     * @param reserved {@link #acquire(Kind, String, double)}で取得した量
+     * @param consumed 応答のConsumedCapacity. nullなら精算しない
+     */
+    public void settle(Kind kind, double reserved, ConsumedCapacity consumed) {
+        if(null==consumed || null==consumed.getTableName()){
+            return;
+        }
+        Double units = tableUnits(consumed);
+        if(null!=units){
+            this.bucket(kind, consumed.getTableName()).adjust(units-reserved);
+        }
+    }
+
+    /**
+     * batch操作のテーブルごとの消費量を精算します.
+     * @param kind
+     * @param reserved {@link #acquire(Kind, Map)}で取得した量
+     * @param consumed 応答のConsumedCapacityのリスト. nullなら精算しない
+     */
+    public void settle(Kind kind, Map<String,Double> reserved, List<ConsumedCapacity> consumed) {
+        if(null==consumed){
+            return;
+        }
+        for(ConsumedCapacity capacity : consumed){
+            Double units = reserved.get(capacity.getTableName());
+            this.settle(kind, null==units ? 0 : units, capacity);
+        }
+    }
+
+    /**
+     * 応答を受け取れなかった操作の取得した量を、消費なしとして精算します.
+     * 失敗した操作の取得分を残すと、消費していない分まで次の操作が待つためです.
+     * @param kind
+     * @param table
+     * @param reserved {@link #acquire(Kind, String, double)}で取得した量
+     */
+    public void release(Kind kind, String table, double reserved) {
+        this.bucket(kind, table).adjust(-reserved);
+    }
+
+    /**
+     * 応答を受け取れなかったbatch操作のテーブルごとの取得した量を、消費なしとして精算します.
+     * @param kind
+     * @param reserved {@link #acquire(Kind, Map)}で取得した量
+     */
+    public void release(Kind kind, Map<String,Double> reserved) {
+        for(Map.Entry<String,Double> entry : reserved.entrySet()){
+            this.release(kind, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param kind
+     * @param table
+     * @return 現在の1秒あたりの制限. 制限しなければ0
+     */
+    public double getRate(Kind kind, String table) {
+        return this.bucket(kind, table).getRate();
+    }
+
+    /**
+     * @param kind
+     * @param table
+     * @return 現在の残高. 消費が予約を超えて後払いの分があれば負
+     */
+    public double available(Kind kind, String table) {
+        return this.bucket(kind, table).available();
+    }
+
+    /**
+     * インデックスを除いたテーブル自身の消費量
+     * @param consumed
+     * @return
+     */
+    private static Double tableUnits(ConsumedCapacity consumed) {
+        if(null!=consumed.getTable() && null!=consumed.getTable().getCapacityUnits()){
+            return consumed.getTable().getCapacityUnits();
+        }
+        return consumed.getCapacityUnits();
+    }
+
+    private TokenBucket bucket(Kind kind, String table) {
+        TableCapacity capacity = this.tables.get(table);
+        if(null==capacity){
+            TableCapacity created = new TableCapacity();
+            capacity = this.tables.putIfAbsent(table, created);
+            if(null==capacity){
+                // 最初に登録した呼び出しだけがDescribeTableを呼び、同時に呼ばれた他の呼び出しは取得を待つ
+                capacity = created;
+                try {
+                    this.refresh(table, created);
+                } finally {
+                    created.loaded.countDown();
+                }
+            }
+        }
+        if(capacity.loaded.getCount()>0){
+            try {
+                capacity.loaded.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if(System.currentTimeMillis()>=capacity.refreshAt
+                && capacity.refreshing.compareAndSet(false, true)){
+            this.refreshLater(table, capacity);
+        }
+        return kind==Kind.READ ? capacity.read : capacity.write;
+    }
+
+    /**
+     * 操作を待たせないよう、スループットを別のスレッドで再取得します.
+     * 再取得するまでは前の速度のまま制限します.
+     * @param table
+     * @param capacity
+     */
+    private void refreshLater(String table, TableCapacity capacity) {
+        Executor executor = null==this.refreshExecutor ? DatastoreExecutors.shared() : this.refreshExecutor;
+        try {
+            executor.execute(() -> {
+                try {
+                    this.refresh(table, capacity);
+                } finally {
+                    capacity.refreshing.set(false);
+                }
+            });
+        } catch(RejectedExecutionException e){
+            logger.warn("Fail to schedule the throughput refresh of "+table+", retry on the next operation", e);
+            capacity.refreshing.set(false);
+        }
+    }
+
+    /**
+     * DescribeTableでスループットを取得してバケットの速度に反映
+     * @param table
+     * @param capacity
+     */
+    private void refresh(String table, TableCapacity capacity) {
+        capacity.refreshAt = System.currentTimeMillis()+this.refreshMillis;
+        try {
+            ProvisionedThroughputDescription throughput = this.client.describeTable(
+                    new DescribeTableRequest().withTableName(table)).getTable().getProvisionedThroughput();
+            this.setRate(capacity.read, null==throughput ? null : throughput.getReadCapacityUnits());
+            this.setRate(capacity.write, null==throughput ? null : throughput.getWriteCapacityUnits());
+        } catch(AmazonClientException e){
+            logger.warn("Fail to describe the throughput of "+table+", not limited until the next refresh", e);
+            this.setRate(capacity.read, null);
+            this.setRate(capacity.write, null);
+        }
+    }
+
+    private void setRate(TokenBucket bucket, Long units) {
+        if(null==units || units<=0){
+            bucket.setRate(0, 0);
+            return;
+        }
+        double rate = units*this.utilization;
+        // 1秒分までためられる
+        bucket.setRate(rate, Math.max(1, rate));
+    }
+
+    /**
+     * テーブルの読み込みと書き込みのバケット
+     */
+    private static class TableCapacity {
+        final TokenBucket read = new TokenBucket(0, 0);
+        final TokenBucket write = new TokenBucket(0, 0);
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        /** 最初のスループットの取得が終わるとカウントが0になる */
+        final CountDownLatch loaded = new CountDownLatch(1);
+        volatile long refreshAt = 0;
+    }
+}
@@ -0,0 +1,269 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONObject;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.datastore.AwsDynamoDB;
+
+/**
+ * ページ単位で読み込むDynamoDBのResultSetの先読み.
+ *
+ * 呼び出し元がページNを処理している間に、ページN+1以降をバックグラウンドで読み込みます.
+ * 先読みは1ページずつ順に行い、読み込み済みで取り出されていないページが
+ * 設定のページ数かバイト数に達すると、ページが取り出されるまで止まります.
+ * 先読みのページ数が0なら、ページを使い切ったときに呼び出し元スレッドで読み込みます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public abstract class PagedResultSet implements ResultSet, AutoCloseable {
+
+    /** 先読みする最大ページ数のデフォルト */
+    public static final int DEFAULT_PREFETCH_PAGES = 2;
+    /** 先読みしたページの最大バイト数のデフォルト */
+    public static final long DEFAULT_PREFETCH_MAX_BYTES = 8L*1024*1024;
+
+    /**
+     * 読み込んだ1ページ
+     */
+    protected static final class Page {
+        final List<JSONObject> records;
+        final Map<String,AttributeValue> lastKey;
+        final long bytes;
+
+        /**
+         * @param items ページのアイテム
+         * @param lastKey 次のページの開始キー. 最後のページならnullか空
+         */
+        public Page(List<Map<String,AttributeValue>> items, Map<String,AttributeValue> lastKey) {
+            List<JSONObject> records = new ArrayList<JSONObject>();
+            long bytes = 0;
+            if(null!=items){
+                for(Map<String,AttributeValue> item : items){
+                    JSONObject record = AttributeValues.toJSONObject(item);
+                    if(null!=record){
+                        records.add(record);
+                        bytes += AttributeValues.size(item);
+                    }
+                }
+            }
+            this.records = records;
+            this.lastKey = lastKey;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int prefetchPages;
+    private final long prefetchMaxBytes;
+    private final Executor executor;
+    private final Object lock = new Object();
+    private final ArrayDeque<Page> pages = new ArrayDeque<Page>();
+    private Map<String,AttributeValue> nextKey = null;
+    private long bufferedBytes = 0;
+    private boolean fetching = false;
+    private boolean exhausted = false;
+    private boolean closed = false;
+    private Throwable failure = null;
+    /** 呼び出し元が取り出し中のページ */
+    private Iterator<JSONObject> current = Collections.<JSONObject>emptyList().iterator();
+
+    /**
+     * 設定JSONの{@link AwsDynamoDB#CONFIG_PREFETCH_PAGES}と{@link AwsDynamoDB#CONFIG_PREFETCH_MAX_BYTES}で
+     * 先読みし、共有のExecutorで読み込みます.
+     * @param config
+     */
+    protected PagedResultSet(JSONObject config) {
+        this(config.optInt(AwsDynamoDB.CONFIG_PREFETCH_PAGES, DEFAULT_PREFETCH_PAGES),
+                config.optLong(AwsDynamoDB.CONFIG_PREFETCH_MAX_BYTES, DEFAULT_PREFETCH_MAX_BYTES),
+                ExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * @param prefetchPages 先読みする最大ページ数. 0なら先読みしない
+     * @param prefetchMaxBytes 先読みしたページの最大バイト数(アイテムの概算サイズの合計)
+     * @param executor 先読みを実行するExecutor. 受け付けられない場合は呼び出し元スレッドで読み込みます
+     */
+    protected PagedResultSet(int prefetchPages, long prefetchMaxBytes, Executor executor) {
+        this.prefetchPages = Math.max(0, prefetchPages);
+        this.prefetchMaxBytes = prefetchMaxBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * 1ページを読み込みます. 先読みのスレッドから1ページずつ順に呼び出されます.
+     * @param startKey 開始キー. 最初のページならnull
+     * @return
+     * @throws Exception
+     */
+    protected abstract Page fetch(Map<String,AttributeValue> startKey) throws Exception;
+
+    /**
+     * 最初のページの先読みを始めます. サブクラスのコンストラクタの最後で呼び出してください.
+     */
+    protected void start() {
+        this.prefetch();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.ResultSet#next()
+     */
+    @Override
+    public JSONObject next() throws ConfigurationException, ConnectionException, OperationException {
+        if(this.hasNext()){
+            return this.current.next();
+        }
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.ResultSet#hasNext()
+     */
+    @Override
+    public boolean hasNext() throws ConfigurationException, ConnectionException, OperationException {
+        while(!this.current.hasNext()){
+            Page page = null;
+            boolean fetchHere = false;
+            synchronized(this.lock){
+                while(null==this.failure && !this.closed && this.pages.isEmpty() && !this.exhausted){
+                    if(!this.fetching){
+                        // 先読みしていなければ呼び出し元スレッドで読み込む
+                        this.fetching = true;
+                        fetchHere = true;
+                        break;
+                    }
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        this.close();
+                        throw new OperationException("Interrupted while waiting for the next page", e);
+                    }
+                }
+                if(!fetchHere){
+                    // 読み込み済みのページを全て取り出してから失敗を送出する
+                    page = this.pages.poll();
+                    if(null==page){
+                        if(null!=this.failure){
+                            throw rethrow(this.failure);
+                        }
+                        return false;
+                    }
+                    this.bufferedBytes -= page.bytes;
+                }
+            }
+            if(fetchHere){
+                this.fetchNext();
+                continue;
+            }
+            this.current = page.records.iterator();
+            this.prefetch();
+        }
+        return true;
+    }
+
+    /**
+     * 先読みを止めて読み込み済みのページを捨てます. 以降のhasNextはfalseを返します.
+     */
+    @Override
+    public void close() {
+        synchronized(this.lock){
+            this.closed = true;
+            this.pages.clear();
+            this.bufferedBytes = 0;
+            this.lock.notifyAll();
+        }
+        this.current = Collections.<JSONObject>emptyList().iterator();
+    }
+
+    /**
+     * 上限に達していなければ次のページの先読みを始める
+     */
+    private void prefetch() {
+        synchronized(this.lock){
+            if(this.fetching || this.exhausted || this.closed || null!=this.failure
+                    || this.pages.size()>=this.prefetchPages || this.bufferedBytes>=this.prefetchMaxBytes){
+                return;
+            }
+            this.fetching = true;
+        }
+        try {
+            this.executor.execute(this::fetchNext);
+        } catch(RejectedExecutionException e){
+            // 呼び出し元がページを使い切ったときに読み込む
+            synchronized(this.lock){
+                this.fetching = false;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 次のページを読み込んでバッファに追加し、続けて先読みする
+     */
+    private void fetchNext() {
+        Map<String,AttributeValue> startKey;
+        synchronized(this.lock){
+            startKey = this.nextKey;
+        }
+        Page page = null;
+        Throwable error = null;
+        try {
+            page = this.fetch(startKey);
+        } catch(Throwable e){
+            error = e;
+        }
+        synchronized(this.lock){
+            this.fetching = false;
+            if(null!=error){
+                this.failure = error;
+            } else {
+                this.nextKey = page.lastKey;
+                // フィルタで全件除かれたページでも続きがあれば読み込みを続ける
+                this.exhausted = null==page.lastKey || page.lastKey.isEmpty();
+                if(!this.closed && !page.records.isEmpty()){
+                    this.pages.add(page);
+                    this.bufferedBytes += page.bytes;
+                }
+            }
+            this.lock.notifyAll();
+        }
+        if(null==error){
+            this.prefetch();
+        }
+    }
+
+    private static OperationException rethrow(Throwable cause)
+            throws ConfigurationException, ConnectionException, OperationException {
+        if(cause instanceof ConfigurationException){
+            throw (ConfigurationException) cause;
+        } else if(cause instanceof ConnectionException){
+            throw (ConnectionException) cause;
+        } else if(cause instanceof OperationException){
+            throw (OperationException) cause;
+        }
+        return new OperationException(cause);
+    }
+
+    /**
+     * 先読み用の共有Executor. スレッドはデーモンで、使われなければ終了する
+     */
+    private static class ExecutorHolder {
+        static final ExecutorService EXECUTOR = DatastoreExecutors.newBoundedExecutor("dynamodb-prefetch",
+                Math.max(2, Runtime.getRuntime().availableProcessors()*2), 256, DatastoreExecutors.Overflow.ABORT);
+    }
+}
@@ -0,0 +1,337 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.retry.RetryPolicy;
+
+/**
+ * DynamoDBの並列スキャン.
+ *
+ * テーブルをSegment/TotalSegmentsで分割し、セグメントごとのスレッドで同時にスキャンします.
+ * 結果は全セグメントをまとめたResultSetか、セグメントごとのコンシューマで受け取れます.
+ * スループット超過などのエラーは{@link RetryPolicy}の指数バックオフで待ってから同じページを読み直します.
+ * {@link CapacityLimiter}を設定すると、全セグメントの合計がテーブルのRCUを超えないようにページの読み込みを待ちます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class ParallelScan {
+
+    /** まとめたResultSetのデフォルトのバッファ件数 */
+    public static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    /**
+     * セグメントごとにスキャン結果を受け取るコンシューマ.
+     * 同じセグメントのレコードは同じスレッドから順に渡され、異なるセグメントのレコードは同時に渡されます.
+     */
+    public interface SegmentConsumer {
+        /**
+         * @param segment セグメント番号. 0からtotalSegments-1
+         * @param record
+         * @throws Exception 送出するとスキャン全体を失敗として終了します
+         */
+        void accept(int segment, JSONObject record) throws Exception;
+    }
+
+    private final AmazonDynamoDB client;
+    private final ScanRequest request;
+    private final int totalSegments;
+    private RetryPolicy retryPolicy = new RetryPolicy(AwsErrorClassifier.INSTANCE);
+    private CapacityLimiter capacityLimiter = null;
+
+    /**
+     * @param client DynamoDBクライアント
+     * @param request テーブル名、フィルタ、取得項目、ページ件数を設定したScanRequest. セグメントの設定は上書きします
+     * @param totalSegments 分割数. 同時に実行するスレッド数になります
+     */
+    public ParallelScan(AmazonDynamoDB client, ScanRequest request, int totalSegments) {
+        if(totalSegments<1){
+            throw new IllegalArgumentException("totalSegments must be positive");
+        }
+        this.client = client;
+        this.request = request;
+        this.totalSegments = totalSegments;
+    }
+
+    /**
+     * 再試行の設定を差し替えます.
+     * 設定は複製して持つため、{@link #withMaxAttempts(int)}などで変更しても渡したRetryPolicyは変わりません.
+     * @param retryPolicy
+     * @return
+     */
+    public ParallelScan withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy.copy();
+        return this;
+    }
+
+    /**
+     * 1ページあたりの最大試行回数を設定します.
+     * @param maxAttempts
+     * @return
+     */
+    public ParallelScan withMaxAttempts(int maxAttempts) {
+        this.retryPolicy.withMaxAttempts(maxAttempts);
+        return this;
+    }
+
+    /**
+     * 読み直し前の待ち時間を設定します. n回目の読み直しは0から min(max, base*2^n) ミリ秒の間でランダムに待ちます.
+     * @param baseMillis
+     * @param maxMillis
+     * @return
+     */
+    public ParallelScan withBackoff(long baseMillis, long maxMillis) {
+        this.retryPolicy.withBackoff(baseMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * 読み込み速度の制限を設定します. nullなら制限しません.
+     * @param capacityLimiter
+     * @return
+     */
+    public ParallelScan withCapacityLimiter(CapacityLimiter capacityLimiter) {
+        this.capacityLimiter = capacityLimiter;
+        return this;
+    }
+
+    /**
+     * 全セグメントを並列にスキャンし、レコードをセグメントごとにコンシューマへ渡します.
+     * 全セグメントのスキャンが終わるまで戻りません.
+     *
+     * @param consumer
+     * @throws OperationException スキャンまたはコンシューマが失敗した場合. 他のセグメントの完了を待ってから送出する
+     */
+    public void forEachSegment(final SegmentConsumer consumer) throws OperationException {
+        ThreadPoolExecutor executor = DatastoreExecutors.newBoundedExecutor("dynamodb-scan",
+                this.totalSegments, this.totalSegments, DatastoreExecutors.Overflow.CALLER_RUNS);
+        try {
+            List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+            for(int segment=0; segment<this.totalSegments; segment++){
+                final int current = segment;
+                calls.add(() -> {
+                    this.scanSegment(current, consumer);
+                    return null;
+                });
+            }
+            BatchSupport.runAll(executor, calls, "parallel scan");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 全セグメントを並列にスキャンし、結果をまとめて順に取り出すResultSetを返します.
+     *
+     * レコードの順序はセグメント間で不定です. スキャンはバックグラウンドで進み、
+     * 取り出されていないレコードがbufferSize件に達すると取り出されるまで待ちます.
+     * 最後まで取り出さない場合は{@link Results#close()}を呼び出してスキャンを止めてください.
+     *
+     * @param bufferSize
+     * @return
+     */
+    public Results resultSet(int bufferSize) {
+        return new Results(bufferSize);
+    }
+
+    /**
+     * @return バッファ件数{@link #DEFAULT_BUFFER_SIZE}のResultSet
+     */
+    public Results resultSet() {
+        return this.resultSet(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * 1セグメントを最後までスキャン
+     * @param segment
+     * @param consumer
+     * @throws Exception
+     */
+    private void scanSegment(int segment, SegmentConsumer consumer) throws Exception {
+        ScanRequest segmentRequest = copy(this.request)
+                .withSegment(segment).withTotalSegments(this.totalSegments);
+        if(null!=this.capacityLimiter){
+            segmentRequest.setReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
+        }
+        Map<String,AttributeValue> lastKey = null;
+        do {
+            segmentRequest.setExclusiveStartKey(lastKey);
+            ScanResult result = this.scanPage(segmentRequest);
+            for(Map<String,AttributeValue> item : result.getItems()){
+                JSONObject record = AttributeValues.toJSONObject(item);
+                if(null!=record){
+                    consumer.accept(segment, record);
+                }
+            }
+            // フィルタで全件除かれたページでも続きがあればスキャンを続ける
+            lastKey = result.getLastEvaluatedKey();
+        } while(null!=lastKey && !lastKey.isEmpty());
+    }
+
+    /**
+     * セグメントごとのScanRequestを作るため、元のリクエストの問い合わせ条件を複製
+     * @param request
+     * @return
+     */
+    private static ScanRequest copy(ScanRequest request) {
+        return new ScanRequest().withTableName(request.getTableName())
+                .withAttributesToGet(request.getAttributesToGet())
+                .withLimit(request.getLimit())
+                .withSelect(request.getSelect())
+                .withScanFilter(request.getScanFilter())
+                .withConditionalOperator(request.getConditionalOperator())
+                .withReturnConsumedCapacity(request.getReturnConsumedCapacity())
+                .withProjectionExpression(request.getProjectionExpression())
+                .withFilterExpression(request.getFilterExpression())
+                .withExpressionAttributeNames(request.getExpressionAttributeNames())
+                .withExpressionAttributeValues(request.getExpressionAttributeValues());
+    }
+
+    /**
+     * 1ページをスキャン. 再送可能なエラーはバックオフして読み直す
+     * @param segmentRequest
+     * @return
+     * @throws OperationException
+     */
+    private ScanResult scanPage(ScanRequest segmentRequest) throws OperationException {
+        try {
+            return this.retryPolicy.execute("parallel scan", () -> {
+                if(null==this.capacityLimiter){
+                    return this.client.scan(segmentRequest);
+                }
+                double reserved = this.capacityLimiter.acquire(CapacityLimiter.Kind.READ,
+                        segmentRequest.getTableName(), CapacityLimiter.MIN_READ_UNITS);
+                ScanResult result = null;
+                try {
+                    result = this.client.scan(segmentRequest);
+                } finally {
+                    if(null==result){
+                        this.capacityLimiter.release(CapacityLimiter.Kind.READ, segmentRequest.getTableName(), reserved);
+                    } else {
+                        this.capacityLimiter.settle(CapacityLimiter.Kind.READ, reserved, result.getConsumedCapacity());
+                    }
+                }
+                return result;
+            });
+        } catch(AmazonClientException e){
+            throw new OperationException("Fail to scan segment "+segmentRequest.getSegment(), e);
+        }
+    }
+
+    /**
+     * 全セグメントの結果をまとめたResultSet
+     */
+    public class Results implements ResultSet, AutoCloseable {
+        /** セグメントの終了を表す */
+        private final Object endOfSegment = new Object();
+        private final BlockingQueue<Object> queue;
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final ThreadPoolExecutor executor;
+        private int finished = 0;
+        private JSONObject nextRecord = null;
+        private volatile boolean closed = false;
+
+        Results(int bufferSize) {
+            this.queue = new ArrayBlockingQueue<Object>(Math.max(1, bufferSize));
+            this.executor = DatastoreExecutors.newBoundedExecutor("dynamodb-scan",
+                    ParallelScan.this.totalSegments, ParallelScan.this.totalSegments,
+                    DatastoreExecutors.Overflow.ABORT);
+            for(int segment=0; segment<ParallelScan.this.totalSegments; segment++){
+                final int current = segment;
+                this.executor.execute(() -> this.run(current));
+            }
+            this.executor.shutdown();
+        }
+
+        private void run(int segment) {
+            try {
+                ParallelScan.this.scanSegment(segment, (number, record) -> this.queue.put(record));
+            } catch(InterruptedException e){
+                // closeで中断された
+                return;
+            } catch(Throwable e){
+                this.failure.compareAndSet(null, e);
+            }
+            try {
+                this.queue.put(this.endOfSegment);
+            } catch(InterruptedException e){
+                // closeで中断された
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.ResultSet#next()
+         */
+        @Override
+        public JSONObject next() throws ConfigurationException, ConnectionException, OperationException {
+            if(!this.hasNext()){
+                return null;
+            }
+            JSONObject record = this.nextRecord;
+            this.nextRecord = null;
+            return record;
+        }
+
+        /* (non-Javadoc)
+         * @see com.mychaelstyle.common.GenericDatastore.ResultSet#hasNext()
+         */
+        @Override
+        public boolean hasNext() throws ConfigurationException, ConnectionException, OperationException {
+            while(null==this.nextRecord){
+                if(this.closed || this.finished>=ParallelScan.this.totalSegments){
+                    return false;
+                }
+                Object element;
+                try {
+                    element = this.queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.close();
+                    throw new OperationException("Interrupted while waiting for scan results", e);
+                }
+                if(element==this.endOfSegment){
+                    this.finished++;
+                    Throwable cause = this.failure.get();
+                    if(null!=cause){
+                        this.close();
+                        throw (cause instanceof OperationException)
+                            ? (OperationException) cause : new OperationException(cause);
+                    }
+                } else {
+                    this.nextRecord = (JSONObject) element;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * スキャンを中断します. 以降のhasNextはfalseを返します.
+         */
+        @Override
+        public void close() {
+            this.closed = true;
+            this.executor.shutdownNow();
+            this.queue.clear();
+        }
+    }
+}
@@ -1,44 +1,44 @@
 package com.mychaelstyle.common.datastore.aws;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 import org.json.JSONObject;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
-import com.mychaelstyle.common.GenericDatastore.ConnectionException;
-import com.mychaelstyle.common.GenericDatastore.OperationException;
 import com.mychaelstyle.common.datastore.AwsDynamoDB;
+import com.mychaelstyle.common.retry.RetryPolicy;
 
 /**
- * 
+ * scanの結果を順に取り出すResultSet.
+ * 次のページは{@link PagedResultSet}でバックグラウンドに先読みします.
+ * 設定の{@link AwsDynamoDB#CONFIG_CAPACITY_UTILIZATION}が有効なら、テーブルのRCUを超えないようにページの読み込みを待ちます.
+ *
  * @author Masanori Nakashima
  *
  */
-public class SResultSet implements com.mychaelstyle.common.GenericDatastore.ResultSet {
+public class SResultSet extends PagedResultSet {
 
     /**
      * configuration to connect
      */
     protected JSONObject config = null;
-    /**
-     * last key of scan
-     */
-    protected Map<String,AttributeValue> lastKey = null;
     /**
      * ScanRequest
      */
     protected ScanRequest request;
     /**
-     * result queue
+     * 再試行. スループット超過や通信エラーだけをバックオフして再試行する
      */
-    Queue<JSONObject> resultQueue = null;
+    protected RetryPolicy retryPolicy;
+    /**
+     * テーブルごとの送信速度の制限. 無効ならnull
+     */
+    protected CapacityLimiter capacityLimiter;
 
     /**
      * constructor
@@ -46,45 +46,13 @@ public class SResultSet implements com.mychaelstyle.common.GenericDatastore.Resu
      * @throws ConfigurationException 
      */
     public SResultSet(JSONObject config, ScanRequest request) throws ConfigurationException{
+        super(config);
         this.request = request;
         this.config = config;
-        this.load();
-    }
-
-    /**
-     * get next JSONObject
-     * @return JSONObject
-     * @throws ConfigurationException 
-     * @throws ConnectionException 
-     * @throws OperationException 
-     */
-    public JSONObject next() throws ConfigurationException,ConnectionException,OperationException{
-        if(this.hasNext()) {
-            return this.resultQueue.poll();
-        }
-        return null;
-    }
-
-    /**
-     * has next
-     * @return boolean
-     * @throws ConfigurationException 
-     * @throws ConnectionException 
-     * @throws OperationException 
-     */
-    public boolean hasNext() throws ConfigurationException,ConnectionException,OperationException {
-        if(this.resultQueue == null || this.resultQueue.size()==0) {
-            if(null == this.lastKey){
-                return false;
-            }
-            this.load();
-            if(null == this.resultQueue || this.resultQueue.size()==0){
-                return false;
-            } else {
-                return true;
-            }
-        }
-        return true;
+        this.retryPolicy = AwsDynamoDB.newRetryPolicy(config);
+        AwsDynamoDB.getClient(this.config);
+        this.capacityLimiter = AwsDynamoDB.getCapacityLimiter(this.config);
+        this.start();
     }
 
     /**
@@ -92,50 +60,33 @@ public class SResultSet implements com.mychaelstyle.common.GenericDatastore.Resu
      * @return
      * @throws ConfigurationException 
      */
-    private void load() throws ConfigurationException{
-       AmazonDynamoDBClient c = AwsDynamoDB.getClient(this.config);
-            this.request.setExclusiveStartKey(this.lastKey);
-            ScanResult result = null;
-            int counter=0;
-            while(true){
-                try {
-                    result = c.scan(this.request);
-                    break;
-                } catch(Throwable e){
-                    if(counter>10){ throw e; }
-                    try {
-                        Thread.sleep(10000);
-                    } catch(Throwable ex){
-                        // through
-                    }
-                }
-                counter++;
-            }
-            List<Map<String,AttributeValue>> resList = result.getItems();
-            if(resList.size()==0){
-                this.resultQueue = null;
-                this.lastKey = null;
-                return;
+    @Override
+    protected Page fetch(Map<String,AttributeValue> startKey) throws ConfigurationException{
+        AmazonDynamoDBClient c = AwsDynamoDB.getClient(this.config);
+        this.request.setExclusiveStartKey(startKey);
+        CapacityLimiter limiter = this.capacityLimiter;
+        if(null!=limiter){
+            this.request.setReturnConsumedCapacity(ReturnConsumedCapacity.INDEXES);
+        }
+        ScanResult result = this.retryPolicy.execute("scan", () -> {
+            if(null==limiter){
+                return c.scan(this.request);
             }
-            this.resultQueue = new LinkedList<JSONObject>();
-            for(Map<String,AttributeValue> item : resList){
-                JSONObject json = new JSONObject();
-                for(Map.Entry<String, AttributeValue> field : item.entrySet()){
-                    String key = field.getKey();
-                    AttributeValue atv = field.getValue();
-                    String value = atv.getS();
-                    if(null!=value){
-                        json.put(key, value);
-                    } else {
-                        value = atv.getN();
-                        if(null!=value){
-                            json.put(key, value);
-                        }
-                    }
+            double reserved = limiter.acquire(CapacityLimiter.Kind.READ,
+                    this.request.getTableName(), CapacityLimiter.MIN_READ_UNITS);
+            ScanResult page = null;
+            try {
+                page = c.scan(this.request);
+            } finally {
+                if(null==page){
+                    limiter.release(CapacityLimiter.Kind.READ, this.request.getTableName(), reserved);
+                } else {
+                    limiter.settle(CapacityLimiter.Kind.READ, reserved, page.getConsumedCapacity());
                 }
-                this.resultQueue.add(json);
             }
-            this.lastKey = result.getLastEvaluatedKey();
-        }
+            return page;
+        });
+        return new Page(result.getItems(), result.getLastEvaluatedKey());
+    }
 
 }
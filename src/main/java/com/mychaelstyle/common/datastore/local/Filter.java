@@ -0,0 +1,148 @@
+package com.mychaelstyle.common.datastore.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.Provider;
+
+/**
+ * scan, queryの条件JSONをプロセス内で評価するフィルタ.
+ *
+ * 条件のフォーマットはProvider.scanと同じで、演算子は
+ * &lt;, &lt;=, &gt;, &gt;=, =, beginWith です. 未知の演算子はDynamoDBの実装と同じく=として扱います.
+ * 全ての条件を満たすレコードだけを通します.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class Filter {
+
+    public static final String OPERATOR_EQ = "=";
+    public static final String OPERATOR_LT = "<";
+    public static final String OPERATOR_LE = "<=";
+    public static final String OPERATOR_GT = ">";
+    public static final String OPERATOR_GE = ">=";
+    public static final String OPERATOR_BEGIN_WITH = "beginWith";
+
+    /** 条件のないフィルタ */
+    public static final Filter NONE = new Filter(null);
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+
+    /**
+     * Constructor
+     * @param conditions 条件JSON. nullなら全てのレコードを通す
+     */
+    public Filter(JSONObject conditions) {
+        if(null==conditions){
+            return;
+        }
+        for(Object name : conditions.keySet()){
+            JSONObject condition = conditions.getJSONObject((String) name);
+            this.conditions.add(new Condition((String) name,
+                    condition.optString(Provider.NAME_CONDITION_OPERATOR, OPERATOR_EQ),
+                    condition.get(Provider.NAME_CONDITION_VAL)));
+        }
+    }
+
+    /**
+     * フィールドの条件を取得
+     * @param field
+     * @return 条件がなければnull
+     */
+    public Condition get(String field) {
+        for(Condition condition : this.conditions){
+            if(condition.getField().equals(field)){
+                return condition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 全ての条件を満たすか
+     * @param record
+     * @return
+     */
+    public boolean matches(JSONObject record) {
+        for(Condition condition : this.conditions){
+            if(!condition.test(record.opt(condition.getField()))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 1フィールドに対する条件
+     */
+    public static class Condition {
+        private final String field;
+        private final String operator;
+        private final Object value;
+
+        Condition(String field, String operator, Object value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        /**
+         * @return フィールド名
+         */
+        public String getField() {
+            return this.field;
+        }
+
+        /**
+         * @return 演算子
+         */
+        public String getOperator() {
+            return this.operator;
+        }
+
+        /**
+         * @return 比較する値
+         */
+        public Object getValue() {
+            return this.value;
+        }
+
+        /**
+         * =による完全一致の条件か
+         * @return
+         */
+        public boolean isEquality() {
+            return !OPERATOR_LT.equals(this.operator) && !OPERATOR_LE.equals(this.operator)
+                    && !OPERATOR_GT.equals(this.operator) && !OPERATOR_GE.equals(this.operator)
+                    && !OPERATOR_BEGIN_WITH.equalsIgnoreCase(this.operator);
+        }
+
+        /**
+         * 値が条件を満たすか
+         * @param actual フィールドの値. フィールドがなければnull
+         * @return
+         */
+        public boolean test(Object actual) {
+            if(null==actual){
+                return false;
+            }
+            if(OPERATOR_BEGIN_WITH.equalsIgnoreCase(this.operator)){
+                return actual.toString().startsWith(this.value.toString());
+            }
+            int compared = Values.compare(actual, Values.coerce(this.value, actual));
+            if(OPERATOR_LT.equals(this.operator)){
+                return compared<0;
+            } else if(OPERATOR_LE.equals(this.operator)){
+                return compared<=0;
+            } else if(OPERATOR_GT.equals(this.operator)){
+                return compared>0;
+            } else if(OPERATOR_GE.equals(this.operator)){
+                return compared>=0;
+            }
+            return compared==0;
+        }
+    }
+}
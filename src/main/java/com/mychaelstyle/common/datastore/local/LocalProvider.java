@@ -0,0 +1,117 @@
+package com.mychaelstyle.common.datastore.local;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.BaseProvider;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+/**
+ * プロセス内にレコードを持つプロバイダの基底クラス.
+ *
+ * 通信の往復がないため、batchGet, batchWriteは要素ごとのget, put, deleteとして実行します.
+ *
+ * @author Masanori Nakashima
+ */
+public abstract class LocalProvider extends BaseProvider {
+
+    /** 格納するキーの区切り */
+    protected static final char DELIMITER = '\0';
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchGet(org.json.JSONArray)
+     */
+    @Override
+    public JSONObject batchGet(final JSONArray conditions)
+            throws ConnectionException, ConfigurationException, OperationException {
+        JSONObject result = new JSONObject();
+        for(int num=0; num<conditions.length(); num++){
+            JSONObject record = this.get(toKey(conditions.getJSONObject(num)));
+            if(null!=record){
+                String table = conditions.getJSONObject(num).getString(FIELD_TABLE);
+                JSONArray rows = result.optJSONArray(table);
+                if(null==rows){
+                    rows = new JSONArray();
+                    result.put(table, rows);
+                }
+                rows.put(record);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchWrite(org.json.JSONArray)
+     */
+    @Override
+    public void batchWrite(final JSONArray jsonArray)
+            throws ConnectionException, ConfigurationException, OperationException {
+        for(int num=0; num<jsonArray.length(); num++){
+            JSONObject element = jsonArray.getJSONObject(num);
+            Key key = toKey(element);
+            if(ACTION_DELETE.equals(element.optString(FIELD_ACTION))){
+                this.delete(key);
+            } else {
+                this.put(key, element.getJSONObject(FIELD_DATA));
+            }
+        }
+    }
+
+    /**
+     * batchGet, batchWriteの要素から問い合わせキーを作成
+     * @param element
+     * @return
+     */
+    protected static Key toKey(final JSONObject element) {
+        String keyName = element.getString(FIELD_KEY);
+        JSONObject data = element.getJSONObject(FIELD_DATA);
+        Key key = new Key(element.getString(FIELD_TABLE), keyName, data.get(keyName));
+        String subkeyName = element.optString(FIELD_SUBKEY, null);
+        if(null!=subkeyName && data.has(subkeyName)){
+            key = key.withSubkey(subkeyName, data.get(subkeyName));
+        }
+        return key;
+    }
+
+    /**
+     * レコードにキーのフィールドがなければ追加.
+     * scanの結果やbatchGetの結果からキーを復元できるようにするためです.
+     * @param key
+     * @param record
+     * @return
+     */
+    protected static JSONObject withKeyFields(final Key key, final JSONObject record) {
+        if(null!=key.getKeyName() && !record.has(key.getKeyName())){
+            record.put(key.getKeyName(), key.getKeyValue());
+        }
+        if(key.hasSubkey() && null!=key.getSubkeyValue() && !record.has(key.getSubkeyName())){
+            record.put(key.getSubkeyName(), key.getSubkeyValue());
+        }
+        return record;
+    }
+
+    /**
+     * 問い合わせキーを格納するキーの文字列「テーブル名\0主キー値[\0副キー値]」に変換
+     * @param key
+     * @return
+     */
+    protected static String storageKey(final Key key) {
+        StringBuilder buf = new StringBuilder(key.getTableName()).append(DELIMITER)
+                .append(key.getKeyValue());
+        if(key.hasSubkey() && null!=key.getSubkeyValue()){
+            buf.append(DELIMITER).append(key.getSubkeyValue());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @param table テーブル名
+     * @return テーブルのレコードを格納するキーの接頭辞
+     */
+    protected static String tablePrefix(final String table) {
+        return table+DELIMITER;
+    }
+}
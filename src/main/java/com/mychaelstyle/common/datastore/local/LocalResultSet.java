@@ -0,0 +1,56 @@
+package com.mychaelstyle.common.datastore.local;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+
+/**
+ * プロセス内のレコードを順に読み、フィルタを満たすものを返すResultSet.
+ * レコードはhasNextで必要になった時点で1件ずつ読みます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class LocalResultSet implements ResultSet {
+
+    private final Iterator<JSONObject> source;
+    private final Filter filter;
+    private final List<String> fields;
+    private JSONObject nextRecord = null;
+
+    /**
+     * Constructor
+     * @param source 読み込むレコード
+     * @param filter 条件
+     * @param fields 取得するフィールド. nullなら全フィールド
+     */
+    public LocalResultSet(Iterator<JSONObject> source, Filter filter, List<String> fields) {
+        this.source = source;
+        this.filter = filter;
+        this.fields = fields;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while(null==this.nextRecord && this.source.hasNext()){
+            JSONObject record = this.source.next();
+            if(null!=record && this.filter.matches(record)){
+                this.nextRecord = record;
+            }
+        }
+        return null!=this.nextRecord;
+    }
+
+    @Override
+    public JSONObject next() {
+        if(!this.hasNext()){
+            return null;
+        }
+        JSONObject record = this.nextRecord;
+        this.nextRecord = null;
+        return Values.project(record, this.fields);
+    }
+}
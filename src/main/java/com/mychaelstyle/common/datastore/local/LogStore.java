@@ -0,0 +1,529 @@
+package com.mychaelstyle.common.datastore.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+/**
+ * 文字列のキーとバイト列の値を追記型のセグメントファイルに書き込み、メモリマップで読む永続化ストア.
+ *
+ * 書き込みは最新のセグメントの末尾に順に追記し、キーから格納位置への索引をメモリ上に持ちます.
+ * 読み込みは索引で引いた位置をマップしたファイルから直接読むため、システムコールを伴いません.<br>
+ * <br>
+ * エントリのフォーマットは [CRC32][キー長][値長(削除は-1)][キー][値] です.
+ * 開くときにセグメントを古い順に読み直して索引を復元し、CRCが一致しない書きかけのエントリ以降は捨てます.<br>
+ * 上書きや削除で古くなったエントリの割合がしきい値を超えたセグメントは、
+ * 生きているエントリを最新のセグメントに書き直してから削除します.<br>
+ * <br>
+ * 書き込みとコンパクションは1つのロックで順に実行し、読み込みはロックを取りません.
+ * syncを指定しなければ書き込みはOSのページキャッシュに残り、プロセスが落ちても失われませんが、
+ * OSが落ちた場合は最後の同期以降の書き込みが失われます.
+ *
+ * @author Masanori Nakashima
+ */
+public class LogStore implements Closeable {
+
+    /** Logger by logback */
+    private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common.datastore");
+
+    /** エントリのヘッダ長. CRC32、キー長、値長 */
+    static final int HEADER_BYTES = 12;
+    /** 削除を表す値長 */
+    private static final int TOMBSTONE = -1;
+    private static final String SUFFIX = ".log";
+    private static final String LOCK_FILE = "LOCK";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final boolean sync;
+    private final double compactionThreshold;
+    /** キーから格納位置(セグメント番号とオフセット) */
+    private final ConcurrentNavigableMap<String,Long> index = new ConcurrentSkipListMap<String,Long>();
+    private final ConcurrentNavigableMap<Integer,Segment> segments = new ConcurrentSkipListMap<Integer,Segment>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final LongAdder compactions = new LongAdder();
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final ScheduledExecutorService compactor;
+    /** 追記先のセグメント. writeLockを取って変更する */
+    private Segment active = null;
+    private volatile boolean closed = false;
+
+    /**
+     * ディレクトリのセグメントを読み直して開きます.
+     * @param directory セグメントを置くディレクトリ. なければ作成します
+     * @param segmentBytes 1セグメントのバイト数. 1レコードの最大長になります
+     * @param sync 書き込みごとにディスクへ同期するか
+     * @param compactionThreshold 古くなったエントリがこの割合を超えたセグメントを詰め直す
+     * @param compactionIntervalMillis コンパクションの間隔ミリ秒. 0以下なら自動では実行しない
+     * @throws IOException
+     */
+    public LogStore(Path directory, int segmentBytes, boolean sync, double compactionThreshold,
+            long compactionIntervalMillis) throws IOException {
+        if(segmentBytes<=HEADER_BYTES){
+            throw new IllegalArgumentException("segment_bytes must be larger than "+HEADER_BYTES);
+        }
+        if(compactionThreshold<=0 || compactionThreshold>1){
+            throw new IllegalArgumentException("compaction_threshold must be in (0, 1]");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        this.compactionThreshold = compactionThreshold;
+        Files.createDirectories(directory);
+        // 同じディレクトリを複数のプロセスで開くとセグメントが壊れる
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = this.lockChannel.tryLock();
+        } catch(OverlappingFileLockException e){
+            lock = null;
+        }
+        if(null==lock){
+            this.lockChannel.close();
+            throw new IOException(directory+" is already opened");
+        }
+        this.fileLock = lock;
+        this.recover();
+        if(compactionIntervalMillis>0){
+            this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "logstore-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    this.compact();
+                } catch(OperationException e){
+                    logger.warn("compaction failed : "+this.directory, e);
+                }
+            }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    /**
+     * セグメントを古い順に読み直して索引を復元する
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*"+SUFFIX)){
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Integer.valueOf(name.substring(0, name.length()-SUFFIX.length())));
+                } catch(NumberFormatException e){
+                    // セグメント以外のファイルは無視する
+                }
+            }
+        }
+        Collections.sort(ids);
+        for(Integer id : ids){
+            Segment segment = this.open(id);
+            this.segments.put(id, segment);
+            this.replay(segment);
+        }
+        if(this.segments.isEmpty()){
+            this.active = this.open(0);
+            this.segments.put(0, this.active);
+        } else {
+            this.active = this.segments.lastEntry().getValue();
+            // 書きかけのエントリの残りが次の書き込みの後ろで有効に見えないよう消す
+            ByteBuffer buffer = this.active.buffer.duplicate();
+            buffer.position(this.active.position);
+            while(buffer.hasRemaining()){
+                buffer.put((byte) 0);
+            }
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while(offset+HEADER_BYTES<=buffer.capacity()){
+            int keyLength = buffer.getInt(offset+4);
+            int valueLength = buffer.getInt(offset+8);
+            if(keyLength<=0 || valueLength<TOMBSTONE){
+                break;
+            }
+            long end = (long) offset+HEADER_BYTES+keyLength+Math.max(valueLength, 0);
+            if(end>buffer.capacity() || buffer.getInt(offset)!=checksum(buffer, offset, (int) end)){
+                break;
+            }
+            String key = segment.key(offset);
+            if(valueLength==TOMBSTONE){
+                this.retire(this.index.remove(key));
+                segment.garbage += end-offset;
+            } else {
+                this.retire(this.index.put(key, location(segment.id, offset)));
+            }
+            offset = (int) end;
+        }
+        segment.position = offset;
+    }
+
+    private Segment open(int id) throws IOException {
+        return new Segment(id, this.directory.resolve(String.format("%010d", id)+SUFFIX), this.segmentBytes);
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment<<32)|(offset&0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location>>>32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int end) {
+        ByteBuffer target = buffer.duplicate();
+        target.limit(end).position(offset+4);
+        CRC32 crc = new CRC32();
+        crc.update(target);
+        return (int) crc.getValue();
+    }
+
+    /** 置き換えた、または削除したエントリを古くなった領域に数える */
+    private void retire(Long location) {
+        if(null==location){
+            return;
+        }
+        Segment segment = this.segments.get(segmentOf(location));
+        if(null!=segment){
+            segment.garbage += segment.entryBytes(offsetOf(location));
+        }
+    }
+
+    /**
+     * @param key
+     * @return キーの値. なければnull
+     */
+    public byte[] get(String key) {
+        while(true){
+            Long location = this.index.get(key);
+            if(null==location){
+                return null;
+            }
+            Segment segment = this.segments.get(segmentOf(location));
+            // 読み込みの間にコンパクションで移されたら索引を引き直す
+            if(null!=segment){
+                return segment.value(offsetOf(location));
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @throws OperationException
+     */
+    public void put(String key, byte[] value) throws OperationException {
+        this.writeLock.lock();
+        try {
+            this.write(key, value);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param key
+     * @throws OperationException
+     */
+    public void remove(String key) throws OperationException {
+        this.writeLock.lock();
+        try {
+            this.write(key, null);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 現在の値から新しい値を計算して書き込みます. 計算中は他の書き込みを待たせます.
+     * @param key
+     * @param function 現在の値(なければnull)から新しい値. nullを返すと削除
+     * @throws OperationException
+     */
+    public void compute(String key, UnaryOperator<byte[]> function) throws OperationException {
+        this.writeLock.lock();
+        try {
+            byte[] current = this.get(key);
+            byte[] updated = function.apply(current);
+            if(null!=updated || null!=current){
+                this.write(key, updated);
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /** writeLockを取って呼ぶ. valueがnullなら削除 */
+    private void write(String key, byte[] value) throws OperationException {
+        if(null==value && !this.index.containsKey(key)){
+            return;
+        }
+        long location = this.append(key.getBytes(StandardCharsets.UTF_8), value);
+        if(null==value){
+            this.retire(this.index.remove(key));
+            this.active.garbage += this.active.entryBytes(offsetOf(location));
+        } else {
+            this.retire(this.index.put(key, location));
+        }
+    }
+
+    /** 追記先のセグメントに書き込み、格納位置を返す. writeLockを取って呼ぶ */
+    private long append(byte[] key, byte[] value) throws OperationException {
+        if(this.closed){
+            throw new OperationException("store is closed : "+this.directory);
+        }
+        int bytes = HEADER_BYTES+key.length+(null==value ? 0 : value.length);
+        if(bytes>this.segmentBytes){
+            throw new OperationException("record is larger than segment_bytes : "+bytes);
+        }
+        if(this.active.position+bytes>this.active.buffer.capacity()){
+            this.roll();
+        }
+        Segment segment = this.active;
+        int offset = segment.position;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset+4);
+        buffer.putInt(key.length);
+        buffer.putInt(null==value ? TOMBSTONE : value.length);
+        buffer.put(key);
+        if(null!=value){
+            buffer.put(value);
+        }
+        buffer.putInt(offset, checksum(buffer, offset, offset+bytes));
+        segment.position += bytes;
+        if(this.sync){
+            segment.buffer.force();
+        }
+        return location(segment.id, offset);
+    }
+
+    /** 新しいセグメントを追記先にする */
+    private void roll() throws OperationException {
+        try {
+            Segment segment = this.open(this.active.id+1);
+            this.segments.put(segment.id, segment);
+            this.active = segment;
+        } catch(IOException e){
+            throw new OperationException("failed to create a segment", e);
+        }
+    }
+
+    /**
+     * 古くなったエントリの割合がしきい値を超えたセグメントを詰め直します.
+     * セグメントごとに書き込みを待たせます.
+     * @throws OperationException
+     */
+    public void compact() throws OperationException {
+        for(Segment segment : new ArrayList<Segment>(this.segments.values())){
+            this.writeLock.lock();
+            try {
+                if(!this.closed && segment!=this.active && this.segments.containsKey(segment.id)
+                        && segment.garbage>=segment.position*this.compactionThreshold){
+                    this.compact(segment);
+                }
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 生きているエントリを追記先に書き直してセグメントを削除する.
+     * 途中で落ちても、開き直すときに新しいセグメントの書き直したエントリが後から読まれます.
+     */
+    private void compact(Segment segment) throws OperationException {
+        // より古いセグメントに削除したキーの値が残っていれば、削除のエントリも残す
+        boolean older = this.segments.firstKey()<segment.id;
+        int first = this.active.id;
+        int offset = 0;
+        while(offset<segment.position){
+            String key = segment.key(offset);
+            int bytes = segment.entryBytes(offset);
+            if(segment.buffer.getInt(offset+8)==TOMBSTONE){
+                if(older && !this.index.containsKey(key)){
+                    long location = this.append(key.getBytes(StandardCharsets.UTF_8), null);
+                    this.active.garbage += this.active.entryBytes(offsetOf(location));
+                }
+            } else if(Long.valueOf(location(segment.id, offset)).equals(this.index.get(key))){
+                this.index.put(key, this.append(key.getBytes(StandardCharsets.UTF_8), segment.value(offset)));
+            }
+            offset += bytes;
+        }
+        // 書き直したエントリをディスクに同期してから古いセグメントを削除する. 書き直しの途中で切り替えたセグメントも同期する
+        for(Segment written : this.segments.tailMap(first).values()){
+            written.buffer.force();
+        }
+        this.segments.remove(segment.id);
+        try {
+            segment.delete();
+        } catch(IOException e){
+            throw new OperationException("failed to delete a segment : "+segment.path, e);
+        }
+        this.compactions.increment();
+    }
+
+    /**
+     * @param prefix
+     * @return 接頭辞で始まるキー. 走査中の書き込みは反映されることもされないこともあります
+     */
+    public NavigableSet<String> keys(String prefix) {
+        if(prefix.isEmpty()){
+            return this.index.keySet();
+        }
+        char last = prefix.charAt(prefix.length()-1);
+        if(last==Character.MAX_VALUE){
+            return this.index.tailMap(prefix, true).keySet();
+        }
+        String next = prefix.substring(0, prefix.length()-1)+(char)(last+1);
+        return this.index.subMap(prefix, true, next, false).keySet();
+    }
+
+    /**
+     * @return キーの数
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return セグメントの数
+     */
+    public int getSegments() {
+        return this.segments.size();
+    }
+
+    /**
+     * @return 詰め直したセグメントの数
+     */
+    public long getCompactions() {
+        return this.compactions.sum();
+    }
+
+    /**
+     * 書き込みをディスクに同期します.
+     */
+    public void flush() {
+        this.writeLock.lock();
+        try {
+            for(Segment segment : this.segments.values()){
+                segment.buffer.force();
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 書き込みを同期してファイルを閉じます. 閉じた後の書き込みはOperationExceptionになります.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if(null!=this.compactor){
+            this.compactor.shutdown();
+        }
+        this.writeLock.lock();
+        try {
+            if(this.closed){
+                return;
+            }
+            this.closed = true;
+            for(Segment segment : this.segments.values()){
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            this.fileLock.release();
+            this.lockChannel.close();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * セグメントファイル. ファイル全体をマップし、先頭から追記する.
+     * マップした領域はファイルを閉じたり削除した後も参照が残る間は読めます.
+     */
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        /** 書き込んだ末尾. writeLockを取って変更する */
+        int position = 0;
+        /** 古くなったエントリのバイト数. writeLockを取って変更する */
+        long garbage = 0;
+
+        Segment(int id, Path path, int segmentBytes) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // segment_bytesを変えて開き直した場合も既存のエントリを全て読めるようにする
+            long size = Math.max(segmentBytes, this.channel.size());
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        int entryBytes(int offset) {
+            return HEADER_BYTES+this.buffer.getInt(offset+4)+Math.max(this.buffer.getInt(offset+8), 0);
+        }
+
+        String key(int offset) {
+            byte[] key = new byte[this.buffer.getInt(offset+4)];
+            ByteBuffer buffer = this.buffer.duplicate();
+            buffer.position(offset+HEADER_BYTES);
+            buffer.get(key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        byte[] value(int offset) {
+            ByteBuffer buffer = this.buffer.duplicate();
+            byte[] value = new byte[buffer.getInt(offset+8)];
+            buffer.position(offset+HEADER_BYTES+buffer.getInt(offset+4));
+            buffer.get(value);
+            return value;
+        }
+
+        void delete() throws IOException {
+            this.channel.close();
+            Files.deleteIfExists(this.path);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.mychaelstyle.common.datastore.local;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+/**
+ * バイト列のキーと値をヒープ外のダイレクトバッファに保持するハッシュMap.
+ *
+ * キーのハッシュでパーティションに分け、パーティションごとに
+ * オープンアドレス法の索引と、固定長のセグメントに追記する領域を持ちます.
+ * 索引はプリミティブ型の配列のため、件数が増えてもGCが走査するオブジェクトは増えません.<br>
+ * <br>
+ * 容量を使い切ると、生きているエントリが最も少ないセグメントを詰め直して空きを作ります.
+ * 空きが作れない場合、evictなら最も古いセグメントのエントリを全て捨て、
+ * そうでなければOperationExceptionで書き込みを拒否します.
+ * -XX:MaxDirectMemorySizeに達してセグメントを確保できない場合も、確保済みのセグメントを容量として同じく扱います.<br>
+ * 読み込みはパーティションの読み込みロック、書き込みは書き込みロックで実行します.
+ *
+ * @author Masanori Nakashima
+ */
+public class OffHeapMap {
+
+    /** エントリのヘッダ長. キー長、値長、ハッシュ */
+    static final int HEADER_BYTES = 12;
+    /** 空きスロット */
+    private static final long EMPTY = 0;
+    /** 削除済みスロット */
+    private static final long TOMBSTONE = -1;
+    /** 索引の最大使用率 */
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int MIN_SLOTS = 16;
+
+    private final Partition[] partitions;
+    private final int segmentBytes;
+    private final boolean evict;
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     * @param capacityBytes 全パーティションのセグメントの合計バイト数の上限
+     * @param segmentBytes 1セグメントのバイト数. 1レコードの最大長になります
+     * @param partitions パーティション数
+     * @param evict 容量を使い切ったとき古いエントリを捨てるか
+     */
+    public OffHeapMap(long capacityBytes, int segmentBytes, int partitions, boolean evict) {
+        if(partitions<1 || segmentBytes<=HEADER_BYTES){
+            throw new IllegalArgumentException("partitions and segment_bytes must be positive");
+        }
+        // 詰め直しの空きを作れるよう、パーティションごとに2セグメント以上
+        long segments = Math.max(2, capacityBytes/partitions/segmentBytes);
+        if(segments>Integer.MAX_VALUE){
+            throw new IllegalArgumentException("too many segments : "+segments);
+        }
+        this.segmentBytes = segmentBytes;
+        this.evict = evict;
+        this.partitions = new Partition[partitions];
+        for(int num=0; num<partitions; num++){
+            this.partitions[num] = new Partition((int) segments);
+        }
+    }
+
+    /**
+     * キーのハッシュ
+     * @param key
+     * @return
+     */
+    static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for(byte b : key){
+            h ^= b;
+            h *= 0x01000193;
+        }
+        // murmur3のfmix32
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Partition partition(int hash) {
+        // 索引は下位ビットを使うため、混ぜ直した値の上位ビットで選ぶ
+        long mixed = (hash*0x9E3779B9)&0xFFFFFFFFL;
+        return this.partitions[(int) ((mixed*this.partitions.length)>>>32)];
+    }
+
+    /**
+     * 値を取得
+     * @param key
+     * @return なければnull
+     */
+    public byte[] get(byte[] key) {
+        int hash = hash(key);
+        Partition partition = this.partition(hash);
+        long stamp = partition.lock.readLock();
+        try {
+            int slot = partition.find(hash, key);
+            return slot<0 ? null : partition.value(partition.slots[slot]-1);
+        } finally {
+            partition.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 値を登録. 既にあれば置き換える
+     * @param key
+     * @param value
+     * @throws OperationException 容量を使い切り、古いエントリを捨てない設定の場合
+     */
+    public void put(byte[] key, byte[] value) throws OperationException {
+        this.compute(key, current -> value);
+    }
+
+    /**
+     * 現在の値から新しい値を計算して置き換える. 計算中は同じパーティションへの読み書きを待たせる
+     * @param key
+     * @param function 現在の値(なければnull)を受け取り新しい値を返す. nullを返せば削除する
+     * @throws OperationException 容量を使い切り、古いエントリを捨てない設定の場合
+     */
+    public void compute(byte[] key, UnaryOperator<byte[]> function) throws OperationException {
+        int hash = hash(key);
+        Partition partition = this.partition(hash);
+        long stamp = partition.lock.writeLock();
+        try {
+            int slot = partition.find(hash, key);
+            byte[] current = slot<0 ? null : partition.value(partition.slots[slot]-1);
+            byte[] value = function.apply(current);
+            if(null==value){
+                if(slot>=0){
+                    partition.remove(slot);
+                }
+                return;
+            }
+            int entryBytes = HEADER_BYTES+key.length+value.length;
+            if(entryBytes>this.segmentBytes){
+                throw new OperationException("record of "+entryBytes+" bytes exceeds the segment size "
+                        +this.segmentBytes);
+            }
+            partition.reserve(entryBytes);
+            // 詰め直しでスロットの位置は変わらないが、捨てた場合はエントリごと消えている
+            slot = partition.find(hash, key);
+            long address = partition.append(hash, key, value);
+            if(slot>=0){
+                partition.release(partition.slots[slot]-1);
+                partition.slots[slot] = address+1;
+            } else {
+                partition.insert(hash, address);
+            }
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 値を削除
+     * @param key
+     * @return 削除したか
+     */
+    public boolean remove(byte[] key) {
+        int hash = hash(key);
+        Partition partition = this.partition(hash);
+        long stamp = partition.lock.writeLock();
+        try {
+            int slot = partition.find(hash, key);
+            if(slot<0){
+                return false;
+            }
+            partition.remove(slot);
+            return true;
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return パーティション数
+     */
+    public int getPartitions() {
+        return this.partitions.length;
+    }
+
+    /**
+     * パーティション内のキーが接頭辞で始まるエントリの値を全て複製して取得
+     * @param partition パーティション番号
+     * @param prefix キーの接頭辞
+     * @return
+     */
+    public List<byte[]> values(int partition, byte[] prefix) {
+        List<byte[]> values = new ArrayList<byte[]>();
+        int cursor = 0;
+        do {
+            cursor = this.values(partition, prefix, cursor, Integer.MAX_VALUE, values);
+        } while(cursor!=0);
+        return values;
+    }
+
+    /**
+     * パーティション内のキーが接頭辞で始まるエントリの値を、カーソルの位置から複製して取得.
+     *
+     * 読み込みロックは1回の呼び出しの間だけ保持するため、パーティションが大きくても書き込みを長く止めません.
+     * カーソルはハッシュの下位ビットを逆順に数えるため、呼び出しの間に索引が作り直されても、
+     * 最後まで残っていたエントリは1度ずつ取得できます.
+     * 呼び出しの間に追加、削除されたエントリは取得するとは限りません.
+     * @param partition パーティション番号
+     * @param prefix キーの接頭辞
+     * @param cursor 最初は0、以降は前回の戻り値
+     * @param maxValues 1回に取得する値の数の目安. 同じハッシュのエントリはまとめて取得するため超えることがあります
+     * @param values 取得した値を追加するリスト
+     * @return 次のカーソル. 0ならパーティションの最後まで取得した
+     */
+    public int values(int partition, byte[] prefix, int cursor, int maxValues, List<byte[]> values) {
+        Partition target = this.partitions[partition];
+        int count = 0;
+        long stamp = target.lock.readLock();
+        try {
+            int mask = target.slots.length-1;
+            do {
+                count += target.collect(cursor&mask, prefix, values);
+                // マスク外のビットを立てて、逆順のビット列に1を足す
+                cursor = Integer.reverse(Integer.reverse(cursor|~mask)+1);
+            } while(cursor!=0 && count<maxValues);
+        } finally {
+            target.lock.unlockRead(stamp);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return エントリ数
+     */
+    public long size() {
+        long size = 0;
+        for(Partition partition : this.partitions){
+            long stamp = partition.lock.readLock();
+            try {
+                size += partition.size;
+            } finally {
+                partition.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return 確保したセグメントの合計バイト数
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for(Partition partition : this.partitions){
+            long stamp = partition.lock.readLock();
+            try {
+                bytes += (long) partition.allocated*this.segmentBytes;
+            } finally {
+                partition.lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 容量を空けるために捨てたエントリ数
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * 全てのエントリを削除し、セグメントを解放します.
+     * ダイレクトバッファのメモリはGCでバッファが回収された時点で解放されます.
+     */
+    public void clear() {
+        for(Partition partition : this.partitions){
+            long stamp = partition.lock.writeLock();
+            try {
+                partition.reset();
+            } finally {
+                partition.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * 索引とセグメントを持つパーティション.
+     * アドレスは上位32ビットがセグメント番号、下位32ビットがセグメント内の位置で、
+     * スロットには空きと区別するため1を足して格納します.
+     */
+    private final class Partition {
+        final StampedLock lock = new StampedLock();
+        final ByteBuffer[] segments;
+        final int[] positions;
+        final int[] liveBytes;
+        /** 書き込みに使ったセグメントの古い順 */
+        final Deque<Integer> order = new ArrayDeque<Integer>();
+        int allocated = 0;
+        /** 確保できるセグメント数 */
+        int limit;
+        int head = -1;
+        long[] slots;
+        int[] hashes;
+        int size = 0;
+        int tombstones = 0;
+
+        Partition(int segments) {
+            this.segments = new ByteBuffer[segments];
+            this.limit = segments;
+            this.positions = new int[segments];
+            this.liveBytes = new int[segments];
+            this.slots = new long[MIN_SLOTS];
+            this.hashes = new int[MIN_SLOTS];
+        }
+
+        void reset() {
+            Arrays.fill(this.segments, null);
+            Arrays.fill(this.positions, 0);
+            Arrays.fill(this.liveBytes, 0);
+            this.order.clear();
+            this.allocated = 0;
+            this.limit = this.segments.length;
+            this.head = -1;
+            this.slots = new long[MIN_SLOTS];
+            this.hashes = new int[MIN_SLOTS];
+            this.size = 0;
+            this.tombstones = 0;
+        }
+
+        int find(int hash, byte[] key) {
+            int mask = this.slots.length-1;
+            for(int index=hash&mask; ; index=(index+1)&mask){
+                long slot = this.slots[index];
+                if(slot==EMPTY){
+                    return -1;
+                }
+                if(slot!=TOMBSTONE && this.hashes[index]==hash && this.keyEquals(slot-1, key)){
+                    return index;
+                }
+            }
+        }
+
+        /** アドレスのエントリを指すスロット */
+        int slotOf(int hash, long address) {
+            int mask = this.slots.length-1;
+            for(int index=hash&mask; ; index=(index+1)&mask){
+                long slot = this.slots[index];
+                if(slot==EMPTY){
+                    return -1;
+                }
+                if(slot==address+1){
+                    return index;
+                }
+            }
+        }
+
+        void insert(int hash, long address) {
+            if(this.size+this.tombstones+1>this.slots.length*LOAD_FACTOR){
+                this.rehash();
+            }
+            int mask = this.slots.length-1;
+            int index = hash&mask;
+            while(this.slots[index]!=EMPTY && this.slots[index]!=TOMBSTONE){
+                index = (index+1)&mask;
+            }
+            if(this.slots[index]==TOMBSTONE){
+                this.tombstones--;
+            }
+            this.slots[index] = address+1;
+            this.hashes[index] = hash;
+            this.size++;
+        }
+
+        void remove(int slot) {
+            this.release(this.slots[slot]-1);
+            this.slots[slot] = TOMBSTONE;
+            this.size--;
+            this.tombstones++;
+        }
+
+        /**
+         * 件数の2倍以上の大きさで索引を作り直し、削除済みスロットを取り除く.
+         * 実行中のvaluesのカーソルが同じエントリを2度返さないよう、索引は小さくしない
+         */
+        void rehash() {
+            int capacity = this.slots.length;
+            while(capacity*LOAD_FACTOR<(this.size+1)*2){
+                capacity <<= 1;
+            }
+            long[] oldSlots = this.slots;
+            int[] oldHashes = this.hashes;
+            this.slots = new long[capacity];
+            this.hashes = new int[capacity];
+            this.tombstones = 0;
+            int mask = capacity-1;
+            for(int num=0; num<oldSlots.length; num++){
+                if(oldSlots[num]!=EMPTY && oldSlots[num]!=TOMBSTONE){
+                    int index = oldHashes[num]&mask;
+                    while(this.slots[index]!=EMPTY){
+                        index = (index+1)&mask;
+                    }
+                    this.slots[index] = oldSlots[num];
+                    this.hashes[index] = oldHashes[num];
+                }
+            }
+        }
+
+        ByteBuffer segment(long address) {
+            return this.segments[(int) (address>>>32)];
+        }
+
+        /**
+         * ハッシュの下位ビットがbucketのエントリのうち、キーが接頭辞で始まるものの値を追加する.
+         * 削除しても空きスロットには戻さないため、該当するエントリはbucketから次の空きスロットまでの間にある
+         * @return 追加した値の数
+         */
+        int collect(int bucket, byte[] prefix, List<byte[]> values) {
+            int mask = this.slots.length-1;
+            int count = 0;
+            for(int index=bucket; this.slots[index]!=EMPTY; index=(index+1)&mask){
+                long slot = this.slots[index];
+                if(slot!=TOMBSTONE && (this.hashes[index]&mask)==bucket && this.startsWith(slot-1, prefix)){
+                    values.add(this.value(slot-1));
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        boolean keyEquals(long address, byte[] key) {
+            ByteBuffer segment = this.segment(address);
+            int offset = (int) address;
+            if(segment.getInt(offset)!=key.length){
+                return false;
+            }
+            int start = offset+HEADER_BYTES;
+            for(int num=0; num<key.length; num++){
+                if(segment.get(start+num)!=key[num]){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean startsWith(long address, byte[] prefix) {
+            ByteBuffer segment = this.segment(address);
+            int offset = (int) address;
+            if(segment.getInt(offset)<prefix.length){
+                return false;
+            }
+            int start = offset+HEADER_BYTES;
+            for(int num=0; num<prefix.length; num++){
+                if(segment.get(start+num)!=prefix[num]){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] value(long address) {
+            ByteBuffer segment = this.segment(address).duplicate();
+            int offset = (int) address;
+            byte[] value = new byte[segment.getInt(offset+4)];
+            segment.position(offset+HEADER_BYTES+segment.getInt(offset));
+            segment.get(value);
+            return value;
+        }
+
+        int entryBytes(long address) {
+            ByteBuffer segment = this.segment(address);
+            int offset = (int) address;
+            return HEADER_BYTES+segment.getInt(offset)+segment.getInt(offset+4);
+        }
+
+        /** 置き換えた、または削除したエントリの分を生きているバイト数から引く */
+        void release(long address) {
+            this.liveBytes[(int) (address>>>32)] -= this.entryBytes(address);
+        }
+
+        long append(int hash, byte[] key, byte[] value) {
+            ByteBuffer segment = this.segments[this.head];
+            int offset = this.positions[this.head];
+            segment.putInt(offset, key.length);
+            segment.putInt(offset+4, value.length);
+            segment.putInt(offset+8, hash);
+            ByteBuffer target = segment.duplicate();
+            target.position(offset+HEADER_BYTES);
+            target.put(key);
+            target.put(value);
+            int entryBytes = HEADER_BYTES+key.length+value.length;
+            this.positions[this.head] += entryBytes;
+            this.liveBytes[this.head] += entryBytes;
+            return ((long) this.head<<32)|offset;
+        }
+
+        /** 書き込み先のセグメントにentryBytesの空きを用意する */
+        void reserve(int entryBytes) throws OperationException {
+            if(this.head>=0 && this.positions[this.head]+entryBytes<=OffHeapMap.this.segmentBytes){
+                return;
+            }
+            if(this.allocated<this.limit){
+                ByteBuffer buffer = null;
+                try {
+                    buffer = ByteBuffer.allocateDirect(OffHeapMap.this.segmentBytes);
+                } catch(OutOfMemoryError e){
+                    // -XX:MaxDirectMemorySizeに達したら確保済みのセグメントを容量とする
+                    this.limit = this.allocated;
+                    if(this.allocated==0){
+                        throw new OperationException("cannot allocate direct memory: "+e.getMessage());
+                    }
+                }
+                if(null!=buffer){
+                    int segment = this.allocated++;
+                    this.segments[segment] = buffer;
+                    this.use(segment);
+                    return;
+                }
+            }
+            // 生きているエントリが最も少ないセグメントを詰め直す
+            int victim = -1;
+            for(int segment : this.order){
+                if(victim<0 || this.liveBytes[segment]<this.liveBytes[victim]){
+                    victim = segment;
+                }
+            }
+            if(this.liveBytes[victim]+entryBytes<=OffHeapMap.this.segmentBytes){
+                this.compact(victim);
+                return;
+            }
+            if(!OffHeapMap.this.evict){
+                throw new OperationException("off-heap store is full");
+            }
+            this.evictSegment(this.order.peekFirst());
+        }
+
+        void use(int segment) {
+            this.order.remove(segment);
+            this.order.addLast(segment);
+            this.positions[segment] = 0;
+            this.liveBytes[segment] = 0;
+            this.head = segment;
+        }
+
+        /** セグメントの生きているエントリを読み出し、空にしたセグメントに書き直す */
+        void compact(int segment) {
+            List<long[]> live = new ArrayList<long[]>();
+            List<byte[][]> entries = new ArrayList<byte[][]>();
+            ByteBuffer buffer = this.segments[segment];
+            int offset = 0;
+            while(offset<this.positions[segment]){
+                long address = ((long) segment<<32)|offset;
+                int hash = buffer.getInt(offset+8);
+                int slot = this.slotOf(hash, address);
+                if(slot>=0){
+                    live.add(new long[]{slot, hash});
+                    entries.add(new byte[][]{this.key(address), this.value(address)});
+                }
+                offset += this.entryBytes(address);
+            }
+            this.use(segment);
+            for(int num=0; num<live.size(); num++){
+                long address = this.append((int) live.get(num)[1], entries.get(num)[0], entries.get(num)[1]);
+                this.slots[(int) live.get(num)[0]] = address+1;
+            }
+        }
+
+        /** セグメントの生きているエントリを索引から削除し、書き込み先にする */
+        void evictSegment(int segment) {
+            ByteBuffer buffer = this.segments[segment];
+            int offset = 0;
+            while(offset<this.positions[segment]){
+                long address = ((long) segment<<32)|offset;
+                int slot = this.slotOf(buffer.getInt(offset+8), address);
+                if(slot>=0){
+                    this.slots[slot] = TOMBSTONE;
+                    this.size--;
+                    this.tombstones++;
+                    OffHeapMap.this.evictions.increment();
+                }
+                offset += this.entryBytes(address);
+            }
+            this.use(segment);
+        }
+
+        byte[] key(long address) {
+            ByteBuffer segment = this.segment(address).duplicate();
+            int offset = (int) address;
+            byte[] key = new byte[segment.getInt(offset)];
+            segment.position(offset+HEADER_BYTES);
+            segment.get(key);
+            return key;
+        }
+    }
+}
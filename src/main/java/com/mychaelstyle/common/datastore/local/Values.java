@@ -0,0 +1,130 @@
+package com.mychaelstyle.common.datastore.local;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * プロセス内のプロバイダが共通で使うレコードの値の比較と複製.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public final class Values {
+
+    /**
+     * キー値の順序. 数値同士は数値として、それ以外は文字列として比較します.
+     * 同じ副キーに数値と文字列を混在させた場合の順序は保証しません.
+     */
+    public static final Comparator<Object> ORDER = Values::compare;
+
+    private Values() {
+    }
+
+    /**
+     * 値を比較
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int compare(Object a, Object b) {
+        if(a instanceof Number && b instanceof Number){
+            if(isIntegral(a) && isIntegral(b)){
+                return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+            }
+            BigDecimal da = toBigDecimal((Number) a);
+            BigDecimal db = toBigDecimal((Number) b);
+            if(null==da || null==db){
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            }
+            return da.compareTo(db);
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte;
+    }
+
+    private static BigDecimal toBigDecimal(Number value) {
+        if(value instanceof BigDecimal){
+            return (BigDecimal) value;
+        }
+        try {
+            return new BigDecimal(value.toString());
+        } catch(NumberFormatException e){
+            // NaN, Infinity
+            return null;
+        }
+    }
+
+    /**
+     * 条件の値を比較対象の値の型に合わせる.
+     * DynamoDBの条件と同じく文字列で渡された値を、数値のフィールドとは数値として比較するためです.
+     * @param value 条件の値
+     * @param sample 比較対象の値
+     * @return
+     */
+    public static Object coerce(Object value, Object sample) {
+        if(sample instanceof Number && value instanceof String){
+            try {
+                return new BigDecimal((String) value);
+            } catch(NumberFormatException e){
+                return value;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * JSONObjectを入れ子のJSONObject, JSONArrayまで含めて複製.
+     * 保持しているレコードを呼び出し元が変更できないようにするため、文字列を経由せずに複製します.
+     * @param record
+     * @return
+     */
+    public static JSONObject copy(JSONObject record) {
+        JSONObject copied = new JSONObject();
+        for(Object name : record.keySet()){
+            copied.put((String) name, copyValue(record.get((String) name)));
+        }
+        return copied;
+    }
+
+    private static Object copyValue(Object value) {
+        if(value instanceof JSONObject){
+            return copy((JSONObject) value);
+        } else if(value instanceof JSONArray){
+            JSONArray array = (JSONArray) value;
+            JSONArray copied = new JSONArray();
+            for(int num=0; num<array.length(); num++){
+                copied.put(copyValue(array.get(num)));
+            }
+            return copied;
+        }
+        return value;
+    }
+
+    /**
+     * 指定フィールドだけを持つレコードを取得
+     * @param record
+     * @param fields nullまたは空なら全フィールド
+     * @return
+     */
+    public static JSONObject project(JSONObject record, List<String> fields) {
+        if(null==fields || fields.isEmpty()){
+            return copy(record);
+        }
+        JSONObject projected = new JSONObject();
+        for(String name : fields){
+            Object value = record.opt(name);
+            if(null!=value){
+                projected.put(name, copyValue(value));
+            }
+        }
+        return projected;
+    }
+}
@@ -0,0 +1,185 @@
+package com.mychaelstyle.common.datastore.rocksdb;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * テーブル名、主キー値、副キー値をRocksDBのバイト列のキーに変換します.
+ *
+ * キーは [テーブル名][終端][主キー値の文字列][終端][型][副キー値] の順に並べ、
+ * RocksDBのバイト順がテーブル、主キー値、副キー値の順になるようにします.
+ * テーブル名と主キー値の0x00は0x00 0xFFに置き換え、終端は0x00 0x01とするため、
+ * テーブル、主キー値の接頭辞で範囲を読むと別のテーブル、主キー値を含みません.<br>
+ * 主キー値はKeyと同じく文字列として扱います.
+ * 副キー値は整数、小数、文字列の型ごとに値の順に並ぶバイト列にします.
+ * 型の異なる副キーは型の順に並ぶため、DynamoDBの範囲キーと同じく1つのテーブルでは同じ型を使ってください.
+ *
+ * @author Masanori Nakashima
+ */
+public final class CompositeKey {
+
+    /** 副キーの型 : 整数 */
+    static final byte TYPE_INTEGER = 0x01;
+    /** 副キーの型 : 小数 */
+    static final byte TYPE_DECIMAL = 0x02;
+    /** 副キーの型 : 文字列 */
+    static final byte TYPE_STRING = 0x03;
+
+    private static final byte ESCAPE = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    private CompositeKey() {
+    }
+
+    /**
+     * @param key 問い合わせキー
+     * @return RocksDBのキー
+     */
+    public static byte[] encode(Key key) {
+        byte[] row = row(key.getTableName(), key.getKeyValue());
+        if(!key.hasSubkey() || null==key.getSubkeyValue()){
+            return row;
+        }
+        return concat(row, subkey(key.getSubkeyValue()));
+    }
+
+    /**
+     * @param table
+     * @return テーブルの全てのキーの接頭辞
+     */
+    public static byte[] table(String table) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        component(out, table);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param table
+     * @param keyValue
+     * @return 主キー値の全てのキーの接頭辞. 副キーのないレコードのキーでもあります
+     */
+    public static byte[] row(String table, Object keyValue) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        component(out, table);
+        component(out, String.valueOf(keyValue));
+        return out.toByteArray();
+    }
+
+    private static void component(ByteArrayOutputStream out, String value) {
+        for(byte b : value.getBytes(StandardCharsets.UTF_8)){
+            out.write(b);
+            if(b==0){
+                out.write(ESCAPE);
+            }
+        }
+        out.write(0);
+        out.write(TERMINATOR);
+    }
+
+    /**
+     * @param value 副キー値
+     * @return 型と値のバイト列
+     */
+    public static byte[] subkey(Object value) {
+        Long integer = integral(value);
+        if(null!=integer){
+            return ByteBuffer.allocate(9).put(TYPE_INTEGER).putLong(integer.longValue()^Long.MIN_VALUE).array();
+        } else if(value instanceof Number){
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            // 負数は全てのビットを、正数は符号ビットを反転すると符号なしのバイト順が数値の順になる
+            bits ^= bits<0 ? -1L : Long.MIN_VALUE;
+            return ByteBuffer.allocate(9).put(TYPE_DECIMAL).putLong(bits).array();
+        }
+        byte[] string = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[string.length+1];
+        bytes[0] = TYPE_STRING;
+        System.arraycopy(string, 0, bytes, 1, string.length);
+        return bytes;
+    }
+
+    private static Long integral(Object value) {
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+            return ((Number) value).longValue();
+        } else if(value instanceof BigInteger && ((BigInteger) value).bitLength()<64){
+            return ((BigInteger) value).longValue();
+        } else if(value instanceof BigDecimal){
+            try {
+                return ((BigDecimal) value).longValueExact();
+            } catch(ArithmeticException e){
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 副キー値を読み出します.
+     * @param key RocksDBのキー
+     * @param offset 副キーの開始位置. 主キー値の接頭辞の長さ
+     * @return 副キー値. 副キーがなければnull
+     */
+    public static Object decodeSubkey(byte[] key, int offset) {
+        if(key.length<=offset){
+            return null;
+        }
+        switch(key[offset]){
+        case TYPE_INTEGER:
+            return ByteBuffer.wrap(key, offset+1, 8).getLong()^Long.MIN_VALUE;
+        case TYPE_DECIMAL:
+            long bits = ByteBuffer.wrap(key, offset+1, 8).getLong();
+            bits ^= bits<0 ? Long.MIN_VALUE : -1L;
+            return Double.longBitsToDouble(bits);
+        default:
+            return new String(key, offset+1, key.length-offset-1, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param prefix
+     * @return prefixで始まる全てのキーより大きい最小のキー. 全て0xFFならnull
+     */
+    public static byte[] successor(byte[] prefix) {
+        for(int index=prefix.length-1; index>=0; index--){
+            if(prefix[index]!=(byte) 0xFF){
+                byte[] next = Arrays.copyOf(prefix, index+1);
+                next[index]++;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return aとbを繋げたバイト列
+     */
+    public static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+
+    /**
+     * RocksDBの既定の比較と同じく符号なしのバイト順で比較します.
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for(int index=0; index<length; index++){
+            int diff = (a[index]&0xFF)-(b[index]&0xFF);
+            if(diff!=0){
+                return diff;
+            }
+        }
+        return a.length-b.length;
+    }
+}
@@ -0,0 +1,102 @@
+package com.mychaelstyle.common.datastore.rocksdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.Filter;
+import com.mychaelstyle.common.datastore.local.Values;
+
+/**
+ * RocksDBのキーの範囲をページごとに読み、フィルタを満たすレコードを返すResultSet.
+ *
+ * ページごとにイテレータを開いて閉じるため、最後まで読まずに捨ててもネイティブのリソースは残りません.
+ * 次のページは前のページの最後のキーの次から読むため、読み込みの間の書き込みは反映されることもされないこともあります.
+ *
+ * @author Masanori Nakashima
+ */
+public class RocksResultSet implements ResultSet {
+
+    private final RocksDB db;
+    private final byte[] upper;
+    private final Filter filter;
+    private final List<String> fields;
+    private final int pageSize;
+    private final boolean fillCache;
+    private final Deque<JSONObject> page = new ArrayDeque<JSONObject>();
+    /** 次のページの開始キー. 最後まで読んだらnull */
+    private byte[] start;
+
+    /**
+     * Constructor
+     * @param db
+     * @param lower 範囲の開始キー(含む)
+     * @param upper 範囲の終了キー(含まない). nullなら最後まで
+     * @param filter 条件
+     * @param fields 取得するフィールド. nullなら全フィールド
+     * @param pageSize 1回のイテレータで読むキーの数
+     * @param fillCache 読んだブロックをブロックキャッシュに載せるか. 全件の走査では載せない
+     */
+    public RocksResultSet(RocksDB db, byte[] lower, byte[] upper, Filter filter, List<String> fields,
+            int pageSize, boolean fillCache) {
+        this.db = db;
+        this.start = lower;
+        this.upper = upper;
+        this.filter = filter;
+        this.fields = fields;
+        this.pageSize = Math.max(1, pageSize);
+        this.fillCache = fillCache;
+    }
+
+    @Override
+    public boolean hasNext() throws OperationException {
+        while(this.page.isEmpty() && null!=this.start){
+            this.fetch();
+        }
+        return !this.page.isEmpty();
+    }
+
+    @Override
+    public JSONObject next() throws OperationException {
+        if(!this.hasNext()){
+            return null;
+        }
+        return Values.project(this.page.poll(), this.fields);
+    }
+
+    private void fetch() throws OperationException {
+        try(ReadOptions options = new ReadOptions().setFillCache(this.fillCache);
+                RocksIterator iterator = this.db.newIterator(options)){
+            iterator.seek(this.start);
+            int count = 0;
+            for(; iterator.isValid() && count<this.pageSize; iterator.next(), count++){
+                byte[] key = iterator.key();
+                if(null!=this.upper && CompositeKey.compare(key, this.upper)>=0){
+                    this.start = null;
+                    return;
+                }
+                JSONObject record = new JSONObject(new String(iterator.value(), StandardCharsets.UTF_8));
+                if(this.filter.matches(record)){
+                    this.page.add(record);
+                }
+                // キーの直後の最小のキー
+                this.start = CompositeKey.concat(key, new byte[1]);
+            }
+            if(!iterator.isValid()){
+                iterator.status();
+                this.start = null;
+            }
+        } catch(RocksDBException e){
+            throw new OperationException(e);
+        }
+    }
+}
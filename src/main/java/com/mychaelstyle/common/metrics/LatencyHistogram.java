@@ -0,0 +1,187 @@
+package com.mychaelstyle.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ロックを使わない対数線形(HDR方式)のレイテンシヒストグラム.
+ *
+ * 値を2のべき乗ごとの区間に分け、各区間を64等分したバケットで数えます.
+ * どの値もバケットの幅は値の1/64以下のため、パーセンタイルの相対誤差は約1.6%以内です.
+ * 記録はAtomicLongArrayとLongAdderの加算だけで、ロックもオブジェクトの生成もしません.
+ * 約550秒({@link #MAX_TRACKABLE_NANOS})を超える値は最後のバケットに数えますが、最大値は正確に保持します.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class LatencyHistogram {
+
+    /** 2のべき乗区間ごとのバケット数の半分. 相対誤差は1/SUB_BUCKETS */
+    static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    /** 区間の数. 2^(MAX_SHIFT+SUB_BUCKET_BITS+1)ナノ秒まで区別する */
+    private static final int MAX_SHIFT = 32;
+    /** バケットで区別できる最大のナノ秒 */
+    public static final long MAX_TRACKABLE_NANOS = (1L << (MAX_SHIFT+SUB_BUCKET_BITS+1))-1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT+2)*SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 1回の操作の所要時間を記録します.
+     * @param nanos ナノ秒. 負の値は0として数える
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current;
+        while(value>(current=this.max.get())){
+            if(this.max.compareAndSet(current, value)){
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 記録した回数
+     */
+    public long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * 現在の値を複製します. 記録と並行して複製するため、バケットの合計と回数は僅かにずれることがあります.
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] copied = new long[this.counts.length()];
+        for(int num=0; num<copied.length; num++){
+            copied[num] = this.counts.get(num);
+        }
+        return new Snapshot(copied, this.count.sum(), this.sum.sum(), this.max.get());
+    }
+
+    /**
+     * 値のバケット番号. 2*SUB_BUCKETS未満はそのまま、以上は上位7ビットで区別する
+     * @param value
+     * @return
+     */
+    static int index(long value) {
+        long clamped = Math.min(value, MAX_TRACKABLE_NANOS);
+        if(clamped<2*SUB_BUCKETS){
+            return (int) clamped;
+        }
+        int shift = 63-Long.numberOfLeadingZeros(clamped)-SUB_BUCKET_BITS;
+        return shift*SUB_BUCKETS+(int) (clamped>>>shift);
+    }
+
+    /**
+     * バケットに数えられる最大の値
+     * @param index
+     * @return
+     */
+    static long highestValue(int index) {
+        if(index<2*SUB_BUCKETS){
+            return index;
+        }
+        int shift = index/SUB_BUCKETS-1;
+        long sub = index-shift*SUB_BUCKETS;
+        return ((sub+1) << shift)-1;
+    }
+
+    /**
+     * ある時点のヒストグラムの値
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return 記録した回数
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return 所要時間の合計ナノ秒
+         */
+        public long getSum() {
+            return this.sum;
+        }
+
+        /**
+         * @return 最大の所要時間ナノ秒
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * 以前の複製からこの複製までに記録した値を求めます.
+         * 最大値は差分から求められないため、記録のある最大のバケットの値を使います.
+         * @param previous 同じヒストグラムの以前の複製
+         * @return 差分の値
+         */
+        Snapshot minus(Snapshot previous) {
+            long[] diff = new long[this.counts.length];
+            long highest = 0;
+            for(int num=0; num<diff.length; num++){
+                diff[num] = Math.max(0, this.counts[num]-previous.counts[num]);
+                if(diff[num]>0){
+                    highest = highestValue(num);
+                }
+            }
+            return new Snapshot(diff, Math.max(0, this.count-previous.count),
+                    Math.max(0, this.sum-previous.sum), Math.min(highest, this.max));
+        }
+
+        /**
+         * パーセンタイルの所要時間を求めます. バケットで区別できる最大の値を返すため、実際の値以上になります.
+         * @param percentile 0から100
+         * @return ナノ秒. 記録がなければ0
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for(long bucket : this.counts){
+                total += bucket;
+            }
+            if(total==0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile)/100.0*total));
+            long seen = 0;
+            for(int num=0; num<this.counts.length; num++){
+                seen += this.counts[num];
+                if(seen>=rank){
+                    return Math.min(highestValue(num), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        /**
+         * @param percentile 0から100
+         * @param unit
+         * @return 指定の単位のパーセンタイルの所要時間
+         */
+        public double getValueAtPercentile(double percentile, TimeUnit unit) {
+            return (double) this.getValueAtPercentile(percentile)/unit.toNanos(1);
+        }
+    }
+}
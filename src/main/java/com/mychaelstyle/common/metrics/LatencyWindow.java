@@ -0,0 +1,79 @@
+package com.mychaelstyle.common.metrics;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LatencyHistogram}の直近の期間の値.
+ *
+ * 期間をスロット数で割った間隔ごとにヒストグラムを複製して保持し、現在の値と最も古い複製の差を返します.
+ * 返す値は直近の(スロット数-1)から(スロット数)間隔分の記録になり、古い記録は順に外れます.
+ * 複製は{@link #snapshot()}を呼んだときにおこなうため、記録の処理には影響しません.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class LatencyWindow {
+
+    /** 既定の期間ミリ秒 */
+    public static final long DEFAULT_WINDOW_MILLIS = 60000;
+    /** 既定のスロット数 */
+    public static final int DEFAULT_SLOTS = 3;
+
+    private final LatencyHistogram histogram;
+    private final long intervalNanos;
+    private final int slots;
+    /** 間隔ごとの複製. 先頭が最も古い */
+    private final ArrayDeque<LatencyHistogram.Snapshot> rotated = new ArrayDeque<LatencyHistogram.Snapshot>();
+    private long rotatedAt = 0;
+
+    /**
+     * 既定の期間とスロット数で作成します.
+     * @param histogram 記録先のヒストグラム
+     */
+    public LatencyWindow(LatencyHistogram histogram) {
+        this(histogram, DEFAULT_WINDOW_MILLIS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param histogram 記録先のヒストグラム
+     * @param windowMillis 期間ミリ秒
+     * @param slots 期間を分けるスロット数. 2以上
+     */
+    public LatencyWindow(LatencyHistogram histogram, long windowMillis, int slots) {
+        if(windowMillis<=0 || slots<2){
+            throw new IllegalArgumentException("windowMillis must be positive and slots must be 2 or more");
+        }
+        this.histogram = histogram;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis)/slots;
+        this.slots = slots;
+    }
+
+    /**
+     * @return 直近の期間に記録した値
+     */
+    public LatencyHistogram.Snapshot snapshot() {
+        return this.snapshot(System.nanoTime());
+    }
+
+    /**
+     * @param now 現在のSystem.nanoTime()
+     * @return 直近の期間に記録した値
+     */
+    synchronized LatencyHistogram.Snapshot snapshot(long now) {
+        LatencyHistogram.Snapshot current = this.histogram.snapshot();
+        if(this.rotated.isEmpty()){
+            // 最初の呼び出しまでの記録は全て直近の期間とみなす
+            this.rotated.addLast(new LatencyHistogram().snapshot());
+            this.rotatedAt = now;
+        }
+        if(now-this.rotatedAt>=this.intervalNanos){
+            this.rotated.addLast(current);
+            this.rotatedAt = now;
+            while(this.rotated.size()>this.slots){
+                this.rotated.removeFirst();
+            }
+        }
+        return current.minus(this.rotated.peekFirst());
+    }
+}
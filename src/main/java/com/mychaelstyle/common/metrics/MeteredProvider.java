@@ -0,0 +1,364 @@
+package com.mychaelstyle.common.metrics;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.record.Record;
+
+/**
+ * プロバイダの呼び出しごとの所要時間と失敗を{@link MetricsRegistry}に記録するプロバイダ.
+ *
+ * プロバイダ名はクラスの単純名です. batchGet, batchWriteは要素のテーブルが全て同じならそのテーブル名、
+ * 混在していれば"*"で記録します. scan, queryは結果セットを返すまでの時間を記録します.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class MeteredProvider implements Provider {
+
+    /** 複数テーブルにまたがるbatch操作のテーブル名 */
+    public static final String MIXED_TABLES = "*";
+
+    private final Provider provider;
+    private final MetricsRegistry registry;
+    private final String name;
+    /** withTableで設定されたテーブル名 */
+    private volatile String tableName = null;
+
+    /**
+     * @param provider 記録する対象のプロバイダ
+     * @param registry 記録先
+     */
+    public MeteredProvider(Provider provider, MetricsRegistry registry) {
+        this.provider = provider;
+        this.registry = registry;
+        this.name = provider.getClass().getSimpleName();
+    }
+
+    /**
+     * @return 記録する対象のプロバイダ
+     */
+    public Provider getProvider() {
+        return this.provider;
+    }
+
+    private void record(String operation, String table, long started, boolean success) {
+        this.registry.operation(this.name, operation, table).record(System.nanoTime()-started, success);
+    }
+
+    /**
+     * batch操作の要素のテーブル名
+     * @param conditions
+     * @return
+     */
+    private static String tableOf(JSONArray conditions) {
+        String table = null;
+        for(int num=0; num<conditions.length(); num++){
+            JSONObject condition = conditions.optJSONObject(num);
+            String current = null==condition ? null : condition.optString(FIELD_TABLE, null);
+            if(null==table){
+                table = current;
+            } else if(null!=current && !table.equals(current)){
+                return MIXED_TABLES;
+            }
+        }
+        return table;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#connect(org.json.JSONObject)
+     */
+    @Override
+    public Provider connect(JSONObject config) throws ConfigurationException {
+        this.provider.connect(config);
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#withTable(java.lang.String)
+     */
+    @Override
+    public Provider withTable(String tableName) {
+        this.tableName = tableName;
+        this.provider.withTable(tableName);
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#withKey(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public Provider withKey(String key, Object value) {
+        this.provider.withKey(key, value);
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#withSubkey(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public Provider withSubkey(String key, Object value) {
+        this.provider.withSubkey(key, value);
+        return this;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get()
+     */
+    @Override
+    public JSONObject get() throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            JSONObject record = this.provider.get();
+            success = true;
+            return record;
+        } finally {
+            this.record("get", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete()
+     */
+    @Override
+    public void delete() throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.delete();
+            success = true;
+        } finally {
+            this.record("delete", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(org.json.JSONObject)
+     */
+    @Override
+    public void put(JSONObject record) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.put(record);
+            success = true;
+        } finally {
+            this.record("put", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(org.json.JSONObject)
+     */
+    @Override
+    public void update(JSONObject record) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.update(record);
+            success = true;
+        } finally {
+            this.record("update", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#get(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public JSONObject get(Key key) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            JSONObject record = this.provider.get(key);
+            success = true;
+            return record;
+        } finally {
+            this.record("get", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#delete(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public void delete(Key key) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.delete(key);
+            success = true;
+        } finally {
+            this.record("delete", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#put(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void put(Key key, JSONObject record) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.put(key, record);
+            success = true;
+        } finally {
+            this.record("put", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#update(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject)
+     */
+    @Override
+    public void update(Key key, JSONObject record) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.update(key, record);
+            success = true;
+        } finally {
+            this.record("update", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#getRecord(com.mychaelstyle.common.GenericDatastore.Key)
+     */
+    @Override
+    public Record getRecord(Key key) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            Record record = this.provider.getRecord(key);
+            success = true;
+            return record;
+        } finally {
+            this.record("get", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#putRecord(com.mychaelstyle.common.GenericDatastore.Key, com.mychaelstyle.common.record.Record)
+     */
+    @Override
+    public void putRecord(Key key, Record record) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.putRecord(key, record);
+            success = true;
+        } finally {
+            this.record("put", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchGet(org.json.JSONArray)
+     */
+    @Override
+    public JSONObject batchGet(JSONArray conditions) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            JSONObject result = this.provider.batchGet(conditions);
+            success = true;
+            return result;
+        } finally {
+            this.record("batch_get", tableOf(conditions), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#batchWrite(org.json.JSONArray)
+     */
+    @Override
+    public void batchWrite(JSONArray jsonArray) throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.provider.batchWrite(jsonArray);
+            success = true;
+        } finally {
+            this.record("batch_write", tableOf(jsonArray), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(JSONObject conditions, List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            ResultSet result = this.provider.scan(conditions, fields);
+            success = true;
+            return result;
+        } finally {
+            this.record("scan", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(JSONObject conditions, List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            ResultSet result = this.provider.query(conditions, fields);
+            success = true;
+            return result;
+        } finally {
+            this.record("query", this.tableName, started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#scan(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet scan(Key key, JSONObject conditions, List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            ResultSet result = this.provider.scan(key, conditions, fields);
+            success = true;
+            return result;
+        } finally {
+            this.record("scan", key.getTableName(), started, success);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.GenericDatastore.Provider#query(com.mychaelstyle.common.GenericDatastore.Key, org.json.JSONObject, java.util.List)
+     */
+    @Override
+    public ResultSet query(Key key, JSONObject conditions, List<String> fields)
+            throws ConnectionException, ConfigurationException, OperationException {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            ResultSet result = this.provider.query(key, conditions, fields);
+            success = true;
+            return result;
+        } finally {
+            this.record("query", key.getTableName(), started, success);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mychaelstyle.common.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * プロバイダ×操作×テーブルごとの{@link OperationMetrics}と、プロバイダ×操作ごとの再試行回数の登録先.
+ *
+ * 名前ごとに入れ子のConcurrentHashMapを引くだけで、2回目以降の呼び出しはロックもキーの生成もしません.
+ * 特に指定しなければ、プロバイダの再試行回数は{@link #global()}に記録されます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class MetricsRegistry {
+
+    /** テーブルを特定できない操作のテーブル名 */
+    public static final String NO_TABLE = "";
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    /**
+     * 呼び出しごとの値を受け取る
+     */
+    public interface OperationVisitor {
+        void visit(String provider, String operation, String table, OperationMetrics metrics);
+    }
+
+    /**
+     * 再試行回数を受け取る
+     */
+    public interface RetryVisitor {
+        void visit(String provider, String operation, long retries);
+    }
+
+    private final ConcurrentMap<String,ConcurrentMap<String,ConcurrentMap<String,OperationMetrics>>> operations
+        = new ConcurrentHashMap<String,ConcurrentMap<String,ConcurrentMap<String,OperationMetrics>>>();
+    private final ConcurrentMap<String,ConcurrentMap<String,LongAdder>> retries
+        = new ConcurrentHashMap<String,ConcurrentMap<String,LongAdder>>();
+
+    /**
+     * @return プロセスで共有する登録先
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    /**
+     * プロバイダ、操作、テーブルの組の値を取得します. なければ登録します.
+     * @param provider
+     * @param operation
+     * @param table nullなら{@link #NO_TABLE}
+     * @return
+     */
+    public OperationMetrics operation(String provider, String operation, String table) {
+        ConcurrentMap<String,OperationMetrics> tables = child(child(this.operations, provider), operation);
+        String name = null==table ? NO_TABLE : table;
+        OperationMetrics metrics = tables.get(name);
+        if(null==metrics){
+            metrics = tables.computeIfAbsent(name, k -> new OperationMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * 1回の再試行を記録します.
+     * @param provider
+     * @param operation
+     */
+    public void retried(String provider, String operation) {
+        ConcurrentMap<String,LongAdder> counters = child(this.retries, provider);
+        LongAdder counter = counters.get(operation);
+        if(null==counter){
+            counter = counters.computeIfAbsent(operation, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * 登録された全ての組の値を渡します.
+     * @param visitor
+     */
+    public void forEachOperation(OperationVisitor visitor) {
+        for(Map.Entry<String,ConcurrentMap<String,ConcurrentMap<String,OperationMetrics>>> provider : this.operations.entrySet()){
+            for(Map.Entry<String,ConcurrentMap<String,OperationMetrics>> operation : provider.getValue().entrySet()){
+                for(Map.Entry<String,OperationMetrics> table : operation.getValue().entrySet()){
+                    visitor.visit(provider.getKey(), operation.getKey(), table.getKey(), table.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * 登録された全ての再試行回数を渡します.
+     * @param visitor
+     */
+    public void forEachRetry(RetryVisitor visitor) {
+        for(Map.Entry<String,ConcurrentMap<String,LongAdder>> provider : this.retries.entrySet()){
+            for(Map.Entry<String,LongAdder> operation : provider.getValue().entrySet()){
+                visitor.visit(provider.getKey(), operation.getKey(), operation.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * 入れ子のMapを取得. なければ登録する
+     * @param parent
+     * @param name
+     * @return
+     */
+    private static <V> ConcurrentMap<String,V> child(ConcurrentMap<String,ConcurrentMap<String,V>> parent, String name) {
+        ConcurrentMap<String,V> child = parent.get(name);
+        if(null==child){
+            child = parent.computeIfAbsent(name, k -> new ConcurrentHashMap<String,V>());
+        }
+        return child;
+    }
+}
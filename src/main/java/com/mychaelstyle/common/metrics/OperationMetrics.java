@@ -0,0 +1,50 @@
+package com.mychaelstyle.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * プロバイダ、操作、テーブルの組ごとの所要時間と失敗回数.
+ * 呼び出し回数(スループット)は所要時間のヒストグラムの記録回数です.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class OperationMetrics {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyWindow recentLatency = new LatencyWindow(this.latency);
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * 1回の呼び出しを記録します. 失敗した呼び出しの所要時間も記録します.
+     * @param nanos 所要時間ナノ秒
+     * @param success 成功したか
+     */
+    public void record(long nanos, boolean success) {
+        this.latency.record(nanos);
+        if(!success){
+            this.errors.increment();
+        }
+    }
+
+    /**
+     * @return 所要時間のヒストグラム
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * @return 直近の所要時間. 既定では直近40秒から60秒の記録
+     */
+    public LatencyWindow getRecentLatency() {
+        return this.recentLatency;
+    }
+
+    /**
+     * @return 失敗した回数
+     */
+    public long getErrors() {
+        return this.errors.sum();
+    }
+}
@@ -0,0 +1,183 @@
+package com.mychaelstyle.common.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@link MetricsRegistry}の値をPrometheusのテキスト形式(0.0.4)で出力します.
+ *
+ * {@link #start(InetSocketAddress)}でJDK組み込みのHTTPサーバーを起動すると、/metricsで値を返します.
+ * 所要時間は秒単位のsummary(0.5, 0.99, 0.999のquantileと_sum, _count)と最大値のgauge、
+ * 失敗回数と再試行回数はcounterで出力します. スループットは_countのrateで求めてください.<br>
+ * quantileと最大値は{@link OperationMetrics#getRecentLatency()}の直近の期間の値で、
+ * 起動時からの記録に埋もれずに最近の変化を反映します. _sumと_countは起動時からの累計です.
+ *
+ * <pre>
+ * PrometheusExporter exporter = new PrometheusExporter(MetricsRegistry.global())
+ *         .start(new InetSocketAddress(9404));
+ * </pre>
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class PrometheusExporter implements AutoCloseable {
+
+    /** 値を返すパス */
+    public static final String PATH = "/metrics";
+    /** 応答のContent-Type */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** 出力するquantile */
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private static final String LATENCY = "datastore_operation_duration_seconds";
+    private static final String LATENCY_MAX = "datastore_operation_duration_seconds_max";
+    private static final String ERRORS = "datastore_operation_errors_total";
+    private static final String RETRIES = "datastore_retries_total";
+
+    private final MetricsRegistry registry;
+    private HttpServer server = null;
+
+    /**
+     * @param registry 出力する登録先
+     */
+    public PrometheusExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * HTTPサーバーを起動します. 応答はサーバーの1スレッドで順に返します.
+     * @param address 待ち受けるアドレス. ポート0なら空いているポート
+     * @return
+     * @throws IOException
+     */
+    public synchronized PrometheusExporter start(InetSocketAddress address) throws IOException {
+        if(null!=this.server){
+            throw new IllegalStateException("Already started on "+this.server.getAddress());
+        }
+        HttpServer created = HttpServer.create(address, 0);
+        created.createContext(PATH, this::handle);
+        created.start();
+        this.server = created;
+        return this;
+    }
+
+    /**
+     * @return 待ち受けているアドレス. 起動していなければnull
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return null==this.server ? null : this.server.getAddress();
+    }
+
+    /**
+     * HTTPサーバーを停止します.
+     */
+    @Override
+    public synchronized void close() {
+        if(null!=this.server){
+            this.server.stop(0);
+            this.server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = this.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if("HEAD".equals(exchange.getRequestMethod())){
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody()){
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 現在の値をテキスト形式で出力します.
+     * @return
+     */
+    public String scrape() {
+        StringBuilder latency = new StringBuilder();
+        StringBuilder max = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        this.registry.forEachOperation((provider, operation, table, metrics) -> {
+            String labels = "provider=\""+escape(provider)+"\",operation=\""+escape(operation)
+                    +"\",table=\""+escape(table)+"\"";
+            LatencyHistogram.Snapshot snapshot = metrics.getLatency().snapshot();
+            LatencyHistogram.Snapshot recent = metrics.getRecentLatency().snapshot();
+            for(double quantile : QUANTILES){
+                latency.append(LATENCY).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(recent.getValueAtPercentile(quantile*100, TimeUnit.SECONDS)).append('\n');
+            }
+            latency.append(LATENCY).append("_sum{").append(labels).append("} ")
+                .append(seconds(snapshot.getSum())).append('\n');
+            latency.append(LATENCY).append("_count{").append(labels).append("} ")
+                .append(snapshot.getCount()).append('\n');
+            max.append(LATENCY_MAX).append('{').append(labels).append("} ")
+                .append(seconds(recent.getMax())).append('\n');
+            errors.append(ERRORS).append('{').append(labels).append("} ")
+                .append(metrics.getErrors()).append('\n');
+        });
+        StringBuilder retries = new StringBuilder();
+        this.registry.forEachRetry((provider, operation, count) -> {
+            retries.append(RETRIES).append("{provider=\"").append(escape(provider))
+                .append("\",operation=\"").append(escape(operation)).append("\"} ").append(count).append('\n');
+        });
+        StringBuilder buf = new StringBuilder();
+        family(buf, LATENCY, "summary", "Latency of datastore provider operations in seconds.", latency);
+        family(buf, LATENCY_MAX, "gauge", "Maximum recent latency of datastore provider operations in seconds.", max);
+        family(buf, ERRORS, "counter", "Failed datastore provider operations.", errors);
+        family(buf, RETRIES, "counter", "Retried attempts of datastore provider operations.", retries);
+        return buf.toString();
+    }
+
+    private static void family(StringBuilder buf, String name, String type, String help, StringBuilder samples) {
+        if(samples.length()==0){
+            return;
+        }
+        buf.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        buf.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        buf.append(samples);
+    }
+
+    private static double seconds(long nanos) {
+        return (double) nanos/TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * ラベル値のバックスラッシュ、ダブルクォート、改行をエスケープ
+     * @param value
+     * @return
+     */
+    static String escape(String value) {
+        StringBuilder buf = new StringBuilder(value.length());
+        for(int pos=0; pos<value.length(); pos++){
+            char c = value.charAt(pos);
+            if(c=='\\'){
+                buf.append("\\\\");
+            } else if(c=='"'){
+                buf.append("\\\"");
+            } else if(c=='\n'){
+                buf.append("\\n");
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
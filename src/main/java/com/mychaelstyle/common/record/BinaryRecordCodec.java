@@ -0,0 +1,293 @@
+package com.mychaelstyle.common.record;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * レコードをフィールドの型ごとのバイナリに変換するコーデック.
+ *
+ * 形式は [0x01][フィールド数] の後にフィールドごとに [名前][型][値] を並べます.
+ * 名前はフィールド辞書にあれば辞書の番号+1、なければ0の後にUTF-8の文字列を書きます.
+ * 整数はzigzag符号化の可変長、小数は8バイト、文字列とバイト列は可変長の長さの後に中身を書きます.
+ * doubleで表せない数値は文字列、JSONObjectなどの値はJSON文字列として書きます.<br>
+ * 辞書の番号は保存したデータに残るため、辞書には後ろに追加するだけにし、並べ替えや削除はしないでください.
+ *
+ * @author Masanori Nakashima
+ */
+public class BinaryRecordCodec implements RecordCodec {
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_TRUE = 3;
+    private static final byte TAG_FALSE = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_BYTES = 6;
+    private static final byte TAG_NUMBER = 7;
+    private static final byte TAG_JSON = 8;
+
+    /** 番号からフィールド名 */
+    private final String[] fields;
+    /** フィールド名から番号+1 */
+    private final Map<String,Integer> refs = new HashMap<String,Integer>();
+
+    /**
+     * 辞書を使わずにフィールド名を全て文字列で書くコーデック
+     */
+    public BinaryRecordCodec() {
+        this(null);
+    }
+
+    /**
+     * @param fields フィールド辞書. nullなら辞書を使わない
+     */
+    public BinaryRecordCodec(final List<String> fields) {
+        this.fields = null==fields ? new String[0] : fields.toArray(new String[fields.size()]);
+        for(int index=0; index<this.fields.length; index++){
+            this.refs.putIfAbsent(this.fields[index], index+1);
+        }
+    }
+
+    /**
+     * @return フィールド辞書
+     */
+    public List<String> getFields() {
+        return Arrays.asList(this.fields);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.record.RecordCodec#encode(com.mychaelstyle.common.record.Record)
+     */
+    @Override
+    public byte[] encode(final Record record) {
+        Output out = new Output(16*record.size()+8);
+        out.write(FORMAT_BINARY);
+        out.writeVarint(record.size());
+        for(int index=0; index<record.size(); index++){
+            String name = record.name(index);
+            Integer ref = this.refs.get(name);
+            if(null==ref){
+                out.writeVarint(0);
+                out.writeString(name);
+            } else {
+                out.writeVarint(ref);
+            }
+            switch(record.typeAt(index)){
+            case Record.TYPE_NULL:
+                out.write(TAG_NULL);
+                break;
+            case Record.TYPE_LONG:
+                out.write(TAG_LONG);
+                long value = record.longAt(index);
+                out.writeVarint((value<<1)^(value>>63));
+                break;
+            case Record.TYPE_DOUBLE:
+                out.write(TAG_DOUBLE);
+                out.writeLong(Double.doubleToLongBits(record.doubleAt(index)));
+                break;
+            case Record.TYPE_BOOLEAN:
+                out.write(record.booleanAt(index) ? TAG_TRUE : TAG_FALSE);
+                break;
+            case Record.TYPE_STRING:
+                out.write(TAG_STRING);
+                out.writeString((String) record.objectAt(index));
+                break;
+            case Record.TYPE_BYTES:
+                out.write(TAG_BYTES);
+                out.writeBytes((byte[]) record.objectAt(index));
+                break;
+            default:
+                Object object = record.objectAt(index);
+                if(object instanceof BigDecimal || object instanceof BigInteger){
+                    out.write(TAG_NUMBER);
+                    out.writeString(object.toString());
+                } else {
+                    out.write(TAG_JSON);
+                    out.writeString(JSONObject.valueToString(object));
+                }
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mychaelstyle.common.record.RecordCodec#decode(byte[])
+     */
+    @Override
+    public Record decode(final byte[] data) {
+        if(null==data || data.length==0 || data[0]!=FORMAT_BINARY){
+            throw new IllegalArgumentException("not a binary record");
+        }
+        Input in = new Input(data, 1);
+        try {
+            int count = (int) in.readVarint();
+            Record record = new Record(FieldDictionary.SHARED, count);
+            for(int num=0; num<count; num++){
+                int ref = (int) in.readVarint();
+                String name = ref==0 ? in.readString() : this.fields[ref-1];
+                byte tag = in.read();
+                switch(tag){
+                case TAG_NULL:
+                    record.setNull(name);
+                    break;
+                case TAG_LONG:
+                    long value = in.readVarint();
+                    record.setLong(name, (value>>>1)^-(value&1));
+                    break;
+                case TAG_DOUBLE:
+                    record.setDouble(name, Double.longBitsToDouble(in.readLong()));
+                    break;
+                case TAG_TRUE:
+                case TAG_FALSE:
+                    record.setBoolean(name, tag==TAG_TRUE);
+                    break;
+                case TAG_STRING:
+                    record.setString(name, in.readString());
+                    break;
+                case TAG_BYTES:
+                    record.setBytes(name, in.readBytes());
+                    break;
+                case TAG_NUMBER:
+                    String number = in.readString();
+                    if(number.indexOf('.')<0 && number.indexOf('E')<0 && number.indexOf('e')<0){
+                        record.set(name, new BigInteger(number));
+                    } else {
+                        record.set(name, new BigDecimal(number));
+                    }
+                    break;
+                case TAG_JSON:
+                    record.set(name, new JSONTokener(in.readString()).nextValue());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field type "+tag);
+                }
+            }
+            return record;
+        } catch(ArrayIndexOutOfBoundsException | JSONException e){
+            throw new IllegalArgumentException("broken binary record", e);
+        }
+    }
+
+    /**
+     * 拡張するバイト配列への書き込み
+     */
+    private static final class Output {
+        private byte[] buffer;
+        private int position = 0;
+
+        Output(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        private void ensure(int length) {
+            if(this.position+length>this.buffer.length){
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length*2, this.position+length));
+            }
+        }
+
+        void write(byte value) {
+            this.ensure(1);
+            this.buffer[this.position++] = value;
+        }
+
+        void writeVarint(long value) {
+            this.ensure(10);
+            while((value&~0x7FL)!=0){
+                this.buffer[this.position++] = (byte) ((value&0x7F)|0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            this.ensure(8);
+            for(int shift=56; shift>=0; shift-=8){
+                this.buffer[this.position++] = (byte) (value>>>shift);
+            }
+        }
+
+        void writeBytes(byte[] value) {
+            this.writeVarint(value.length);
+            this.ensure(value.length);
+            System.arraycopy(value, 0, this.buffer, this.position, value.length);
+            this.position += value.length;
+        }
+
+        void writeString(String value) {
+            this.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.position);
+        }
+    }
+
+    /**
+     * バイト配列からの読み込み. 範囲外の読み込みはArrayIndexOutOfBoundsExceptionになる
+     */
+    private static final class Input {
+        private final byte[] data;
+        private int position;
+
+        Input(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        byte read() {
+            return this.data[this.position++];
+        }
+
+        long readVarint() {
+            long value = 0;
+            for(int shift=0; shift<64; shift+=7){
+                byte b = this.data[this.position++];
+                value |= (long) (b&0x7F)<<shift;
+                if((b&0x80)==0){
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("broken varint");
+        }
+
+        long readLong() {
+            long value = 0;
+            for(int count=0; count<8; count++){
+                value = (value<<8)|(this.data[this.position++]&0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = this.length();
+            byte[] value = Arrays.copyOfRange(this.data, this.position, this.position+length);
+            this.position += length;
+            return value;
+        }
+
+        String readString() {
+            int length = this.length();
+            String value = new String(this.data, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        private int length() {
+            long length = this.readVarint();
+            if(length<0 || length>this.data.length-this.position){
+                throw new ArrayIndexOutOfBoundsException((int) Math.min(Integer.MAX_VALUE, length));
+            }
+            return (int) length;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.mychaelstyle.common.record;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * フィールド名と番号の辞書.
+ *
+ * {@link Record}はフィールド名の代わりに辞書の番号を持つため、
+ * 同じフィールド名のレコードが何件あってもフィールド名の文字列は辞書の1つだけになります.<br>
+ * 番号は登録した順に0から振り、削除しません. 登録数が上限に達した後のフィールド名は登録せず、
+ * {@link Record}がレコードごとにフィールド名を持つため、キーをフィールド名にするようなレコードでも辞書は上限より大きくなりません.
+ * 参照はロックを取らず、登録だけを順に実行します.
+ *
+ * @author Masanori Nakashima
+ */
+public final class FieldDictionary {
+
+    /** 既定の共有辞書の登録数の上限 */
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    /** 既定の共有辞書 */
+    public static final FieldDictionary SHARED = new FieldDictionary(DEFAULT_MAX_SIZE);
+
+    private final ConcurrentMap<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+    /** 番号からフィールド名. 登録のたびに必要なら拡張して置き換える */
+    private volatile String[] names = new String[64];
+    /** 登録数の上限 */
+    private final int maxSize;
+
+    /**
+     * 登録数に上限のない辞書. フィールド名の種類が限られるテーブルで使ってください.
+     */
+    public FieldDictionary() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize 登録数の上限
+     */
+    public FieldDictionary(int maxSize) {
+        if(maxSize<0){
+            throw new IllegalArgumentException("maxSize must not be negative : "+maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param name フィールド名
+     * @return フィールド名の番号. 未登録なら登録します. 上限に達していて登録できなければ-1
+     */
+    public int id(String name) {
+        Integer id = this.ids.get(name);
+        if(null!=id){
+            return id;
+        }
+        if(this.ids.size()>=this.maxSize){
+            return -1;
+        }
+        synchronized(this){
+            id = this.ids.get(name);
+            if(null==id){
+                if(this.ids.size()>=this.maxSize){
+                    return -1;
+                }
+                id = this.ids.size();
+                String[] current = this.names;
+                if(id>=current.length){
+                    current = Arrays.copyOf(current, current.length*2);
+                }
+                current[id] = name;
+                // 番号を公開する前にフィールド名を読めるようにする
+                this.names = current;
+                this.ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param name フィールド名
+     * @return フィールド名の番号. 未登録なら-1
+     */
+    public int find(String name) {
+        Integer id = this.ids.get(name);
+        return null==id ? -1 : id;
+    }
+
+    /**
+     * @param id 番号
+     * @return フィールド名
+     */
+    public String name(int id) {
+        return this.names[id];
+    }
+
+    /**
+     * @return 登録したフィールド名の数
+     */
+    public int size() {
+        return this.ids.size();
+    }
+
+    /**
+     * @return 登録数の上限
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+}
@@ -0,0 +1,521 @@
+package com.mychaelstyle.common.record;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+/**
+ * 型ごとの配列にフィールドの値を持つレコード.
+ *
+ * JSONObjectはフィールドごとにHashMapのエントリと値のオブジェクトを作りますが、
+ * Recordは整数、小数、真偽値をlongの配列にそのまま持ち、フィールド名は{@link FieldDictionary}の番号で持ちます.
+ * 辞書が上限に達して登録できないフィールド名は、レコードが文字列のまま持ちます.
+ * 値の型を持つため、プロバイダはinstanceofで判定せずに型ごとの変換を選べます.<br>
+ * <br>
+ * 型は{@link #TYPE_LONG}、{@link #TYPE_DOUBLE}、{@link #TYPE_BOOLEAN}、{@link #TYPE_STRING}、
+ * {@link #TYPE_BYTES}、{@link #TYPE_NULL}と、それ以外の値(入れ子のJSONObject, JSONArray, 桁の大きな数値)を持つ
+ * {@link #TYPE_OBJECT}です.<br>
+ * フィールドの検索はフィールド数に比例するため、数十フィールドまでのレコードを想定しています.
+ * スレッドセーフではありません.
+ *
+ * @author Masanori Nakashima
+ */
+public final class Record {
+
+    public static final byte TYPE_NULL = 0;
+    public static final byte TYPE_LONG = 1;
+    public static final byte TYPE_DOUBLE = 2;
+    public static final byte TYPE_BOOLEAN = 3;
+    public static final byte TYPE_STRING = 4;
+    public static final byte TYPE_BYTES = 5;
+    public static final byte TYPE_OBJECT = 6;
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private final FieldDictionary dictionary;
+    /** フィールド名の番号. 辞書に登録できなかったフィールドは-1 */
+    private int[] ids;
+    /** 辞書に登録できなかったフィールド名. 必要になるまでnull */
+    private String[] names;
+    private byte[] types;
+    /** 整数、小数のビット列、真偽値(1/0) */
+    private long[] primitives;
+    /** 文字列、バイト列、その他の値 */
+    private Object[] objects;
+    private int size = 0;
+
+    /**
+     * 共有辞書を使うレコード
+     */
+    public Record() {
+        this(FieldDictionary.SHARED, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param dictionary フィールド名の辞書
+     * @param capacity 最初に確保するフィールド数
+     */
+    public Record(FieldDictionary dictionary, int capacity) {
+        this.dictionary = dictionary;
+        int initial = Math.max(1, capacity);
+        this.ids = new int[initial];
+        this.types = new byte[initial];
+        this.primitives = new long[initial];
+        this.objects = new Object[initial];
+    }
+
+    /**
+     * JSONObjectから作成します. 整数はlong、小数はdoubleとして持ちます.
+     * @param json
+     * @return jsonがnullならnull
+     */
+    public static Record fromJSON(JSONObject json) {
+        if(null==json){
+            return null;
+        }
+        Record record = new Record(FieldDictionary.SHARED, json.length());
+        for(Object name : json.keySet()){
+            record.set((String) name, json.get((String) name));
+        }
+        return record;
+    }
+
+    /**
+     * JSONObjectに変換します. 整数はintの範囲ならInteger、それ以外はLongに、バイト列はBase64文字列にします.
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        for(int index=0; index<this.size; index++){
+            json.put(this.name(index), this.jsonValueAt(index));
+        }
+        return json;
+    }
+
+    private Object jsonValueAt(int index) {
+        switch(this.types[index]){
+        case TYPE_LONG:
+            long value = this.primitives[index];
+            return value==(int) value ? Integer.valueOf((int) value) : Long.valueOf(value);
+        case TYPE_BYTES:
+            return Base64.getEncoder().encodeToString((byte[]) this.objects[index]);
+        default:
+            return this.valueAt(index);
+        }
+    }
+
+    /**
+     * JSONObjectを経由せずにJSON文字列にします.
+     * @return
+     */
+    public String toJSONString() {
+        StringBuilder buf = new StringBuilder(16*this.size+2).append('{');
+        for(int index=0; index<this.size; index++){
+            if(index>0){
+                buf.append(',');
+            }
+            buf.append(JSONObject.quote(this.name(index))).append(':');
+            switch(this.types[index]){
+            case TYPE_NULL:
+                buf.append("null");
+                break;
+            case TYPE_LONG:
+                buf.append(this.primitives[index]);
+                break;
+            case TYPE_DOUBLE:
+                buf.append(JSONObject.numberToString(this.doubleAt(index)));
+                break;
+            case TYPE_BOOLEAN:
+                buf.append(this.booleanAt(index));
+                break;
+            case TYPE_STRING:
+                buf.append(JSONObject.quote((String) this.objects[index]));
+                break;
+            default:
+                buf.append(JSONObject.valueToString(this.jsonValueAt(index)));
+                break;
+            }
+        }
+        return buf.append('}').toString();
+    }
+
+    /**
+     * @return 辞書
+     */
+    public FieldDictionary getDictionary() {
+        return this.dictionary;
+    }
+
+    /**
+     * @return フィールド数
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param name
+     * @return フィールドの位置. なければ-1
+     */
+    public int indexOf(String name) {
+        int id = this.dictionary.find(name);
+        if(id<0){
+            return this.indexOfUnregistered(name);
+        }
+        for(int index=0; index<this.size; index++){
+            if(this.ids[index]==id){
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name
+     * @return 辞書に登録できなかったフィールドの位置. なければ-1
+     */
+    private int indexOfUnregistered(String name) {
+        if(null==this.names){
+            return -1;
+        }
+        for(int index=0; index<this.size; index++){
+            if(this.ids[index]<0 && name.equals(this.names[index])){
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name
+     * @return フィールドがあるか
+     */
+    public boolean has(String name) {
+        return this.indexOf(name)>=0;
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return フィールド名
+     */
+    public String name(int index) {
+        int id = this.ids[index];
+        return id<0 ? this.names[index] : this.dictionary.name(id);
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return 値の型
+     */
+    public byte typeAt(int index) {
+        return this.types[index];
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return 整数の値. 小数なら切り捨てた値
+     */
+    public long longAt(int index) {
+        return this.types[index]==TYPE_DOUBLE ? (long) this.doubleAt(index) : this.primitives[index];
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return 小数の値. 整数なら変換した値
+     */
+    public double doubleAt(int index) {
+        return this.types[index]==TYPE_LONG ? this.primitives[index] : Double.longBitsToDouble(this.primitives[index]);
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return 真偽値
+     */
+    public boolean booleanAt(int index) {
+        return this.primitives[index]!=0;
+    }
+
+    /**
+     * @param index フィールドの位置
+     * @return 文字列、バイト列、その他の値
+     */
+    public Object objectAt(int index) {
+        return this.objects[index];
+    }
+
+    /**
+     * 値をJSONObjectと同じくオブジェクトで返します. 整数はLong、小数はDouble、nullはJSONObject.NULLです.
+     * @param index フィールドの位置
+     * @return
+     */
+    public Object valueAt(int index) {
+        switch(this.types[index]){
+        case TYPE_NULL:
+            return JSONObject.NULL;
+        case TYPE_LONG:
+            return this.primitives[index];
+        case TYPE_DOUBLE:
+            return this.doubleAt(index);
+        case TYPE_BOOLEAN:
+            return this.booleanAt(index);
+        default:
+            return this.objects[index];
+        }
+    }
+
+    /**
+     * @param name
+     * @return 値. フィールドがなければnull
+     */
+    public Object get(String name) {
+        int index = this.indexOf(name);
+        return index<0 ? null : this.valueAt(index);
+    }
+
+    /**
+     * @param name
+     * @return 整数の値
+     * @throws IllegalArgumentException フィールドがないか数値でない場合
+     */
+    public long getLong(String name) {
+        return this.longAt(this.numeric(name));
+    }
+
+    /**
+     * @param name
+     * @return 小数の値
+     * @throws IllegalArgumentException フィールドがないか数値でない場合
+     */
+    public double getDouble(String name) {
+        return this.doubleAt(this.numeric(name));
+    }
+
+    private int numeric(String name) {
+        int index = this.indexOf(name);
+        if(index<0 || (this.types[index]!=TYPE_LONG && this.types[index]!=TYPE_DOUBLE)){
+            throw new IllegalArgumentException(name+" is not a number");
+        }
+        return index;
+    }
+
+    /**
+     * @param name
+     * @return 真偽値
+     * @throws IllegalArgumentException フィールドがないか真偽値でない場合
+     */
+    public boolean getBoolean(String name) {
+        int index = this.indexOf(name);
+        if(index<0 || this.types[index]!=TYPE_BOOLEAN){
+            throw new IllegalArgumentException(name+" is not a boolean");
+        }
+        return this.booleanAt(index);
+    }
+
+    /**
+     * @param name
+     * @return 文字列. 文字列でなければ値の文字列表現、フィールドがなければnull
+     */
+    public String getString(String name) {
+        int index = this.indexOf(name);
+        if(index<0){
+            return null;
+        }
+        return this.types[index]==TYPE_STRING ? (String) this.objects[index] : String.valueOf(this.valueAt(index));
+    }
+
+    /**
+     * @param name
+     * @return バイト列. バイト列でなければnull
+     */
+    public byte[] getBytes(String name) {
+        int index = this.indexOf(name);
+        return index<0 || this.types[index]!=TYPE_BYTES ? null : (byte[]) this.objects[index];
+    }
+
+    /**
+     * @param name
+     * @param value
+     * @return this
+     */
+    public Record setLong(String name, long value) {
+        return this.store(name, TYPE_LONG, value, null);
+    }
+
+    /**
+     * @param name
+     * @param value
+     * @return this
+     */
+    public Record setDouble(String name, double value) {
+        return this.store(name, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    /**
+     * @param name
+     * @param value
+     * @return this
+     */
+    public Record setBoolean(String name, boolean value) {
+        return this.store(name, TYPE_BOOLEAN, value ? 1 : 0, null);
+    }
+
+    /**
+     * @param name
+     * @param value nullならnullの値
+     * @return this
+     */
+    public Record setString(String name, String value) {
+        return null==value ? this.setNull(name) : this.store(name, TYPE_STRING, 0, value);
+    }
+
+    /**
+     * @param name
+     * @param value nullならnullの値
+     * @return this
+     */
+    public Record setBytes(String name, byte[] value) {
+        return null==value ? this.setNull(name) : this.store(name, TYPE_BYTES, 0, value);
+    }
+
+    /**
+     * @param name
+     * @return this
+     */
+    public Record setNull(String name) {
+        return this.store(name, TYPE_NULL, 0, null);
+    }
+
+    /**
+     * 値の型に合わせて設定します.
+     * @param name
+     * @param value
+     * @return this
+     */
+    public Record set(String name, Object value) {
+        if(null==value || JSONObject.NULL.equals(value)){
+            return this.setNull(name);
+        } else if(value instanceof String){
+            return this.setString(name, (String) value);
+        } else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+            return this.setLong(name, ((Number) value).longValue());
+        } else if(value instanceof Double || value instanceof Float){
+            return this.setDouble(name, ((Number) value).doubleValue());
+        } else if(value instanceof Boolean){
+            return this.setBoolean(name, (Boolean) value);
+        } else if(value instanceof byte[]){
+            return this.setBytes(name, (byte[]) value);
+        } else if(value instanceof BigInteger && ((BigInteger) value).bitLength()<64){
+            return this.setLong(name, ((BigInteger) value).longValue());
+        } else if(value instanceof BigDecimal){
+            // 桁を失わない場合だけdoubleとして持つ
+            BigDecimal decimal = (BigDecimal) value;
+            double converted = decimal.doubleValue();
+            if(!Double.isInfinite(converted) && new BigDecimal(converted).compareTo(decimal)==0){
+                return this.setDouble(name, converted);
+            }
+        }
+        return this.store(name, TYPE_OBJECT, 0, value);
+    }
+
+    /**
+     * 別のレコードの全てのフィールドで上書きします.
+     * @param other
+     * @return this
+     */
+    public Record putAll(Record other) {
+        for(int index=0; index<other.size; index++){
+            this.store(other.name(index), other.types[index], other.primitives[index], other.objects[index]);
+        }
+        return this;
+    }
+
+    /**
+     * @param name
+     * @return this
+     */
+    public Record remove(String name) {
+        int index = this.indexOf(name);
+        if(index>=0){
+            int moved = this.size-index-1;
+            System.arraycopy(this.ids, index+1, this.ids, index, moved);
+            System.arraycopy(this.types, index+1, this.types, index, moved);
+            System.arraycopy(this.primitives, index+1, this.primitives, index, moved);
+            System.arraycopy(this.objects, index+1, this.objects, index, moved);
+            if(null!=this.names){
+                System.arraycopy(this.names, index+1, this.names, index, moved);
+            }
+            this.size--;
+            this.objects[this.size] = null;
+            if(null!=this.names){
+                this.names[this.size] = null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 配列を複製したレコードを返します. 文字列、バイト列などの値は共有します.
+     * @return
+     */
+    public Record copy() {
+        Record copy = new Record(this.dictionary, this.size);
+        copy.ids = Arrays.copyOf(this.ids, Math.max(1, this.size));
+        copy.types = Arrays.copyOf(this.types, Math.max(1, this.size));
+        copy.primitives = Arrays.copyOf(this.primitives, Math.max(1, this.size));
+        copy.objects = Arrays.copyOf(this.objects, Math.max(1, this.size));
+        if(null!=this.names){
+            copy.names = Arrays.copyOf(this.names, Math.max(1, this.size));
+        }
+        copy.size = this.size;
+        return copy;
+    }
+
+    private Record store(String name, byte type, long primitive, Object object) {
+        int id = this.dictionary.id(name);
+        int index = 0;
+        if(id<0){
+            index = this.indexOfUnregistered(name);
+            if(index<0){
+                index = this.size;
+            }
+        } else {
+            while(index<this.size && this.ids[index]!=id){
+                index++;
+            }
+        }
+        if(index==this.size){
+            if(this.size==this.ids.length){
+                int capacity = this.size*2;
+                this.ids = Arrays.copyOf(this.ids, capacity);
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.primitives = Arrays.copyOf(this.primitives, capacity);
+                this.objects = Arrays.copyOf(this.objects, capacity);
+                if(null!=this.names){
+                    this.names = Arrays.copyOf(this.names, capacity);
+                }
+            }
+            if(id<0){
+                if(null==this.names){
+                    this.names = new String[this.ids.length];
+                }
+                this.names[index] = name;
+            } else if(null!=this.names){
+                this.names[index] = null;
+            }
+            this.ids[index] = id;
+            this.size++;
+        }
+        this.types[index] = type;
+        this.primitives[index] = primitive;
+        this.objects[index] = object;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return this.toJSONString();
+    }
+}
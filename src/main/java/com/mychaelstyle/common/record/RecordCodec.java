@@ -0,0 +1,56 @@
+package com.mychaelstyle.common.record;
+
+import org.json.JSONObject;
+
+/**
+ * レコードとバイト列の変換.
+ *
+ * キーバリュー型のプロバイダは値をこのインターフェイスで変換して保存します.
+ * 先頭の1バイトで形式を判別するため、形式を切り替えた後も切り替える前のデータを読めます.
+ * JSONは先頭が'{'のままヘッダを付けずに書くため、以前のバージョンが書いたJSONもそのまま読めます.
+ * 読めないデータは形式によらずIllegalArgumentExceptionで通知します.
+ *
+ * @see RecordCodecs
+ * @author Masanori Nakashima
+ */
+public interface RecordCodec {
+
+    /** 形式 : JSON文字列のUTF-8. ヘッダはなく先頭は'{' */
+    byte FORMAT_JSON = '{';
+    /** 形式 : バイナリ */
+    byte FORMAT_BINARY = 0x01;
+    /** 形式 : Deflateで圧縮したデータ. 展開すると別の形式のデータになる */
+    byte FORMAT_DEFLATE = 0x02;
+
+    /**
+     * @param record
+     * @return 保存するバイト列
+     */
+    byte[] encode(Record record);
+
+    /**
+     * @param data 保存されたバイト列
+     * @return レコード
+     * @throws IllegalArgumentException 読めない形式の場合
+     */
+    Record decode(byte[] data);
+
+    /**
+     * JSONObjectを変換します. JSONのコーデックはRecordを経由せずに変換します.
+     * @param record
+     * @return 保存するバイト列
+     */
+    default byte[] encodeJSON(JSONObject record) {
+        return this.encode(Record.fromJSON(record));
+    }
+
+    /**
+     * JSONObjectに変換します. JSONのコーデックはRecordを経由せずに変換します.
+     * @param data 保存されたバイト列
+     * @return レコード
+     * @throws IllegalArgumentException 読めない形式の場合
+     */
+    default JSONObject decodeJSON(byte[] data) {
+        return this.decode(data).toJSON();
+    }
+}
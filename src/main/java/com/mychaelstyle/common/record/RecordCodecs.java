@@ -0,0 +1,298 @@
+package com.mychaelstyle.common.record;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * プロバイダの設定からテーブルごとのコーデックを選びます.
+ *
+ * 書き込みは設定した形式でおこない、読み込みは先頭のバイトで形式を判別するため、
+ * 形式や圧縮の設定を変えても、変える前に書いたデータをそのまま読めます.<br>
+ * 圧縮はエンコードした長さが閾値以上の場合だけおこない、縮まなければ圧縮しないデータを保存します.<br>
+ * <br>
+ * configのフォーマット. プロバイダの設定に含めます. テーブルの設定にない項目はプロバイダの設定を使います<br>
+ * <pre>
+ * {
+ *     "codec" : "json" または "binary",
+ *     "fields" : [ "バイナリのフィールド辞書", ... ],
+ *     "compression" : "none" または "deflate",
+ *     "compression_threshold" : 圧縮する最小のバイト数,
+ *     "max_record_bytes" : 展開する最大のバイト数. 超えるデータは読まない,
+ *     "tables" : {
+ *         "テーブル名" : { "codec" : "binary", "fields" : [ ... ] },
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * 既定はJSONで圧縮なしです.
+ *
+ * @author Masanori Nakashima
+ */
+public final class RecordCodecs {
+
+    /** 設定項目 : 形式 */
+    public static final String CONFIG_CODEC = "codec";
+    /** 設定項目 : バイナリのフィールド辞書 */
+    public static final String CONFIG_FIELDS = "fields";
+    /** 設定項目 : 圧縮 */
+    public static final String CONFIG_COMPRESSION = "compression";
+    /** 設定項目 : 圧縮する最小のバイト数 */
+    public static final String CONFIG_COMPRESSION_THRESHOLD = "compression_threshold";
+    /** 設定項目 : 展開する最大のバイト数 */
+    public static final String CONFIG_MAX_RECORD_BYTES = "max_record_bytes";
+    /** 設定項目 : テーブルごとの設定 */
+    public static final String CONFIG_TABLES = "tables";
+
+    public static final String CODEC_JSON = "json";
+    public static final String CODEC_BINARY = "binary";
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_MAX_RECORD_BYTES = 64*1024*1024;
+
+    /** Deflateの最大の圧縮率. 圧縮したデータの長さから展開後の長さの上限を求める */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /** JSON文字列のUTF-8に変換するコーデック */
+    public static final RecordCodec JSON = new JsonRecordCodec();
+
+    /** Deflater、Inflaterはネイティブのメモリを確保するため、スレッドごとに使い回す */
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final RecordCodec defaultCodec;
+    private final Map<String,RecordCodec> tableCodecs = new HashMap<String,RecordCodec>();
+
+    private RecordCodecs(final RecordCodec defaultCodec) {
+        this.defaultCodec = defaultCodec;
+    }
+
+    /**
+     * プロバイダの設定から作成します.
+     * @param config プロバイダの設定. nullなら全てのテーブルがJSON
+     * @return
+     * @throws IllegalArgumentException 形式や圧縮の名前が正しくない場合
+     */
+    public static RecordCodecs configure(final JSONObject config) {
+        JSONObject base = null==config ? new JSONObject() : config;
+        RecordCodecs codecs = new RecordCodecs(create(base, new JSONObject()));
+        JSONObject tables = base.optJSONObject(CONFIG_TABLES);
+        if(null!=tables){
+            @SuppressWarnings("unchecked")
+            Set<String> names = tables.keySet();
+            for(String table : names){
+                codecs.tableCodecs.put(table, create(base, tables.getJSONObject(table)));
+            }
+        }
+        return codecs;
+    }
+
+    private static RecordCodec create(final JSONObject base, final JSONObject table) {
+        String codec = table.optString(CONFIG_CODEC, base.optString(CONFIG_CODEC, CODEC_JSON));
+        String compression = table.optString(CONFIG_COMPRESSION, base.optString(CONFIG_COMPRESSION, COMPRESSION_NONE));
+        int threshold = table.optInt(CONFIG_COMPRESSION_THRESHOLD,
+                base.optInt(CONFIG_COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD));
+        int maxBytes = table.optInt(CONFIG_MAX_RECORD_BYTES,
+                base.optInt(CONFIG_MAX_RECORD_BYTES, DEFAULT_MAX_RECORD_BYTES));
+        JSONArray fieldArray = table.has(CONFIG_FIELDS) ? table.getJSONArray(CONFIG_FIELDS) : base.optJSONArray(CONFIG_FIELDS);
+        List<String> fields = new ArrayList<String>();
+        if(null!=fieldArray){
+            for(int num=0; num<fieldArray.length(); num++){
+                fields.add(fieldArray.getString(num));
+            }
+        }
+        // 辞書は読み込みにも使うため、JSONで書く場合も作る
+        BinaryRecordCodec binary = new BinaryRecordCodec(fields);
+        RecordCodec writer;
+        if(CODEC_JSON.equalsIgnoreCase(codec)){
+            writer = JSON;
+        } else if(CODEC_BINARY.equalsIgnoreCase(codec)){
+            writer = binary;
+        } else {
+            throw new IllegalArgumentException(CONFIG_CODEC+" must be json or binary : "+codec);
+        }
+        if(COMPRESSION_NONE.equalsIgnoreCase(compression)){
+            threshold = -1;
+        } else if(!COMPRESSION_DEFLATE.equalsIgnoreCase(compression)){
+            throw new IllegalArgumentException(CONFIG_COMPRESSION+" must be none or deflate : "+compression);
+        }
+        return new TableCodec(writer, binary, threshold, maxBytes);
+    }
+
+    /**
+     * @param table テーブル名
+     * @return テーブルのコーデック
+     */
+    public RecordCodec forTable(final String table) {
+        RecordCodec codec = this.tableCodecs.get(table);
+        return null==codec ? this.defaultCodec : codec;
+    }
+
+    /**
+     * @param data
+     * @return Deflateで圧縮したデータ. 先頭は形式のバイト、その後に元の長さの4バイト
+     */
+    static byte[] deflate(final byte[] data) {
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length/2+16);
+            out.write(RecordCodec.FORMAT_DEFLATE);
+            for(int shift=24; shift>=0; shift-=8){
+                out.write(data.length>>>shift);
+            }
+            byte[] buffer = new byte[Math.max(64, Math.min(data.length, 8192))];
+            while(!deflater.finished()){
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * @param data Deflateで圧縮したデータ
+     * @param maxBytes 展開する最大のバイト数
+     * @return 展開したデータ
+     * @throws IllegalArgumentException 展開できない場合. 先頭の長さが上限を超える場合は領域を確保せずに送出する
+     */
+    static byte[] inflate(final byte[] data, final int maxBytes) {
+        if(data.length<5){
+            throw new IllegalArgumentException("broken compressed record");
+        }
+        int length = ((data[1]&0xFF)<<24)|((data[2]&0xFF)<<16)|((data[3]&0xFF)<<8)|(data[4]&0xFF);
+        if(length<0 || length>maxBytes || (long) length>(long) (data.length-5)*MAX_DEFLATE_RATIO){
+            throw new IllegalArgumentException("broken compressed record of "+length+" bytes");
+        }
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(data, 5, data.length-5);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while(offset<length){
+                if(inflater.finished() || inflater.needsDictionary()){
+                    throw new IllegalArgumentException("compressed record ended at "+offset+" of "+length+" bytes");
+                }
+                int read = inflater.inflate(result, offset, length-offset);
+                if(read==0 && inflater.needsInput()){
+                    throw new IllegalArgumentException("truncated compressed record");
+                }
+                offset += read;
+            }
+            return result;
+        } catch(DataFormatException e){
+            throw new IllegalArgumentException("broken compressed record", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * JSON文字列のUTF-8に変換するコーデック
+     */
+    private static final class JsonRecordCodec implements RecordCodec {
+
+        @Override
+        public byte[] encode(final Record record) {
+            return record.toJSONString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Record decode(final byte[] data) {
+            return Record.fromJSON(this.decodeJSON(data));
+        }
+
+        @Override
+        public byte[] encodeJSON(final JSONObject record) {
+            return record.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public JSONObject decodeJSON(final byte[] data) {
+            try {
+                return new JSONObject(new String(data, StandardCharsets.UTF_8));
+            } catch(JSONException e){
+                throw new IllegalArgumentException("broken json record", e);
+            }
+        }
+    }
+
+    /**
+     * 設定した形式で書き、先頭のバイトで判別した形式で読むコーデック
+     */
+    private static final class TableCodec implements RecordCodec {
+        private final RecordCodec writer;
+        private final BinaryRecordCodec binary;
+        /** 圧縮する最小のバイト数. 負なら圧縮しない */
+        private final int threshold;
+        /** 展開する最大のバイト数 */
+        private final int maxBytes;
+
+        TableCodec(final RecordCodec writer, final BinaryRecordCodec binary, final int threshold, final int maxBytes) {
+            this.writer = writer;
+            this.binary = binary;
+            this.threshold = threshold;
+            this.maxBytes = maxBytes;
+        }
+
+        private byte[] decompress(final byte[] data) {
+            return data.length>0 && data[0]==FORMAT_DEFLATE ? inflate(data, this.maxBytes) : data;
+        }
+
+        private byte[] compress(final byte[] data) {
+            if(this.threshold<0 || data.length<this.threshold){
+                return data;
+            }
+            byte[] compressed = deflate(data);
+            return compressed.length<data.length ? compressed : data;
+        }
+
+        private RecordCodec reader(final byte[] data) {
+            if(data.length>0){
+                if(data[0]==FORMAT_BINARY){
+                    return this.binary;
+                } else if(data[0]==FORMAT_JSON){
+                    return JSON;
+                }
+            }
+            throw new IllegalArgumentException("unknown record format");
+        }
+
+        @Override
+        public byte[] encode(final Record record) {
+            return this.compress(this.writer.encode(record));
+        }
+
+        @Override
+        public byte[] encodeJSON(final JSONObject record) {
+            return this.compress(this.writer.encodeJSON(record));
+        }
+
+        @Override
+        public Record decode(final byte[] data) {
+            byte[] plain = this.decompress(data);
+            return this.reader(plain).decode(plain);
+        }
+
+        @Override
+        public JSONObject decodeJSON(final byte[] data) {
+            byte[] plain = this.decompress(data);
+            return this.reader(plain).decodeJSON(plain);
+        }
+    }
+}
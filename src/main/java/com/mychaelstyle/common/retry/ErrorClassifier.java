@@ -0,0 +1,19 @@
+package com.mychaelstyle.common.retry;
+
+/**
+ * 再試行してよいエラーかどうかの判定.
+ *
+ * スループット超過、タイムアウト、接続の切断のように、同じ操作をやり直せば成功しうるエラーだけを
+ * 再試行の対象にします. 入力の誤りなど、やり直しても失敗するエラーはfalseを返してください.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public interface ErrorClassifier {
+
+    /**
+     * @param error 操作が送出した例外
+     * @return 再試行してよければtrue
+     */
+    boolean isRetryable(Throwable error);
+}
@@ -0,0 +1,90 @@
+package com.mychaelstyle.common.retry;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * プロバイダに依存しないエラー判定.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public final class ErrorClassifiers {
+
+    /** 原因をたどる最大の深さ */
+    private static final int MAX_DEPTH = 16;
+
+    /**
+     * タイムアウトと接続の切断. 原因の例外もたどって判定します.
+     */
+    public static final ErrorClassifier NETWORK = error -> hasCause(error,
+            SocketTimeoutException.class, SocketException.class, TimeoutException.class);
+
+    /**
+     * 再試行しない
+     */
+    public static final ErrorClassifier NEVER = error -> false;
+
+    private ErrorClassifiers() {
+    }
+
+    /**
+     * いずれかの判定で再試行してよいエラーを再試行します.
+     * @param classifiers
+     * @return
+     */
+    public static ErrorClassifier anyOf(final ErrorClassifier... classifiers) {
+        return error -> {
+            for(ErrorClassifier classifier : classifiers){
+                if(classifier.isRetryable(error)){
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * 例外自身か原因の例外に、指定の型のものがあるか判定します.
+     * @param error
+     * @param types
+     * @return
+     */
+    @SafeVarargs
+    public static boolean hasCause(Throwable error, Class<? extends Throwable>... types) {
+        Throwable cause = error;
+        for(int depth=0; null!=cause && depth<MAX_DEPTH; depth++){
+            for(Class<? extends Throwable> type : types){
+                if(type.isInstance(cause)){
+                    return true;
+                }
+            }
+            if(cause.getCause()==cause){
+                break;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 例外自身か原因の例外から、指定の型の最初のものを取り出します.
+     * @param error
+     * @param type
+     * @return 見つからなければnull
+     */
+    public static <T extends Throwable> T findCause(Throwable error, Class<T> type) {
+        Throwable cause = error;
+        for(int depth=0; null!=cause && depth<MAX_DEPTH; depth++){
+            if(type.isInstance(cause)){
+                return type.cast(cause);
+            }
+            if(cause.getCause()==cause){
+                break;
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+package com.mychaelstyle.common.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * プロセス全体の再試行回数の上限.
+ *
+ * 操作を始めるたびにratio分のトークンを積み立て、再試行のたびに1トークンを使います.
+ * 障害で全ての操作が失敗しても、再試行は通常の操作数のratio倍までに抑えられるため、
+ * 再試行がバックエンドへの負荷を増やして障害を長引かせることを防ぎます.
+ * 操作が少ないときも再試行できるよう、1秒あたりminRetriesPerSecond回分は時間でも補充します.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class RetryBudget {
+
+    /** デフォルトの操作あたりの再試行の割合 */
+    public static final double DEFAULT_RATIO = 0.1;
+    /** デフォルトの1秒あたりに必ず許可する再試行回数 */
+    public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+    /** デフォルトの積み立てられる最大トークン数 */
+    public static final long DEFAULT_MAX_TOKENS = 1000;
+
+    /** トークンの単位. 1トークンを1000として整数で扱う */
+    private static final long UNIT = 1000;
+
+    /** 全てのプロバイダで共有する上限 */
+    private static final RetryBudget GLOBAL = new RetryBudget(DEFAULT_RATIO,
+            DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_MAX_TOKENS);
+
+    private final long deposit;
+    private final long refillPerSecond;
+    private final long capacity;
+    private final AtomicLong tokens;
+    private final AtomicLong refilledAt;
+
+    /**
+     * @param ratio 操作1回あたりに許可する再試行回数
+     * @param minRetriesPerSecond 操作数によらず1秒あたりに許可する再試行回数
+     * @param maxTokens 積み立てられる最大の再試行回数
+     */
+    public RetryBudget(double ratio, int minRetriesPerSecond, long maxTokens) {
+        this.deposit = Math.max(0, Math.round(ratio*UNIT));
+        this.refillPerSecond = Math.max(0, minRetriesPerSecond)*UNIT;
+        this.capacity = Math.max(1, maxTokens)*UNIT;
+        this.tokens = new AtomicLong(this.refillPerSecond>0 ? Math.min(this.capacity, this.refillPerSecond) : 0);
+        this.refilledAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return 全てのプロバイダで共有する上限
+     */
+    public static RetryBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * 操作の開始を記録してトークンを積み立てます.
+     */
+    public void onRequest() {
+        if(this.deposit>0){
+            this.add(this.deposit);
+        }
+    }
+
+    /**
+     * 再試行のために1トークン使います.
+     * @return トークンが足りず再試行できなければfalse
+     */
+    public boolean tryAcquire() {
+        this.refill();
+        while(true){
+            long current = this.tokens.get();
+            if(current<UNIT){
+                return false;
+            }
+            if(this.tokens.compareAndSet(current, current-UNIT)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 現在再試行できる回数
+     */
+    public long available() {
+        this.refill();
+        return this.tokens.get()/UNIT;
+    }
+
+    private void refill() {
+        if(this.refillPerSecond<=0){
+            return;
+        }
+        long now = System.nanoTime();
+        long last = this.refilledAt.get();
+        long elapsed = now-last;
+        long amount = this.refillPerSecond*elapsed/TimeUnit.SECONDS.toNanos(1);
+        // 補充できる量がたまってから、1スレッドだけが補充する
+        if(amount>0 && this.refilledAt.compareAndSet(last, now)){
+            this.add(amount);
+        }
+    }
+
+    private void add(long amount) {
+        while(true){
+            long current = this.tokens.get();
+            long updated = Math.min(this.capacity, current+amount);
+            if(updated==current || this.tokens.compareAndSet(current, updated)){
+                return;
+            }
+        }
+    }
+}
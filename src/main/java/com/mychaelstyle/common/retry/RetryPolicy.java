@@ -0,0 +1,284 @@
+package com.mychaelstyle.common.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+
+/**
+ * 操作の再試行.
+ *
+ * ErrorClassifierが再試行してよいと判定したエラーだけを、指数バックオフで待ってから再試行します.
+ * n回目の失敗の後は0から min(max, base*2^n) ミリ秒の間でランダムに待つため(full jitter)、
+ * 同時に失敗した操作の再試行が同じ時刻に集中しません.
+ * 試行回数の上限に加えて、操作ごとの期限と{@link RetryBudget}による全体の再試行回数の上限を超えると
+ * 再試行をやめて最後のエラーを送出します.
+ *
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy(classifier).configure(config);
+ * JSONObject record = policy.execute("get", () -&gt; provider.get(key));
+ * </pre>
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class RetryPolicy {
+
+    /** JSON設定項目 最大試行回数 */
+    public static final String CONFIG_MAX_ATTEMPTS = "retry_max_attempts";
+    /** JSON設定項目 バックオフの基準時間ミリ秒 */
+    public static final String CONFIG_BASE_MILLIS = "retry_base_millis";
+    /** JSON設定項目 バックオフの最大時間ミリ秒 */
+    public static final String CONFIG_MAX_MILLIS = "retry_max_millis";
+    /** JSON設定項目 操作ごとの期限ミリ秒. 0なら期限なし */
+    public static final String CONFIG_DEADLINE_MILLIS = "retry_deadline_millis";
+
+    /** デフォルト最大試行回数 */
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    /** デフォルトのバックオフ基準時間ミリ秒 */
+    public static final long DEFAULT_BASE_MILLIS = 50;
+    /** デフォルトのバックオフ最大時間ミリ秒 */
+    public static final long DEFAULT_MAX_MILLIS = 5000;
+    /** デフォルトの操作ごとの期限ミリ秒 */
+    public static final long DEFAULT_DEADLINE_MILLIS = 30000;
+
+    /** Logger by logback */
+    private static Logger logger = LoggerFactory.getLogger("com.mychaelstyle.common");
+
+    /**
+     * 再試行する操作
+     * @param <T> 結果の型
+     * @param <E> 操作が送出する例外の型
+     */
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private ErrorClassifier classifier;
+    private RetryBudget budget = RetryBudget.global();
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long baseMillis = DEFAULT_BASE_MILLIS;
+    private long maxMillis = DEFAULT_MAX_MILLIS;
+    private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+    private MetricsRegistry metrics = null;
+    private String provider = null;
+
+    /**
+     * @param classifier 再試行してよいエラーの判定
+     */
+    public RetryPolicy(ErrorClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * 同じ設定の複製を作成します. 再試行回数の上限({@link RetryBudget})と記録先は共有します.
+     * @return
+     */
+    public RetryPolicy copy() {
+        RetryPolicy copy = new RetryPolicy(this.classifier);
+        copy.budget = this.budget;
+        copy.maxAttempts = this.maxAttempts;
+        copy.baseMillis = this.baseMillis;
+        copy.maxMillis = this.maxMillis;
+        copy.deadlineMillis = this.deadlineMillis;
+        copy.metrics = this.metrics;
+        copy.provider = this.provider;
+        return copy;
+    }
+
+    /**
+     * 設定JSONのretry_で始まる項目を読み込みます. 項目がなければ現在の値のままです.
+     * @param config
+     * @return
+     */
+    public RetryPolicy configure(JSONObject config) {
+        this.withMaxAttempts(config.optInt(CONFIG_MAX_ATTEMPTS, this.maxAttempts));
+        this.withBackoff(config.optLong(CONFIG_BASE_MILLIS, this.baseMillis),
+                config.optLong(CONFIG_MAX_MILLIS, this.maxMillis));
+        this.withDeadline(config.optLong(CONFIG_DEADLINE_MILLIS, this.deadlineMillis));
+        return this;
+    }
+
+    /**
+     * 最大試行回数を設定します. 1なら再試行しません.
+     * @param maxAttempts
+     * @return
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * 再試行前の待ち時間を設定します. n回目の失敗の後は0から min(max, base*2^n) ミリ秒の間でランダムに待ちます.
+     * @param baseMillis
+     * @param maxMillis
+     * @return
+     */
+    public RetryPolicy withBackoff(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * 操作ごとの期限を設定します. 待つと期限を過ぎる場合は再試行しません.
+     * @param deadlineMillis 最初の試行からのミリ秒. 0なら期限なし
+     * @return
+     */
+    public RetryPolicy withDeadline(long deadlineMillis) {
+        this.deadlineMillis = Math.max(0, deadlineMillis);
+        return this;
+    }
+
+    /**
+     * 再試行回数の上限を設定します. デフォルトは{@link RetryBudget#global()}です.
+     * @param budget
+     * @return
+     */
+    public RetryPolicy withBudget(RetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * 再試行してよいエラーの判定を設定します.
+     * @param classifier
+     * @return
+     */
+    public RetryPolicy withClassifier(ErrorClassifier classifier) {
+        this.classifier = classifier;
+        return this;
+    }
+
+    /**
+     * 再試行の回数をプロバイダ名と操作名ごとに記録します.
+     * @param metrics 記録先. nullなら記録しない
+     * @param provider プロバイダ名
+     * @return
+     */
+    public RetryPolicy withMetrics(MetricsRegistry metrics, String provider) {
+        this.metrics = metrics;
+        this.provider = provider;
+        return this;
+    }
+
+    /**
+     * @return 最大試行回数
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * 操作を実行し、再試行してよいエラーなら待ってから再試行します.
+     *
+     * @param operation ログ出力用の操作名
+     * @param call
+     * @return 操作の結果
+     * @throws E 再試行しないエラー、または再試行をやめたときの最後のエラー
+     */
+    public <T, E extends Exception> T execute(String operation, Call<T,E> call) throws E {
+        Attempts attempts = this.start(operation);
+        while(true){
+            try {
+                return call.call();
+            } catch(Exception e){
+                if(!attempts.backoff(e)){
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 1回の操作の試行を始めます. 未処理の要求を再送する場合など、
+     * 例外によらない再試行は{@link Attempts#backoff(Throwable)}にnullを渡してください.
+     * @param operation ログ出力用の操作名
+     * @return
+     */
+    public Attempts start(String operation) {
+        this.budget.onRequest();
+        return new Attempts(operation);
+    }
+
+    /**
+     * n回目の失敗の後の待ち時間を求めます.
+     * @param attempt 何回目の試行の後か
+     * @return 0から min(max, base*2^attempt) の間のミリ秒
+     */
+    public long backoffMillis(int attempt) {
+        long ceiling = Math.min(this.maxMillis, this.baseMillis << Math.min(attempt, 20));
+        if(ceiling<=0){
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling+1);
+    }
+
+    /**
+     * 1回の操作の試行回数と期限
+     */
+    public final class Attempts {
+        private final String operation;
+        private final long startedAt = System.nanoTime();
+        private int attempt = 1;
+
+        private Attempts(String operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * @return 現在何回目の試行か
+         */
+        public int attempt() {
+            return this.attempt;
+        }
+
+        /**
+         * 失敗した試行を記録し、再試行してよければ待ちます.
+         *
+         * @param error 試行が送出した例外. 例外によらない再試行ならnull
+         * @return 再試行してよければtrue. 再試行しないエラー、試行回数・期限・全体の上限に達した場合、
+         *     待っている間に割り込まれた場合はfalse
+         */
+        public boolean backoff(Throwable error) {
+            RetryPolicy policy = RetryPolicy.this;
+            if(null!=error && !policy.classifier.isRetryable(error)){
+                return false;
+            }
+            if(this.attempt>=policy.maxAttempts){
+                logger.warn("Give up "+this.operation+" after "+this.attempt+" attempts");
+                return false;
+            }
+            long sleep = policy.backoffMillis(this.attempt);
+            if(policy.deadlineMillis>0){
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-this.startedAt);
+                if(elapsed+sleep>policy.deadlineMillis){
+                    logger.warn("Give up "+this.operation+" at the deadline of "+policy.deadlineMillis+"ms");
+                    return false;
+                }
+            }
+            if(!policy.budget.tryAcquire()){
+                logger.warn("Give up "+this.operation+" because the retry budget is exhausted");
+                return false;
+            }
+            if(sleep>0){
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            this.attempt++;
+            if(null!=policy.metrics){
+                policy.metrics.retried(policy.provider, this.operation);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.mychaelstyle.common.workload;
+
+/**
+ * 負荷生成で操作対象のレコード番号を選ぶ分布.
+ * 実装は複数スレッドから同時に呼び出せる必要があります.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public interface NumberGenerator {
+
+    /**
+     * 次のレコード番号を取得
+     * @return 0以上{@link #getItems()}未満の番号
+     */
+    public long next();
+
+    /**
+     * @return 選択対象の番号の数
+     */
+    public long getItems();
+}
@@ -0,0 +1,35 @@
+package com.mychaelstyle.common.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 全てのレコード番号を同じ確率で選ぶ一様分布.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class UniformGenerator implements NumberGenerator {
+
+    private final long items;
+
+    /**
+     * Constructor
+     * @param items 選択対象の番号の数
+     */
+    public UniformGenerator(long items) {
+        if(items<1){
+            throw new IllegalArgumentException("items must be positive : "+items);
+        }
+        this.items = items;
+    }
+
+    @Override
+    public long next() {
+        return ThreadLocalRandom.current().nextLong(this.items);
+    }
+
+    @Override
+    public long getItems() {
+        return this.items;
+    }
+}
@@ -0,0 +1,243 @@
+package com.mychaelstyle.common.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * YCSBのコアワークロードに倣った負荷の定義.
+ *
+ * 操作の比率、レコード番号の分布、レコードの大きさをJSONObjectで設定します.
+ * <pre>
+ * {
+ *     "table" : "usertable",
+ *     "key_name" : "key",
+ *     "record_count" : 1000,
+ *     "operation_count" : 1000,
+ *     "threads" : 1,
+ *     "field_count" : 10,
+ *     "field_length" : 100,
+ *     "read_proportion" : 0.95,
+ *     "update_proportion" : 0.05,
+ *     "insert_proportion" : 0,
+ *     "scan_proportion" : 0,
+ *     "scan_length" : 100,
+ *     "request_distribution" : "zipfian",
+ *     "zipfian_constant" : 0.99
+ * }
+ * </pre>
+ * read, update, scanの対象はロードしたrecord_count件の中から分布に従って選び、
+ * insertはrecord_count以降の新しい番号のレコードを追加します.
+ * scanはテーブルの先頭からscan_length件を読みます.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class Workload {
+
+    public static final String CONFIG_TABLE = "table";
+    public static final String CONFIG_KEY_NAME = "key_name";
+    public static final String CONFIG_RECORD_COUNT = "record_count";
+    public static final String CONFIG_OPERATION_COUNT = "operation_count";
+    public static final String CONFIG_THREADS = "threads";
+    public static final String CONFIG_FIELD_COUNT = "field_count";
+    public static final String CONFIG_FIELD_LENGTH = "field_length";
+    public static final String CONFIG_READ_PROPORTION = "read_proportion";
+    public static final String CONFIG_UPDATE_PROPORTION = "update_proportion";
+    public static final String CONFIG_INSERT_PROPORTION = "insert_proportion";
+    public static final String CONFIG_SCAN_PROPORTION = "scan_proportion";
+    public static final String CONFIG_SCAN_LENGTH = "scan_length";
+    public static final String CONFIG_REQUEST_DISTRIBUTION = "request_distribution";
+    public static final String CONFIG_ZIPFIAN_CONSTANT = "zipfian_constant";
+
+    public static final String DISTRIBUTION_UNIFORM = "uniform";
+    public static final String DISTRIBUTION_ZIPFIAN = "zipfian";
+
+    public static final String DEFAULT_TABLE = "usertable";
+    public static final String DEFAULT_KEY_NAME = "key";
+    /** キー値の接頭辞 */
+    public static final String KEY_PREFIX = "user";
+    /** フィールド名の接頭辞 */
+    public static final String FIELD_PREFIX = "field";
+
+    private static final char[] CHARACTERS =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    /**
+     * 負荷の操作の種類
+     */
+    public enum Operation {
+        READ, UPDATE, INSERT, SCAN
+    }
+
+    private final String table;
+    private final String keyName;
+    private final long recordCount;
+    private final long operationCount;
+    private final int threads;
+    private final int fieldCount;
+    private final int fieldLength;
+    private final int scanLength;
+    private final double[] proportions = new double[Operation.values().length];
+    private final NumberGenerator chooser;
+    private final AtomicLong insertSequence;
+
+    /**
+     * Constructor
+     * @param config 負荷の設定
+     */
+    public Workload(JSONObject config) {
+        this.table = config.optString(CONFIG_TABLE, DEFAULT_TABLE);
+        this.keyName = config.optString(CONFIG_KEY_NAME, DEFAULT_KEY_NAME);
+        this.recordCount = config.optLong(CONFIG_RECORD_COUNT, 1000);
+        this.operationCount = config.optLong(CONFIG_OPERATION_COUNT, 1000);
+        this.threads = config.optInt(CONFIG_THREADS, 1);
+        this.fieldCount = config.optInt(CONFIG_FIELD_COUNT, 10);
+        this.fieldLength = config.optInt(CONFIG_FIELD_LENGTH, 100);
+        this.scanLength = config.optInt(CONFIG_SCAN_LENGTH, 100);
+        if(this.recordCount<1 || this.threads<1 || this.fieldCount<1){
+            throw new IllegalArgumentException("record_count, threads and field_count must be positive");
+        }
+        this.proportions[Operation.READ.ordinal()] = config.optDouble(CONFIG_READ_PROPORTION, 0.95);
+        this.proportions[Operation.UPDATE.ordinal()] = config.optDouble(CONFIG_UPDATE_PROPORTION, 0.05);
+        this.proportions[Operation.INSERT.ordinal()] = config.optDouble(CONFIG_INSERT_PROPORTION, 0);
+        this.proportions[Operation.SCAN.ordinal()] = config.optDouble(CONFIG_SCAN_PROPORTION, 0);
+        double total = 0;
+        for(double proportion : this.proportions){
+            if(proportion<0){
+                throw new IllegalArgumentException("proportions must not be negative");
+            }
+            total += proportion;
+        }
+        if(total<=0){
+            throw new IllegalArgumentException("at least one proportion must be positive");
+        }
+        // 累積比率にしておく
+        double cumulative = 0;
+        for(int num=0; num<this.proportions.length; num++){
+            cumulative += this.proportions[num]/total;
+            this.proportions[num] = cumulative;
+        }
+        String distribution = config.optString(CONFIG_REQUEST_DISTRIBUTION, DISTRIBUTION_ZIPFIAN);
+        if(DISTRIBUTION_UNIFORM.equals(distribution)){
+            this.chooser = new UniformGenerator(this.recordCount);
+        } else if(DISTRIBUTION_ZIPFIAN.equals(distribution)){
+            this.chooser = new ZipfianGenerator(this.recordCount,
+                    config.optDouble(CONFIG_ZIPFIAN_CONSTANT, ZipfianGenerator.DEFAULT_CONSTANT), true);
+        } else {
+            throw new IllegalArgumentException("unknown request_distribution : "+distribution);
+        }
+        this.insertSequence = new AtomicLong(this.recordCount);
+    }
+
+    /**
+     * 比率に従って次の操作を選ぶ
+     * @return
+     */
+    public Operation nextOperation() {
+        double value = ThreadLocalRandom.current().nextDouble();
+        Operation[] operations = Operation.values();
+        for(int num=0; num<operations.length-1; num++){
+            if(value<this.proportions[num]){
+                return operations[num];
+            }
+        }
+        return operations[operations.length-1];
+    }
+
+    /**
+     * 分布に従ってロード済みのレコード番号を選ぶ
+     * @return
+     */
+    public long nextRecordNumber() {
+        return this.chooser.next();
+    }
+
+    /**
+     * insertする新しいレコード番号を払い出す
+     * @return
+     */
+    public long nextInsertNumber() {
+        return this.insertSequence.getAndIncrement();
+    }
+
+    /**
+     * レコード番号の問い合わせキー
+     * @param number
+     * @return
+     */
+    public Key key(long number) {
+        return new Key(this.table, this.keyName, KEY_PREFIX+number);
+    }
+
+    /**
+     * 全フィールドを埋めたレコード
+     * @param number
+     * @return
+     */
+    public JSONObject record(long number) {
+        JSONObject record = new JSONObject().put(this.keyName, KEY_PREFIX+number);
+        for(int num=0; num<this.fieldCount; num++){
+            record.put(FIELD_PREFIX+num, this.value());
+        }
+        return record;
+    }
+
+    /**
+     * ランダムに選んだ1フィールドだけを書き換える更新レコード
+     * @param number
+     * @return
+     */
+    public JSONObject update(long number) {
+        int field = ThreadLocalRandom.current().nextInt(this.fieldCount);
+        return new JSONObject().put(this.keyName, KEY_PREFIX+number)
+                .put(FIELD_PREFIX+field, this.value());
+    }
+
+    private String value() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] chars = new char[this.fieldLength];
+        for(int num=0; num<chars.length; num++){
+            chars[num] = CHARACTERS[random.nextInt(CHARACTERS.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return テーブル名
+     */
+    public String getTable() {
+        return this.table;
+    }
+
+    /**
+     * @return ロードするレコード数
+     */
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * @return 実行する操作の数
+     */
+    public long getOperationCount() {
+        return this.operationCount;
+    }
+
+    /**
+     * @return 同時に操作するスレッド数
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * @return scanで読むレコード数
+     */
+    public int getScanLength() {
+        return this.scanLength;
+    }
+}
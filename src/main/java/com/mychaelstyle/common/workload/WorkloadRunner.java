@@ -0,0 +1,275 @@
+package com.mychaelstyle.common.workload;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.metrics.LatencyHistogram;
+import com.mychaelstyle.common.metrics.OperationMetrics;
+import com.mychaelstyle.common.workload.Workload.Operation;
+
+/**
+ * GenericDatastoreに{@link Workload}の負荷をかけ、スループットと所要時間のパーセンタイルを集計します.
+ *
+ * コマンドラインからは設定ファイルを指定して実行します.
+ * <pre>
+ * $ java com.mychaelstyle.common.workload.WorkloadRunner workload.json [load|run|all]
+ * </pre>
+ * 設定ファイルのフォーマット<br>
+ * <pre>
+ * {
+ *     "providers" : [ {GenericDatastore.withProviderに渡す設定}, ... ],
+ *     "workload" : {Workloadの設定}
+ * }
+ * </pre>
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class WorkloadRunner {
+
+    public static final String CONFIG_PROVIDERS = "providers";
+    public static final String CONFIG_WORKLOAD = "workload";
+
+    public static final String PHASE_LOAD = "load";
+    public static final String PHASE_RUN = "run";
+    public static final String PHASE_ALL = "all";
+
+    private final GenericDatastore datastore;
+    private final Workload workload;
+
+    /**
+     * Constructor
+     * @param datastore 負荷をかけるデータストア
+     * @param workload 負荷の定義
+     */
+    public WorkloadRunner(GenericDatastore datastore, Workload workload) {
+        this.datastore = datastore;
+        this.workload = workload;
+    }
+
+    /**
+     * record_count件のレコードを登録します.
+     * @return 集計結果
+     * @throws InterruptedException
+     */
+    public Report load() throws InterruptedException {
+        final AtomicLong sequence = new AtomicLong();
+        return this.execute(report -> {
+            long number;
+            while((number=sequence.getAndIncrement())<this.workload.getRecordCount()){
+                final long target = number;
+                report.measure(Operation.INSERT, () -> {
+                    this.datastore.put(this.workload.key(target), this.workload.record(target));
+                });
+            }
+        });
+    }
+
+    /**
+     * 比率に従ってoperation_count回の操作を実行します.
+     * @return 集計結果
+     * @throws InterruptedException
+     */
+    public Report run() throws InterruptedException {
+        final AtomicLong remaining = new AtomicLong(this.workload.getOperationCount());
+        return this.execute(report -> {
+            while(remaining.getAndDecrement()>0){
+                Operation operation = this.workload.nextOperation();
+                report.measure(operation, () -> this.perform(operation));
+            }
+        });
+    }
+
+    private void perform(Operation operation) throws Exception {
+        switch(operation){
+        case READ:
+            this.datastore.get(this.workload.key(this.workload.nextRecordNumber()));
+            break;
+        case UPDATE:
+            long number = this.workload.nextRecordNumber();
+            this.datastore.update(this.workload.key(number), this.workload.update(number));
+            break;
+        case INSERT:
+            long inserted = this.workload.nextInsertNumber();
+            this.datastore.put(this.workload.key(inserted), this.workload.record(inserted));
+            break;
+        case SCAN:
+            ResultSet resultSet = this.datastore.scan(new Key(this.workload.getTable()), new JSONObject(), null);
+            int count = 0;
+            while(count<this.workload.getScanLength() && resultSet.hasNext()){
+                resultSet.next();
+                count++;
+            }
+            break;
+        }
+    }
+
+    /**
+     * threads本のスレッドでworkerを実行し、全て終わるまで待つ
+     * @param worker
+     * @return
+     * @throws InterruptedException
+     */
+    private Report execute(Worker worker) throws InterruptedException {
+        Report report = new Report();
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for(int num=0; num<this.workload.getThreads(); num++){
+            Thread thread = new Thread(() -> worker.work(report), "workload-"+num);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        report.elapsedNanos = System.nanoTime()-start;
+        return report;
+    }
+
+    /**
+     * 各スレッドで実行する処理
+     */
+    private interface Worker {
+        void work(Report report);
+    }
+
+    /**
+     * 所要時間を測る1回の操作
+     */
+    private interface Task {
+        void execute() throws Exception;
+    }
+
+    /**
+     * 操作ごとの所要時間と失敗回数、全体の経過時間
+     */
+    public static class Report {
+        private final Map<Operation,OperationMetrics> metrics =
+                new EnumMap<Operation,OperationMetrics>(Operation.class);
+        private volatile long elapsedNanos = 0;
+
+        Report() {
+            for(Operation operation : Operation.values()){
+                this.metrics.put(operation, new OperationMetrics());
+            }
+        }
+
+        private void measure(Operation operation, Task task) {
+            boolean success = false;
+            long start = System.nanoTime();
+            try {
+                task.execute();
+                success = true;
+            } catch (Exception e) {
+                // 失敗は回数として集計する
+            } finally {
+                this.metrics.get(operation).record(System.nanoTime()-start, success);
+            }
+        }
+
+        /**
+         * @param operation
+         * @return 操作の所要時間と失敗回数
+         */
+        public OperationMetrics getMetrics(Operation operation) {
+            return this.metrics.get(operation);
+        }
+
+        /**
+         * @return 実行した操作の総数
+         */
+        public long getOperations() {
+            long count = 0;
+            for(OperationMetrics operation : this.metrics.values()){
+                count += operation.getLatency().count();
+            }
+            return count;
+        }
+
+        /**
+         * @return 経過時間ナノ秒
+         */
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        /**
+         * @return 1秒あたりの操作数
+         */
+        public double getThroughput() {
+            if(this.elapsedNanos<=0){
+                return 0;
+            }
+            return this.getOperations()*(double) TimeUnit.SECONDS.toNanos(1)/this.elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(String.format("[OVERALL] RunTime(ms) %d%n",
+                    TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos)));
+            buf.append(String.format("[OVERALL] Throughput(ops/sec) %.1f%n", this.getThroughput()));
+            for(Map.Entry<Operation,OperationMetrics> entry : this.metrics.entrySet()){
+                LatencyHistogram.Snapshot snapshot = entry.getValue().getLatency().snapshot();
+                if(snapshot.getCount()==0){
+                    continue;
+                }
+                String name = entry.getKey().name();
+                buf.append(String.format("[%s] Operations %d%n", name, snapshot.getCount()));
+                buf.append(String.format("[%s] Errors %d%n", name, entry.getValue().getErrors()));
+                buf.append(String.format("[%s] AverageLatency(us) %.1f%n", name,
+                        snapshot.getSum()/1000.0/snapshot.getCount()));
+                buf.append(String.format("[%s] 50thPercentileLatency(us) %.1f%n", name,
+                        snapshot.getValueAtPercentile(50)/1000.0));
+                buf.append(String.format("[%s] 99thPercentileLatency(us) %.1f%n", name,
+                        snapshot.getValueAtPercentile(99)/1000.0));
+                buf.append(String.format("[%s] 99.9thPercentileLatency(us) %.1f%n", name,
+                        snapshot.getValueAtPercentile(99.9)/1000.0));
+                buf.append(String.format("[%s] MaxLatency(us) %.1f%n", name, snapshot.getMax()/1000.0));
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * 設定ファイルを読んでload, runを実行し、結果を標準出力に書きます.
+     * @param args 設定ファイルのパスと実行する段階(load, run, all 既定はall)
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length<1){
+            System.err.println("usage: WorkloadRunner <config.json> [load|run|all]");
+            System.exit(1);
+        }
+        JSONObject config = new JSONObject(new String(Files.readAllBytes(Paths.get(args[0])),
+                StandardCharsets.UTF_8));
+        String phase = args.length>1 ? args[1] : PHASE_ALL;
+        GenericDatastore datastore = new GenericDatastore()
+                .withProviders(config.getJSONArray(CONFIG_PROVIDERS));
+        WorkloadRunner runner = new WorkloadRunner(datastore,
+                new Workload(config.optJSONObject(CONFIG_WORKLOAD)==null
+                        ? new JSONObject() : config.getJSONObject(CONFIG_WORKLOAD)));
+        if(PHASE_LOAD.equals(phase) || PHASE_ALL.equals(phase)){
+            System.out.println("# load");
+            System.out.print(runner.load());
+        }
+        if(PHASE_RUN.equals(phase) || PHASE_ALL.equals(phase)){
+            System.out.println("# run");
+            System.out.print(runner.run());
+        }
+        System.exit(0);
+    }
+}
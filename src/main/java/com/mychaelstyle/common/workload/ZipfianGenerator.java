@@ -0,0 +1,122 @@
+package com.mychaelstyle.common.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 少数のレコード番号に操作が集中するZipf分布.
+ *
+ * Gray et al. "Quickly Generating Billion-Record Synthetic Databases"のアルゴリズムで、
+ * 番号nが選ばれる確率は1/(n+1)^constantに比例します.
+ * scrambledにすると選んだ番号をハッシュで散らし、よく使われるレコードが
+ * キーの並びの先頭に固まらないようにします. 範囲で分割されるデータストアで
+ * 特定のパーティションだけが熱くなるのを避けるため、通常はscrambledを使います.
+ *
+ * @author Masanori Nakashima
+ *
+ */
+public class ZipfianGenerator implements NumberGenerator {
+
+    /** YCSBと同じ既定の偏り */
+    public static final double DEFAULT_CONSTANT = 0.99;
+
+    private static final long FNV_OFFSET_BASIS_64 = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME_64 = 1099511628211L;
+
+    private final long items;
+    private final double constant;
+    private final boolean scrambled;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    /**
+     * Constructor
+     * @param items 選択対象の番号の数
+     */
+    public ZipfianGenerator(long items) {
+        this(items, DEFAULT_CONSTANT, true);
+    }
+
+    /**
+     * Constructor
+     * @param items 選択対象の番号の数
+     * @param constant 偏りの強さ. 0より大きく1未満
+     * @param scrambled 選んだ番号をハッシュで散らすか
+     */
+    public ZipfianGenerator(long items, double constant, boolean scrambled) {
+        if(items<1){
+            throw new IllegalArgumentException("items must be positive : "+items);
+        }
+        if(constant<=0 || constant>=1){
+            throw new IllegalArgumentException("constant must be between 0 and 1 : "+constant);
+        }
+        this.items = items;
+        this.constant = constant;
+        this.scrambled = scrambled;
+        this.zetan = zeta(items, constant);
+        this.alpha = 1.0/(1.0-constant);
+        this.eta = (1.0-Math.pow(2.0/items, 1.0-constant))/(1.0-zeta(2, constant)/this.zetan);
+        this.halfPowTheta = 1.0+Math.pow(0.5, constant);
+    }
+
+    /**
+     * 1/i^theta (i=1..n)の和
+     * @param n
+     * @param theta
+     * @return
+     */
+    static double zeta(long n, double theta) {
+        double sum = 0;
+        for(long i=1; i<=n; i++){
+            sum += 1.0/Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    @Override
+    public long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u*this.zetan;
+        long value;
+        if(uz<1.0){
+            value = 0;
+        } else if(uz<this.halfPowTheta){
+            value = 1;
+        } else {
+            value = (long) (this.items*Math.pow(this.eta*u-this.eta+1.0, this.alpha));
+            value = Math.min(value, this.items-1);
+        }
+        if(this.scrambled){
+            value = Math.floorMod(fnvhash64(value), this.items);
+        }
+        return value;
+    }
+
+    @Override
+    public long getItems() {
+        return this.items;
+    }
+
+    /**
+     * @return 偏りの強さ
+     */
+    public double getConstant() {
+        return this.constant;
+    }
+
+    /**
+     * 番号を散らすためのFNV-1aハッシュ
+     * @param value
+     * @return
+     */
+    static long fnvhash64(long value) {
+        long hash = FNV_OFFSET_BASIS_64;
+        for(int num=0; num<8; num++){
+            hash ^= value & 0xFF;
+            hash *= FNV_PRIME_64;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
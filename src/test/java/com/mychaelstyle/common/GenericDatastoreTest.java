@@ -2,14 +2,45 @@ package com.mychaelstyle.common;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.mychaelstyle.common.GenericDatastore.BaseProvider;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.ConnectionException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.cache.RecordCache;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+import com.mychaelstyle.common.metrics.OperationMetrics;
+
 public class GenericDatastoreTest {
 
+    private static final String TEST_TABLE = "test_table";
+
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
     }
@@ -20,6 +51,7 @@ public class GenericDatastoreTest {
 
     @Before
     public void setUp() throws Exception {
+        StubProvider.instances.clear();
     }
 
     @After
@@ -30,4 +62,489 @@ public class GenericDatastoreTest {
     public void test() {
     }
 
+    @Test
+    public void testKey() {
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        Key sub = key.withSubkey("subkey", "subkeyValue");
+        assertNotSame(key, sub);
+        assertNull(key.getSubkeyName());
+        assertFalse(key.hasSubkey());
+        assertTrue(sub.hasSubkey());
+        assertEquals("subkeyValue", sub.getSubkeyValue());
+        assertEquals(new Key(TEST_TABLE, "key", "keyValue", "subkey", "subkeyValue"), sub);
+        assertEquals(new Key(TEST_TABLE, "key", 1), new Key(TEST_TABLE, "key", "1"));
+        assertEquals(new Key(TEST_TABLE, "key", 1).hashCode(),
+                new Key(TEST_TABLE, "key", "1").hashCode());
+        assertNotEquals(key, key.withTable("other_table"));
+    }
+
+    @Test
+    public void testWriteFanOut() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 100, false))
+            .withProvider(stubConfig("b", 100, false))
+            .withProvider(stubConfig("c", 100, false));
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        JSONObject record = new JSONObject().put("key", "keyValue").put("contents", "Test Contents!");
+
+        long start = System.currentTimeMillis();
+        datastore.put(key, record);
+        long sequential = System.currentTimeMillis()-start;
+        assertTrue("sequential write took "+sequential+"ms", sequential>=300);
+
+        datastore.withWriteFanOut(10);
+        start = System.currentTimeMillis();
+        datastore.put(key, record.put("contents", "contents updated!"));
+        long parallel = System.currentTimeMillis()-start;
+        assertTrue("parallel write took "+parallel+"ms", parallel<sequential);
+        for(String name : new String[]{"a","b","c"}){
+            assertEquals("contents updated!",
+                    StubProvider.instances.get(name).get(key).getString("contents"));
+        }
+    }
+
+    @Test
+    public void testWriteFanOutClose() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        JSONObject record = new JSONObject().put("key", "keyValue").put("contents", "Test Contents!");
+        try(GenericDatastore datastore = new GenericDatastore().withWriteFanOut(1, 10)
+                .withProvider(stubConfig("a", 100, false))
+                .withProvider(stubConfig("b", 100, false))){
+            // 1つ目のプロバイダは呼び出し元が書き込むため、1スレッドでも2つのプロバイダへ並列に書き込む
+            long start = System.currentTimeMillis();
+            datastore.put(key, record);
+            long parallel = System.currentTimeMillis()-start;
+            assertTrue("parallel write took "+parallel+"ms", parallel<190);
+
+            // 停止後は順番に書き込む
+            datastore.close();
+            start = System.currentTimeMillis();
+            datastore.put(key, record);
+            assertTrue(System.currentTimeMillis()-start>=200);
+        }
+    }
+
+    @Test
+    public void testWriteFanOutRollback() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false))
+            .withProvider(stubConfig("b", 0, false))
+            .withProvider(stubConfig("c", 0, false))
+            .withWriteFanOut(10);
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.put(key, new JSONObject().put("key", "keyValue").put("contents", "original"));
+
+        StubProvider.instances.get("c").fail = true;
+        try {
+            datastore.update(key, new JSONObject().put("contents", "updated"));
+            fail("update must fail when a provider fails");
+        } catch(OperationException e){
+            // expected
+        }
+        assertEquals("original", StubProvider.instances.get("a").get(key).getString("contents"));
+        assertEquals("original", StubProvider.instances.get("b").get(key).getString("contents"));
+
+        // quorum of two acknowledges without rollback
+        datastore.withWriteQuorum(2);
+        datastore.update(key, new JSONObject().put("contents", "updated"));
+        assertEquals("updated", StubProvider.instances.get("a").get(key).getString("contents"));
+        assertEquals("updated", StubProvider.instances.get("b").get(key).getString("contents"));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testAsync() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 10, false))
+            .withAsyncExecutor(DatastoreExecutors.newBoundedExecutor("test-async", 2, 10,
+                    DatastoreExecutors.Overflow.CALLER_RUNS));
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        JSONObject record = new JSONObject().put("key", "keyValue").put("contents", "Test Contents!");
+
+        datastore.putAsync(key, record).get(5, TimeUnit.SECONDS);
+        assertEquals("Test Contents!",
+                datastore.getAsync(key).get(5, TimeUnit.SECONDS).getString("contents"));
+        datastore.updateAsync(key, new JSONObject().put("contents", "contents updated!"))
+            .get(5, TimeUnit.SECONDS);
+        assertEquals("contents updated!",
+                datastore.getAsync(key).get(5, TimeUnit.SECONDS).getString("contents"));
+        datastore.deleteAsync(key).get(5, TimeUnit.SECONDS);
+        assertNull(datastore.getAsync(key).get(5, TimeUnit.SECONDS));
+
+        // legacy asyncPut calls back on success
+        final CountDownLatch latch = new CountDownLatch(1);
+        datastore.asyncPut(TEST_TABLE, record, "key", null, new GenericDatastore.Callback(){
+            @Override
+            public void callback() {
+                latch.countDown();
+            }
+            @Override
+            public void handleException(Throwable e) {
+                fail(e.getMessage());
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotNull(datastore.get(key));
+
+        // batchGetAsyncはbatchGetと同じように条件を確認する
+        JSONArray noTable = new JSONArray().put(new JSONObject().put("key", "key")
+                .put("data", new JSONObject().put("key", "keyValue")));
+        try {
+            datastore.batchGetAsync(noTable).get(5, TimeUnit.SECONDS);
+            fail("batchGetAsync must fail without a table name");
+        } catch(ExecutionException e){
+            assertTrue(e.getCause() instanceof JSONException);
+        }
+
+        // failures complete the future exceptionally
+        StubProvider.instances.get("a").fail = true;
+        try {
+            datastore.putAsync(key, record).get(5, TimeUnit.SECONDS);
+            fail("putAsync must fail when the provider fails");
+        } catch(ExecutionException e){
+            assertTrue(e.getCause() instanceof OperationException);
+        }
+    }
+
+    @Test
+    public void testAsyncRejected() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 200, false))
+            .withAsyncExecutor(DatastoreExecutors.newBoundedExecutor("test-abort", 1, 1,
+                    DatastoreExecutors.Overflow.ABORT));
+        JSONObject record = new JSONObject().put("contents", "Test Contents!");
+        datastore.putAsync(new Key(TEST_TABLE, "key", "1"), record);
+        datastore.putAsync(new Key(TEST_TABLE, "key", "2"), record);
+        CompletableFuture<Void> rejected = datastore.putAsync(new Key(TEST_TABLE, "key", "3"), record);
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail("a full executor must reject the third put");
+        } catch(ExecutionException e){
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        GenericDatastore datastore = new GenericDatastore().withProvider(stubConfig("a", 10, false));
+        if(!DatastoreExecutors.isVirtualThreadSupported()){
+            try {
+                datastore.withVirtualThreads();
+                fail("virtual threads must be rejected before Java 21");
+            } catch(ConfigurationException e){
+                // expected
+            }
+            return;
+        }
+        datastore.withVirtualThreads();
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.putAsync(key, new JSONObject().put("contents", "Test Contents!")).get(5, TimeUnit.SECONDS);
+        assertEquals("Test Contents!",
+                datastore.getAsync(key).get(5, TimeUnit.SECONDS).getString("contents"));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false)).withCache(cache);
+        StubProvider provider = StubProvider.instances.get("a");
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.put(key, new JSONObject().put("contents", "Test Contents!"));
+        int reads = provider.gets.get();
+        assertEquals("Test Contents!", datastore.get(key).getString("contents"));
+        assertEquals("Test Contents!", datastore.get(key).getString("contents"));
+        assertEquals(reads+1, provider.gets.get());
+        assertEquals(1, cache.getHitCount());
+        // 書き込みでキャッシュが無効化される
+        datastore.update(key, new JSONObject().put("contents", "Updated!"));
+        reads = provider.gets.get();
+        assertEquals("Updated!", datastore.get(key).getString("contents"));
+        assertEquals(reads+1, provider.gets.get());
+        datastore.delete(key);
+        assertNull(datastore.get(key));
+        datastore.put(key, new JSONObject().put("contents", "Test Contents!"));
+        datastore.get(key);
+        datastore.batchWrite(new JSONArray().put(new JSONObject().put("table", TEST_TABLE)
+                .put("key", "key").put("action", "delete")
+                .put("data", new JSONObject().put("key", "keyValue"))));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCacheAsyncBatchWrite() throws Exception {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false)).withCache(cache);
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.put(key, new JSONObject().put("key", "keyValue").put("contents", "Test Contents!"));
+        assertEquals("Test Contents!", datastore.get(key).getString("contents"));
+        assertEquals(1, cache.size());
+        // 非同期の一括書き込みでもキャッシュが無効化される
+        datastore.batchWriteAsync(new JSONArray().put(new JSONObject().put("table", TEST_TABLE)
+                .put("key", "key").put("action", "put")
+                .put("data", new JSONObject().put("key", "keyValue").put("contents", "Updated!"))))
+            .get(5, TimeUnit.SECONDS);
+        assertEquals(0, cache.size());
+        assertEquals("Updated!", datastore.get(key).getString("contents"));
+        datastore.batchWriteAsync(new JSONArray().put(new JSONObject().put("table", TEST_TABLE)
+                .put("key", "key").put("action", "delete")
+                .put("data", new JSONObject().put("key", "keyValue"))))
+            .get(5, TimeUnit.SECONDS);
+        assertNull(datastore.get(key));
+    }
+
+    @Test
+    public void testCacheQuorumWrite() throws Exception {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 300, false))
+            .withProvider(stubConfig("b", 0, false))
+            .withWriteFanOut(10).withCache(cache);
+        Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.put(key, new JSONObject().put("key", "keyValue").put("contents", "original"));
+        // 読み込み先のaが書き込み中のまま戻り、古いレコードをキャッシュする
+        datastore.withWriteQuorum(1);
+        datastore.update(key, new JSONObject().put("contents", "updated"));
+        datastore.get(key);
+        // aの書き込みが終わればキャッシュは無効化される
+        long deadline = System.currentTimeMillis()+5000;
+        String contents = null;
+        while(System.currentTimeMillis()<deadline){
+            contents = datastore.get(key).getString("contents");
+            if("updated".equals(contents)){
+                break;
+            }
+            Thread.sleep(20);
+        }
+        assertEquals("updated", contents);
+    }
+
+    @Test
+    public void testReadCoalescing() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false).put("read_latency", 200))
+            .withReadCoalescing(true);
+        StubProvider provider = StubProvider.instances.get("a");
+        final Key key = new Key(TEST_TABLE, "key", "keyValue");
+        datastore.put(key, new JSONObject().put("contents", "Test Contents!"));
+        int reads = provider.gets.get();
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<CompletableFuture<JSONObject>>();
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            for(int num=0; num<10; num++){
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return datastore.get(key);
+                    } catch(Exception e){
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            for(CompletableFuture<JSONObject> future : futures){
+                assertEquals("Test Contents!", future.get(5, TimeUnit.SECONDS).getString("contents"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(reads+1, provider.gets.get());
+        // 呼び出し元ごとに別のインスタンスを受け取る
+        assertNotSame(futures.get(0).get(), futures.get(1).get());
+    }
+
+    @Test
+    public void testReadBatching() throws Exception {
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false))
+            .withReadBatching(50, TimeUnit.MILLISECONDS, 100);
+        StubProvider provider = StubProvider.instances.get("a");
+        for(int num=0; num<10; num++){
+            datastore.put(new Key(TEST_TABLE, "key", "key"+num),
+                    new JSONObject().put("key", "key"+num).put("contents", "Test Contents "+num));
+        }
+        int reads = provider.gets.get();
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<CompletableFuture<JSONObject>>();
+        for(int num=0; num<12; num++){
+            futures.add(datastore.getAsync(new Key(TEST_TABLE, "key", "key"+num)));
+        }
+        for(int num=0; num<10; num++){
+            assertEquals("Test Contents "+num,
+                    futures.get(num).get(5, TimeUnit.SECONDS).getString("contents"));
+        }
+        assertNull(futures.get(10).get(5, TimeUnit.SECONDS));
+        assertNull(futures.get(11).get(5, TimeUnit.SECONDS));
+        assertEquals(reads, provider.gets.get());
+        assertTrue(provider.batchGets.get()<12);
+
+        // キー数の上限に達したら待ち時間を待たずに読み込む
+        datastore.withReadBatching(10, TimeUnit.SECONDS, 2);
+        CompletableFuture<JSONObject> first = datastore.getAsync(new Key(TEST_TABLE, "key", "key0"));
+        CompletableFuture<JSONObject> second = datastore.getAsync(new Key(TEST_TABLE, "key", "key1"));
+        assertEquals("Test Contents 0", first.get(5, TimeUnit.SECONDS).getString("contents"));
+        assertEquals("Test Contents 1", second.get(5, TimeUnit.SECONDS).getString("contents"));
+
+        // Executorが溢れたバッチはタイマースレッドで読み込まずに失敗する
+        int batchGets = provider.batchGets.get();
+        datastore.withReadBatching(10, TimeUnit.MILLISECONDS, 100, runnable -> {
+            throw new RejectedExecutionException("saturated");
+        });
+        try {
+            datastore.get(new Key(TEST_TABLE, "key", "key0"));
+            fail();
+        } catch(OperationException e){
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(batchGets, provider.batchGets.get());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        GenericDatastore datastore = new GenericDatastore()
+            .withProvider(stubConfig("a", 0, false))
+            .withMetrics(registry)
+            .withProvider(stubConfig("b", 0, false));
+        Key key = new Key(TEST_TABLE, "key", "key1");
+        datastore.put(key, new JSONObject().put("key", "key1").put("contents", "Test Contents"));
+        assertEquals("Test Contents", datastore.get(key).getString("contents"));
+        StubProvider.instances.get("b").fail = true;
+        try {
+            datastore.delete(key);
+            fail();
+        } catch(OperationException e){
+            // through
+        }
+        OperationMetrics puts = registry.operation(StubProvider.class.getSimpleName(), "put", TEST_TABLE);
+        // 2つのプロバイダへの書き込みとdeleteのロールバック
+        assertEquals(3, puts.getLatency().count());
+        assertEquals(0, puts.getErrors());
+        OperationMetrics deletes = registry.operation(StubProvider.class.getSimpleName(), "delete", TEST_TABLE);
+        assertEquals(2, deletes.getLatency().count());
+        assertEquals(1, deletes.getErrors());
+        assertTrue(registry.operation(StubProvider.class.getSimpleName(), "get", TEST_TABLE).getLatency().count()>=1);
+
+        // 記録をやめる
+        datastore.withMetrics(null);
+        StubProvider.instances.get("b").fail = false;
+        datastore.put(key, new JSONObject().put("key", "key1"));
+        assertEquals(3, puts.getLatency().count());
+    }
+
+    private static JSONObject stubConfig(String name, long latency, boolean fail){
+        return new JSONObject().put(GenericDatastore.PARAM_PROVIDER, StubProvider.class.getName())
+                .put("name", name).put("latency", latency).put("fail", fail);
+    }
+
+    /**
+     * 待ち時間と失敗を設定できるテスト用プロバイダ
+     */
+    public static class StubProvider extends BaseProvider {
+        static Map<String,StubProvider> instances = new ConcurrentHashMap<String,StubProvider>();
+        private Map<Key,JSONObject> records = new ConcurrentHashMap<Key,JSONObject>();
+        private long latency = 0;
+        private long readLatency = 0;
+        volatile boolean fail = false;
+        final AtomicInteger gets = new AtomicInteger();
+        final AtomicInteger batchGets = new AtomicInteger();
+
+        @Override
+        public Provider connect(JSONObject config) throws ConfigurationException {
+            this.latency = config.getLong("latency");
+            this.fail = config.getBoolean("fail");
+            this.readLatency = config.optLong("read_latency", 0);
+            instances.put(config.getString("name"), this);
+            return this;
+        }
+
+        private void await() throws OperationException {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                throw new OperationException(e);
+            }
+            if(this.fail){
+                throw new OperationException("stub failure");
+            }
+        }
+
+        @Override
+        public JSONObject get(Key key) throws OperationException {
+            this.gets.incrementAndGet();
+            try {
+                Thread.sleep(this.readLatency);
+            } catch (InterruptedException e) {
+                throw new OperationException(e);
+            }
+            return this.records.get(key);
+        }
+
+        @Override
+        public void delete(Key key) throws OperationException {
+            this.await();
+            this.records.remove(key);
+        }
+
+        @Override
+        public void put(Key key, JSONObject record) throws OperationException {
+            this.await();
+            this.records.put(key, new JSONObject(record.toString()));
+        }
+
+        @Override
+        public void update(Key key, JSONObject record) throws OperationException {
+            this.await();
+            JSONObject cur = this.records.get(key);
+            JSONObject updated = null==cur ? new JSONObject() : new JSONObject(cur.toString());
+            for(Object name : record.keySet()){
+                updated.put((String) name, record.get((String) name));
+            }
+            this.records.put(key, updated);
+        }
+
+        @Override
+        public JSONObject batchGet(JSONArray conditions) {
+            this.batchGets.incrementAndGet();
+            JSONObject result = new JSONObject();
+            for(int num=0; num<conditions.length(); num++){
+                JSONObject condition = conditions.getJSONObject(num);
+                String table = condition.getString(FIELD_TABLE);
+                String keyName = condition.getString(FIELD_KEY);
+                JSONObject data = condition.getJSONObject(FIELD_DATA);
+                JSONObject record = this.records.get(new Key(table, keyName, data.get(keyName)));
+                if(null!=record){
+                    JSONArray rows = result.optJSONArray(table);
+                    result.put(table, null==rows ? new JSONArray().put(record) : rows.put(record));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void batchWrite(JSONArray jsonArray) throws OperationException {
+            this.await();
+            for(int num=0; num<jsonArray.length(); num++){
+                JSONObject row = jsonArray.getJSONObject(num);
+                String keyName = row.getString(FIELD_KEY);
+                JSONObject data = row.getJSONObject(FIELD_DATA);
+                Key key = new Key(row.getString(FIELD_TABLE), keyName, data.get(keyName));
+                if(ACTION_DELETE.equals(row.getString(FIELD_ACTION))){
+                    this.records.remove(key);
+                } else {
+                    this.records.put(key, new JSONObject(data.toString()));
+                }
+            }
+        }
+
+        @Override
+        public ResultSet scan(Key key, JSONObject conditions, List<String> fields)
+                throws ConnectionException, ConfigurationException, OperationException {
+            return null;
+        }
+
+        @Override
+        public ResultSet query(Key key, JSONObject conditions, List<String> fields)
+                throws ConnectionException, ConfigurationException, OperationException {
+            return null;
+        }
+    }
 }
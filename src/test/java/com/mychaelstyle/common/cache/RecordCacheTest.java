@@ -0,0 +1,121 @@
+package com.mychaelstyle.common.cache;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+public class RecordCacheTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    private static Key key(int num){
+        return new Key(TEST_TABLE, "key", "key"+num);
+    }
+
+    private static JSONObject record(int num){
+        return new JSONObject().put("key", "key"+num).put("contents", "Test Contents "+num);
+    }
+
+    @Test
+    public void testGetAndPut() {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        assertNull(cache.get(key(1)));
+        JSONObject record = record(1);
+        cache.put(key(1), record);
+        // 登録後に呼び出し元が変更してもキャッシュは変わらない
+        record.put("contents", "changed");
+        JSONObject cached = cache.get(key(1));
+        assertEquals("Test Contents 1", cached.getString("contents"));
+        cached.put("contents", "changed");
+        assertEquals("Test Contents 1", cache.get(key(1)).getString("contents"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.stats().getLong("hits"));
+    }
+
+    @Test
+    public void testMaxSize() {
+        RecordCache cache = new RecordCache(50, 1024*1024);
+        for(int num=0; num<500; num++){
+            cache.put(key(num), record(num));
+        }
+        assertTrue(cache.size()<=50);
+        assertTrue(cache.getEvictionCount()>=450);
+    }
+
+    @Test
+    public void testMaxWeight() {
+        long weight = RecordCache.weigh(key(0), record(0));
+        RecordCache cache = new RecordCache(1000, weight*20);
+        for(int num=0; num<200; num++){
+            cache.put(key(num), record(num));
+        }
+        assertTrue(cache.weight()<=weight*20);
+        assertTrue(cache.size()<=20);
+    }
+
+    @Test
+    public void testFrequencyAdmission() {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        for(int num=0; num<100; num++){
+            cache.put(key(num), record(num));
+        }
+        for(int round=0; round<5; round++){
+            for(int num=0; num<100; num++){
+                cache.get(key(num));
+            }
+        }
+        // 一度しか使われないキーを大量に登録しても頻繁に読まれるキーは残る
+        for(int num=1000; num<3000; num++){
+            cache.put(key(num), record(num));
+        }
+        int retained = 0;
+        for(int num=0; num<100; num++){
+            if(null!=cache.get(key(num))){
+                retained++;
+            }
+        }
+        assertTrue("retained "+retained, retained>=70);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        RecordCache cache = new RecordCache(new JSONObject().put(RecordCache.CONFIG_MAX_SIZE, 100)
+                .put(RecordCache.CONFIG_TABLES, new JSONObject()
+                        .put(TEST_TABLE, new JSONObject().put(RecordCache.CONFIG_TTL, 50))));
+        cache.put(key(1), record(1));
+        Key other = new Key("other_table", "key", "key1");
+        cache.put(other, record(1));
+        assertNotNull(cache.get(key(1)));
+        Thread.sleep(100);
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(other));
+        assertEquals(1, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        RecordCache cache = new RecordCache(100, 1024*1024);
+        cache.put(key(1), record(1));
+        cache.put(key(2), record(2));
+        cache.invalidate(key(1));
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(2)));
+        cache.invalidate(new JSONArray().put(new JSONObject().put("table", TEST_TABLE)
+                .put("key", "key").put("data", record(2))));
+        assertNull(cache.get(key(2)));
+        cache.put(key(3), record(3));
+        cache.invalidateTable(TEST_TABLE);
+        assertEquals(0, cache.size());
+
+        // 読み込み中に無効化されたレコードは登録しない
+        long stamp = cache.stamp();
+        cache.invalidate(key(4));
+        assertFalse(cache.put(key(4), record(4), stamp));
+        assertNull(cache.get(key(4)));
+    }
+}
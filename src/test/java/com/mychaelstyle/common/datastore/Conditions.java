@@ -0,0 +1,27 @@
+package com.mychaelstyle.common.datastore;
+
+import org.json.JSONObject;
+
+import com.mychaelstyle.common.GenericDatastore.Provider;
+
+/**
+ * テストで使う検索条件
+ *
+ * @author Masanori Nakashima
+ */
+final class Conditions {
+
+    private Conditions() {
+    }
+
+    /**
+     * 1フィールドの条件
+     * @param operator 演算子
+     * @param value 値
+     * @return
+     */
+    static JSONObject condition(String operator, Object value) {
+        return new JSONObject().put(Provider.NAME_CONDITION_OPERATOR, operator)
+                .put(Provider.NAME_CONDITION_VAL, value);
+    }
+}
@@ -0,0 +1,179 @@
+package com.mychaelstyle.common.datastore;
+
+import static com.mychaelstyle.common.datastore.Conditions.condition;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class EmbeddedRocksDBTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path = null;
+    private EmbeddedRocksDB rocks = null;
+
+    @Before
+    public void setUp() throws Exception {
+        this.path = this.folder.newFolder("rocksdb").getAbsolutePath();
+        this.rocks = this.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EmbeddedRocksDB.close(this.path);
+    }
+
+    private EmbeddedRocksDB connect() throws ConfigurationException {
+        EmbeddedRocksDB rocks = new EmbeddedRocksDB();
+        rocks.connect(new JSONObject().put(EmbeddedRocksDB.CONFIG_PATH, this.path)
+                .put(EmbeddedRocksDB.CONFIG_BLOCK_CACHE_BYTES, 8*1024*1024)
+                .put(EmbeddedRocksDB.CONFIG_COMPRESSION, "none")
+                .put(EmbeddedRocksDB.CONFIG_SCAN_PAGE_SIZE, 7));
+        return rocks;
+    }
+
+    @Test
+    public void test() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "keyValue", "subkey", 1);
+        this.rocks.put(key, new JSONObject().put("contents", "Test Contents!"));
+        JSONObject result = this.rocks.get(key);
+        assertEquals("Test Contents!", result.getString("contents"));
+        assertEquals("keyValue", result.getString("key"));
+        assertEquals(1, result.getInt("subkey"));
+        assertNull(this.rocks.get(new Key(TEST_TABLE, "key", "keyValue")));
+
+        this.rocks.update(key, new JSONObject().put("contents", "updated").put("added", true));
+        result = this.rocks.get(key);
+        assertEquals("updated", result.getString("contents"));
+        assertTrue(result.getBoolean("added"));
+
+        // 閉じて開き直しても残る
+        EmbeddedRocksDB.close(this.path);
+        this.rocks = this.connect();
+        assertEquals("updated", this.rocks.get(key).getString("contents"));
+        this.rocks.delete(key);
+        assertNull(this.rocks.get(key));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        for(int num=1; num<=20; num++){
+            this.rocks.put(new Key(TEST_TABLE, "user", "a", "seq", num),
+                    new JSONObject().put("even", num%2==0 ? "yes" : "no"));
+            this.rocks.put(new Key(TEST_TABLE, "user", "ab", "seq", num), new JSONObject());
+            this.rocks.put(new Key("other_table", "user", "a", "seq", num), new JSONObject());
+        }
+        Key key = new Key(TEST_TABLE, "user", null, "seq", null);
+        assertEquals(Arrays.asList(18, 19, 20), this.sequences(key, ">", 17));
+        assertEquals(Arrays.asList(17, 18, 19, 20), this.sequences(key, ">=", 17));
+        assertEquals(Arrays.asList(1, 2), this.sequences(key, "<", 3));
+        assertEquals(Arrays.asList(1, 2, 3), this.sequences(key, "<=", "3"));
+        assertEquals(Arrays.asList(10), this.sequences(key, "=", 10));
+        // 型の合わない条件値は範囲を狭めずフィルタで判定する
+        assertEquals(Arrays.asList(1, 2), this.sequences(key, "<", 2.5));
+
+        JSONObject conditions = new JSONObject().put("user", condition("=", "a"))
+                .put("even", condition("=", "yes"));
+        ResultSet resultSet = this.rocks.query(key, conditions, Arrays.asList("seq"));
+        int count = 0;
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertFalse(record.has("even"));
+            assertEquals(0, record.getInt("seq")%2);
+            count++;
+        }
+        assertEquals(10, count);
+        assertNull(resultSet.next());
+
+        resultSet = this.rocks.scan(new Key(TEST_TABLE), null, null);
+        count = 0;
+        while(resultSet.hasNext()){
+            resultSet.next();
+            count++;
+        }
+        assertEquals(40, count);
+    }
+
+    @Test
+    public void testBeginWith() throws Exception {
+        for(String name : Arrays.asList("apple", "apricot", "banana", "ap", "aq", "a")){
+            this.rocks.put(new Key(TEST_TABLE, "key", "fruits", "name", name), new JSONObject());
+        }
+        ResultSet resultSet = this.rocks.query(new Key(TEST_TABLE, "key", null, "name", null),
+                new JSONObject().put("key", condition("=", "fruits")).put("name", condition("beginWith", "ap")), null);
+        List<String> names = new ArrayList<String>();
+        while(resultSet.hasNext()){
+            names.add(resultSet.next().getString("name"));
+        }
+        assertEquals(Arrays.asList("ap", "apple", "apricot"), names);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        JSONArray writes = new JSONArray();
+        JSONArray conditions = new JSONArray();
+        for(int num=1; num<=10; num++){
+            JSONObject record = new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)
+                    .put("contents", "contents-"+num);
+            writes.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_ACTION, Provider.ACTION_PUT).put(Provider.FIELD_DATA, record));
+            conditions.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)));
+        }
+        this.rocks.batchWrite(writes);
+        assertEquals(10, this.rocks.batchGet(conditions).getJSONArray(TEST_TABLE).length());
+
+        JSONArray deletes = new JSONArray();
+        for(int num=1; num<=5; num++){
+            deletes.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_ACTION, Provider.ACTION_DELETE)
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)));
+        }
+        this.rocks.batchWrite(deletes);
+        assertEquals(5, this.rocks.batchGet(conditions).getJSONArray(TEST_TABLE).length());
+    }
+
+    @Test(expected=ConfigurationException.class)
+    public void testInvalidConfig() throws Exception {
+        new EmbeddedRocksDB().connect(new JSONObject()
+                .put(EmbeddedRocksDB.CONFIG_PATH, this.folder.newFolder("invalid").getAbsolutePath())
+                .put(EmbeddedRocksDB.CONFIG_COMPRESSION, "unknown"));
+    }
+
+    private List<Integer> sequences(Key key, String operator, Object value) throws Exception {
+        ResultSet resultSet = this.rocks.query(key, new JSONObject().put("user", condition("=", "a"))
+                .put("seq", condition(operator, value)), null);
+        List<Integer> sequences = new ArrayList<Integer>();
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertEquals("a", record.getString("user"));
+            sequences.add(record.getInt("seq"));
+        }
+        return sequences;
+    }
+}
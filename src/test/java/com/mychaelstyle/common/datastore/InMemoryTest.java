@@ -0,0 +1,234 @@
+package com.mychaelstyle.common.datastore;
+
+import static com.mychaelstyle.common.datastore.Conditions.condition;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class InMemoryTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    private InMemory memory = null;
+
+    @Before
+    public void setUp() throws Exception {
+        this.memory = new InMemory();
+        this.memory.connect(new JSONObject());
+    }
+
+    @Test
+    public void test() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "keyValue", "subkey", "subkeyValue");
+        JSONObject record = new JSONObject().put("contents", "Test Contents!")
+                .put("nested", new JSONObject().put("value", 1));
+        this.memory.put(key, record);
+        // 保持しているレコードは呼び出し元の変更の影響を受けない
+        record.getJSONObject("nested").put("value", 2);
+        JSONObject result = this.memory.get(key);
+        assertEquals("Test Contents!", result.getString("contents"));
+        assertEquals(1, result.getJSONObject("nested").getInt("value"));
+        assertEquals("keyValue", result.getString("key"));
+        assertEquals("subkeyValue", result.getString("subkey"));
+        result.put("contents", "changed");
+        assertEquals("Test Contents!", this.memory.get(key).getString("contents"));
+
+        this.memory.update(key, new JSONObject().put("contents", "contents updated!").put("added", 1));
+        result = this.memory.get(key);
+        assertEquals("contents updated!", result.getString("contents"));
+        assertEquals(1, result.getInt("added"));
+        assertTrue(result.has("nested"));
+
+        // 副キーのない同じ主キーのレコードとは別
+        assertNull(this.memory.get(new Key(TEST_TABLE, "key", "keyValue")));
+
+        this.memory.delete(key);
+        assertNull(this.memory.get(key));
+        assertNull(this.memory.get(new Key("unknown", "key", "keyValue")));
+
+        // 問い合わせキーを設定する操作
+        this.memory.withTable(TEST_TABLE).withKey("key", 1);
+        this.memory.put(new JSONObject().put("contents", "by state"));
+        this.memory.withTable(TEST_TABLE).withKey("key", "1");
+        assertEquals("by state", this.memory.get().getString("contents"));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        for(int num=1; num<=20; num++){
+            this.memory.put(new Key(TEST_TABLE, "user", "a", "seq", num),
+                    new JSONObject().put("name", "name-"+num).put("even", num%2==0 ? "yes" : "no"));
+            this.memory.put(new Key(TEST_TABLE, "user", "b", "seq", num), new JSONObject());
+        }
+        Key key = new Key(TEST_TABLE, "user", null, "seq", null);
+        assertEquals(Arrays.asList(18, 19, 20), this.sequences(key, "seq", ">", 17));
+        assertEquals(Arrays.asList(17, 18, 19, 20), this.sequences(key, "seq", ">=", 17));
+        assertEquals(Arrays.asList(1, 2), this.sequences(key, "seq", "<", 3));
+        assertEquals(Arrays.asList(1, 2, 3), this.sequences(key, "seq", "<=", 3));
+        // DynamoDBと同じく文字列の条件値も数値の副キーとは数値で比較する
+        assertEquals(Arrays.asList(1, 2, 3), this.sequences(key, "seq", "<=", "3"));
+        assertEquals(Arrays.asList(10), this.sequences(key, "seq", "=", 10));
+
+        // 副キーの範囲とそれ以外のフィールドの条件
+        JSONObject conditions = this.conditions("user", "=", "a").put("seq", condition(">", 10))
+                .put("even", condition("=", "yes"));
+        ResultSet resultSet = this.memory.query(key, conditions, Arrays.asList("seq"));
+        List<Integer> sequences = new ArrayList<Integer>();
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertFalse(record.has("name"));
+            sequences.add(record.getInt("seq"));
+        }
+        assertEquals(Arrays.asList(12, 14, 16, 18, 20), sequences);
+        assertNull(resultSet.next());
+
+        // 問い合わせキーにキー名がなければテーブルに最初に書き込んだキー名
+        resultSet = this.memory.query(new Key(TEST_TABLE),
+                this.conditions("user", "=", "b").put("seq", condition("<", 3)), null);
+        assertTrue(resultSet.hasNext());
+        assertEquals(1, resultSet.next().getInt("seq"));
+        assertEquals(2, resultSet.next().getInt("seq"));
+        assertFalse(resultSet.hasNext());
+    }
+
+    @Test
+    public void testBeginWith() throws Exception {
+        for(String name : Arrays.asList("apple", "apricot", "banana", "ap", "aq", "a")){
+            this.memory.put(new Key(TEST_TABLE, "key", "fruits", "name", name), new JSONObject());
+        }
+        ResultSet resultSet = this.memory.query(new Key(TEST_TABLE, "key", null, "name", null),
+                this.conditions("key", "=", "fruits").put("name", condition("beginWith", "ap")), null);
+        List<String> names = new ArrayList<String>();
+        while(resultSet.hasNext()){
+            names.add(resultSet.next().getString("name"));
+        }
+        assertEquals(Arrays.asList("ap", "apple", "apricot"), names);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        for(int num=0; num<100; num++){
+            this.memory.put(new Key(TEST_TABLE, "key", "key-"+num),
+                    new JSONObject().put("score", num).put("group", "g"+(num%10)));
+        }
+        ResultSet resultSet = this.memory.scan(new Key(TEST_TABLE),
+                this.conditions("group", "=", "g3").put("score", condition(">=", 50)), null);
+        int count = 0;
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertEquals("g3", record.getString("group"));
+            assertTrue(record.getInt("score")>=50);
+            count++;
+        }
+        assertEquals(5, count);
+        assertFalse(this.memory.scan(new Key("unknown"), null, null).hasNext());
+        // 主キーの=条件がないqueryはscanと同じ
+        assertTrue(this.memory.query(new Key(TEST_TABLE),
+                this.conditions("score", "=", 99), null).hasNext());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        JSONArray writes = new JSONArray();
+        JSONArray conditions = new JSONArray();
+        for(int num=1; num<=10; num++){
+            JSONObject record = new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)
+                    .put("contents", "contents-"+num);
+            writes.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_ACTION, Provider.ACTION_PUT).put(Provider.FIELD_DATA, record));
+            conditions.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)));
+        }
+        this.memory.batchWrite(writes);
+        JSONArray rows = this.memory.batchGet(conditions).getJSONArray(TEST_TABLE);
+        assertEquals(10, rows.length());
+
+        JSONArray deletes = new JSONArray();
+        for(int num=1; num<=5; num++){
+            deletes.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE)
+                    .put(Provider.FIELD_KEY, "key").put(Provider.FIELD_SUBKEY, "subkey")
+                    .put(Provider.FIELD_ACTION, Provider.ACTION_DELETE)
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num).put("subkey", "subkey-"+num)));
+        }
+        this.memory.batchWrite(deletes);
+        assertEquals(5, this.memory.batchGet(conditions).getJSONArray(TEST_TABLE).length());
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        JSONObject config = new JSONObject().put(GenericDatastore.PARAM_PROVIDER, InMemory.class.getName())
+                .put(InMemory.CONFIG_STORE, "shared-test");
+        GenericDatastore writer = new GenericDatastore().withProvider(config);
+        GenericDatastore reader = new GenericDatastore().withProvider(config);
+        Key key = new Key(TEST_TABLE, "key", "shared");
+        writer.put(key, new JSONObject().put("contents", "shared"));
+        assertEquals("shared", reader.get(key).getString("contents"));
+        InMemory.drop("shared-test");
+        assertNull(reader.get(key));
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "counter");
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int num=0; num<4; num++){
+            final int thread = num;
+            threads.add(new Thread(() -> {
+                for(int count=0; count<1000; count++){
+                    Key subkey = key.withSubkey("subkey", thread*1000+count);
+                    this.memory.put(subkey, new JSONObject());
+                    this.memory.update(subkey, new JSONObject().put("updated", true));
+                    if(count%2==0){
+                        this.memory.delete(subkey);
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        ResultSet resultSet = this.memory.query(key.withSubkey("subkey", null),
+                this.conditions("key", "=", "counter"), null);
+        int count = 0;
+        while(resultSet.hasNext()){
+            assertTrue(resultSet.next().getBoolean("updated"));
+            count++;
+        }
+        assertEquals(2000, count);
+    }
+
+    private List<Integer> sequences(Key key, String field, String operator, Object value) throws Exception {
+        ResultSet resultSet = this.memory.query(key,
+                this.conditions("user", "=", "a").put(field, condition(operator, value)), null);
+        List<Integer> sequences = new ArrayList<Integer>();
+        while(resultSet.hasNext()){
+            sequences.add(resultSet.next().getInt("seq"));
+        }
+        return sequences;
+    }
+
+    private JSONObject conditions(String field, String operator, Object value) {
+        return new JSONObject().put(field, condition(operator, value));
+    }
+}
@@ -0,0 +1,149 @@
+package com.mychaelstyle.common.datastore;
+
+import static com.mychaelstyle.common.datastore.Conditions.condition;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.datastore.local.LogStore;
+import com.mychaelstyle.common.record.RecordCodec;
+import com.mychaelstyle.common.record.RecordCodecs;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class MappedLogTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path = null;
+    private MappedLog log = null;
+
+    @Before
+    public void setUp() throws Exception {
+        this.path = this.folder.newFolder("mapped").getAbsolutePath();
+        this.log = this.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MappedLog.close(this.path);
+    }
+
+    private MappedLog connect() throws ConfigurationException {
+        MappedLog log = new MappedLog();
+        log.connect(new JSONObject().put(MappedLog.CONFIG_PATH, this.path)
+                .put(MappedLog.CONFIG_SEGMENT_BYTES, 64*1024).put(MappedLog.CONFIG_COMPACTION_INTERVAL, 0));
+        return log;
+    }
+
+    @Test
+    public void test() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "keyValue", "subkey", 1);
+        this.log.put(key, new JSONObject().put("contents", "Test Contents!"));
+        JSONObject result = this.log.get(key);
+        assertEquals("Test Contents!", result.getString("contents"));
+        assertEquals("keyValue", result.getString("key"));
+        assertEquals(1, result.getInt("subkey"));
+        assertNull(this.log.get(new Key(TEST_TABLE, "key", "keyValue")));
+
+        this.log.update(key, new JSONObject().put("contents", "updated").put("added", true));
+        result = this.log.get(key);
+        assertEquals("updated", result.getString("contents"));
+        assertTrue(result.getBoolean("added"));
+
+        // 閉じて開き直しても残る
+        MappedLog.close(this.path);
+        this.log = this.connect();
+        assertEquals("updated", this.log.get(key).getString("contents"));
+        this.log.delete(key);
+        MappedLog.close(this.path);
+        this.log = this.connect();
+        assertNull(this.log.get(key));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        for(int num=1; num<=20; num++){
+            this.log.put(new Key(TEST_TABLE, "user", "a", "seq", num), new JSONObject().put("name", "name-"+num));
+            this.log.put(new Key(TEST_TABLE, "user", "ab", "seq", num), new JSONObject());
+            this.log.put(new Key("other_table", "user", "a", "seq", num), new JSONObject());
+        }
+        JSONObject conditions = new JSONObject()
+                .put("user", condition("=", "a")).put("seq", condition(">", 15));
+        ResultSet resultSet = this.log.query(new Key(TEST_TABLE, "user", null, "seq", null), conditions, null);
+        List<Integer> sequences = new ArrayList<Integer>();
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertEquals("a", record.getString("user"));
+            sequences.add(record.getInt("seq"));
+        }
+        assertEquals(5, sequences.size());
+        assertNull(resultSet.next());
+
+        resultSet = this.log.scan(new Key(TEST_TABLE), null, null);
+        int count = 0;
+        while(resultSet.hasNext()){
+            resultSet.next();
+            count++;
+        }
+        assertEquals(40, count);
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        JSONObject config = new JSONObject().put(GenericDatastore.PARAM_PROVIDER, MappedLog.class.getName())
+                .put(MappedLog.CONFIG_PATH, this.path);
+        GenericDatastore writer = new GenericDatastore().withProvider(config);
+        GenericDatastore reader = new GenericDatastore().withProvider(config);
+        Key key = new Key(TEST_TABLE, "key", "shared");
+        writer.put(key, new JSONObject().put("contents", "shared"));
+        assertEquals("shared", reader.get(key).getString("contents"));
+    }
+
+    @Test
+    public void testCodec() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "json");
+        this.log.put(key, new JSONObject().put("contents", "written as json"));
+        // 形式を切り替えても以前の形式の値を読める
+        MappedLog binary = new MappedLog();
+        binary.connect(new JSONObject().put(MappedLog.CONFIG_PATH, this.path)
+                .put(RecordCodecs.CONFIG_TABLES, new JSONObject().put(TEST_TABLE, new JSONObject()
+                        .put(RecordCodecs.CONFIG_CODEC, RecordCodecs.CODEC_BINARY)
+                        .put(RecordCodecs.CONFIG_FIELDS, new JSONArray().put("key").put("contents")))));
+        assertEquals("written as json", binary.get(key).getString("contents"));
+        binary.update(key, new JSONObject().put("count", 2));
+        LogStore store = binary.getStore();
+        byte[] stored = store.get(store.keys(TEST_TABLE).first());
+        assertEquals(RecordCodec.FORMAT_BINARY, stored[0]);
+        JSONObject result = binary.get(key);
+        assertEquals("written as json", result.getString("contents"));
+        assertEquals(2, result.getInt("count"));
+        assertEquals("json", result.getString("key"));
+        ResultSet resultSet = binary.scan(new Key(TEST_TABLE), null, null);
+        assertEquals(2, resultSet.next().getInt("count"));
+        assertNull(resultSet.next());
+    }
+
+    @Test(expected=ConfigurationException.class)
+    public void testNoPath() throws Exception {
+        new MappedLog().connect(new JSONObject());
+    }
+}
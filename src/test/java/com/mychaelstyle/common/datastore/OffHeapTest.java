@@ -0,0 +1,113 @@
+package com.mychaelstyle.common.datastore;
+
+import static com.mychaelstyle.common.datastore.Conditions.condition;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.ConfigurationException;
+import com.mychaelstyle.common.GenericDatastore.Key;
+import com.mychaelstyle.common.GenericDatastore.Provider;
+import com.mychaelstyle.common.GenericDatastore.ResultSet;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class OffHeapTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    private OffHeap offHeap = null;
+
+    @Before
+    public void setUp() throws Exception {
+        this.offHeap = new OffHeap();
+        this.offHeap.connect(new JSONObject().put(OffHeap.CONFIG_CAPACITY_BYTES, 4*1024*1024)
+                .put(OffHeap.CONFIG_SEGMENT_BYTES, 64*1024).put(OffHeap.CONFIG_PARTITIONS, 4));
+    }
+
+    @Test
+    public void test() throws Exception {
+        Key key = new Key(TEST_TABLE, "key", "keyValue", "subkey", 1);
+        this.offHeap.put(key, new JSONObject().put("contents", "Test Contents!"));
+        JSONObject result = this.offHeap.get(key);
+        assertEquals("Test Contents!", result.getString("contents"));
+        assertEquals("keyValue", result.getString("key"));
+        assertEquals(1, result.getInt("subkey"));
+        // キー値は文字列として同一性を判定する
+        assertNotNull(this.offHeap.get(key.withSubkey("subkey", "1")));
+        assertNull(this.offHeap.get(new Key(TEST_TABLE, "key", "keyValue")));
+
+        this.offHeap.update(key, new JSONObject().put("contents", "updated").put("added", true));
+        result = this.offHeap.get(key);
+        assertEquals("updated", result.getString("contents"));
+        assertTrue(result.getBoolean("added"));
+
+        this.offHeap.delete(key);
+        assertNull(this.offHeap.get(key));
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        for(int num=0; num<100; num++){
+            this.offHeap.put(new Key(TEST_TABLE, "key", "key-"+num),
+                    new JSONObject().put("score", num).put("name", "name-"+num));
+            this.offHeap.put(new Key("other_table", "key", "key-"+num), new JSONObject());
+        }
+        JSONObject conditions = new JSONObject().put("score", condition("<", 10));
+        ResultSet resultSet = this.offHeap.scan(new Key(TEST_TABLE), conditions, Arrays.asList("score"));
+        int count = 0;
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertTrue(record.getInt("score")<10);
+            assertFalse(record.has("name"));
+            count++;
+        }
+        assertEquals(10, count);
+        resultSet = this.offHeap.query(new Key("other_table"), null, null);
+        count = 0;
+        while(resultSet.hasNext()){
+            resultSet.next();
+            count++;
+        }
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        JSONArray writes = new JSONArray();
+        JSONArray conditions = new JSONArray();
+        for(int num=1; num<=10; num++){
+            writes.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE).put(Provider.FIELD_KEY, "key")
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num).put("contents", num)));
+            conditions.put(new JSONObject().put(Provider.FIELD_TABLE, TEST_TABLE).put(Provider.FIELD_KEY, "key")
+                    .put(Provider.FIELD_DATA, new JSONObject().put("key", "key-"+num)));
+        }
+        this.offHeap.batchWrite(writes);
+        assertEquals(10, this.offHeap.batchGet(conditions).getJSONArray(TEST_TABLE).length());
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        JSONObject config = new JSONObject().put(GenericDatastore.PARAM_PROVIDER, OffHeap.class.getName())
+                .put(OffHeap.CONFIG_STORE, "offheap-test").put(OffHeap.CONFIG_CAPACITY_BYTES, 1024*1024);
+        GenericDatastore writer = new GenericDatastore().withProvider(config);
+        GenericDatastore reader = new GenericDatastore().withProvider(config);
+        Key key = new Key(TEST_TABLE, "key", "shared");
+        writer.put(key, new JSONObject().put("contents", "shared"));
+        assertEquals("shared", reader.get(key).getString("contents"));
+        OffHeap.drop("offheap-test");
+    }
+
+    @Test(expected=ConfigurationException.class)
+    public void testInvalidEviction() throws Exception {
+        new OffHeap().connect(new JSONObject().put(OffHeap.CONFIG_EVICTION, "lru"));
+    }
+}
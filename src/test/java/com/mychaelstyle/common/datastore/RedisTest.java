@@ -5,8 +5,12 @@ package com.mychaelstyle.common.datastore;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -14,7 +18,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastore.Key;
 import com.mychaelstyle.common.GenericDatastore.ResultSet;
+import com.mychaelstyle.common.record.RecordCodecs;
 
 /**
  * @author Masanori Nakashima
@@ -222,4 +229,177 @@ public class RedisTest {
         }
     }
 
+    /**
+     * ハッシュで保存するテーブルの部分更新
+     */
+    @Test
+    public void testHash() throws Exception {
+        Redis hash = new Redis();
+        hash.connect(new JSONObject().put("host", "localhost").put("port", 6379)
+                .put(RecordCodecs.CONFIG_TABLES, new JSONObject().put(TEST_TABLE,
+                        new JSONObject().put(Redis.CONFIG_STORAGE, Redis.STORAGE_HASH))));
+        Key key = new Key(TEST_TABLE, "key", "hashKey");
+        // 文字列で保存した値を読んでハッシュに書き直す
+        this.redis.put(key, new JSONObject().put("contents", "string").put("count", 1));
+        hash.update(key, new JSONObject().put("count", 2));
+        JSONObject result = hash.get(key);
+        assertEquals("string", result.getString("contents"));
+        assertEquals(2, result.getInt("count"));
+
+        hash.update(key, new JSONObject().put("contents", "12").put("flag", true));
+        result = hash.get(key, Arrays.asList("contents", "flag", "missing"));
+        assertEquals(2, result.length());
+        assertEquals("12", result.get("contents"));
+        assertEquals(Boolean.TRUE, result.get("flag"));
+        assertEquals(2, hash.get(key).getInt("count"));
+
+        // putは以前のフィールドを残さない
+        hash.put(key, new JSONObject().put("contents", "replaced"));
+        result = hash.get(key);
+        assertEquals("replaced", result.getString("contents"));
+        assertFalse(result.has("count"));
+        assertEquals("hashKey", result.getString("key"));
+
+        hash.delete(key);
+        assertNull(hash.get(key));
+    }
+
+    /**
+     * batch_sizeごとに分けたパイプラインでの一括読み書き
+     */
+    @Test
+    public void testPipelinedBatch() throws Exception {
+        Redis redis = new Redis();
+        redis.connect(new JSONObject().put("host", "localhost").put("port", 6379)
+                .put(Redis.CONFIG_BATCH_SIZE, 7)
+                .put(RecordCodecs.CONFIG_TABLES, new JSONObject().put("hash_table",
+                        new JSONObject().put(Redis.CONFIG_STORAGE, Redis.STORAGE_HASH))));
+        JSONArray writes = new JSONArray();
+        JSONArray gets = new JSONArray();
+        JSONArray deletes = new JSONArray();
+        for(int num=0; num<50; num++){
+            String table = num%2==0 ? TEST_TABLE : "hash_table";
+            JSONObject data = new JSONObject().put("key", "pipelined-"+num).put("count", num);
+            writes.put(new JSONObject().put("table", table).put("key", "key").put("action", "put").put("data", data));
+            JSONObject cond = new JSONObject().put("table", table).put("key", "key")
+                    .put("data", new JSONObject().put("key", "pipelined-"+num));
+            gets.put(cond);
+            deletes.put(new JSONObject(cond.toString()).put("action", "delete"));
+        }
+        redis.batchWrite(writes);
+        JSONObject result = redis.batchGet(gets);
+        assertEquals(25, result.getJSONArray(TEST_TABLE).length());
+        assertEquals(25, result.getJSONArray("hash_table").length());
+        // 読み込みの順はconditionsの順
+        assertEquals(48, result.getJSONArray(TEST_TABLE).getJSONObject(24).getInt("count"));
+        assertEquals(1, result.getJSONArray("hash_table").getJSONObject(0).getInt("count"));
+
+        redis.batchWrite(deletes);
+        assertEquals(0, redis.batchGet(gets).length());
+    }
+
+    /**
+     * 数値のキーの一括読み書きと、まとめて読み込むget
+     */
+    @Test
+    public void testNumericKeyBatch() throws Exception {
+        JSONArray writes = new JSONArray();
+        for(int num=1; num<=3; num++){
+            writes.put(new JSONObject().put("table", "numeric_table").put("key", "id").put("action", "put")
+                    .put("data", new JSONObject().put("id", num).put("contents", "numeric "+num)));
+        }
+        this.redis.batchWrite(writes);
+        // キーの値は数値のまま保存する
+        assertEquals(Integer.valueOf(2), this.redis.get(new Key("numeric_table", "id", 2)).get("id"));
+
+        GenericDatastore datastore = new GenericDatastore().withProvider(new JSONObject()
+                .put(GenericDatastore.PARAM_PROVIDER, Redis.class.getName())
+                .put("host", "localhost").put("port", 6379))
+            .withReadBatching(20, TimeUnit.MILLISECONDS, 10);
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<CompletableFuture<JSONObject>>();
+        for(int num=1; num<=4; num++){
+            futures.add(datastore.getAsync(new Key("numeric_table", "id", num)));
+        }
+        for(int num=1; num<=3; num++){
+            assertEquals("numeric "+num, futures.get(num-1).get(5, TimeUnit.SECONDS).getString("contents"));
+        }
+        assertNull(futures.get(3).get(5, TimeUnit.SECONDS));
+
+        for(int num=0; num<writes.length(); num++){
+            writes.getJSONObject(num).put("action", "delete");
+        }
+        this.redis.batchWrite(writes);
+        assertNull(this.redis.get(new Key("numeric_table", "id", 2)));
+    }
+
+    /**
+     * 小さいscan_countで複数回のSCANに分けたクエリーのキーの一致
+     */
+    @Test
+    public void testQueryPattern() throws Exception {
+        Redis redis = new Redis();
+        redis.connect(new JSONObject().put("host", "localhost").put("port", 6379)
+                .put(Redis.CONFIG_SCAN_COUNT, 3));
+        String table = "pattern_table";
+        List<Key> keys = new ArrayList<Key>();
+        keys.add(new Key(table, "key", "1", "subkey", "a"));
+        keys.add(new Key(table, "key", "1", "subkey", "ab"));
+        keys.add(new Key(table, "key", "10", "subkey", "a"));
+        keys.add(new Key(table, "key", "100", "subkey", "a"));
+        keys.add(new Key(table, "key", "1*", "subkey", "[a]"));
+        keys.add(new Key(table, "key", "1-a", "subkey", "b"));
+        for(int num=0; num<20; num++){
+            keys.add(new Key(table, "key", "filler"+num, "subkey", "a"));
+        }
+        // テーブル名が連結文字列で始まる別のテーブル
+        keys.add(new Key(table+"-archive", "key", "1", "subkey", "a"));
+        try {
+            for(Key key : keys){
+                redis.put(key, new JSONObject().put("key", key.getKeyValue())
+                        .put("subkey", key.getSubkeyValue()).put("contents", key.getTableName()));
+            }
+            Key query = new Key(table, "key", null, "subkey", null);
+            assertEquals(Arrays.asList("1-a", "1-ab"), scanKeys(redis.query(query, condition("1", null), null)));
+            assertEquals(Arrays.asList("10-a"), scanKeys(redis.query(query, condition("10", null), null)));
+            assertEquals(Arrays.asList("1-a"), scanKeys(redis.query(query, condition("1", "a"), null)));
+            assertEquals(Arrays.asList("1*-[a]"), scanKeys(redis.query(query, condition("1*", null), null)));
+            assertEquals(Arrays.asList("1*-[a]"), scanKeys(redis.query(query, condition("1*", "[a]"), null)));
+            assertEquals(Arrays.asList("1-a-b"), scanKeys(redis.query(query, condition("1-a", null), null)));
+            assertEquals(0, scanKeys(redis.query(query, condition("1?", null), null)).size());
+
+            // テーブルだけの条件では別のテーブルのレコードを返さない. フィールドを絞ってもキーで比べる
+            ResultSet resultSet = redis.scan(query, null, Arrays.asList("contents"));
+            int counter = 0;
+            while(resultSet.hasNext()){
+                JSONObject row = resultSet.next();
+                assertEquals(1, row.length());
+                assertEquals(table, row.getString("contents"));
+                counter++;
+            }
+            assertEquals(keys.size()-1, counter);
+        } finally {
+            for(Key key : keys){
+                redis.delete(key);
+            }
+        }
+    }
+
+    private static JSONObject condition(String key, String subkey) {
+        JSONObject conditions = new JSONObject()
+            .put("key", new JSONObject().put("value", key).put("operator", "="));
+        if(null!=subkey){
+            conditions.put("subkey", new JSONObject().put("value", subkey).put("operator", "="));
+        }
+        return conditions;
+    }
+
+    private static List<String> scanKeys(ResultSet resultSet) throws Exception {
+        List<String> keys = new ArrayList<String>();
+        while(resultSet.hasNext()){
+            JSONObject row = resultSet.next();
+            keys.add(row.getString("key")+"-"+row.getString("subkey"));
+        }
+        keys.sort(null);
+        return keys;
+    }
 }
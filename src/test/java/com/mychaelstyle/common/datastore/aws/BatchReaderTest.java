@@ -0,0 +1,118 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+
+public class BatchReaderTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.executor = FakeDynamoDB.newExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdown();
+    }
+
+    private static Map<String,AttributeValue> key(int num){
+        Map<String,AttributeValue> key = new HashMap<String,AttributeValue>();
+        key.put("key", new AttributeValue().withS("key"+num));
+        return key;
+    }
+
+    private static Map<String,List<Map<String,AttributeValue>>> keys(int count){
+        List<Map<String,AttributeValue>> keys = new ArrayList<Map<String,AttributeValue>>();
+        for(int num=0; num<count; num++){
+            keys.add(key(num));
+        }
+        // 重複したキー
+        keys.add(key(0));
+        Map<String,List<Map<String,AttributeValue>>> map = new HashMap<String,List<Map<String,AttributeValue>>>();
+        map.put(TEST_TABLE, keys);
+        return map;
+    }
+
+    @Test
+    public void testSplit() {
+        List<Map<String,KeysAndAttributes>> chunks = BatchReader.split(keys(250));
+        assertEquals(3, chunks.size());
+        assertEquals(100, chunks.get(0).get(TEST_TABLE).getKeys().size());
+        assertEquals(50, chunks.get(2).get(TEST_TABLE).getKeys().size());
+    }
+
+    @Test
+    public void testUnprocessedKeys() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+        BatchReader reader = new BatchReader(FakeDynamoDB.batchGetItem(request -> {
+            requests.incrementAndGet();
+            List<Map<String,AttributeValue>> keys = request.getRequestItems().get(TEST_TABLE).getKeys();
+            assertTrue(keys.size()<=BatchReader.MAX_KEYS_PER_REQUEST);
+            // 100件のリクエストは末尾の10件を未処理として返す
+            int processed = keys.size()==BatchReader.MAX_KEYS_PER_REQUEST ? 90 : keys.size();
+            List<Map<String,AttributeValue>> items = new ArrayList<Map<String,AttributeValue>>();
+            for(Map<String,AttributeValue> key : keys.subList(0, processed)){
+                requested.add(key.get("key").getS());
+                Map<String,AttributeValue> item = new HashMap<String,AttributeValue>(key);
+                item.put("count", new AttributeValue().withN("1"));
+                items.add(item);
+            }
+            Map<String,List<Map<String,AttributeValue>>> responses = new HashMap<String,List<Map<String,AttributeValue>>>();
+            responses.put(TEST_TABLE, items);
+            BatchGetItemResult result = new BatchGetItemResult().withResponses(responses);
+            if(processed<keys.size()){
+                Map<String,KeysAndAttributes> unprocessed = new HashMap<String,KeysAndAttributes>();
+                unprocessed.put(TEST_TABLE, new KeysAndAttributes().withKeys(
+                        new ArrayList<Map<String,AttributeValue>>(keys.subList(processed, keys.size()))));
+                result.setUnprocessedKeys(unprocessed);
+            }
+            return result;
+        }), this.executor).withBackoff(1, 10);
+        Map<String,List<Map<String,AttributeValue>>> items = reader.read(keys(250));
+        assertEquals(250, items.get(TEST_TABLE).size());
+        assertEquals(250, new HashSet<String>(requested).size());
+        assertEquals(250, requested.size());
+        assertEquals(5, requests.get());
+    }
+
+    @Test
+    public void testAttributeValues() {
+        JSONObject record = new JSONObject().put("key", "key0").put("int", 1).put("long", 1L<<40)
+                .put("double", 1.5).put("bool", true).put("null", JSONObject.NULL)
+                .put("map", new JSONObject().put("name", "value"))
+                .put("list", new JSONArray().put("a").put(2));
+        JSONObject converted = AttributeValues.toJSONObject(AttributeValues.toItem(record));
+        assertEquals("key0", converted.getString("key"));
+        assertEquals(Integer.valueOf(1), converted.get("int"));
+        assertEquals(Long.valueOf(1L<<40), converted.get("long"));
+        assertEquals(1.5, converted.getDouble("double"), 0.0);
+        assertTrue(converted.getBoolean("bool"));
+        assertTrue(converted.isNull("null"));
+        assertEquals("value", converted.getJSONObject("map").getString("name"));
+        assertEquals(2, converted.getJSONArray("list").getInt(1));
+        assertNull(AttributeValues.toJSONObject(new HashMap<String,AttributeValue>()));
+    }
+}
@@ -0,0 +1,122 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.retry.RetryPolicy;
+
+public class BatchWriterTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.executor = FakeDynamoDB.newExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdown();
+    }
+
+    private static Map<String,List<WriteRequest>> items(int count){
+        List<WriteRequest> requests = new ArrayList<WriteRequest>();
+        for(int num=0; num<count; num++){
+            requests.add(new WriteRequest(new PutRequest()
+                .addItemEntry("key", new AttributeValue().withS("key"+num))));
+        }
+        Map<String,List<WriteRequest>> items = new HashMap<String,List<WriteRequest>>();
+        items.put(TEST_TABLE, requests);
+        return items;
+    }
+
+    @Test
+    public void testSplit() {
+        List<Map<String,List<WriteRequest>>> chunks = BatchWriter.split(items(60));
+        assertEquals(3, chunks.size());
+        assertEquals(25, chunks.get(0).get(TEST_TABLE).size());
+        assertEquals(10, chunks.get(2).get(TEST_TABLE).size());
+    }
+
+    @Test
+    public void testUnprocessedItems() throws Exception {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger requests = new AtomicInteger();
+        BatchWriter writer = new BatchWriter(FakeDynamoDB.batchWriteItem(request -> {
+            requests.incrementAndGet();
+            List<WriteRequest> items = request.getRequestItems().get(TEST_TABLE);
+            assertTrue(items.size()<=BatchWriter.MAX_ITEMS_PER_REQUEST);
+            // 25件のリクエストは末尾の5件を未処理として返す
+            int processed = items.size()==BatchWriter.MAX_ITEMS_PER_REQUEST ? 20 : items.size();
+            for(WriteRequest item : items.subList(0, processed)){
+                written.add(item.getPutRequest().getItem().get("key").getS());
+            }
+            BatchWriteItemResult result = new BatchWriteItemResult();
+            if(processed<items.size()){
+                Map<String,List<WriteRequest>> unprocessed = new HashMap<String,List<WriteRequest>>();
+                unprocessed.put(TEST_TABLE, new ArrayList<WriteRequest>(items.subList(processed, items.size())));
+                result.setUnprocessedItems(unprocessed);
+            }
+            return result;
+        }), this.executor).withBackoff(1, 10);
+        writer.write(items(60));
+        assertEquals(60, written.size());
+        assertEquals(60, new HashSet<String>(written).size());
+        assertEquals(5, requests.get());
+    }
+
+    @Test
+    public void testThrottled() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        BatchWriter writer = new BatchWriter(FakeDynamoDB.batchWriteItem(request -> {
+            requests.incrementAndGet();
+            throw new ProvisionedThroughputExceededException("throttled");
+        }), this.executor).withBackoff(1, 10).withMaxAttempts(3);
+        try {
+            writer.write(items(10));
+            fail("unprocessed items must be reported");
+        } catch(OperationException e){
+            assertTrue(e.getCause() instanceof ProvisionedThroughputExceededException);
+        }
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testSharedRetryPolicy() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(AwsErrorClassifier.INSTANCE).withBackoff(1, 10).withMaxAttempts(5);
+        BatchWriter writer = new BatchWriter(FakeDynamoDB.batchWriteItem(request -> {
+            requests.incrementAndGet();
+            throw new ProvisionedThroughputExceededException("throttled");
+        }), this.executor).withRetryPolicy(policy).withMaxAttempts(2);
+        // 渡したRetryPolicyは同じ設定を使う他の読み書きと共有するため変更しない
+        assertEquals(5, policy.getMaxAttempts());
+        try {
+            writer.write(items(10));
+            fail("unprocessed items must be reported");
+        } catch(OperationException e){
+            // expected
+        }
+        assertEquals(2, requests.get());
+    }
+}
@@ -0,0 +1,190 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.Capacity;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+public class CapacityLimiterTest {
+
+    private static final String TEST_TABLE = "test_table";
+
+    /**
+     * describeTableとbatchWriteItemだけを実装したクライアント
+     * @param readUnits
+     * @param writeUnits
+     * @param describes describeTableの呼び出し回数
+     * @param requests batchWriteItemのリクエスト
+     * @return
+     */
+    private static AmazonDynamoDB client(long readUnits, long writeUnits, AtomicInteger describes,
+            List<BatchWriteItemRequest> requests){
+        return new FakeDynamoDB().on("describeTable", args -> {
+            describes.incrementAndGet();
+            return new DescribeTableResult().withTable(new TableDescription()
+                    .withProvisionedThroughput(new ProvisionedThroughputDescription()
+                            .withReadCapacityUnits(readUnits).withWriteCapacityUnits(writeUnits)));
+        }).on("batchWriteItem", args -> {
+            requests.add((BatchWriteItemRequest) args[0]);
+            return new BatchWriteItemResult().withConsumedCapacity(new ConsumedCapacity()
+                    .withTableName(TEST_TABLE).withCapacityUnits(3.0)
+                    .withTable(new Capacity().withCapacityUnits(2.0)));
+        }).client();
+    }
+
+    @Test
+    public void testPacing() {
+        AtomicInteger describes = new AtomicInteger();
+        CapacityLimiter limiter = new CapacityLimiter(client(10, 20, describes, null), 1.0);
+        assertEquals(20.0, limiter.getRate(CapacityLimiter.Kind.WRITE, TEST_TABLE), 0.001);
+        assertEquals(10.0, limiter.getRate(CapacityLimiter.Kind.READ, TEST_TABLE), 0.001);
+        long started = System.currentTimeMillis();
+        // 1秒分はためられているので待たない
+        for(int num=0; num<20; num++){
+            limiter.acquire(CapacityLimiter.Kind.WRITE, TEST_TABLE, 1);
+        }
+        assertTrue(System.currentTimeMillis()-started<300);
+        // 以降は毎秒20件に抑えられる
+        for(int num=0; num<10; num++){
+            limiter.acquire(CapacityLimiter.Kind.WRITE, TEST_TABLE, 1);
+        }
+        assertTrue(System.currentTimeMillis()-started>=300);
+        // スループットはテーブルごとに1回だけ取得する
+        assertEquals(1, describes.get());
+    }
+
+    @Test
+    public void testSettle() {
+        CapacityLimiter limiter = new CapacityLimiter(client(10, 100, new AtomicInteger(), null), 1.0);
+        double reserved = limiter.acquire(CapacityLimiter.Kind.WRITE, TEST_TABLE, 1);
+        // 大きなアイテムで予約より150多く消費した
+        limiter.settle(CapacityLimiter.Kind.WRITE, reserved, new ConsumedCapacity()
+                .withTableName(TEST_TABLE).withCapacityUnits(151.0));
+        long started = System.currentTimeMillis();
+        limiter.acquire(CapacityLimiter.Kind.WRITE, TEST_TABLE, 1);
+        assertTrue(System.currentTimeMillis()-started>=400);
+    }
+
+    @Test
+    public void testRelease() {
+        CapacityLimiter limiter = new CapacityLimiter(client(10, 10, new AtomicInteger(), null), 1.0);
+        Map<String,Double> units = new HashMap<String,Double>();
+        units.put(TEST_TABLE, 10.0);
+        Map<String,Double> reserved = limiter.acquire(CapacityLimiter.Kind.WRITE, units);
+        assertEquals(0.0, limiter.available(CapacityLimiter.Kind.WRITE, TEST_TABLE), 0.01);
+        // 応答のない操作の取得分は消費しなかったものとして戻す
+        limiter.release(CapacityLimiter.Kind.WRITE, reserved);
+        assertTrue(limiter.available(CapacityLimiter.Kind.WRITE, TEST_TABLE)>=10.0-0.01);
+        double read = limiter.acquire(CapacityLimiter.Kind.READ, TEST_TABLE, 10);
+        limiter.release(CapacityLimiter.Kind.READ, TEST_TABLE, read);
+        assertTrue(limiter.available(CapacityLimiter.Kind.READ, TEST_TABLE)>=10.0-0.01);
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        AtomicInteger describes = new AtomicInteger();
+        CountDownLatch refreshing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AmazonDynamoDB slow = new FakeDynamoDB().on("describeTable", args -> {
+            // 最初の取得は100ミリ秒、再取得は解放されるまで応答しない
+            if(describes.incrementAndGet()==1){
+                Thread.sleep(100);
+            } else {
+                refreshing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return new DescribeTableResult().withTable(new TableDescription()
+                    .withProvisionedThroughput(new ProvisionedThroughputDescription()
+                            .withReadCapacityUnits(1000L).withWriteCapacityUnits(1000L)));
+        }).client();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CapacityLimiter limiter = new CapacityLimiter(slow, 1.0).withRefresh(300).withRefreshExecutor(executor);
+            // 同時に呼ばれても最初の取得は1回で、全ての呼び出しが取得した速度で制限される
+            List<Future<Double>> rates = new ArrayList<Future<Double>>();
+            for(int num=0; num<8; num++){
+                rates.add(executor.submit(() -> limiter.getRate(CapacityLimiter.Kind.READ, TEST_TABLE)));
+            }
+            for(Future<Double> rate : rates){
+                assertEquals(1000.0, rate.get(5, TimeUnit.SECONDS), 0.001);
+            }
+            assertEquals(1, describes.get());
+            // 再取得は操作を待たせず、実行中の再取得があれば重ねない
+            Thread.sleep(400);
+            long started = System.currentTimeMillis();
+            for(int num=0; num<100; num++){
+                limiter.acquire(CapacityLimiter.Kind.READ, TEST_TABLE, 1);
+            }
+            assertTrue(System.currentTimeMillis()-started<1000);
+            // 再取得は別のスレッドで始まる
+            assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+            assertEquals(2, describes.get());
+            release.countDown();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnlimited() {
+        AmazonDynamoDB failing = new FakeDynamoDB().otherwise(args -> {
+            throw new AmazonServiceException("access denied");
+        }).client();
+        CapacityLimiter limiter = new CapacityLimiter(failing, 0.9);
+        long started = System.currentTimeMillis();
+        for(int num=0; num<1000; num++){
+            limiter.acquire(CapacityLimiter.Kind.WRITE, TEST_TABLE, 1);
+        }
+        assertTrue(System.currentTimeMillis()-started<300);
+        assertEquals(0.0, limiter.getRate(CapacityLimiter.Kind.WRITE, TEST_TABLE), 0.001);
+        // オンデマンドのテーブルも制限しない
+        CapacityLimiter onDemand = new CapacityLimiter(client(0, 0, new AtomicInteger(), null), 0.9);
+        assertEquals(0.0, onDemand.getRate(CapacityLimiter.Kind.READ, TEST_TABLE), 0.001);
+    }
+
+    @Test
+    public void testBatchWriter() throws Exception {
+        List<BatchWriteItemRequest> requests = Collections.synchronizedList(new ArrayList<BatchWriteItemRequest>());
+        AmazonDynamoDB client = client(10, 10, new AtomicInteger(), requests);
+        CapacityLimiter limiter = new CapacityLimiter(client, 1.0);
+        List<WriteRequest> writes = new ArrayList<WriteRequest>();
+        for(int num=0; num<5; num++){
+            writes.add(new WriteRequest(new PutRequest()
+                .addItemEntry("key", new AttributeValue().withS("key"+num))));
+        }
+        Map<String,List<WriteRequest>> items = new HashMap<String,List<WriteRequest>>();
+        items.put(TEST_TABLE, writes);
+        new BatchWriter(client, Runnable::run).withCapacityLimiter(limiter).write(items);
+        assertEquals(1, requests.size());
+        assertEquals(ReturnConsumedCapacity.INDEXES.toString(), requests.get(0).getReturnConsumedCapacity());
+        // 5件分を予約し、インデックスを除くテーブルの消費量2で精算する
+        double available = limiter.available(CapacityLimiter.Kind.WRITE, TEST_TABLE);
+        assertTrue(available>=8.0-0.01);
+        assertTrue(available<9.0);
+    }
+}
@@ -0,0 +1,115 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+
+/**
+ * テスト用のDynamoDBクライアント.
+ * 登録したメソッドだけを実装し、それ以外の呼び出しはUnsupportedOperationExceptionにする
+ *
+ * @author Masanori Nakashima
+ */
+class FakeDynamoDB {
+
+    /**
+     * 1メソッドの実装
+     */
+    interface Handler {
+        Object handle(Object[] args) throws Exception;
+    }
+
+    private final Map<String,Handler> handlers = new HashMap<String,Handler>();
+    private Handler otherwise = null;
+
+    /**
+     * メソッドの実装を登録する
+     * @param method メソッド名
+     * @param handler
+     * @return
+     */
+    FakeDynamoDB on(String method, Handler handler){
+        this.handlers.put(method, handler);
+        return this;
+    }
+
+    /**
+     * 登録していない全てのメソッドの実装を登録する
+     * @param handler
+     * @return
+     */
+    FakeDynamoDB otherwise(Handler handler){
+        this.otherwise = handler;
+        return this;
+    }
+
+    /**
+     * 登録した実装でクライアントを作る
+     * @return
+     */
+    AmazonDynamoDB client(){
+        final Map<String,Handler> handlers = new HashMap<String,Handler>(this.handlers);
+        final Handler otherwise = this.otherwise;
+        return (AmazonDynamoDB) Proxy.newProxyInstance(FakeDynamoDB.class.getClassLoader(),
+                new Class<?>[]{AmazonDynamoDB.class}, (proxy, method, args) -> {
+                    Handler handler = handlers.get(method.getName());
+                    if(null==handler){
+                        handler = otherwise;
+                    }
+                    if(null==handler){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return handler.handle(args);
+                });
+    }
+
+    /**
+     * batchWriteItemだけを実装したクライアント
+     * @param handler
+     * @return
+     */
+    static AmazonDynamoDB batchWriteItem(final Function<BatchWriteItemRequest,BatchWriteItemResult> handler){
+        return new FakeDynamoDB().on("batchWriteItem",
+                args -> handler.apply((BatchWriteItemRequest) args[0])).client();
+    }
+
+    /**
+     * batchGetItemだけを実装したクライアント
+     * @param handler
+     * @return
+     */
+    static AmazonDynamoDB batchGetItem(final Function<BatchGetItemRequest,BatchGetItemResult> handler){
+        return new FakeDynamoDB().on("batchGetItem",
+                args -> handler.apply((BatchGetItemRequest) args[0])).client();
+    }
+
+    /**
+     * scanだけを実装したクライアント
+     * @param handler
+     * @return
+     */
+    static AmazonDynamoDB scan(final Function<ScanRequest,ScanResult> handler){
+        return new FakeDynamoDB().on("scan",
+                args -> handler.apply((ScanRequest) args[0])).client();
+    }
+
+    /**
+     * バッチ処理のテストで使う上限付きのスレッドプール. 溢れた処理は呼び出し元のスレッドで実行する
+     * @return
+     */
+    static ExecutorService newExecutor(){
+        return DatastoreExecutors.newBoundedExecutor("test-batch", 4, 16,
+                DatastoreExecutors.Overflow.CALLER_RUNS);
+    }
+}
@@ -0,0 +1,169 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+import com.mychaelstyle.common.concurrent.DatastoreExecutors;
+
+public class PagedResultSetTest {
+
+    private static final int PAGES = 5;
+    private static final int PAGE_SIZE = 10;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.executor = DatastoreExecutors.newBoundedExecutor("test-prefetch", 2, 16,
+                DatastoreExecutors.Overflow.ABORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdown();
+    }
+
+    /**
+     * PAGE_SIZE件ずつPAGESページを返すResultSet. emptyPageのページはフィルタで全て除かれた空のページ
+     */
+    private static class TestResultSet extends PagedResultSet {
+        final AtomicInteger fetches = new AtomicInteger();
+        final int emptyPage;
+        final int failPage;
+
+        TestResultSet(int prefetchPages, long prefetchMaxBytes, ExecutorService executor,
+                int emptyPage, int failPage) {
+            super(prefetchPages, prefetchMaxBytes, executor);
+            this.emptyPage = emptyPage;
+            this.failPage = failPage;
+            this.start();
+        }
+
+        @Override
+        protected Page fetch(Map<String,AttributeValue> startKey) throws Exception {
+            int page = null==startKey ? 0 : Integer.parseInt(startKey.get("page").getN());
+            this.fetches.incrementAndGet();
+            if(page==this.failPage){
+                throw new OperationException("page "+page);
+            }
+            List<Map<String,AttributeValue>> items = new ArrayList<Map<String,AttributeValue>>();
+            if(page!=this.emptyPage){
+                for(int num=0; num<PAGE_SIZE; num++){
+                    Map<String,AttributeValue> item = new HashMap<String,AttributeValue>();
+                    item.put("num", new AttributeValue().withN(String.valueOf(page*PAGE_SIZE+num)));
+                    items.add(item);
+                }
+            }
+            Map<String,AttributeValue> lastKey = null;
+            if(page+1<PAGES){
+                lastKey = new HashMap<String,AttributeValue>();
+                lastKey.put("page", new AttributeValue().withN(String.valueOf(page+1)));
+            }
+            return new Page(items, lastKey);
+        }
+    }
+
+    private static void awaitFetches(TestResultSet resultSet, int count) throws InterruptedException {
+        for(int num=0; num<200 && resultSet.fetches.get()<count; num++){
+            Thread.sleep(10);
+        }
+        // 上限を超えて先読みしないことを確認するため少し待つ
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        TestResultSet resultSet = new TestResultSet(2, Long.MAX_VALUE, this.executor, -1, -1);
+        // 取り出す前に2ページまで先読みして止まる
+        awaitFetches(resultSet, 2);
+        assertEquals(2, resultSet.fetches.get());
+        assertEquals(0, resultSet.next().getInt("num"));
+        // 1ページ取り出すと次のページを先読みする
+        awaitFetches(resultSet, 3);
+        assertEquals(3, resultSet.fetches.get());
+        for(int num=1; num<PAGES*PAGE_SIZE; num++){
+            assertTrue(resultSet.hasNext());
+            assertEquals(num, resultSet.next().getInt("num"));
+        }
+        assertFalse(resultSet.hasNext());
+        assertNull(resultSet.next());
+        assertEquals(PAGES, resultSet.fetches.get());
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        TestResultSet resultSet = new TestResultSet(4, 1, this.executor, -1, -1);
+        // 1ページでバイト数の上限に達する
+        awaitFetches(resultSet, 1);
+        assertEquals(1, resultSet.fetches.get());
+        int count = 0;
+        while(resultSet.hasNext()){
+            resultSet.next();
+            count++;
+        }
+        assertEquals(PAGES*PAGE_SIZE, count);
+    }
+
+    @Test
+    public void testWithoutPrefetch() throws Exception {
+        TestResultSet resultSet = new TestResultSet(0, Long.MAX_VALUE, this.executor, -1, -1);
+        Thread.sleep(50);
+        assertEquals(0, resultSet.fetches.get());
+        assertEquals(0, resultSet.next().getInt("num"));
+        assertEquals(1, resultSet.fetches.get());
+    }
+
+    @Test
+    public void testEmptyPage() throws Exception {
+        TestResultSet resultSet = new TestResultSet(2, Long.MAX_VALUE, this.executor, 1, -1);
+        int count = 0;
+        while(resultSet.hasNext()){
+            JSONObject record = resultSet.next();
+            assertTrue(record.getInt("num")<PAGE_SIZE || record.getInt("num")>=PAGE_SIZE*2);
+            count++;
+        }
+        assertEquals((PAGES-1)*PAGE_SIZE, count);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        TestResultSet resultSet = new TestResultSet(2, Long.MAX_VALUE, this.executor, -1, 2);
+        int count = 0;
+        try {
+            while(resultSet.hasNext()){
+                resultSet.next();
+                count++;
+            }
+            fail();
+        } catch(OperationException e){
+            assertEquals("page 2", e.getMessage());
+        }
+        assertEquals(2*PAGE_SIZE, count);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TestResultSet resultSet = new TestResultSet(2, Long.MAX_VALUE, this.executor, -1, -1);
+        assertTrue(resultSet.hasNext());
+        resultSet.close();
+        assertFalse(resultSet.hasNext());
+        int fetches = resultSet.fetches.get();
+        // 読み込み中だったページの後は先読みしない
+        Thread.sleep(100);
+        assertTrue(resultSet.fetches.get()<=fetches+1);
+        assertFalse(resultSet.hasNext());
+    }
+}
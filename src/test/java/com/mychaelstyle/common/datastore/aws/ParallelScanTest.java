@@ -0,0 +1,127 @@
+package com.mychaelstyle.common.datastore.aws;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+public class ParallelScanTest {
+
+    private static final String TEST_TABLE = "test_table";
+    private static final int SEGMENTS = 4;
+    /** 1セグメントのレコード数 */
+    private static final int RECORDS = 25;
+    private static final int PAGE_SIZE = 10;
+
+    private static Map<String,AttributeValue> item(int segment, int num){
+        Map<String,AttributeValue> item = new HashMap<String,AttributeValue>();
+        item.put("key", new AttributeValue().withS(segment+"-"+num));
+        item.put("num", new AttributeValue().withN(String.valueOf(num)));
+        return item;
+    }
+
+    /**
+     * セグメントごとにRECORDS件をPAGE_SIZE件ずつ返す. 先頭ページはフィルタで全て除かれた空のページ
+     */
+    private static ScanResult page(ScanRequest request){
+        assertEquals(TEST_TABLE, request.getTableName());
+        assertEquals(Integer.valueOf(SEGMENTS), request.getTotalSegments());
+        int segment = request.getSegment();
+        Map<String,AttributeValue> start = request.getExclusiveStartKey();
+        int from = -1;
+        if(null!=start){
+            from = Integer.parseInt(start.get("num").getN());
+        }
+        List<Map<String,AttributeValue>> items = new ArrayList<Map<String,AttributeValue>>();
+        int last = from;
+        if(from>=0){
+            for(int num=from; num<Math.min(from+PAGE_SIZE, RECORDS); num++){
+                items.add(item(segment, num));
+                last = num+1;
+            }
+        } else {
+            last = 0;
+        }
+        ScanResult result = new ScanResult().withItems(items);
+        if(last<RECORDS){
+            Map<String,AttributeValue> lastKey = new HashMap<String,AttributeValue>();
+            lastKey.put("num", new AttributeValue().withN(String.valueOf(last)));
+            result.setLastEvaluatedKey(lastKey);
+        }
+        return result;
+    }
+
+    @Test
+    public void testResultSet() throws Exception {
+        ParallelScan scan = new ParallelScan(FakeDynamoDB.scan(ParallelScanTest::page),
+                new ScanRequest().withTableName(TEST_TABLE), SEGMENTS);
+        Set<String> keys = new HashSet<String>();
+        try(ParallelScan.Results results = scan.resultSet(5)){
+            while(results.hasNext()){
+                JSONObject record = results.next();
+                assertTrue(keys.add(record.getString("key")));
+            }
+            assertNull(results.next());
+        }
+        assertEquals(SEGMENTS*RECORDS, keys.size());
+    }
+
+    @Test
+    public void testForEachSegment() throws Exception {
+        final AtomicInteger throttled = new AtomicInteger();
+        ParallelScan scan = new ParallelScan(FakeDynamoDB.scan(request -> {
+            // 各セグメントの最初の問い合わせは1度スループット超過にする
+            if(null==request.getExclusiveStartKey() && throttled.incrementAndGet()<=SEGMENTS){
+                throw new ProvisionedThroughputExceededException("throttled");
+            }
+            return page(request);
+        }), new ScanRequest().withTableName(TEST_TABLE), SEGMENTS).withBackoff(1, 10);
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        scan.forEachSegment((segment, record) -> {
+            assertTrue(record.getString("key").startsWith(segment+"-"));
+            keys.add(record.getString("key"));
+        });
+        assertEquals(SEGMENTS*RECORDS, keys.size());
+        assertEquals(SEGMENTS*RECORDS, new HashSet<String>(keys).size());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ParallelScan scan = new ParallelScan(FakeDynamoDB.scan(request -> {
+            if(request.getSegment()==2 && null!=request.getExclusiveStartKey()){
+                throw new AmazonServiceException("validation error");
+            }
+            return page(request);
+        }), new ScanRequest().withTableName(TEST_TABLE), SEGMENTS);
+        try {
+            scan.forEachSegment((segment, record) -> {});
+            fail();
+        } catch(OperationException e){
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+        try(ParallelScan.Results results = scan.resultSet()){
+            while(results.hasNext()){
+                results.next();
+            }
+            fail();
+        } catch(OperationException e){
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+    }
+}
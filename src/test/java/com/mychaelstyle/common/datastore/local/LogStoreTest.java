@@ -0,0 +1,204 @@
+package com.mychaelstyle.common.datastore.local;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class LogStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory = null;
+    private LogStore store = null;
+
+    @Before
+    public void setUp() throws Exception {
+        this.directory = this.folder.newFolder("log").toPath();
+        this.store = this.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.store.close();
+    }
+
+    private LogStore open() throws IOException {
+        return new LogStore(this.directory, 4096, false, 0.5, 0);
+    }
+
+    @Test
+    public void test() throws Exception {
+        this.store.put("key", bytes("value"));
+        assertEquals("value", string(this.store.get("key")));
+        this.store.put("key", bytes("replaced"));
+        assertEquals("replaced", string(this.store.get("key")));
+        this.store.compute("key", current -> bytes(string(current)+"!"));
+        assertEquals("replaced!", string(this.store.get("key")));
+        this.store.compute("added", current -> null==current ? bytes("added") : current);
+        assertEquals("added", string(this.store.get("added")));
+        this.store.remove("key");
+        assertNull(this.store.get("key"));
+        assertEquals(1, this.store.size());
+
+        try {
+            this.store.put("large", new byte[4096]);
+            fail();
+        } catch(OperationException e){
+            // セグメントに収まらないレコード
+        }
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        for(int num=0; num<200; num++){
+            this.store.put("key-"+num, bytes("value-"+num));
+        }
+        for(int num=0; num<200; num+=2){
+            this.store.remove("key-"+num);
+        }
+        this.store.put("key-1", bytes("replaced"));
+        assertTrue(this.store.getSegments()>1);
+        this.store.close();
+
+        this.store = this.open();
+        assertEquals(100, this.store.size());
+        assertNull(this.store.get("key-0"));
+        assertEquals("replaced", string(this.store.get("key-1")));
+        assertEquals("value-199", string(this.store.get("key-199")));
+        // 開き直した後も追記できる
+        this.store.put("key-0", bytes("again"));
+        this.store.close();
+        this.store = this.open();
+        assertEquals("again", string(this.store.get("key-0")));
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        this.store.put("first", bytes("first"));
+        this.store.put("second", bytes("second"));
+        this.store.close();
+        // 2件目の書き込みの途中で落ちた状態にする
+        int offset = LogStore.HEADER_BYTES+"first".length()*2;
+        try(RandomAccessFile file = new RandomAccessFile(this.directory.resolve("0000000000.log").toFile(), "rw")){
+            file.seek(offset+LogStore.HEADER_BYTES+2);
+            file.write(new byte[]{'X', 'X'});
+        }
+        this.store = this.open();
+        assertEquals("first", string(this.store.get("first")));
+        assertNull(this.store.get("second"));
+        this.store.put("third", bytes("third"));
+        this.store.close();
+        this.store = this.open();
+        assertEquals(2, this.store.size());
+        assertEquals("third", string(this.store.get("third")));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        for(int round=0; round<20; round++){
+            for(int num=0; num<10; num++){
+                this.store.put("key-"+num, bytes("value-"+round+"-"+num));
+            }
+        }
+        this.store.put("deleted", bytes("deleted"));
+        for(int num=0; num<50; num++){
+            this.store.put("filler-"+num, bytes("filler"));
+            this.store.remove("filler-"+num);
+        }
+        this.store.remove("deleted");
+        int segments = this.store.getSegments();
+        this.store.compact();
+        assertTrue(this.store.getCompactions()>0);
+        assertTrue(this.store.getSegments()<segments);
+        for(int num=0; num<10; num++){
+            assertEquals("value-19-"+num, string(this.store.get("key-"+num)));
+        }
+        // 詰め直した後も削除したキーは復元されない
+        this.store.close();
+        this.store = this.open();
+        assertEquals(10, this.store.size());
+        assertNull(this.store.get("deleted"));
+        assertEquals("value-19-9", string(this.store.get("key-9")));
+    }
+
+    @Test
+    public void testCompactionReopen() throws Exception {
+        // 書き直しが複数のセグメントにまたがる量の生きたエントリを残す
+        for(int num=0; num<150; num++){
+            this.store.put("key-"+num, bytes("value-"+num));
+        }
+        for(int num=0; num<150; num++){
+            if(num%3!=0){
+                this.store.remove("key-"+num);
+            }
+        }
+        int segments = this.store.getSegments();
+        this.store.compact();
+        assertTrue(this.store.getCompactions()>0);
+        assertTrue(this.store.getSegments()<segments);
+        this.store.close();
+
+        this.store = this.open();
+        assertEquals(50, this.store.size());
+        for(int num=0; num<150; num++){
+            if(num%3==0){
+                assertEquals("value-"+num, string(this.store.get("key-"+num)));
+            } else {
+                assertNull(this.store.get("key-"+num));
+            }
+        }
+        // 開き直した後も詰め直せる
+        for(int num=0; num<150; num+=6){
+            this.store.remove("key-"+num);
+        }
+        this.store.compact();
+        this.store.close();
+        this.store = this.open();
+        assertEquals(25, this.store.size());
+        assertEquals("value-147", string(this.store.get("key-147")));
+        assertNull(this.store.get("key-144"));
+        assertNull(this.store.get("key-1"));
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        for(String key : new String[]{"a\0b", "a\0a", "ab\0a", "b\0a"}){
+            this.store.put(key, bytes(key));
+        }
+        List<String> keys = new ArrayList<String>(this.store.keys("a\0"));
+        assertEquals(2, keys.size());
+        assertEquals("a\0a", keys.get(0));
+        assertEquals(4, this.store.keys("").size());
+    }
+
+    @Test(expected=IOException.class)
+    public void testLocked() throws Exception {
+        this.open();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,170 @@
+package com.mychaelstyle.common.datastore.local;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore.OperationException;
+
+public class OffHeapMapTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        OffHeapMap map = new OffHeapMap(1024*1024, 64*1024, 4, false);
+        for(int num=0; num<10000; num++){
+            map.put(bytes("key-"+num), bytes("value-"+num));
+        }
+        // 索引が大きくなっても全て引ける
+        assertEquals(10000, map.size());
+        for(int num=0; num<10000; num++){
+            assertEquals("value-"+num, string(map.get(bytes("key-"+num))));
+        }
+        map.put(bytes("key-1"), bytes("replaced"));
+        assertEquals("replaced", string(map.get(bytes("key-1"))));
+        assertTrue(map.remove(bytes("key-1")));
+        assertFalse(map.remove(bytes("key-1")));
+        assertNull(map.get(bytes("key-1")));
+        assertEquals(9999, map.size());
+
+        map.compute(bytes("key-2"), current -> bytes(string(current)+"-updated"));
+        assertEquals("value-2-updated", string(map.get(bytes("key-2"))));
+        map.compute(bytes("key-2"), current -> null);
+        assertNull(map.get(bytes("key-2")));
+
+        int count = 0;
+        for(int partition=0; partition<map.getPartitions(); partition++){
+            count += map.values(partition, bytes("key-99")).size();
+        }
+        // key-99, key-990..key-999, key-9900..key-9999
+        assertEquals(111, count);
+    }
+
+    @Test
+    public void testValuesCursor() throws Exception {
+        OffHeapMap map = new OffHeapMap(4*1024*1024, 64*1024, 1, false);
+        for(int num=0; num<100; num++){
+            map.put(bytes("key-"+num), bytes("value-"+num));
+        }
+        List<byte[]> values = new ArrayList<byte[]>();
+        int cursor = map.values(0, bytes("key-"), 0, 10, values);
+        assertTrue(cursor!=0);
+        assertTrue(values.size()<100);
+        // 取得の合間に索引が大きくなり、削除済みスロットも詰め直される
+        for(int num=0; num<10000; num++){
+            map.put(bytes("other-"+num), bytes("other"));
+        }
+        for(int num=0; num<10000; num+=2){
+            map.remove(bytes("other-"+num));
+        }
+        int chunks = 1;
+        while(cursor!=0){
+            cursor = map.values(0, bytes("key-"), cursor, 10, values);
+            chunks++;
+        }
+        assertTrue(chunks>2);
+        // 最後まで残っていたエントリは1度ずつ取得する
+        Set<String> distinct = new HashSet<String>();
+        for(byte[] value : values){
+            assertTrue(distinct.add(string(value)));
+        }
+        assertEquals(100, distinct.size());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // 1パーティション2セグメント. 上書きで空いた領域を詰め直して書き続けられる
+        OffHeapMap map = new OffHeapMap(2048, 1024, 1, false);
+        for(int round=0; round<100; round++){
+            for(int num=0; num<10; num++){
+                map.put(bytes("key-"+num), bytes("value-"+round));
+            }
+        }
+        assertEquals(10, map.size());
+        for(int num=0; num<10; num++){
+            assertEquals("value-99", string(map.get(bytes("key-"+num))));
+        }
+        assertEquals(2048, map.getAllocatedBytes());
+        assertEquals(0, map.getEvictions());
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        OffHeapMap map = new OffHeapMap(2048, 1024, 1, false);
+        int stored = 0;
+        try {
+            for(int num=0; num<1000; num++){
+                map.put(bytes("key-"+num), new byte[100]);
+                stored++;
+            }
+            fail("the store must be full");
+        } catch(OperationException e){
+            // 容量を超えた書き込みは拒否し、登録済みのレコードは残る
+        }
+        assertEquals(stored, map.size());
+        assertNotNull(map.get(bytes("key-0")));
+        try {
+            map.put(bytes("large"), new byte[2048]);
+            fail("the record must be too large");
+        } catch(OperationException e){
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        OffHeapMap map = new OffHeapMap(4096, 1024, 1, true);
+        for(int num=0; num<1000; num++){
+            map.put(bytes("key-"+num), new byte[100]);
+        }
+        // 古いレコードから捨て、新しいレコードは残る
+        assertTrue(map.getEvictions()>0);
+        assertEquals(1000, map.size()+map.getEvictions());
+        assertNull(map.get(bytes("key-0")));
+        assertNotNull(map.get(bytes("key-999")));
+        assertEquals(4096, map.getAllocatedBytes());
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(0, map.getAllocatedBytes());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        OffHeapMap map = new OffHeapMap(16*1024*1024, 64*1024, 8, false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int num=0; num<4; num++){
+            final int thread = num;
+            threads.add(new Thread(() -> {
+                try {
+                    for(int count=0; count<5000; count++){
+                        byte[] key = bytes(thread+"-"+count);
+                        map.put(key, key);
+                        map.put(key, bytes(thread+"-"+count+"-2"));
+                        assertEquals(thread+"-"+count+"-2", string(map.get(key)));
+                    }
+                } catch(OperationException e){
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertEquals(20000, map.size());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return null==value ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
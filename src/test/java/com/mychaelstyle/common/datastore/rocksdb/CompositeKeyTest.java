@@ -0,0 +1,64 @@
+package com.mychaelstyle.common.datastore.rocksdb;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore.Key;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class CompositeKeyTest {
+
+    @Test
+    public void testOrder() {
+        List<Object> numbers = Arrays.<Object>asList(Long.MIN_VALUE, -100, -1, 0, 1, 2, 10, 255, 256, Long.MAX_VALUE);
+        this.assertSorted(numbers);
+        this.assertSorted(Arrays.<Object>asList(-1.5e10, -2.5, -0.5, 0.0, 0.25, 1.5, 3e100));
+        this.assertSorted(Arrays.<Object>asList("", "a", "a\0", "ab", "b", "あ"));
+    }
+
+    private void assertSorted(List<Object> values) {
+        List<byte[]> encoded = new ArrayList<byte[]>();
+        for(Object value : values){
+            encoded.add(CompositeKey.subkey(value));
+        }
+        List<byte[]> sorted = new ArrayList<byte[]>(encoded);
+        Collections.shuffle(sorted);
+        Collections.sort(sorted, CompositeKey::compare);
+        for(int num=0; num<values.size(); num++){
+            assertArrayEquals(encoded.get(num), sorted.get(num));
+            Object decoded = CompositeKey.decodeSubkey(encoded.get(num), 0);
+            assertEquals(String.valueOf(values.get(num)), String.valueOf(decoded));
+        }
+    }
+
+    @Test
+    public void testRow() {
+        byte[] row = CompositeKey.row("table", "a");
+        byte[] other = CompositeKey.row("table", "ab");
+        byte[] nul = CompositeKey.row("table", "a\0b");
+        byte[] end = CompositeKey.successor(row);
+        // 接頭辞の範囲に別の主キー値は含まれない
+        assertTrue(CompositeKey.compare(other, row)>0 && CompositeKey.compare(other, end)>=0);
+        assertTrue(CompositeKey.compare(nul, row)<0 || CompositeKey.compare(nul, end)>=0);
+        byte[] record = CompositeKey.encode(new Key("table", "key", "a", "subkey", 1));
+        assertTrue(CompositeKey.compare(record, row)>0 && CompositeKey.compare(record, end)<0);
+        assertEquals(1L, CompositeKey.decodeSubkey(record, row.length));
+        assertNull(CompositeKey.decodeSubkey(row, row.length));
+        // 主キー値は文字列として扱う
+        assertArrayEquals(CompositeKey.row("table", 1), CompositeKey.row("table", "1"));
+        // 小数部のない数値は整数
+        assertArrayEquals(CompositeKey.subkey(3), CompositeKey.subkey(new BigDecimal("3.0")));
+        assertNull(CompositeKey.successor(new byte[]{(byte) 0xFF}));
+        assertArrayEquals(new byte[]{1, 3}, CompositeKey.successor(new byte[]{1, 2, (byte) 0xFF}));
+    }
+}
@@ -0,0 +1,108 @@
+package com.mychaelstyle.common.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testIndex() {
+        // バケット番号は値の順に連続し、どの値もバケットの範囲に収まる
+        int previous = -1;
+        for(long value=0; value<100000; value++){
+            int index = LatencyHistogram.index(value);
+            assertTrue(index==previous || index==previous+1);
+            assertTrue(LatencyHistogram.highestValue(index)>=value);
+            previous = index;
+        }
+        long large = TimeUnit.SECONDS.toNanos(3);
+        int index = LatencyHistogram.index(large);
+        long highest = LatencyHistogram.highestValue(index);
+        assertTrue(highest>=large);
+        assertTrue(highest-large<=large/LatencyHistogram.SUB_BUCKETS);
+        // 範囲を超える値は最後のバケット
+        assertEquals(LatencyHistogram.index(LatencyHistogram.MAX_TRACKABLE_NANOS),
+                LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Long> values = new ArrayList<Long>();
+        for(int num=1; num<=10000; num++){
+            long value = TimeUnit.MICROSECONDS.toNanos(num);
+            values.add(value);
+            histogram.record(value);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(10000), snapshot.getMax());
+        assertNear(TimeUnit.MICROSECONDS.toNanos(5000), snapshot.getValueAtPercentile(50));
+        assertNear(TimeUnit.MICROSECONDS.toNanos(9900), snapshot.getValueAtPercentile(99));
+        assertNear(TimeUnit.MICROSECONDS.toNanos(9990), snapshot.getValueAtPercentile(99.9));
+        assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+        assertEquals(0.01, snapshot.getValueAtPercentile(100, TimeUnit.SECONDS), 0.0001);
+        assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int num=0; num<4; num++){
+            Thread thread = new Thread(() -> {
+                for(int count=0; count<100000; count++){
+                    histogram.record(ThreadLocalRandom.current().nextLong(1000000));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertEquals(400000, histogram.count());
+        assertEquals(400000, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void testWindow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyWindow window = new LatencyWindow(histogram, 3000, 3);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        long slow = TimeUnit.MILLISECONDS.toNanos(100);
+        long fast = TimeUnit.MILLISECONDS.toNanos(1);
+        for(int num=0; num<100; num++){
+            histogram.record(slow);
+        }
+        assertNear(slow, window.snapshot(0).getValueAtPercentile(50));
+        assertEquals(100, window.snapshot(second).getCount());
+        for(int num=0; num<100; num++){
+            histogram.record(fast);
+        }
+        LatencyHistogram.Snapshot recent = window.snapshot(2*second);
+        assertEquals(200, recent.getCount());
+        assertNear(slow, recent.getValueAtPercentile(99));
+        // 期間を過ぎた遅い記録は外れる
+        recent = window.snapshot(3*second);
+        assertEquals(100, recent.getCount());
+        assertNear(fast, recent.getValueAtPercentile(99));
+        assertNear(fast, recent.getMax());
+        assertEquals(100*fast, recent.getSum());
+        // 累計は変わらない
+        assertEquals(200, histogram.snapshot().getCount());
+        assertEquals(slow, histogram.snapshot().getMax());
+    }
+
+    /** バケットの幅による誤差は約1.6%以内 */
+    private static void assertNear(long expected, long actual) {
+        assertTrue(actual>=expected);
+        assertTrue("expected "+expected+" but "+actual, actual-expected<=expected/LatencyHistogram.SUB_BUCKETS+1);
+    }
+}
@@ -0,0 +1,65 @@
+package com.mychaelstyle.common.metrics;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PrometheusExporterTest {
+
+    @Test
+    public void testScrape() {
+        MetricsRegistry registry = new MetricsRegistry();
+        OperationMetrics metrics = registry.operation("Redis", "get", "users");
+        for(int num=0; num<100; num++){
+            metrics.record(TimeUnit.MILLISECONDS.toNanos(1), true);
+        }
+        metrics.record(TimeUnit.MILLISECONDS.toNanos(50), false);
+        // 2回目以降は同じインスタンス
+        assertSame(metrics, registry.operation("Redis", "get", "users"));
+        registry.retried("Redis", "get");
+        registry.retried("Redis", "get");
+
+        String text = new PrometheusExporter(registry).scrape();
+        String labels = "provider=\"Redis\",operation=\"get\",table=\"users\"";
+        assertTrue(text.contains("# TYPE datastore_operation_duration_seconds summary\n"));
+        assertTrue(text.contains("datastore_operation_duration_seconds_count{"+labels+"} 101\n"));
+        assertTrue(text.contains("datastore_operation_duration_seconds{"+labels+",quantile=\"0.5\"} 0.001"));
+        assertTrue(text.contains("datastore_operation_duration_seconds_max{"+labels+"} 0.05\n"));
+        assertTrue(text.contains("datastore_operation_errors_total{"+labels+"} 1\n"));
+        assertTrue(text.contains("datastore_retries_total{provider=\"Redis\",operation=\"get\"} 2\n"));
+        assertEquals("a\\\"b\\\\c\\n", PrometheusExporter.escape("a\"b\\c\n"));
+        assertEquals("", new PrometheusExporter(new MetricsRegistry()).scrape());
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.operation("MySQL", "put", "items").record(1000, true);
+        try(PrometheusExporter exporter = new PrometheusExporter(registry)
+                .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))){
+            URL url = new URL("http://127.0.0.1:"+exporter.getAddress().getPort()+PrometheusExporter.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try(InputStream in = connection.getInputStream()){
+                byte[] buf = new byte[4096];
+                int read;
+                while((read=in.read(buf))>0){
+                    body.write(buf, 0, read);
+                }
+            }
+            assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8)
+                    .contains("datastore_operation_duration_seconds_count{provider=\"MySQL\",operation=\"put\",table=\"items\"} 1\n"));
+        }
+    }
+}
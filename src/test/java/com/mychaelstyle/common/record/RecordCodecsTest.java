@@ -0,0 +1,154 @@
+package com.mychaelstyle.common.record;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class RecordCodecsTest {
+
+    private static Record sample() {
+        return new Record()
+            .setString("key", "user-1")
+            .setLong("count", -12345678901L)
+            .setLong("small", 3)
+            .setDouble("rate", 0.125)
+            .setBoolean("active", true)
+            .setBoolean("deleted", false)
+            .setString("name", "テスト")
+            .setBytes("raw", new byte[]{0,1,(byte) 0xFF})
+            .setNull("empty")
+            .set("precise", new BigDecimal("0.1000000000000000000001"))
+            .set("huge", new BigInteger("123456789012345678901234567890"))
+            .set("nested", new JSONObject().put("a", 1).put("b", new JSONArray().put("x")));
+    }
+
+    @Test
+    public void testBinary() {
+        Record record = sample();
+        for(BinaryRecordCodec codec : Arrays.asList(new BinaryRecordCodec(),
+                new BinaryRecordCodec(Arrays.asList("key", "count", "name")))){
+            byte[] encoded = codec.encode(record);
+            assertEquals(RecordCodec.FORMAT_BINARY, encoded[0]);
+            Record decoded = codec.decode(encoded);
+            assertEquals(record.size(), decoded.size());
+            assertEquals("user-1", decoded.getString("key"));
+            assertEquals(-12345678901L, decoded.getLong("count"));
+            assertEquals(3, decoded.getLong("small"));
+            assertEquals(0.125, decoded.getDouble("rate"), 0.0);
+            assertTrue(decoded.getBoolean("active"));
+            assertFalse(decoded.getBoolean("deleted"));
+            assertEquals("テスト", decoded.getString("name"));
+            assertArrayEquals(new byte[]{0,1,(byte) 0xFF}, decoded.getBytes("raw"));
+            assertEquals(Record.TYPE_NULL, decoded.typeAt(decoded.indexOf("empty")));
+            assertEquals(new BigDecimal("0.1000000000000000000001"), decoded.get("precise"));
+            assertEquals(new BigInteger("123456789012345678901234567890"), decoded.get("huge"));
+            JSONObject nested = (JSONObject) decoded.get("nested");
+            assertEquals(1, nested.getInt("a"));
+            assertEquals("x", nested.getJSONArray("b").getString(0));
+        }
+        // 辞書のフィールド名は番号だけを書く
+        assertTrue(new BinaryRecordCodec(Arrays.asList("key", "count", "name")).encode(record).length
+                < new BinaryRecordCodec().encode(record).length);
+        assertTrue(new BinaryRecordCodec().encode(record).length
+                < RecordCodecs.JSON.encode(record).length);
+    }
+
+    @Test
+    public void testMixedFormats() {
+        JSONObject config = new JSONObject()
+            .put(RecordCodecs.CONFIG_FIELDS, new JSONArray().put("key").put("text"))
+            .put(RecordCodecs.CONFIG_COMPRESSION, RecordCodecs.COMPRESSION_DEFLATE)
+            .put(RecordCodecs.CONFIG_COMPRESSION_THRESHOLD, 256)
+            .put(RecordCodecs.CONFIG_TABLES, new JSONObject()
+                    .put("binary", new JSONObject().put(RecordCodecs.CONFIG_CODEC, RecordCodecs.CODEC_BINARY)));
+        RecordCodecs codecs = RecordCodecs.configure(config);
+        RecordCodec json = codecs.forTable("other");
+        RecordCodec binary = codecs.forTable("binary");
+
+        char[] text = new char[1000];
+        Arrays.fill(text, 'a');
+        JSONObject large = new JSONObject().put("key", "k").put("text", new String(text));
+        JSONObject small = new JSONObject().put("key", "k").put("text", "short");
+
+        // JSONは圧縮しなければ以前と同じ文字列
+        byte[] plain = json.encodeJSON(small);
+        assertEquals(small.toString(), new String(plain, StandardCharsets.UTF_8));
+        assertEquals(RecordCodec.FORMAT_DEFLATE, json.encodeJSON(large)[0]);
+        assertEquals(RecordCodec.FORMAT_BINARY, binary.encodeJSON(small)[0]);
+        byte[] compressed = binary.encodeJSON(large);
+        assertEquals(RecordCodec.FORMAT_DEFLATE, compressed[0]);
+        assertTrue(compressed.length<100);
+
+        // どちらのテーブルの設定でも全ての形式を読める
+        for(RecordCodec reader : Arrays.asList(json, binary)){
+            for(RecordCodec writer : Arrays.asList(json, binary)){
+                assertEquals(new String(text), reader.decodeJSON(writer.encodeJSON(large)).getString("text"));
+                assertEquals("short", reader.decode(writer.encodeJSON(small)).getString("text"));
+            }
+            assertEquals("short", reader.decodeJSON(plain).getString("text"));
+        }
+    }
+
+    @Test
+    public void testBrokenData() {
+        RecordCodec codec = RecordCodecs.configure(null).forTable("any");
+        byte[] truncated = RecordCodecs.deflate(new byte[100]);
+        truncated[4] = 101;
+        for(byte[] data : Arrays.asList(new byte[0], new byte[]{0x7F},
+                new byte[]{RecordCodec.FORMAT_BINARY, 5, 0}, new byte[]{RecordCodec.FORMAT_DEFLATE, 0, 0, 0, 10, 1},
+                "{\"broken\":".getBytes(StandardCharsets.UTF_8),
+                // 先頭の長さが大きくても領域を確保しない
+                new byte[]{RecordCodec.FORMAT_DEFLATE, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3},
+                // 展開したデータが先頭の長さより短い
+                truncated)){
+            try {
+                codec.decode(data);
+                fail();
+            } catch(IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMaxRecordBytes() {
+        JSONObject config = new JSONObject()
+            .put(RecordCodecs.CONFIG_COMPRESSION, RecordCodecs.COMPRESSION_DEFLATE)
+            .put(RecordCodecs.CONFIG_COMPRESSION_THRESHOLD, 0);
+        char[] text = new char[1000];
+        Arrays.fill(text, 'a');
+        JSONObject large = new JSONObject().put("text", new String(text));
+        byte[] compressed = RecordCodecs.configure(config).forTable("any").encodeJSON(large);
+        assertEquals(RecordCodec.FORMAT_DEFLATE, compressed[0]);
+        assertEquals(new String(text), RecordCodecs.configure(config).forTable("any")
+                .decodeJSON(compressed).getString("text"));
+        try {
+            RecordCodecs.configure(config.put(RecordCodecs.CONFIG_MAX_RECORD_BYTES, 500))
+                .forTable("any").decodeJSON(compressed);
+            fail();
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownCodec() {
+        RecordCodecs.configure(new JSONObject().put(RecordCodecs.CONFIG_CODEC, "xml"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownCompression() {
+        RecordCodecs.configure(new JSONObject().put(RecordCodecs.CONFIG_COMPRESSION, "lz4"));
+    }
+}
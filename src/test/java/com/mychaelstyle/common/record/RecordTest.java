@@ -0,0 +1,162 @@
+package com.mychaelstyle.common.record;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * @author Masanori Nakashima
+ *
+ */
+public class RecordTest {
+
+    @Test
+    public void testTypes() {
+        Record record = new Record()
+            .setLong("id", 12345678901L)
+            .setDouble("score", 1.5)
+            .setBoolean("active", true)
+            .setString("name", "テスト")
+            .setBytes("raw", new byte[]{1,2,3})
+            .setNull("empty");
+        assertEquals(6, record.size());
+        assertEquals(12345678901L, record.getLong("id"));
+        assertEquals(1.5, record.getDouble("score"), 0.0);
+        assertTrue(record.getBoolean("active"));
+        assertEquals("テスト", record.getString("name"));
+        assertArrayEquals(new byte[]{1,2,3}, record.getBytes("raw"));
+        assertTrue(record.has("empty"));
+        assertEquals(JSONObject.NULL, record.get("empty"));
+        assertFalse(record.has("missing"));
+        assertNull(record.get("missing"));
+        assertEquals(Record.TYPE_LONG, record.typeAt(record.indexOf("id")));
+        assertEquals(Record.TYPE_STRING, record.typeAt(record.indexOf("name")));
+
+        // 同じフィールドは上書きして件数を増やさない
+        record.set("id", "changed");
+        assertEquals(6, record.size());
+        assertEquals("changed", record.getString("id"));
+        assertEquals(Record.TYPE_STRING, record.typeAt(record.indexOf("id")));
+    }
+
+    @Test
+    public void testSet() {
+        Record record = new Record()
+            .set("int", 1)
+            .set("long", Long.MAX_VALUE)
+            .set("float", 0.5f)
+            .set("decimal", new BigDecimal("0.25"))
+            .set("precise", new BigDecimal("0.1000000000000000000001"))
+            .set("null", JSONObject.NULL);
+        assertEquals(Record.TYPE_LONG, record.typeAt(record.indexOf("int")));
+        assertEquals(Long.MAX_VALUE, record.getLong("long"));
+        assertEquals(Record.TYPE_DOUBLE, record.typeAt(record.indexOf("float")));
+        assertEquals(Record.TYPE_DOUBLE, record.typeAt(record.indexOf("decimal")));
+        // doubleで表せない値は元のまま持つ
+        assertEquals(Record.TYPE_OBJECT, record.typeAt(record.indexOf("precise")));
+        assertEquals(new BigDecimal("0.1000000000000000000001"), record.get("precise"));
+        assertEquals(Record.TYPE_NULL, record.typeAt(record.indexOf("null")));
+    }
+
+    @Test
+    public void testJSON() {
+        JSONObject json = new JSONObject()
+            .put("id", 1)
+            .put("big", 12345678901L)
+            .put("rate", 0.75)
+            .put("flag", false)
+            .put("text", "a\"b\n");
+        Record record = Record.fromJSON(json);
+        assertEquals(5, record.size());
+        assertEquals(json.toString(), record.toJSON().toString());
+        // JSONObjectを経由しない文字列も同じ内容に戻る
+        JSONObject parsed = new JSONObject(record.toJSONString());
+        assertEquals(1, parsed.getInt("id"));
+        assertEquals(12345678901L, parsed.getLong("big"));
+        assertEquals(0.75, parsed.getDouble("rate"), 0.0);
+        assertFalse(parsed.getBoolean("flag"));
+        assertEquals("a\"b\n", parsed.getString("text"));
+        assertNull(Record.fromJSON(null));
+
+        Record bytes = new Record().setBytes("raw", new byte[]{0,1,(byte) 0xFF}).setNull("none");
+        parsed = new JSONObject(bytes.toJSONString());
+        assertEquals("AAH/", parsed.getString("raw"));
+        assertTrue(parsed.isNull("none"));
+    }
+
+    @Test
+    public void testCopy() {
+        Record record = new Record().setLong("a", 1).setLong("b", 2).setLong("c", 3);
+        Record copy = record.copy();
+        record.remove("b");
+        assertEquals(2, record.size());
+        assertFalse(record.has("b"));
+        assertEquals(3, record.getLong("c"));
+        assertEquals(3, copy.size());
+        assertEquals(2, copy.getLong("b"));
+
+        copy.putAll(new Record().setString("a", "x").setLong("d", 4));
+        assertEquals(4, copy.size());
+        assertEquals("x", copy.getString("a"));
+        assertEquals(4, copy.getLong("d"));
+        assertEquals(1, record.getLong("a"));
+    }
+
+    @Test
+    public void testDictionary() {
+        FieldDictionary dictionary = new FieldDictionary();
+        assertEquals(-1, dictionary.find("a"));
+        int a = dictionary.id("a");
+        assertEquals(a, dictionary.id("a"));
+        assertEquals(a, dictionary.find("a"));
+        assertEquals("a", dictionary.name(a));
+        // 初期の配列を超えて登録できる
+        for(int num=0; num<200; num++){
+            assertEquals("f"+num, dictionary.name(dictionary.id("f"+num)));
+        }
+        assertEquals(201, dictionary.size());
+
+        Record record = new Record(dictionary, 1);
+        for(int num=0; num<20; num++){
+            record.setLong("f"+num, num);
+        }
+        assertEquals(20, record.size());
+        assertEquals(19, record.getLong("f19"));
+        assertSame(dictionary, record.getDictionary());
+    }
+
+    @Test
+    public void testDictionaryLimit() {
+        FieldDictionary dictionary = new FieldDictionary(2);
+        Record record = new Record(dictionary, 1)
+            .setLong("a", 1).setLong("b", 2).setLong("c", 3).setString("d", "x");
+        // 上限を超えたフィールド名は辞書に登録せずレコードが持つ
+        assertEquals(2, dictionary.size());
+        assertEquals(-1, dictionary.find("c"));
+        assertEquals(4, record.size());
+        assertEquals(3, record.getLong("c"));
+        assertEquals("d", record.name(3));
+        record.setLong("c", 30);
+        assertEquals(4, record.size());
+        assertEquals(30, record.getLong("c"));
+
+        Record copy = record.copy();
+        record.remove("a");
+        assertEquals(3, record.size());
+        assertEquals("x", record.getString("d"));
+        assertEquals("c", record.name(1));
+        assertEquals(4, copy.size());
+        assertEquals(30, copy.getLong("c"));
+        assertEquals("{\"a\":1,\"b\":2,\"c\":30,\"d\":\"x\"}", copy.toJSONString());
+
+        // 別の辞書のレコードからも上書きできる
+        copy.putAll(new Record().setLong("e", 5).setLong("c", 300));
+        assertEquals(5, copy.size());
+        assertEquals(300, copy.getLong("c"));
+        assertEquals(5, copy.getLong("e"));
+        assertEquals(FieldDictionary.DEFAULT_MAX_SIZE, FieldDictionary.SHARED.getMaxSize());
+    }
+}
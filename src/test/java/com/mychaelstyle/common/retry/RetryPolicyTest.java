@@ -0,0 +1,152 @@
+package com.mychaelstyle.common.retry;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.mychaelstyle.common.datastore.aws.AwsErrorClassifier;
+import com.mychaelstyle.common.metrics.MetricsRegistry;
+
+public class RetryPolicyTest {
+
+    /** 再試行の回数で上限に達しない十分な上限 */
+    private static RetryBudget unlimited() {
+        return new RetryBudget(1.0, 1000, 1000);
+    }
+
+    @Test
+    public void testRetryUntilSuccess() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        MetricsRegistry metrics = new MetricsRegistry();
+        RetryPolicy policy = new RetryPolicy(ErrorClassifiers.NETWORK)
+                .withBackoff(1, 10).withBudget(unlimited()).withMetrics(metrics, "Test");
+        String result = policy.execute("test", () -> {
+            if(calls.incrementAndGet()<3){
+                throw new IOException("reset", new SocketTimeoutException("timeout"));
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+        // 再試行の回数を記録する
+        final AtomicInteger retries = new AtomicInteger();
+        metrics.forEachRetry((provider, operation, count) -> {
+            assertEquals("Test", provider);
+            assertEquals("test", operation);
+            retries.addAndGet((int) count);
+        });
+        assertEquals(2, retries.get());
+    }
+
+    @Test
+    public void testNotRetryable() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(ErrorClassifiers.NETWORK)
+                .withBackoff(1, 10).withBudget(unlimited());
+        try {
+            policy.execute("test", () -> {
+                calls.incrementAndGet();
+                throw new IllegalArgumentException("invalid");
+            });
+            fail();
+        } catch(IllegalArgumentException e){
+            assertEquals("invalid", e.getMessage());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testMaxAttempts() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(error -> true)
+                .withBackoff(1, 10).withBudget(unlimited())
+                .configure(new JSONObject().put(RetryPolicy.CONFIG_MAX_ATTEMPTS, 4));
+        try {
+            policy.execute("test", () -> {
+                throw new IOException("attempt "+calls.incrementAndGet());
+            });
+            fail();
+        } catch(IOException e){
+            // 最後のエラーを送出する
+            assertEquals("attempt 4", e.getMessage());
+        }
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(error -> true)
+                .withMaxAttempts(1000).withBackoff(20, 20).withDeadline(100).withBudget(unlimited());
+        long started = System.currentTimeMillis();
+        try {
+            policy.execute("test", () -> {
+                calls.incrementAndGet();
+                throw new IOException("fail");
+            });
+            fail();
+        } catch(IOException e){
+            // through
+        }
+        assertTrue(System.currentTimeMillis()-started<1000);
+        assertTrue(calls.get()>1);
+        assertTrue(calls.get()<1000);
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        // 操作10回あたり1回、時間では補充しない
+        RetryBudget budget = new RetryBudget(0.1, 0, 100);
+        RetryPolicy policy = new RetryPolicy(error -> true).withBackoff(0, 0).withBudget(budget);
+        final AtomicInteger calls = new AtomicInteger();
+        for(int num=0; num<100; num++){
+            try {
+                policy.execute("test", () -> {
+                    calls.incrementAndGet();
+                    throw new IOException("outage");
+                });
+                fail();
+            } catch(IOException e){
+                // through
+            }
+        }
+        // 全て失敗しても再試行は操作数の1割程度に抑えられる
+        assertTrue(calls.get()<=100+10);
+        assertEquals(0, budget.available());
+    }
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy(ErrorClassifiers.NEVER).withBackoff(10, 100);
+        for(int num=0; num<100; num++){
+            assertTrue(policy.backoffMillis(1)<=20);
+            assertTrue(policy.backoffMillis(10)<=100);
+            assertTrue(policy.backoffMillis(1)>=0);
+        }
+    }
+
+    @Test
+    public void testAwsErrorClassifier() {
+        ErrorClassifier classifier = AwsErrorClassifier.INSTANCE;
+        assertTrue(classifier.isRetryable(new ProvisionedThroughputExceededException("throttled")));
+        AmazonServiceException throttling = new AmazonServiceException("throttling");
+        throttling.setErrorCode("ThrottlingException");
+        throttling.setStatusCode(400);
+        assertTrue(classifier.isRetryable(throttling));
+        AmazonServiceException unavailable = new AmazonServiceException("unavailable");
+        unavailable.setStatusCode(503);
+        assertTrue(classifier.isRetryable(unavailable));
+        AmazonServiceException validation = new AmazonServiceException("validation");
+        validation.setErrorCode("ValidationException");
+        validation.setStatusCode(400);
+        assertFalse(classifier.isRetryable(validation));
+        assertFalse(classifier.isRetryable(new IllegalStateException("bug")));
+    }
+}
@@ -0,0 +1,68 @@
+package com.mychaelstyle.common.workload;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.mychaelstyle.common.GenericDatastore;
+import com.mychaelstyle.common.GenericDatastoreTest;
+import com.mychaelstyle.common.workload.Workload.Operation;
+
+public class WorkloadRunnerTest {
+
+    @Test
+    public void testNextOperation() {
+        Workload workload = new Workload(new JSONObject()
+                .put(Workload.CONFIG_READ_PROPORTION, 0.5).put(Workload.CONFIG_UPDATE_PROPORTION, 0)
+                .put(Workload.CONFIG_INSERT_PROPORTION, 0.5));
+        int reads = 0;
+        for(int num=0; num<10000; num++){
+            Operation operation = workload.nextOperation();
+            assertTrue(operation==Operation.READ || operation==Operation.INSERT);
+            if(operation==Operation.READ){
+                reads++;
+            }
+        }
+        assertTrue(reads>4500 && reads<5500);
+        // insertはロード済みの番号の後から払い出す
+        assertEquals(1000, workload.nextInsertNumber());
+        assertEquals(1001, workload.nextInsertNumber());
+    }
+
+    @Test
+    public void testRecord() {
+        Workload workload = new Workload(new JSONObject()
+                .put(Workload.CONFIG_FIELD_COUNT, 3).put(Workload.CONFIG_FIELD_LENGTH, 8));
+        JSONObject record = workload.record(7);
+        assertEquals("user7", record.getString(Workload.DEFAULT_KEY_NAME));
+        assertEquals(4, record.length());
+        assertEquals(8, record.getString("field2").length());
+        assertEquals(2, workload.update(7).length());
+        assertEquals("user7", workload.key(7).getKeyValue());
+    }
+
+    @Test
+    public void testLoadAndRun() throws Exception {
+        GenericDatastore datastore = new GenericDatastore().withProvider(new JSONObject()
+                .put(GenericDatastore.PARAM_PROVIDER, GenericDatastoreTest.StubProvider.class.getName())
+                .put("name", "workload").put("latency", 0).put("fail", false));
+        Workload workload = new Workload(new JSONObject()
+                .put(Workload.CONFIG_RECORD_COUNT, 100).put(Workload.CONFIG_OPERATION_COUNT, 500)
+                .put(Workload.CONFIG_THREADS, 4).put(Workload.CONFIG_FIELD_COUNT, 2)
+                .put(Workload.CONFIG_REQUEST_DISTRIBUTION, Workload.DISTRIBUTION_UNIFORM));
+        WorkloadRunner runner = new WorkloadRunner(datastore, workload);
+
+        WorkloadRunner.Report load = runner.load();
+        assertEquals(100, load.getOperations());
+        assertEquals(0, load.getMetrics(Operation.INSERT).getErrors());
+        assertNotNull(datastore.get(workload.key(99)));
+
+        WorkloadRunner.Report run = runner.run();
+        assertEquals(500, run.getOperations());
+        assertEquals(0, run.getMetrics(Operation.READ).getErrors());
+        assertTrue(run.getMetrics(Operation.READ).getLatency().count()>400);
+        assertTrue(run.getThroughput()>0);
+        assertTrue(run.toString().contains("[READ] 99thPercentileLatency(us) "));
+    }
+}
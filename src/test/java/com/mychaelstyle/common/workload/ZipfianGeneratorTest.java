@@ -0,0 +1,65 @@
+package com.mychaelstyle.common.workload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ZipfianGeneratorTest {
+
+    @Test
+    public void testSkew() {
+        ZipfianGenerator generator = new ZipfianGenerator(1000, ZipfianGenerator.DEFAULT_CONSTANT, false);
+        int[] counts = new int[1000];
+        for(int num=0; num<100000; num++){
+            long value = generator.next();
+            assertTrue(value>=0 && value<1000);
+            counts[(int) value]++;
+        }
+        // 番号0の確率は1/zeta(1000, 0.99)で約13%、番号が大きいほど少ない
+        assertTrue("count of 0 : "+counts[0], counts[0]>11000 && counts[0]<15000);
+        assertTrue(counts[0]>counts[1]);
+        assertTrue(counts[1]>counts[10]);
+        int tail = 0;
+        for(int num=500; num<1000; num++){
+            tail += counts[num];
+        }
+        assertTrue(tail<counts[0]);
+    }
+
+    @Test
+    public void testScrambled() {
+        ZipfianGenerator generator = new ZipfianGenerator(1000);
+        int[] counts = new int[1000];
+        for(int num=0; num<100000; num++){
+            long value = generator.next();
+            assertTrue(value>=0 && value<1000);
+            counts[(int) value]++;
+        }
+        // 最も多い番号は先頭ではなく散らされた位置
+        int hottest = 0;
+        for(int num=1; num<1000; num++){
+            if(counts[num]>counts[hottest]){
+                hottest = num;
+            }
+        }
+        assertEquals(Math.floorMod(ZipfianGenerator.fnvhash64(0), 1000), hottest);
+        assertTrue(counts[hottest]>11000);
+    }
+
+    @Test
+    public void testUniform() {
+        UniformGenerator generator = new UniformGenerator(10);
+        int[] counts = new int[10];
+        for(int num=0; num<100000; num++){
+            counts[(int) generator.next()]++;
+        }
+        for(int count : counts){
+            assertTrue(count>9000 && count<11000);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidConstant() {
+        new ZipfianGenerator(10, 1.0, false);
+    }
+}